@@ -0,0 +1,478 @@
+package thaw.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import thaw.fcp.FCPClientGet;
+import thaw.fcp.FCPClientPut;
+import thaw.fcp.FCPNodePool;
+import thaw.fcp.FCPQueueManager;
+import thaw.fcp.FCPTransferQuery;
+
+
+/**
+ * Local command socket used to control Thaw when it runs without GUI (see Core.initHeadless()).
+ * Only listens on the loopback interface. One command per line ; each answer ends with
+ * a line "OK" or "ERROR &lt;reason&gt;". Try "telnet 127.0.0.1 &lt;commandPort&gt;" and "help".<br/>
+ * The other users of the computer can connect too, so the first command must be
+ * "auth &lt;secret&gt;" (the secret is 'commandSecret' in the config) ; the other commands
+ * are refused until then, and a wrong secret closes the connection. So does a client not
+ * authenticated after AUTH_TIMEOUT : each client has its own thread, and a silent one
+ * can't lock out the others.<br/>
+ * Arguments containing spaces must be quoted : put "/tmp/my file".
+ */
+public class CommandServer implements ThawRunnable {
+	/* ms given to a client to authenticate */
+	public final static int AUTH_TIMEOUT = 5000;
+
+	/* clients connected at the same time */
+	public final static int MAX_CLIENTS = 8;
+
+	private final Core core;
+	private final int port;
+	private final byte[] secret;
+
+	private ServerSocket serverSocket = null;
+	private volatile boolean running = false;
+
+	private final Vector<Socket> clients = new Vector<Socket>();
+
+
+	/**
+	 * @param secret expected by the command "auth" (see generateSecret())
+	 */
+	public CommandServer(final Core core, final int port, final String secret) {
+		this.core = core;
+		this.port = port;
+		this.secret = getBytes(secret);
+	}
+
+
+	/**
+	 * @return a random secret (128 bits, hexadecimal)
+	 */
+	public static String generateSecret() {
+		final byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+
+		final StringBuilder secret = new StringBuilder();
+
+		for (int i = 0 ; i < bytes.length ; i++) {
+			secret.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			secret.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+
+		return secret.toString();
+	}
+
+	private static byte[] getBytes(final String str) {
+		try {
+			return str.getBytes("UTF-8");
+		} catch(final java.io.UnsupportedEncodingException e) {
+			/* can't happen : UTF-8 is always supported */
+			return str.getBytes();
+		}
+	}
+
+	/**
+	 * Constant time comparison
+	 */
+	private boolean checkSecret(final String given) {
+		return MessageDigest.isEqual(secret, getBytes(given));
+	}
+
+	/**
+	 * Open the socket and start the thread answering the commands.
+	 */
+	public boolean start() {
+		try {
+			serverSocket = new ServerSocket(port, 5, InetAddress.getByName("127.0.0.1"));
+		} catch(final IOException e) {
+			Logger.error(this, "Unable to listen on 127.0.0.1:"+Integer.toString(port)+" : "+e.toString());
+			return false;
+		}
+
+		Logger.notice(this, "Listening for commands on 127.0.0.1:"+Integer.toString(serverSocket.getLocalPort()));
+
+		running = true;
+
+		final Thread th = new Thread(new ThawThread(this, "Command server", this));
+		th.start();
+
+		return true;
+	}
+
+	public int getPort() {
+		return (serverSocket != null ? serverSocket.getLocalPort() : -1);
+	}
+
+
+	public void run() {
+		while (running) {
+			final Socket socket;
+
+			try {
+				socket = serverSocket.accept();
+			} catch(final IOException e) {
+				if (running)
+					Logger.error(this, "Error while waiting for a command connection : "+e.toString());
+				return;
+			}
+
+			synchronized(clients) {
+				if (clients.size() < MAX_CLIENTS) {
+					clients.add(socket);
+					new Thread(new ThawThread(new Client(socket), "Command connection", this)).start();
+					continue;
+				}
+			}
+
+			Logger.warning(this, "Too many command connections : refused");
+			close(socket);
+		}
+	}
+
+
+	private static void close(final Socket socket) {
+		try {
+			socket.close();
+		} catch(final IOException e) {
+			/* \_o< */
+		}
+	}
+
+
+	private class Client implements ThawRunnable {
+		private final Socket socket;
+
+		public Client(final Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				serve(socket);
+			} catch(final java.net.SocketTimeoutException e) {
+				Logger.notice(this, "Command connection not authenticated in time : closed");
+			} catch(final IOException e) {
+				Logger.notice(this, "Command connection closed : "+e.toString());
+			} finally {
+				clients.remove(socket);
+				close(socket);
+			}
+		}
+
+		public void stop() {
+			close(socket);
+		}
+	}
+
+
+	/**
+	 * Split a command line on the spaces, except between double quotes.
+	 */
+	protected static String[] parseArguments(final String line) {
+		final Vector<String> args = new Vector<String>();
+		final StringBuilder arg = new StringBuilder();
+
+		boolean quoted = false;
+		boolean inArg = false;
+
+		for (int i = 0 ; i < line.length() ; i++) {
+			final char c = line.charAt(i);
+
+			if (c == '"') {
+				quoted = !quoted;
+				inArg = true;
+			} else if (!quoted && Character.isWhitespace(c)) {
+				if (inArg)
+					args.add(arg.toString());
+				arg.setLength(0);
+				inArg = false;
+			} else {
+				arg.append(c);
+				inArg = true;
+			}
+		}
+
+		if (inArg)
+			args.add(arg.toString());
+
+		return args.toArray(new String[args.size()]);
+	}
+
+
+	private void serve(final Socket socket) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+		out.println("Thaw "+Main.VERSION);
+		out.println("OK");
+		out.flush();
+
+		boolean authenticated = false;
+		final long authDeadline = System.currentTimeMillis() + AUTH_TIMEOUT;
+
+		while (running) {
+			if (!authenticated) {
+				final long remaining = authDeadline - System.currentTimeMillis();
+
+				if (remaining <= 0)
+					throw new java.net.SocketTimeoutException("authentication timeout");
+
+				socket.setSoTimeout((int)remaining);
+			}
+
+			String line = in.readLine();
+
+			if (line == null)
+				return;
+
+			line = line.trim();
+
+			if ("".equals(line))
+				continue;
+
+			final String[] args = parseArguments(line);
+
+			if (args.length == 0)
+				continue;
+
+			if ("auth".equals(args[0])) {
+				if (args.length == 2 && checkSecret(args[1])) {
+					authenticated = true;
+					socket.setSoTimeout(0);
+					out.println("OK");
+					out.flush();
+					continue;
+				}
+
+				Logger.warning(this, "Wrong secret given on the command port");
+				out.println("ERROR wrong secret");
+				out.flush();
+				return;
+			}
+
+			if (!authenticated) {
+				out.println("ERROR not authenticated (auth <secret>)");
+				out.flush();
+				continue;
+			}
+
+			String error;
+
+			try {
+				error = execute(args, out);
+			} catch(final RuntimeException e) {
+				Logger.error(this, "Error while executing '"+line+"' : "+e.toString());
+				error = e.toString();
+			}
+
+			out.println(error == null ? "OK" : "ERROR "+error);
+			out.flush();
+
+			if ("exit".equals(args[0]))
+				exit();
+
+			if ("quit".equals(args[0]) || "exit".equals(args[0]))
+				return;
+		}
+	}
+
+	/**
+	 * Stop Thaw (in another thread : Core.exit() stops this server). Some threads
+	 * (plugins, JDBC, ...) may not be daemons : once Thaw is stopped, the JVM is stopped
+	 * as well.
+	 */
+	private void exit() {
+		final Thread th = new Thread(new ThawThread(new ThawRunnable() {
+				public void run() {
+					core.exit(true);
+
+					Logger.notice(this, "Thaw stopped");
+					System.exit(0);
+				}
+
+				public void stop() { }
+			}, "Exit", this));
+		th.start();
+	}
+
+
+	/**
+	 * @return null if successful, else the reason of the failure
+	 */
+	protected String execute(final String[] args, final PrintWriter out) {
+		final String command = args[0];
+
+		if ("help".equals(command)) {
+			out.println("auth <secret>        : must be the first command");
+			out.println("status               : connection and queue state");
+			out.println("queue                : list the transfers");
+			out.println("get <key> [dir]      : download a key in the global queue");
+			out.println("put <file>           : insert a file (CHK) in the global queue");
+			out.println("                       (quote the paths with spaces : put \"/tmp/a b\")");
+			out.println("plugins              : list the running plugins");
+			out.println("metrics              : dump the metrics");
+			out.println("quit                 : close this connection");
+			out.println("exit                 : stop Thaw");
+			return null;
+		}
+
+		if ("status".equals(command)) {
+			final FCPQueueManager queueManager = core.getQueueManager();
+
+			out.println("connected: "+Boolean.toString(core.getConnectionManager() != null
+								 && core.getConnectionManager().isConnected()));
+			out.println("node: "+core.getConfig().getValue("nodeAddress")+":"+core.getConfig().getValue("nodePort"));
+			out.println("reconnecting: "+Boolean.toString(core.isReconnecting()));
+
+			if (queueManager != null) {
+				int pending = 0;
+
+				for (final Vector<FCPTransferQuery> queue : queueManager.getPendingQueues())
+					pending += queue.size();
+
+				out.println("running: "+Integer.toString(queueManager.getRunningQueue().size()));
+				out.println("runningDownloads: "+Integer.toString(queueManager.getRunningDownloads()));
+				out.println("runningInsertions: "+Integer.toString(queueManager.getRunningInsertions()));
+				out.println("pending: "+Integer.toString(pending));
+
+				for (final FCPNodePool.Node node : queueManager.getNodePool().getNodes()) {
+					out.println("pool: "+node.getQueryManager().getConnection().getNodeAddress()
+						    +":"+Integer.toString(node.getQueryManager().getConnection().getNodePort())
+						    +" connected="+Boolean.toString(node.isConnected())
+						    +" latency="+Long.toString(node.getQueryManager().getLatency())+"ms"
+						    +" downloads="+Integer.toString(node.getRunningDownloads())
+						    +" insertions="+Integer.toString(node.getRunningInsertions()));
+				}
+			}
+
+			return null;
+		}
+
+		if ("queue".equals(command)) {
+			if (core.getQueueManager() == null)
+				return "not connected";
+
+			for (final FCPTransferQuery query : core.getQueueManager().getRunningQueue())
+				printQuery(out, "running", query);
+
+			for (final Vector<FCPTransferQuery> queue : core.getQueueManager().getPendingQueues()) {
+				for (final FCPTransferQuery query : queue)
+					printQuery(out, "pending", query);
+			}
+
+			return null;
+		}
+
+		if ("get".equals(command)) {
+			if (args.length < 2)
+				return "usage: get <key> [dir]";
+			if (core.getQueueManager() == null)
+				return "not connected";
+
+			final String dir = (args.length >= 3 ? args[2] : new File(".").getAbsolutePath());
+
+			if (!core.getQueueManager().addQueryToThePendingQueue(new FCPClientGet.Builder(core.getQueueManager())
+									      .setKey(args[1])
+									      .setPersistence(FCPClientGet.PERSISTENCE_FOREVER)
+									      .setGlobalQueue(true)
+									      .setMaxRetries(-1)
+									      .setDestinationDir(dir)
+									      .build()))
+				return "already in the queue";
+
+			return null;
+		}
+
+		if ("put".equals(command)) {
+			if (args.length < 2)
+				return "usage: put <file>";
+			if (core.getQueueManager() == null)
+				return "not connected";
+
+			final File file = new File(args[1]);
+
+			if (!file.isFile())
+				return "no such file: "+file.getPath();
+
+			if (!core.getQueueManager().addQueryToThePendingQueue(new FCPClientPut.Builder(core.getQueueManager())
+									      .setLocalFile(file)
+									      .setKeyType(FCPClientPut.KEY_TYPE_CHK)
+									      .setGlobal(true)
+									      .setPersistence(FCPClientPut.PERSISTENCE_FOREVER)
+									      .build()))
+				return "already in the queue";
+
+			return null;
+		}
+
+		if ("plugins".equals(command)) {
+			for (final Iterator<String> it = core.getPluginManager().getPlugins().keySet().iterator();
+			     it.hasNext();) {
+				out.println(it.next());
+			}
+
+			return null;
+		}
+
+		if ("metrics".equals(command)) {
+			for (final Map.Entry<String, Long> entry : Metrics.getValues().entrySet())
+				out.println(entry.getKey()+" "+entry.getValue().toString());
+
+			return null;
+		}
+
+		if ("quit".equals(command))
+			return null;
+
+		if ("exit".equals(command))
+			return null; /* see serve() */
+
+		return "unknown command '"+command+"' (try 'help')";
+	}
+
+
+	private static void printQuery(final PrintWriter out, final String state, final FCPTransferQuery query) {
+		out.println(state
+			    + " " + (query.getQueryType() == 1 ? "get" : "put")
+			    + " " + Integer.toString(query.getProgression()) + "%"
+			    + " " + (query.isFinished() ? (query.isSuccessful() ? "successful" : "failed") : query.getStatus())
+			    + " " + (query.getFileKey() != null ? query.getFileKey() : query.getFilename()));
+	}
+
+
+	public void stop() {
+		running = false;
+
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch(final IOException e) {
+				/* \_o< */
+			}
+		}
+
+		final Socket[] sockets;
+
+		synchronized(clients) {
+			sockets = clients.toArray(new Socket[clients.size()]);
+		}
+
+		for (int i = 0 ; i < sockets.length ; i++)
+			close(sockets[i]);
+	}
+}
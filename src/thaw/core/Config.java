@@ -348,13 +348,20 @@ public class Config {
 		setDefaultValue("nodePort", "9481");
 		setDefaultValue("maxSimultaneousDownloads", "-1");
 		setDefaultValue("maxSimultaneousInsertions", "-1");
+		setDefaultValue("queueStartRate", "20");
 		setDefaultValue("maxUploadSpeed", "-1");
+		setDefaultValue("maxUploadBurst", "-1");
 		setDefaultValue("thawId", "thaw_"+Integer.toString((new Random()).nextInt(1000)));
 		setDefaultValue("advancedMode", "false");
 		setDefaultValue("userNickname", "Another anonymous");
 		setDefaultValue("multipleSockets", "true");
 		setDefaultValue("downloadLocally", "true");
 		setDefaultValue("sameComputer", "true");
+		setDefaultValue("threadPool", ThawThreadManager.EXECUTOR_PLATFORM);
+		setDefaultValue("threadPool.maxThreads", "0");
+		setDefaultValue("commandPort", "-1"); /* headless mode only ; -1 = disabled */
+		setDefaultValue("commandSecret", ""); /* see CommandServer ; generated if empty */
+		setDefaultValue("additionalNodes", ""); /* "host:port,host:port" ; see FCPNodePool */
 	}
 
 
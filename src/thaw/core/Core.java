@@ -18,6 +18,8 @@ import thaw.fcp.FCPQueueLoader;
 import thaw.fcp.FCPQueueManager;
 import thaw.fcp.FCPWatchGlobal;
 import thaw.fcp.FCPMessage;
+import thaw.fcp.FCPNodePool;
+import thaw.fcp.FCPSelector;
 
 import thaw.gui.ConfigWindow;
 import thaw.gui.IconBox;
@@ -53,6 +55,10 @@ public class Core implements Observer {
 
 	private boolean isStopping = false;
 
+	/* no window at all ; see initHeadless() */
+	private boolean headless = false;
+	private CommandServer commandServer = null;
+
 
 	/**
 	 * Creates a core, but do nothing else (no initialization).
@@ -155,6 +161,70 @@ public class Core implements Observer {
 
 
 
+	/**
+	 * Start Thaw without any window : only the plugins implementing HeadlessPlugin are run,
+	 * and Thaw is controlled through the config file and the command port (see CommandServer).
+	 * @return true is success, false if not
+	 */
+	public boolean initHeadless() {
+		headless = true;
+
+		if(!initConfig())
+			return false;
+
+		final boolean connected = initConnection();
+
+		if(!connected)
+			Logger.warning(this, "Unable to connect to "+config.getValue("nodeAddress")+
+				       ":"+config.getValue("nodePort")+" ; will retry");
+
+		if(!initPluginManager())
+			return false;
+
+		if(!connected)
+			reconnect(true);
+
+		final int port = Integer.parseInt(config.getValue("commandPort"));
+
+		if (port >= 0) {
+			String secret = config.getValue("commandSecret");
+
+			if (secret == null || "".equals(secret.trim())) {
+				secret = CommandServer.generateSecret();
+				config.setValue("commandSecret", secret);
+				config.saveConfig();
+
+				Logger.notice(this, "No 'commandSecret' in the config : a new one has been generated and saved");
+			}
+
+			commandServer = new CommandServer(this, port, secret.trim());
+
+			if (!commandServer.start())
+				commandServer = null;
+		}
+
+		/* kill / ctrl-c : save the queue and the config */
+		Runtime.getRuntime().addShutdownHook(new Thread("Thaw shutdown") {
+				public void run() {
+					if (!isStopping())
+						exit(true);
+				}
+			});
+
+		Logger.notice(this, "Thaw "+Main.VERSION+" started without GUI");
+
+		return true;
+	}
+
+
+	/**
+	 * @return true if Thaw runs without GUI (getMainWindow() and getConfigWindow() return null)
+	 */
+	public boolean isHeadless() {
+		return headless;
+	}
+
+
 	/**
 	 * Init configuration. May re-set I18n.
 	 */
@@ -168,6 +238,21 @@ public class Core implements Observer {
 		if (config.getValue("logLevel") != null)
 			Logger.setLogLevel(Integer.parseInt(config.getValue("logLevel")));
 
+		/* "thaw.fcp.FCPConnection=4,thaw.plugins.index=3" */
+		if (config.getValue("logLevels") != null)
+			Logger.setLogLevels(config.getValue("logLevels"));
+
+		if (config.getValue("logFile") != null && !"".equals(config.getValue("logFile")))
+			Logger.setLogFile(new java.io.File(config.getValue("logFile")));
+
+		/* visible with jconsole (MBean "thaw:type=Metrics") */
+		Metrics.registerMBean();
+
+		/* "platform" or "virtual" ; "threadPool.groupLimits" : "boards=2,fcp.writers=16" */
+		ThawThread.getThawThreadManager().setExecutor(config.getValue("threadPool"),
+							      Integer.parseInt(config.getValue("threadPool.maxThreads")));
+		ThawThread.getThawThreadManager().setGroupLimits(config.getValue("threadPool.groupLimits"));
+
 		if (config.getValue("tmpDir") != null)
 			System.setProperty("java.io.tmpdir", config.getValue("tmpDir"));
 
@@ -215,8 +300,10 @@ public class Core implements Observer {
 				Logger.debug(this, "FCP  version : "+clientHello.getNodeFCPVersion());
 				Logger.debug(this, "Node version : "+clientHello.getNodeVersion());
 
-				if (ret)
+				if (ret) {
 					queueManager.startScheduler();
+					queueManager.getNodePool().start();
+				}
 
 				if (!running) ret = false;
 
@@ -234,6 +321,7 @@ public class Core implements Observer {
 
 				if (ret) {
 					final FCPQueueLoader queueLoader = new FCPQueueLoader(config.getValue("thawId"), queueManager);
+					queueLoader.addObserver(c);
 					queueLoader.start();
 				}
 
@@ -258,6 +346,9 @@ public class Core implements Observer {
 
 	private ConnectionProcess connectionProcess = null;
 
+	/* "additionalNodes" when the nodes of the pool were added (see initConnection()) */
+	private String poolNodes = null;
+
 
 	/**
 	 * Init the connection to the node.
@@ -298,6 +389,7 @@ public class Core implements Observer {
 											Boolean.valueOf(config.getValue("multipleSockets")).booleanValue(),
 											Boolean.valueOf(config.getValue("sameComputer")).booleanValue(),
 											Boolean.valueOf(config.getValue("downloadLocally")).booleanValue());
+			connection.setMaxUploadBurst(Integer.parseInt(config.getValue("maxUploadBurst")));
 
 			if(!connection.connect()) {
 				Logger.warning(this, "Unable to connect !");
@@ -310,15 +402,32 @@ public class Core implements Observer {
 			queryManager = new FCPQueryManager(connection);
 			queryManager.addObserver(this);
 
+			final FCPNodePool previousPool = (queueManager != null ? queueManager.getNodePool() : null);
+
 			queueManager = new FCPQueueManager(queryManager,
 												config.getValue("thawId"),
 												Integer.parseInt(config.getValue("maxSimultaneousDownloads")),
 												Integer.parseInt(config.getValue("maxSimultaneousInsertions")));
+			queueManager.setStartRate(Integer.parseInt(config.getValue("queueStartRate")));
+
+			/* the additional nodes are kept (and stay connected) if they didn't change */
+			final String additionalNodes = config.getValue("additionalNodes");
+
+			if (previousPool != null
+			    && (additionalNodes == null ? poolNodes == null : additionalNodes.equals(poolNodes))) {
+				queueManager.getNodePool().adopt(previousPool);
+			} else {
+				if (previousPool != null)
+					previousPool.disconnect();
+
+				addNodes(queueManager, additionalNodes);
+				poolNodes = additionalNodes;
+			}
 
 			if(ret && connection.isConnected()) {
 				queryManager.startListening();
 
-				QueueKeeper.loadQueue(queueManager, "thaw.queue.xml");
+				QueueKeeper.loadQueue(queueManager, "thaw.queue.journal");
 
 
 				connectionProcess = new ConnectionProcess(this);
@@ -336,6 +445,47 @@ public class Core implements Observer {
 	}
 
 
+	/**
+	 * @param nodes "host:port,host:port,..." ; the transfers will be spread over these nodes
+	 *              and the main one (see FCPNodePool)
+	 */
+	private void addNodes(final FCPQueueManager queueManager, final String nodes) {
+		if (nodes == null || "".equals(nodes.trim()))
+			return;
+
+		final String[] addresses = nodes.split(",");
+
+		for (int i = 0 ; i < addresses.length ; i++) {
+			final String address = addresses[i].trim();
+			final int sep = address.lastIndexOf(':');
+
+			if (sep <= 0) {
+				Logger.warning(this, "Invalid node address (host:port expected) : '"+address+"'");
+				continue;
+			}
+
+			final FCPConnection nodeConnection;
+
+			try {
+				/* the other nodes are on other computers : no direct disk access */
+				nodeConnection = new FCPConnection(address.substring(0, sep),
+								   Integer.parseInt(address.substring(sep+1)),
+								   Integer.parseInt(config.getValue("maxUploadSpeed")),
+								   Boolean.valueOf(config.getValue("multipleSockets")).booleanValue(),
+								   false,
+								   Boolean.valueOf(config.getValue("downloadLocally")).booleanValue());
+			} catch(final NumberFormatException e) {
+				Logger.warning(this, "Invalid node port : '"+address+"'");
+				continue;
+			}
+
+			nodeConnection.setMaxUploadBurst(Integer.parseInt(config.getValue("maxUploadBurst")));
+
+			queueManager.getNodePool().addNode(nodeConnection);
+		}
+	}
+
+
 	public FCPConnection getConnectionManager() {
 		return connection;
 	}
@@ -503,6 +653,9 @@ public class Core implements Observer {
 		}
 
 		subDisconnect();
+
+		if (queueManager != null)
+			queueManager.getNodePool().disconnect();
 	}
 
 
@@ -517,11 +670,12 @@ public class Core implements Observer {
 			mainWindow.changeButtonsInTheToolbar(this, new java.util.Vector());
 		}
 
+		/* only the primary node : the additional ones are independent (see FCPNodePool.adopt()) */
 		if (connection != null) {
 			connection.deleteObserver(this);
 			connection.disconnect();
 			Logger.info(this, "Saving queue state");
-			QueueKeeper.saveQueue(queueManager, "thaw.queue.xml");
+			QueueKeeper.saveQueue(queueManager);
 		} else {
 			Logger.warning(this, "No connection ?!");
 		}
@@ -542,7 +696,7 @@ public class Core implements Observer {
 	public void exit(boolean force) {
 		isStopping = true;
 
-		if(!force) {
+		if(!force && !headless) {
 			if(!canDisconnect()) {
 				if(!askDeconnectionConfirmation())
 					return;
@@ -553,12 +707,20 @@ public class Core implements Observer {
 		if(queueManager != null)
 		    queueManager.stopScheduler();
 
-		Logger.info(this, "Hidding main window ...");
-		mainWindow.setVisible(false);
-		configWindow.setVisible(false);
+		if (commandServer != null) {
+			commandServer.stop();
+			commandServer = null;
+		}
+
+		if (mainWindow != null) {
+			Logger.info(this, "Hidding main window ...");
+			mainWindow.setVisible(false);
+			configWindow.setVisible(false);
+		}
 
 		Logger.info(this, "Stopping plugins ...");
-		pluginManager.stopPlugins();
+		if (pluginManager != null)
+			pluginManager.stopPlugins();
 
 		disconnect();
 
@@ -567,6 +729,16 @@ public class Core implements Observer {
 			Logger.error(this, "Config was not saved correctly !");
 		}
 
+		if (config.getValue("metricsFile") != null && !"".equals(config.getValue("metricsFile"))) {
+			Logger.info(this, "Dumping metrics ...");
+
+			try {
+				Metrics.dump(new java.io.File(config.getValue("metricsFile")));
+			} catch(final java.io.IOException e) {
+				Logger.error(this, "Unable to dump the metrics : "+e.toString());
+			}
+		}
+
 		ThawThreadManager thawThreadManager = ThawThread.getThawThreadManager();
 		thawThreadManager.setAllowFullStop(true);
 
@@ -575,6 +747,10 @@ public class Core implements Observer {
 
 		Logger.info(this, "Stopping all the remaining threads ...");
 		thawThreadManager.stopAll();
+
+		/* not a ThawThreadManager thread : would stay blocked in select() */
+		Logger.info(this, "Stopping the FCP selector ...");
+		FCPSelector.getSelector().stopAndWait();
 	}
 
 
@@ -609,11 +785,13 @@ public class Core implements Observer {
 			synchronized(PluginManager.pluginLock) {
 				Logger.notice(this, "Starting reconnection process !");
 	
-				getMainWindow().setStatus(IconBox.blueBunny,
-							  I18n.getMessage("thaw.statusBar.connecting"), java.awt.Color.RED);
+				if (getMainWindow() != null)
+					getMainWindow().setStatus(IconBox.blueBunny,
+								  I18n.getMessage("thaw.statusBar.connecting"), java.awt.Color.RED);
 				getPluginManager().stopPlugins(); /* don't forget there is the status bar plugin */
-				getMainWindow().setStatus(IconBox.blueBunny,
-							  I18n.getMessage("thaw.statusBar.connecting"), java.awt.Color.RED);
+				if (getMainWindow() != null)
+					getMainWindow().setStatus(IconBox.blueBunny,
+								  I18n.getMessage("thaw.statusBar.connecting"), java.awt.Color.RED);
 	
 				subDisconnect();
 	
@@ -632,12 +810,14 @@ public class Core implements Observer {
 						break;
 				}
 	
-				if (running && !isStopping()) {
-					getMainWindow().setStatus(IconBox.minConnectAction,
-								  I18n.getMessage("thaw.statusBar.ready"));
-				} else {
-					getMainWindow().setStatus(IconBox.minDisconnectAction,
-								  I18n.getMessage("thaw.statusBar.disconnected"), java.awt.Color.RED);
+				if (getMainWindow() != null) {
+					if (running && !isStopping()) {
+						getMainWindow().setStatus(IconBox.minConnectAction,
+									  I18n.getMessage("thaw.statusBar.ready"));
+					} else {
+						getMainWindow().setStatus(IconBox.minDisconnectAction,
+									  I18n.getMessage("thaw.statusBar.disconnected"), java.awt.Color.RED);
+					}
 				}
 	
 				if (running && !isStopping()) {
@@ -646,7 +826,8 @@ public class Core implements Observer {
 
 				reconnectionManager = null;
 
-				getMainWindow().connectionHasChanged();
+				if (getMainWindow() != null)
+					getMainWindow().connectionHasChanged();
 			}
 		}
 
@@ -688,6 +869,14 @@ public class Core implements Observer {
 
 		text = text.replaceAll("#", I18n.getMessage("thaw.config.sameComputer"));
 
+		if (headless) {
+			/* nobody to ask */
+			Logger.warning(this, text);
+			getConfig().setValue("sameComputer", Boolean.toString(false));
+			getConnectionManager().setLocalSocket(false);
+			return;
+		}
+
 		int ret = JOptionPane.showConfirmDialog(mainWindow.getMainFrame(),
 							text,
 							I18n.getMessage("thaw.warning.title"),
@@ -710,6 +899,17 @@ public class Core implements Observer {
 			reconnect(true);
 		}
 
+		if ((o instanceof FCPQueueLoader) && getMainWindow() != null) {
+			if (((FCPQueueLoader)o).isLoading())
+				getMainWindow().setStatus(IconBox.minConnectAction,
+							  I18n.getMessage("thaw.statusBar.loadingQueue")
+							  + " " + Integer.toString(((FCPQueueLoader)o).getLoadedCount()));
+			else
+				getMainWindow().setStatus(IconBox.minConnectAction,
+							  I18n.getMessage("thaw.statusBar.ready"));
+			return;
+		}
+
 		if ((o == queryManager) && target instanceof FCPMessage) {
 			FCPMessage m = (FCPMessage)target;
 
@@ -0,0 +1,10 @@
+package thaw.core;
+
+/**
+ * Plugins implementing this interface can run without GUI (see Core.isHeadless()) : in this
+ * mode, they mustn't use the main window or the config window (both are null), and
+ * the plugins not implementing it are not started.
+ */
+public interface HeadlessPlugin extends Plugin {
+
+}
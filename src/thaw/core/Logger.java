@@ -1,10 +1,31 @@
 package thaw.core;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Manage all log message.
+ * Manage all log message.<br/>
+ * Logging never blocks the caller : the lines are put in a lock-free ring buffer, and
+ * a background thread ("Logger") formats them, prints them, writes them in the log
+ * file, and notifies the log listeners. If the buffer is full, the lines are dropped
+ * (and the number of dropped lines is logged).<br/>
+ * The message can be any object : its toString() is only called if the line is
+ * logged, and from the logger thread (so it must be thread-safe). For the messages
+ * built by concatenation, check isEnabled() first.<br/>
+ * The log level can be overridden for some classes / packages (see setLogLevels()).
  * @author Jflesch
  */
 public class Logger {
@@ -16,7 +37,7 @@ public class Logger {
 	public final static int LOG_LEVEL_DEBUG   = 4;
 	public final static int LOG_LEVEL_VERBOSE = 5;
 
-	private static int LOG_LEVEL = 2;
+	private static volatile int LOG_LEVEL = 2;
 
 
 	public final static String[] PREFIXES = new String[] {
@@ -28,6 +49,68 @@ public class Logger {
 		"[VERBOSE]"
 	};
 
+	public final static int RING_SIZE = 8192; /* must be a power of 2 */
+	private final static int RING_MASK = RING_SIZE - 1;
+
+	public final static long LOG_FILE_MAX_SIZE = 10 * 1024 * 1024; /* chars */
+	public final static int LOG_FILE_MAX_OLD = 5; /* thaw.log.1 ... thaw.log.5 */
+
+	private final static long WRITER_IDLE_WAIT = 200 * 1000 * 1000; /* ns */
+
+
+	/* Ring buffer (multiple producers, one consumer ; see D. Vyukov's bounded queue) :
+	 * slot i is free for the producer claiming position p when sequences[i] == p,
+	 * and readable by the consumer when sequences[i] == p+1 */
+	private final static AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+	private final static int[] levels = new int[RING_SIZE];
+	private final static Object[] sources = new Object[RING_SIZE];
+	private final static Object[] messages = new Object[RING_SIZE];
+
+	private final static AtomicLong tail = new AtomicLong(0); /* next position to claim */
+	private static long head = 0; /* next position to read ; only used with writerLock */
+
+	private final static AtomicInteger droppedLines = new AtomicInteger(0);
+
+	private final static Object writerLock = new Object();
+	private static Thread writer = null;
+	private static volatile boolean writerWaiting = false;
+
+	/* class or package name -> log level */
+	private final static ConcurrentHashMap<String,Integer> levelOverrides = new ConcurrentHashMap<String,Integer>();
+	/* class -> log level (-1 == LOG_LEVEL) ; cache of the result of the overrides */
+	private final static ConcurrentHashMap<Class<?>,Integer> classLevels = new ConcurrentHashMap<Class<?>,Integer>();
+	private static volatile boolean hasOverrides = false;
+
+	/* only used with writerLock */
+	private static File logFile = null;
+	private static Writer logFileWriter = null;
+	private static long logFileSize = 0;
+	private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS ");
+
+	private static Vector<LogListener> logListeners = null;
+
+
+	static {
+		for (int i = 0 ; i < RING_SIZE ; i++)
+			sequences.set(i, i);
+
+		writer = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "Logger");
+		writer.setDaemon(true);
+		writer.start();
+
+		/* the lines still in the buffer when Thaw exits */
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					flush();
+					setLogFile(null);
+				}
+			});
+	}
+
 
 	/**
 	 * 0 = Errors only
@@ -43,41 +126,164 @@ public class Logger {
 	 */
 	public static void setLogLevel(int logLevel) {
 		Logger.notice(null, "Setting verbosity to "+Integer.toString(logLevel));
+
+		final int oldLevel = LOG_LEVEL;
 		LOG_LEVEL = logLevel;
+
+		if (oldLevel == logLevel)
+			return;
+
+		final Vector<LogListener> listeners = logListeners;
+
+		if (listeners == null)
+			return;
+
+		for (final LogListener logListener : listeners.toArray(new LogListener[0]))
+			logListener.logLevelChanged(oldLevel, logLevel);
 	}
 
 	public static int getLogLevel() {
 		return LOG_LEVEL;
 	}
 
-	private static Vector logListeners = null;
+	/**
+	 * Override the log level for a class or a package (the most specific override applies).
+	 * @param level -1 to remove the override
+	 */
+	public static void setLogLevel(final String classOrPackage, final int level) {
+		if (level < 0)
+			levelOverrides.remove(classOrPackage);
+		else
+			levelOverrides.put(classOrPackage, Integer.valueOf(level));
+
+		hasOverrides = !levelOverrides.isEmpty();
+		classLevels.clear();
+	}
+
+	/**
+	 * @param overrides "thaw.fcp.FCPConnection=4,thaw.plugins.index=3" ; replaces all the
+	 *                  previous overrides
+	 */
+	public static void setLogLevels(final String overrides) {
+		levelOverrides.clear();
+
+		if (overrides != null) {
+			final String[] entries = overrides.split(",");
 
+			for (int i = 0 ; i < entries.length ; i++) {
+				final String[] entry = entries[i].split("=");
 
-	private static void displayErr(final String msg) {
-		System.err.println(msg);
+				if (entry.length != 2 || "".equals(entry[0].trim()))
+					continue;
+
+				try {
+					levelOverrides.put(entry[0].trim(), Integer.valueOf(entry[1].trim()));
+				} catch(final NumberFormatException e) {
+					Logger.warning(null, "Invalid log level for '"+entry[0].trim()+"'");
+				}
+			}
+		}
+
+		hasOverrides = !levelOverrides.isEmpty();
+		classLevels.clear();
+	}
+
+	/**
+	 * @param o source of the message ; may be null
+	 * @return true if a message of this level from this source would be logged
+	 */
+	public static boolean isEnabled(final int level, final Object o) {
+		return level <= getLogLevel(o);
 	}
 
-	private static void display(final String msg) {
-		System.out.println(msg);
+	private static int getLogLevel(final Object o) {
+		if (!hasOverrides || o == null)
+			return LOG_LEVEL;
+
+		final Class<?> c = o.getClass();
+		Integer level = classLevels.get(c);
+
+		if (level == null) {
+			level = Integer.valueOf(resolveLogLevel(c.getName()));
+			classLevels.put(c, level);
+		}
+
+		return (level.intValue() < 0) ? LOG_LEVEL : level.intValue();
 	}
 
-	private static void log(final int level, final Object o, final String msg) {
+	/**
+	 * @return -1 if no override
+	 */
+	private static int resolveLogLevel(String name) {
+		while (name.length() > 0) {
+			final Integer level = levelOverrides.get(name);
+
+			if (level != null)
+				return level.intValue();
+
+			final int sep = Math.max(name.lastIndexOf('.'), name.lastIndexOf('$'));
+
+			if (sep < 0)
+				break;
+
+			name = name.substring(0, sep);
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Write the logs in this file too. When the file becomes bigger than LOG_FILE_MAX_SIZE,
+	 * it's renamed in [file].1 ([file].1 in [file].2, etc).
+	 * @param file null to stop writing in a file
+	 */
+	public static void setLogFile(final File file) {
+		synchronized(writerLock) {
+			closeLogFile();
+
+			logFile = file;
+
+			if (file != null)
+				openLogFile();
+		}
+	}
+
+
+	private static void log(final int level, final Object o, final Object msg) {
 		log(level, o, msg, false);
 	}
 
-	private static void log(final int level, final Object o, final String msg,
+	private static void log(final int level, final Object o, final Object msg,
 							final boolean manda) {
-		if (Logger.LOG_LEVEL < level && !manda)
+		if (!manda && level > getLogLevel(o))
 			return;
 
-		String str = ((o != null) ? o.getClass().getName()+": " : "");
+		long pos = tail.get();
+
+		while (true) {
+			final int slot = (int)(pos & RING_MASK);
+			final long diff = sequences.get(slot) - pos;
+
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					levels[slot] = level;
+					sources[slot] = o;
+					messages[slot] = msg;
+					sequences.set(slot, pos + 1); /* publish */
+					break;
+				}
+			} else if (diff < 0) {
+				/* full : the logger thread is late */
+				droppedLines.incrementAndGet();
+				return;
+			}
 
-		if (level <= 1)
-			displayErr(PREFIXES[level]+" "+str+msg);
-		else
-			display(PREFIXES[level]+" "+str+msg);
+			pos = tail.get();
+		}
 
-		notify(level, o, msg);
+		if (writerWaiting)
+			LockSupport.unpark(writer);
 	}
 
 
@@ -85,7 +291,7 @@ public class Logger {
 	 * Errors.
 	 * A process ended because of it.
 	 */
-	public static void error(final Object o, final String message) {
+	public static void error(final Object o, final Object message) {
 		log(0, o, message);
 	}
 
@@ -94,7 +300,7 @@ public class Logger {
 	 * Some informations will probably be / are probably missing.
 	 * Or: Can't do something, but it's normal.
 	 */
-	public static void warning(final Object o, final String message) {
+	public static void warning(final Object o, final Object message) {
 		log(1, o, message);
 	}
 
@@ -103,7 +309,7 @@ public class Logger {
 	 * Strange event, but probably not unusual.
 	 * Or: Normal event, but who can create troubles.
 	 */
-	public static void notice(final Object o, final String msg) {
+	public static void notice(final Object o, final Object msg) {
 		log(2, o, msg);
 	}
 
@@ -112,7 +318,7 @@ public class Logger {
 	 * Infos.
 	 * Normal process.
 	 */
-	public static void info(final Object o, final String msg) {
+	public static void info(final Object o, final Object msg) {
 		log(3, o, msg);
 	}
 
@@ -120,7 +326,7 @@ public class Logger {
 	 * Infos.
 	 * @param manda force the display of these informations
 	 */
-	public static void info(final Object o, final String msg, final boolean manda) {
+	public static void info(final Object o, final Object msg, final boolean manda) {
 		log(3, o, msg, manda);
 	}
 
@@ -128,7 +334,7 @@ public class Logger {
 	 * Debug.
 	 * Details about a normal process.
 	 */
-	public static void debug(final Object o, final String msg) {
+	public static void debug(final Object o, final Object msg) {
 		log(4, o, msg);
 	}
 
@@ -137,49 +343,192 @@ public class Logger {
 	 * Verbose. Too Verbose.
 	 * Details, a LOT of details.
 	 */
-	public static void verbose(final Object o, final String msg) {
+	public static void verbose(final Object o, final Object msg) {
 		log(5, o, msg);
 	}
 
 
+	/**
+	 * Write all the lines logged so far. Called by the logger thread, or by the thread
+	 * wanting to be sure that its lines are written.
+	 */
+	public static void flush() {
+		synchronized(writerLock) {
+			final int dropped = droppedLines.getAndSet(0);
+
+			if (dropped > 0)
+				write(LOG_LEVEL_WARNING, null, Integer.toString(dropped)+" log lines dropped");
+
+			while (true) {
+				final int slot = (int)(head & RING_MASK);
+
+				if (sequences.get(slot) != head + 1)
+					break; /* empty */
+
+				final int level = levels[slot];
+				final Object src = sources[slot];
+				final Object msg = messages[slot];
+
+				sources[slot] = null;
+				messages[slot] = null;
+				sequences.set(slot, head + RING_SIZE); /* free for the next round */
+				head++;
+
+				String line;
+
+				try {
+					line = String.valueOf(msg);
+				} catch(final RuntimeException e) {
+					line = "(toString() failed : "+e.toString()+")";
+				}
+
+				write(level, src, line);
+			}
+
+			if (logFileWriter != null) {
+				try {
+					logFileWriter.flush();
+				} catch(final IOException e) {
+					System.err.println("Unable to write the log file : "+e.toString());
+					closeLogFile();
+				}
+			}
+		}
+	}
+
+	private static void writeLoop() {
+		while (true) {
+			flush();
+
+			writerWaiting = true;
+
+			/* a line may have been published just before writerWaiting was set */
+			if (isEmpty())
+				LockSupport.parkNanos(WRITER_IDLE_WAIT);
+
+			writerWaiting = false;
+		}
+	}
+
+	private static boolean isEmpty() {
+		synchronized(writerLock) {
+			return sequences.get((int)(head & RING_MASK)) != head + 1;
+		}
+	}
+
+	/* must be called with writerLock */
+	private static void write(final int level, final Object src, final String msg) {
+		final String str = PREFIXES[level]+" "+((src != null) ? src.getClass().getName()+": " : "")+msg;
+
+		if (level <= 1)
+			System.err.println(str);
+		else
+			System.out.println(str);
+
+		if (logFileWriter != null)
+			writeLogFile(str);
+
+		notify(level, src, msg);
+	}
+
+
+	/* must be called with writerLock */
+	private static void openLogFile() {
+		try {
+			logFileSize = logFile.length();
+			logFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+		} catch(final IOException e) {
+			System.err.println("Unable to open the log file '"+logFile.getPath()+"' : "+e.toString());
+			logFileWriter = null;
+		}
+	}
+
+	/* must be called with writerLock */
+	private static void closeLogFile() {
+		if (logFileWriter == null)
+			return;
+
+		try {
+			logFileWriter.close();
+		} catch(final IOException e) {
+			System.err.println("Unable to close the log file : "+e.toString());
+		}
+
+		logFileWriter = null;
+	}
+
+	/* must be called with writerLock */
+	private static void writeLogFile(final String line) {
+		try {
+			logFileWriter.write(dateFormat.format(new Date()));
+			logFileWriter.write(line);
+			logFileWriter.write('\n');
+			logFileSize += line.length() + 25;
+		} catch(final IOException e) {
+			System.err.println("Unable to write the log file : "+e.toString());
+			closeLogFile();
+			return;
+		}
+
+		if (logFileSize >= LOG_FILE_MAX_SIZE)
+			rotateLogFile();
+	}
+
+	/* must be called with writerLock */
+	private static void rotateLogFile() {
+		closeLogFile();
+
+		final String path = logFile.getPath();
+
+		new File(path+"."+Integer.toString(LOG_FILE_MAX_OLD)).delete();
+
+		for (int i = LOG_FILE_MAX_OLD - 1 ; i >= 1 ; i--)
+			new File(path+"."+Integer.toString(i)).renameTo(new File(path+"."+Integer.toString(i+1)));
+
+		logFile.renameTo(new File(path+".1"));
+
+		openLogFile();
+	}
+
+
 
 
 	public static void addLogListener(final LogListener logListener) {
-		if(Logger.logListeners == null)
-			Logger.logListeners = new Vector();
+		synchronized(writerLock) {
+			final Vector<LogListener> listeners = (logListeners == null) ?
+				new Vector<LogListener>() : new Vector<LogListener>(logListeners);
 
-		synchronized(logListeners) {
-			Logger.logListeners.add(logListener);
+			listeners.add(logListener);
+			logListeners = listeners;
 		}
 	}
 
 	public static void removeLogListener(final LogListener logListener) {
-		if(Logger.logListeners == null)
-			return;
+		synchronized(writerLock) {
+			if (logListeners == null)
+				return;
 
-		synchronized(logListener) {
-			Logger.logListeners.remove(logListener);
+			final Vector<LogListener> listeners = new Vector<LogListener>(logListeners);
+			listeners.remove(logListener);
 
-			if (logListeners.size() == 0)
-				logListeners = null;
+			logListeners = (listeners.size() == 0) ? null : listeners;
 		}
 	}
 
 
 	/**
 	 * notify the observers if there is.
+	 * Called from the logger thread.
 	 */
 	private static void notify(final int level, final Object src, final String line) {
 		if(Logger.logListeners == null)
 			return;
 
-		synchronized(logListeners) {
-			for(final Iterator it = Logger.logListeners.iterator();
-			    it.hasNext(); ) {
-				final LogListener logListener = (LogListener)it.next();
+		for(final Iterator<LogListener> it = Logger.logListeners.iterator();
+		    it.hasNext(); ) {
+			final LogListener logListener = it.next();
 
-				logListener.newLogLine(level, src, line);
-			}
+			logListener.newLogLine(level, src, line);
 		}
 	}
 
@@ -45,6 +45,12 @@ public class Main {
 	private static String locale = null;
 
 
+	/**
+	 * No GUI (see Core.initHeadless())
+	 */
+	private static boolean headless = false;
+
+
 	private Main() {
 
 	}
@@ -53,7 +59,7 @@ public class Main {
 	/**
 	 * Used to start the program
 	 *
-	 * @param args "-?", "-help", "--help", "/?", "/help", "-lf lookandfeel"
+	 * @param args "-?", "-help", "--help", "/?", "/help", "-lf lookandfeel", "-lc locale", "-headless"
 	 */
 	public static void main(final String[] args) {
 		Core core;
@@ -65,6 +71,18 @@ public class Main {
 		if(Main.locale != null)
 			I18n.setLocale(new Locale(Main.locale));
 
+		if (Main.headless) {
+			/* must be set before AWT is loaded */
+			System.setProperty("java.awt.headless", "true");
+
+			core = new Core();
+
+			if (!core.initHeadless())
+				System.exit(1);
+
+			return;
+		}
+
 		core = new Core();
 
 		/* we specify to the core what lnf to use */
@@ -103,6 +121,9 @@ public class Main {
 				} else if ("-lc".equals( args[count] )) {
 					Main.locale = args[count + 1];
 					count = count + 2;
+				} else if ("-headless".equals( args[count] )) {
+					Main.headless = true;
+					count++;
 				} else {
 					Main.showHelp();
 				}
@@ -119,7 +140,7 @@ public class Main {
 	 */
 	private static void showHelp() {
 
-		System.out.println("java -jar thaw.jar [-lf lookAndFeel]\n");
+		System.out.println("java -jar thaw.jar [-lf lookAndFeel] [-lc locale] [-headless]\n");
 		System.out.println("-lf     Sets the 'Look and Feel' will use.");
 		System.out.println("        (overriden by the skins preferences)\n");
 		System.out.println("        These ones are currently available:");
@@ -138,6 +159,13 @@ public class Main {
 		System.out.println("        see http://ftp.ics.uci.edu/pub/ietf/http/related/iso639.txt");
 		System.out.println("        for the complete list");
 
+		System.out.println("\n-headless  Runs Thaw without GUI. Only the plugins able to");
+		System.out.println("        run without GUI are started (Hsqldb, Signatures, WebOfTrust,");
+		System.out.println("        IndexBrowser, MiniFrost). Set 'commandPort' in thaw.conf.xml");
+		System.out.println("        to control it through a local socket ('help' for the commands).");
+		System.out.println("        The first command must be 'auth <commandSecret>' (generated and");
+		System.out.println("        saved in thaw.conf.xml if empty).");
+
 		System.exit(0);
 	}
 
@@ -0,0 +1,549 @@
+package thaw.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+
+/**
+ * Registry of the counters, gauges and latency histograms of Thaw.<br/>
+ * Like the Logger, everything is static : any class can declare its metrics
+ * (Metrics.counter("fcp.bytes.in"), Metrics.histogram(...), ...) and update them.
+ * Updating a metric never takes a lock nor allocates anything : the metrics are
+ * meant to stay enabled in production.<br/>
+ * The registry is exposed through JMX (see registerMBean() : one MBean "thaw:type=Metrics",
+ * one attribute per value) and can be dumped in a text file (see dump()).
+ * The histograms record durations in nanoseconds, but are reported in microseconds.
+ */
+public class Metrics {
+	public final static String MBEAN_NAME = "thaw:type=Metrics";
+
+	/* a family doesn't create more metrics than that : the other keys are counted in "other" */
+	public final static int MAX_FAMILY_SIZE = 200;
+	public final static String OTHER_KEY = "other";
+
+	/* see watchLock() */
+	public final static int LOCK_SAMPLE_PERIOD = 250; /* ms */
+
+	/* String (name) -> Gauge / Histogram */
+	private final static ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+	private final static Vector<WatchedLock> watchedLocks = new Vector<WatchedLock>();
+	private static Thread lockSampler = null;
+
+	private static boolean mbeanRegistered = false;
+
+
+	private Metrics() {
+
+	}
+
+
+	/**
+	 * A value read when the metrics are displayed / dumped.
+	 */
+	public interface Gauge {
+		public long getValue();
+	}
+
+
+	/**
+	 * A monotonic (or not, see add()) counter.
+	 */
+	public static class Counter implements Gauge {
+		private final AtomicLong value = new AtomicLong(0);
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void add(final long diff) {
+			value.addAndGet(diff);
+		}
+
+		public long getValue() {
+			return value.get();
+		}
+	}
+
+
+	/**
+	 * Distribution of durations (or of any positive value), with buckets
+	 * [2^(i-1) ; 2^i[ : the percentiles are approximated by the upper
+	 * bound of their bucket (so at worst twice the real value).
+	 */
+	public static class Histogram {
+		private final static int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong sum = new AtomicLong(0);
+		private final AtomicLong max = new AtomicLong(0);
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+
+			long currentMax;
+
+			while (value > (currentMax = max.get())) {
+				if (max.compareAndSet(currentMax, value))
+					break;
+			}
+		}
+
+		/**
+		 * @param startTime value of System.nanoTime() when the operation started
+		 */
+		public void recordSince(final long startTime) {
+			record(System.nanoTime() - startTime);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMean() {
+			final long nmb = count.get();
+			return (nmb > 0 ? sum.get() / nmb : 0);
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 */
+		public long getPercentile(final int percentile) {
+			final long nmb = count.get();
+
+			if (nmb == 0)
+				return 0;
+
+			final long rank = Math.max(1, (nmb * percentile + 99) / 100);
+			long seen = 0;
+
+			for (int i = 0 ; i < BUCKETS ; i++) {
+				seen += buckets.get(i);
+
+				if (seen >= rank)
+					return Math.min((i == 0 ? 0 : (1L << i) - 1), max.get());
+			}
+
+			return max.get();
+		}
+	}
+
+
+	/**
+	 * Set of metrics of the same kind, indexed by a key known only at runtime
+	 * (for example the name of a FCP message) : "<prefix>.<key>".
+	 */
+	public abstract static class Family<T> {
+		private final String prefix;
+		private final ConcurrentHashMap<String, T> members = new ConcurrentHashMap<String, T>();
+
+		protected Family(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		protected abstract T create();
+
+		public T get(String key) {
+			if (key == null)
+				key = OTHER_KEY;
+
+			T member = members.get(key);
+
+			if (member != null)
+				return member;
+
+			if (members.size() >= MAX_FAMILY_SIZE && !OTHER_KEY.equals(key))
+				return get(OTHER_KEY);
+
+			synchronized(this) {
+				member = members.get(key);
+
+				if (member == null) {
+					member = create();
+					register(prefix + "." + key, member);
+					members.put(key, member);
+				}
+			}
+
+			return member;
+		}
+	}
+
+	public static class CounterFamily extends Family<Counter> {
+		public CounterFamily(final String prefix) {
+			super(prefix);
+		}
+
+		protected Counter create() {
+			return new Counter();
+		}
+	}
+
+	public static class HistogramFamily extends Family<Histogram> {
+		public HistogramFamily(final String prefix) {
+			super(prefix);
+		}
+
+		protected Histogram create() {
+			return new Histogram();
+		}
+	}
+
+
+	/**
+	 * Register a metric (a Gauge or a Histogram) under this name. Replace the
+	 * previous one with the same name, if any.
+	 */
+	public static void register(final String name, final Object metric) {
+		if (!(metric instanceof Gauge) && !(metric instanceof Histogram))
+			throw new IllegalArgumentException("Not a metric : "+metric);
+
+		metrics.put(name, metric);
+	}
+
+	public static void remove(final String name) {
+		metrics.remove(name);
+	}
+
+	/**
+	 * @return the counter with this name (created if needed)
+	 */
+	public static Counter counter(final String name) {
+		return (Counter)getOrCreate(name, Counter.class);
+	}
+
+	/**
+	 * @return the histogram with this name (created if needed)
+	 */
+	public static Histogram histogram(final String name) {
+		return (Histogram)getOrCreate(name, Histogram.class);
+	}
+
+	public static void gauge(final String name, final Gauge gauge) {
+		register(name, gauge);
+	}
+
+	private static Object getOrCreate(final String name, final Class<?> type) {
+		Object metric = metrics.get(name);
+
+		if (metric == null) {
+			try {
+				final Object newMetric = type.getDeclaredConstructor().newInstance();
+				metric = metrics.putIfAbsent(name, newMetric);
+
+				if (metric == null)
+					metric = newMetric;
+			} catch(final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (!type.isInstance(metric))
+			throw new IllegalArgumentException("Metric '"+name+"' is not a "+type.getName());
+
+		return metric;
+	}
+
+
+	/**
+	 * @return name -> value, sorted by name. The histograms are expanded into
+	 *         "<name>.count", "<name>.mean.us", "<name>.p50.us", "<name>.p99.us", "<name>.max.us"
+	 */
+	public static Map<String, Long> getValues() {
+		final TreeMap<String, Long> values = new TreeMap<String, Long>();
+
+		for (final Map.Entry<String, Object> entry : metrics.entrySet()) {
+			final String name = entry.getKey();
+			final Object metric = entry.getValue();
+
+			if (metric instanceof Histogram) {
+				final Histogram h = (Histogram)metric;
+				values.put(name+".count", Long.valueOf(h.getCount()));
+				values.put(name+".mean.us", Long.valueOf(h.getMean() / 1000));
+				values.put(name+".p50.us", Long.valueOf(h.getPercentile(50) / 1000));
+				values.put(name+".p99.us", Long.valueOf(h.getPercentile(99) / 1000));
+				values.put(name+".max.us", Long.valueOf(h.getMax() / 1000));
+			} else {
+				long value;
+
+				try {
+					value = ((Gauge)metric).getValue();
+				} catch(final RuntimeException e) {
+					value = -1;
+				}
+
+				values.put(name, Long.valueOf(value));
+			}
+		}
+
+		return values;
+	}
+
+	private static Long getValue(final String attribute) {
+		return getValues().get(attribute);
+	}
+
+
+	/**
+	 * Write all the values in a text file ("<name> <value>", one per line).
+	 */
+	public static void dump(final File file) throws IOException {
+		final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+		try {
+			out.write("# Thaw metrics - "+new java.util.Date().toString()+"\n");
+
+			for (final Map.Entry<String, Long> entry : getValues().entrySet())
+				out.write(entry.getKey()+" "+entry.getValue().toString()+"\n");
+		} finally {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Estimate the time spent by the threads waiting for this lock (synchronized()) :
+	 * the threads are sampled every LOCK_SAMPLE_PERIOD, and each thread found blocked
+	 * on it counts for LOCK_SAMPLE_PERIOD. Gives "<name>.waiters" (threads blocked
+	 * during the last sample), "<name>.waitTime.ms" and "<name>.contendedSamples".
+	 */
+	public static void watchLock(final String name, final Object lock) {
+		final WatchedLock watched = new WatchedLock(name, lock);
+
+		synchronized(watchedLocks) {
+			for (final Iterator<WatchedLock> it = watchedLocks.iterator() ; it.hasNext() ;) {
+				if (it.next().name.equals(name))
+					it.remove();
+			}
+
+			watchedLocks.add(watched);
+
+			if (lockSampler == null) {
+				lockSampler = new Thread(new LockSampler(), "Metrics lock sampler");
+				lockSampler.setDaemon(true);
+				lockSampler.start();
+			}
+		}
+
+		register(name+".waiters", watched.waiters);
+		register(name+".waitTime.ms", watched.waitTime);
+		register(name+".contendedSamples", watched.contendedSamples);
+	}
+
+	public static void unwatchLock(final String name) {
+		synchronized(watchedLocks) {
+			for (final Iterator<WatchedLock> it = watchedLocks.iterator() ; it.hasNext() ;) {
+				if (it.next().name.equals(name))
+					it.remove();
+			}
+		}
+
+		remove(name+".waiters");
+		remove(name+".waitTime.ms");
+		remove(name+".contendedSamples");
+	}
+
+	private static class WatchedLock {
+		private final String name;
+		private final Object lock; /* kept so its identity hash code can't be reused */
+		private final String className;
+		private final int hashCode;
+
+		private final Counter waiters = new Counter();
+		private final Counter waitTime = new Counter();
+		private final Counter contendedSamples = new Counter();
+
+		private int nmbBlocked = 0;
+
+		public WatchedLock(final String name, final Object lock) {
+			this.name = name;
+			this.lock = lock;
+			this.className = lock.getClass().getName();
+			this.hashCode = System.identityHashCode(lock);
+		}
+	}
+
+	private static class LockSampler implements Runnable {
+		public void run() {
+			final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+			while (true) {
+				try {
+					Thread.sleep(LOCK_SAMPLE_PERIOD);
+				} catch(final InterruptedException e) {
+					/* \_o< */
+				}
+
+				WatchedLock[] locks;
+
+				synchronized(watchedLocks) {
+					locks = watchedLocks.toArray(new WatchedLock[watchedLocks.size()]);
+				}
+
+				if (locks.length == 0)
+					continue;
+
+				for (int i = 0 ; i < locks.length ; i++)
+					locks[i].nmbBlocked = 0;
+
+				final ThreadInfo[] infos = threadBean.getThreadInfo(threadBean.getAllThreadIds(), 0);
+
+				for (int i = 0 ; i < infos.length ; i++) {
+					if (infos[i] == null || infos[i].getThreadState() != Thread.State.BLOCKED)
+						continue;
+
+					final LockInfo lockInfo = infos[i].getLockInfo();
+
+					if (lockInfo == null)
+						continue;
+
+					for (int j = 0 ; j < locks.length ; j++) {
+						if (locks[j].hashCode == lockInfo.getIdentityHashCode()
+						    && locks[j].className.equals(lockInfo.getClassName()))
+							locks[j].nmbBlocked++;
+					}
+				}
+
+				for (int i = 0 ; i < locks.length ; i++) {
+					final WatchedLock l = locks[i];
+
+					l.waiters.add(l.nmbBlocked - l.waiters.getValue());
+
+					if (l.nmbBlocked > 0) {
+						l.waitTime.add(l.nmbBlocked * LOCK_SAMPLE_PERIOD);
+						l.contendedSamples.inc();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Make the metrics visible through JMX (platform MBean server).
+	 * Does nothing if already done.
+	 */
+	public static synchronized void registerMBean() {
+		if (mbeanRegistered)
+			return;
+
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new MetricsMBean(), new ObjectName(MBEAN_NAME));
+			mbeanRegistered = true;
+		} catch(final Exception e) {
+			Logger.warning(null, "Unable to register the metrics MBean : "+e.toString());
+		}
+	}
+
+
+	/**
+	 * One read-only attribute (java.lang.Long) per value of getValues(),
+	 * and an operation "dump(fileName)".
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+		public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+			final Long value = getValue(attribute);
+
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+
+			return value;
+		}
+
+		public AttributeList getAttributes(final String[] attributes) {
+			final Map<String, Long> values = getValues();
+			final AttributeList list = new AttributeList();
+
+			for (int i = 0 ; i < attributes.length ; i++) {
+				final Long value = values.get(attributes[i]);
+
+				if (value != null)
+					list.add(new Attribute(attributes[i], value));
+			}
+
+			return list;
+		}
+
+		public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Read-only : "+attribute.getName());
+		}
+
+		public AttributeList setAttributes(final AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(final String actionName, final Object[] params, final String[] signature)
+			throws MBeanException, ReflectionException {
+
+			if (!"dump".equals(actionName) || params == null || params.length != 1)
+				throw new ReflectionException(new NoSuchMethodException(actionName));
+
+			try {
+				dump(new File(params[0].toString()));
+			} catch(final IOException e) {
+				throw new MBeanException(e);
+			}
+
+			return null;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			final Map<String, Long> values = getValues();
+			final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+
+			int i = 0;
+
+			for (final String name : values.keySet())
+				attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name,
+									 true, false, false);
+
+			final MBeanOperationInfo dump =
+				new MBeanOperationInfo("dump", "Write all the values in a text file",
+						       new MBeanParameterInfo[] {
+							       new MBeanParameterInfo("fileName", "java.lang.String", "File")
+						       },
+						       "void", MBeanOperationInfo.ACTION);
+
+			return new MBeanInfo(Metrics.class.getName(), "Thaw metrics", attributes,
+					     null, new MBeanOperationInfo[] { dump }, null);
+		}
+	}
+}
@@ -102,7 +102,7 @@ public class PluginManager {
 																	"Loading plugin '"+pluginName.replaceFirst("thaw.plugins.", "")+"' ...");
 
 				if (loadPlugin(pluginName) == null) {
-					Logger.notice(this, "Plugin already loaded");
+					Logger.notice(this, "Plugin '"+pluginName+"' already loaded or not loadable");
 				} else {
 					runPlugin(pluginName);
 				}
@@ -168,6 +168,11 @@ public class PluginManager {
 				//Logger.info(this, "Loading plugin '"+className+"'");
 	
 				plugin = (Plugin)Class.forName(className).newInstance();
+
+				if (core.isHeadless() && !(plugin instanceof HeadlessPlugin)) {
+					Logger.notice(this, "Plugin '"+className+"' needs the GUI ; not loaded");
+					return null;
+				}
 	
 				plugins.put(className, plugin);
 	
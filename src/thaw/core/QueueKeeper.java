@@ -3,33 +3,29 @@ package thaw.core;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Vector;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import thaw.fcp.FCPClientGet;
-import thaw.fcp.FCPClientPut;
+import thaw.fcp.FCPQueueJournal;
 import thaw.fcp.FCPQueueManager;
 import thaw.fcp.FCPTransferQuery;
 
 /**
- * Used when Thaw start and stop: Save the query not running (-> waiting in the Thaw queue)
+ * Used when Thaw start and stop: Keep the queries not running (-> waiting in the Thaw queue).<br/>
+ * The pending queue is recorded in a journal while Thaw is connected (see FCPQueueJournal) :
+ * loadQueue() replays it and attaches it to the queue manager, saveQueue() compacts and closes it.
+ * The XML file written by the previous versions is still read once, and then deleted.
  */
 public class QueueKeeper {
-	private final static int MIN_PRIORITY = 6;
+	public final static String OLD_QUEUE_FILE = "thaw.queue.xml";
 
 	/**
 	 * Used to be able to call Logger functions.
@@ -39,8 +35,25 @@ public class QueueKeeper {
 	}
 
 
-	private static void loadQuery(final FCPQueueManager queueManager, final Element queryEl, final boolean runningQueue) {
-		FCPTransferQuery newQuery = null;
+	private static FCPTransferQuery loadQuery(final FCPQueueManager queueManager, final int type,
+						  final HashMap<String,String> params) {
+		try {
+			FCPClientGet.Builder getBuilder = new FCPClientGet.Builder(queueManager).setParameters(params);
+
+			if(type == 1)
+				getBuilder = getBuilder.setIsNewRequest(false);
+
+			return getBuilder.build();
+		} catch(final RuntimeException e) {
+			/* missing / invalid parameter */
+			Logger.warning(new QueueKeeper(), "Unable to reload a query : "+e.toString());
+			return null;
+		}
+	}
+
+
+	private static void loadQuery(final FCPQueueManager queueManager, final Element queryEl, final boolean runningQueue,
+				      final Vector<FCPTransferQuery> pending) {
 		final HashMap<String,String> params = new HashMap<String,String>();
 
 		final NodeList paramList = queryEl.getElementsByTagName("param");
@@ -56,43 +69,78 @@ public class QueueKeeper {
 			}
 		}
 
-		FCPClientGet.Builder getBuilder = new FCPClientGet.Builder(queueManager).setParameters(params);
+		int type = 2;
 
 		if((queryEl.getAttribute("type") == null)
 		   || "1".equals( queryEl.getAttribute("type") ))
-			getBuilder = getBuilder.setIsNewRequest(false);
+			type = 1;
+
+		final FCPTransferQuery newQuery = loadQuery(queueManager, type, params);
 
-		newQuery = getBuilder.build();
+		if (newQuery == null)
+			return;
 
 		if(runningQueue)
 			queueManager.addQueryToTheRunningQueue(newQuery, false);
 		else
-			queueManager.addQueryToThePendingQueue(newQuery);
-
+			pending.add(newQuery);
 	}
 
 
-	private static void loadQueries(final FCPQueueManager queueManager, final Element queriesEl, final boolean runningQueue) {
+	private static void loadQueries(final FCPQueueManager queueManager, final Element queriesEl, final boolean runningQueue,
+					final Vector<FCPTransferQuery> pending) {
 		final NodeList queries = queriesEl.getElementsByTagName("query");
 
 		for(int i = 0;i < queries.getLength(); i++) {
 			final Node queryNode = queries.item(i);
 
 			if((queryNode != null) && (queryNode.getNodeType() == Node.ELEMENT_NODE)) {
-				QueueKeeper.loadQuery(queueManager, (Element)queryNode, runningQueue);
+				QueueKeeper.loadQuery(queueManager, (Element)queryNode, runningQueue, pending);
 			}
 		}
 	}
 
 
+	/**
+	 * Reload the pending queue, and start journaling its changes.
+	 * @param fileName journal
+	 */
 	public static boolean loadQueue(final FCPQueueManager queueManager, final String fileName) {
-		final File file = new File(fileName);
+		final FCPQueueJournal journal = new FCPQueueJournal(new File(fileName));
+		final Vector<FCPTransferQuery> pending = new Vector<FCPTransferQuery>();
 
-		if(!file.exists() || !file.canRead()) {
-			Logger.info(new QueueKeeper(), "Unable to find previous queue state file '"+file.getPath()+"' => Not reloaded from file.");
-			return false;
+		for (final FCPQueueJournal.Entry entry : journal.replay()) {
+			final FCPTransferQuery query = loadQuery(queueManager, entry.getQueryType(), entry.getParameters());
+
+			if (query != null)
+				pending.add(query);
 		}
 
+		final File oldFile = new File(OLD_QUEUE_FILE);
+		final boolean migrated = loadOldQueue(queueManager, oldFile, pending);
+
+		queueManager.addQueriesToThePendingQueue(pending);
+
+		/* rewrites the journal with the queries really added */
+		queueManager.setJournal(journal);
+
+		if (migrated && !oldFile.delete())
+			Logger.warning(new QueueKeeper(), "Unable to delete '"+oldFile.getPath()+"'");
+
+		return true;
+	}
+
+
+	/**
+	 * Read the XML file written by the previous versions.
+	 */
+	private static boolean loadOldQueue(final FCPQueueManager queueManager, final File file,
+					    final Vector<FCPTransferQuery> pending) {
+		if(!file.exists() || !file.canRead())
+			return false;
+
+		Logger.notice(new QueueKeeper(), "Reloading the queue from '"+file.getPath()+"'");
+
 
 		Document xmlDoc = null;
 		DocumentBuilderFactory xmlFactory = null;
@@ -129,7 +177,7 @@ public class QueueKeeper {
 			final Node runningQueueNode = runningQueues.item(i);
 
 			if((runningQueueNode != null) && (runningQueueNode.getNodeType() == Node.ELEMENT_NODE)) {
-				QueueKeeper.loadQueries(queueManager, (Element)runningQueueNode, true);
+				QueueKeeper.loadQueries(queueManager, (Element)runningQueueNode, true, pending);
 			}
 		}
 
@@ -140,7 +188,7 @@ public class QueueKeeper {
 			final Node pendingQueueNode = pendingQueues.item(i);
 
 			if((pendingQueueNode != null) && (pendingQueueNode.getNodeType() == Node.ELEMENT_NODE)) {
-				QueueKeeper.loadQueries(queueManager, (Element)pendingQueueNode, false);
+				QueueKeeper.loadQueries(queueManager, (Element)pendingQueueNode, false, pending);
 			}
 		}
 
@@ -148,127 +196,20 @@ public class QueueKeeper {
 	}
 
 
-	private static Element saveQuery(final FCPTransferQuery query, final Document xmlDoc) {
-		if(!query.isPersistent())
-			return null;
-
-		if(query.isPersistent() && (query.isRunning() || query.isFinished()))
-			return null;
-
-		final HashMap<String,String> params = query.getParameters();
-
-		final Element queryEl = xmlDoc.createElement("query");
-
-		queryEl.setAttribute("type", Integer.toString(query.getQueryType()));
-
-		Iterable<String> paramsKeySet = params.keySet();
-		for(String key : paramsKeySet) {
-			final Element paramEl = xmlDoc.createElement("param");
-
-			paramEl.setAttribute("name", key);
-			paramEl.setAttribute("value", (params.get(key)) );
-
-			queryEl.appendChild(paramEl);
-		}
-
-		return queryEl;
-	}
-
-
-	public static boolean saveQueue(final FCPQueueManager queueManager, final String fileName) {
-		boolean needed = false;
-
-		final Vector<Vector<FCPTransferQuery>> pendingQueues = queueManager.getPendingQueues();
-		
-		for(Vector<FCPTransferQuery> pendingQueue : pendingQueues) {
-			if(pendingQueue.size() > 0) {
-				needed = true;
-				break;
-			}
-		}
-
-		final File file = new File(fileName);
-
-		if(!needed) {
-			Logger.info(new QueueKeeper(), "Nothing in the pending queue to save.");
-			file.delete(); // Else we may reload something that we shouldn't when restarting
-			return true;
-		}
-
-		StreamResult fileOut;
-
-		try {
-			if( (!file.exists() && !file.createNewFile())
-				|| !file.canWrite()) {
-				Logger.warning(new QueueKeeper(), "Unable to write config file '"+file.getPath()+"' (can't write)");
-				return false;
-			}
-		} catch(final java.io.IOException e) {
-			Logger.warning(new QueueKeeper(), "Error while checking perms to save config: "+e);
-		}
-
-
-		fileOut = new StreamResult(file);
-
-		Document xmlDoc = null;
-		DocumentBuilderFactory xmlFactory = null;
-		DocumentBuilder xmlBuilder = null;
-		DOMImplementation impl = null;
-
-		Element rootEl = null;
-
-		xmlFactory = DocumentBuilderFactory.newInstance();
-
-		try {
-			xmlBuilder = xmlFactory.newDocumentBuilder();
-		} catch(final javax.xml.parsers.ParserConfigurationException e) {
-			Logger.error(new QueueKeeper(), "Unable to save queue because: "+e.toString());
-			return false;
-		}
-
-
-		impl = xmlBuilder.getDOMImplementation();
-
-		xmlDoc = impl.createDocument(null, "queue", null);
-
-		rootEl = xmlDoc.getDocumentElement();
-
-		final Element pendingQueueEl = xmlDoc.createElement("pendingQueue");
-
-		for(int i = 0 ; i <= QueueKeeper.MIN_PRIORITY ; i++) {
-			for(FCPTransferQuery query : pendingQueues.get(i)) {
-				final Element toSave = QueueKeeper.saveQuery(query, xmlDoc);
-
-				if(toSave != null)
-					pendingQueueEl.appendChild(toSave);
-			}
-		}
-
-		rootEl.appendChild(pendingQueueEl);
-
-		/* Serialization */
-		final DOMSource domSource = new DOMSource(xmlDoc);
-		final TransformerFactory transformFactory = TransformerFactory.newInstance();
-
-		Transformer serializer;
+	/**
+	 * Stop journaling the pending queue : the journal is compacted and closed
+	 * (or deleted if nothing is pending).
+	 */
+	public static boolean saveQueue(final FCPQueueManager queueManager) {
+		final FCPQueueJournal journal = queueManager.getJournal();
 
-		try {
-			serializer = transformFactory.newTransformer();
-		} catch(final javax.xml.transform.TransformerConfigurationException e) {
-			Logger.error(new QueueKeeper(), "Unable to save queue because: "+e.toString());
+		if (journal == null) {
+			Logger.info(new QueueKeeper(), "No queue journal to close.");
 			return false;
 		}
 
-		serializer.setOutputProperty(OutputKeys.ENCODING,"ISO-8859-1");
-		serializer.setOutputProperty(OutputKeys.INDENT,"yes");
-
-		/* final step */
-		try {
-			serializer.transform(domSource, fileOut);
-		} catch(final javax.xml.transform.TransformerException e) {
-			Logger.error(new QueueKeeper(), "Unable to save queue because: "+e.toString());
-			return false;
-		}
+		queueManager.setJournal(null);
+		journal.close();
 
 		return true;
 	}
@@ -1,5 +1,15 @@
 package thaw.core;
 
+/**
+ * A task of Thaw. Two ways to run it :
+ * <ul>
+ * <li>new Thread(new ThawThread(...)).start() : dedicated thread, for the loops running as long as
+ *     Thaw (scheduler, selector, refreshers, ...)</li>
+ * <li>new ThawThread(..., group).start() : run by the executor of the ThawThreadManager, with the
+ *     concurrency limit of its group (see ThawThreadManager.GROUP_*) ; for the short tasks.</li>
+ * </ul>
+ * In both cases, the running tasks are known by the ThawThreadManager.
+ */
 public class ThawThread implements ThawRunnable {
 	private final static ThawThreadManager threads = new ThawThreadManager();
 
@@ -7,27 +17,42 @@ public class ThawThread implements ThawRunnable {
 	private ThawRunnable target;
 	private String name;
 
+	/* null if run by a dedicated thread */
+	private final String group;
+
+	/* only for the tasks run by the executor */
+	private Thread runner = null;
+	private boolean interrupted = false;
+	private boolean started = false;
+	private boolean finished = false;
+
 
 	public ThawThread(ThawRunnable target, String name) {
 		this(target, name, null);
 	}
 
 	public ThawThread(ThawRunnable target, String name, Object parent) {
+		this(target, name, parent, null);
+	}
+
+	/**
+	 * @param group see ThawThreadManager.GROUP_* ; null means "dedicated thread" (see start())
+	 */
+	public ThawThread(ThawRunnable target, String name, Object parent, String group) {
 		this.target = target;
 		this.name = name;
 		this.parent = parent;
+		this.group = group;
 	}
 
 	public void run() {
 		Logger.info(this, "Starting thread '"+name+"' ...");
 
-		synchronized(threads) {
-			threads.add(this);
-		}
-
-		target.run();
+		threads.add(this);
 
-		synchronized(threads) {
+		try {
+			target.run();
+		} finally {
 			threads.remove(this);
 		}
 
@@ -38,6 +63,104 @@ public class ThawThread implements ThawRunnable {
 		}
 	}
 
+	/**
+	 * Give the task to the executor of the ThawThreadManager : it will be run as soon as
+	 * its group allows it.
+	 * @return this
+	 */
+	public ThawThread start() {
+		synchronized(this) {
+			if (started)
+				throw new IllegalStateException("Task '"+name+"' already started");
+			started = true;
+		}
+
+		threads.execute(this);
+
+		return this;
+	}
+
+	/**
+	 * Called by the ThawThreadManager, from a thread of its executor.
+	 */
+	protected void runTask() {
+		final Thread current = Thread.currentThread();
+		final String threadName = current.getName();
+
+		synchronized(this) {
+			runner = current;
+
+			if (interrupted)
+				current.interrupt();
+		}
+
+		current.setName(name);
+
+		try {
+			run();
+		} catch(final RuntimeException e) {
+			Logger.error(this, "Exception in the task '"+name+"' : "+e.toString());
+			e.printStackTrace();
+		} finally {
+			synchronized(this) {
+				runner = null;
+				Thread.interrupted(); /* the thread will be reused */
+			}
+
+			current.setName(threadName);
+			taskFinished();
+		}
+	}
+
+	/**
+	 * Mark the task as finished (run or dropped).
+	 */
+	protected synchronized void taskFinished() {
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if started and not finished yet (waiting for its turn or running)
+	 */
+	public synchronized boolean isAlive() {
+		return started && !finished;
+	}
+
+	protected synchronized boolean isRunByCurrentThread() {
+		return runner == Thread.currentThread();
+	}
+
+	/**
+	 * Like Thread.interrupt() ; if the task is still waiting for its turn, it will start interrupted.
+	 */
+	public synchronized void interrupt() {
+		interrupted = true;
+
+		if (runner != null)
+			runner.interrupt();
+	}
+
+	/**
+	 * Wait for the end of the task (run by the executor).
+	 * @param timeout in ms ; 0 = no limit
+	 * @return false if the timeout was reached
+	 */
+	public synchronized boolean join(final long timeout) throws InterruptedException {
+		final long end = System.currentTimeMillis() + timeout;
+
+		while (started && !finished) {
+			final long remaining = end - System.currentTimeMillis();
+
+			if (timeout > 0 && remaining <= 0)
+				return false;
+
+			wait(timeout > 0 ? remaining : 0);
+		}
+
+		return true;
+	}
+
 	public ThawRunnable getTarget() {
 		return target;
 	}
@@ -50,8 +173,17 @@ public class ThawThread implements ThawRunnable {
 		return parent;
 	}
 
-	public void stop() {
+	public String getGroup() {
+		return group;
+	}
 
+	/**
+	 * Stop the tasks run by the executor (calls their stop()).
+	 * The dedicated threads are stopped by their owners (plugins, queue manager, ...).
+	 */
+	public void stop() {
+		if (group != null)
+			target.stop();
 	}
 
 	public static ThawThreadManager getThawThreadManager() {
@@ -1,23 +1,342 @@
 package thaw.core;
 
-import java.util.Collection;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Knows all the running ThawThread, and runs the tasks started with ThawThread.start().<br/>
+ * These tasks are put in named groups : each group has its own concurrency limit
+ * (a refresh of all the boards or the insertion of hundreds of files won't create hundreds
+ * of threads), the tasks above the limit waiting for their turn in the order they were started.
+ * The tasks are run by an executor : a pool of platform threads (reused ; its size can be
+ * bounded, but the groups are the real limit), or virtual threads when the JVM supports them.
+ * See setExecutor() and setGroupLimit().
+ */
 public class ThawThreadManager {
+	public final static String GROUP_DEFAULT = "default";
+	public final static String GROUP_FCP_WRITERS = "fcp.writers"; /* waiting for FCPConnection.addToWriterQueue() */
+	public final static String GROUP_HASHES = "hashes";
+	public final static String GROUP_BOARDS = "boards";
+	public final static String GROUP_INDEXES = "indexes";
+
+	public final static String EXECUTOR_PLATFORM = "platform";
+	public final static String EXECUTOR_VIRTUAL = "virtual";
+
+	public final static int DEFAULT_STOP_TIMEOUT = 5000; /* ms */
+	private final static int IDLE_TIMEOUT = 60; /* s */
+
 	private ThreadGroup threadGroup = new ThreadGroup("Thaw");
-	private final Collection<ThawThread> threads = new Vector<ThawThread>();
+	private final LinkedHashSet<ThawThread> threads = new LinkedHashSet<ThawThread>();
 	private boolean allowFullStop = false;   /* TODO: What is this for? */
 
+	/* running threads, by class of their parent ("threads.byParent.<class>") */
+	private final Metrics.CounterFamily threadsByParent = new Metrics.CounterFamily("threads.byParent");
+
+	private ExecutorService executor = null;
+	private String executorType = EXECUTOR_PLATFORM;
+	private int maxPoolSize = 0; /* 0 = no limit */
+
+	/* String -> TaskGroup */
+	private final Hashtable<String, TaskGroup> groups = new Hashtable<String, TaskGroup>();
+	private volatile boolean stopping = false;
+
+
+	public ThawThreadManager() {
+		Metrics.gauge("threads.thaw", new Metrics.Gauge() {
+			public long getValue() {
+				return count();
+			}
+		});
+
+		Metrics.gauge("threads.jvm", new Metrics.Gauge() {
+			public long getValue() {
+				return java.lang.management.ManagementFactory.getThreadMXBean().getThreadCount();
+			}
+		});
+
+		setGroupLimit(GROUP_DEFAULT, 0);
+		setGroupLimit(GROUP_FCP_WRITERS, 8);
+		setGroupLimit(GROUP_HASHES, Runtime.getRuntime().availableProcessors());
+		setGroupLimit(GROUP_BOARDS, 4);
+		setGroupLimit(GROUP_INDEXES, 4);
+	}
+
+
+	/**
+	 * Tasks started with the same group name share the same concurrency limit.
+	 */
+	private class TaskGroup {
+		private final String name;
+		private int limit;
+		private int running = 0;
+		private final LinkedList<ThawThread> waiting = new LinkedList<ThawThread>();
+
+		public TaskGroup(final String name, final int limit) {
+			this.name = name;
+			this.limit = limit;
+
+			Metrics.gauge("threads.groups."+name+".running", new Metrics.Gauge() {
+				public long getValue() {
+					synchronized(TaskGroup.this) {
+						return running;
+					}
+				}
+			});
+
+			Metrics.gauge("threads.groups."+name+".waiting", new Metrics.Gauge() {
+				public long getValue() {
+					synchronized(TaskGroup.this) {
+						return waiting.size();
+					}
+				}
+			});
+		}
+
+		public void execute(final ThawThread task) {
+			synchronized(this) {
+				if (limit > 0 && running >= limit) {
+					waiting.add(task);
+					return;
+				}
+
+				running++;
+			}
+
+			submit(task);
+		}
+
+		/**
+		 * Called when a task of this group is finished : start the next one.
+		 */
+		public void finished() {
+			ThawThread next;
+
+			synchronized(this) {
+				next = (limit <= 0 || running <= limit) ? waiting.poll() : null;
+
+				if (next == null)
+					running--;
+			}
+
+			if (next != null)
+				submit(next);
+		}
+
+		/**
+		 * If the limit is raised, start the tasks waiting.
+		 */
+		public void setLimit(final int limit) {
+			final Vector<ThawThread> toStart = new Vector<ThawThread>();
+
+			synchronized(this) {
+				this.limit = limit;
+
+				while (!waiting.isEmpty() && (limit <= 0 || running < limit)) {
+					toStart.add(waiting.poll());
+					running++;
+				}
+			}
+
+			for (final ThawThread task : toStart)
+				submit(task);
+		}
+
+		/**
+		 * @return the tasks which were waiting for their turn
+		 */
+		public synchronized Vector<ThawThread> drop() {
+			final Vector<ThawThread> dropped = new Vector<ThawThread>(waiting);
+			waiting.clear();
+			return dropped;
+		}
+
+		private void submit(final ThawThread task) {
+			try {
+				getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							task.runTask();
+						} finally {
+							finished();
+						}
+					}
+				});
+			} catch(final RejectedExecutionException e) {
+				Logger.warning(this, "Task '"+task.getName()+"' of the group '"+name+"' rejected : "+e.toString());
+				task.taskFinished();
+				finished();
+			}
+		}
+	}
+
+
+	/**
+	 * Change the executor running the tasks. The tasks already started keep their executor.
+	 * @param type EXECUTOR_PLATFORM or EXECUTOR_VIRTUAL (platform threads are used if the JVM
+	 *             has no virtual threads)
+	 * @param maxPoolSize for the platform threads : 0 = no limit. Above it, the tasks wait for a
+	 *                    free thread whatever their group : don't set it too low, some tasks wait
+	 *                    for others.
+	 */
+	public synchronized void setExecutor(final String type, final int maxPoolSize) {
+		final ExecutorService previous = executor;
+
+		executorType = type;
+		this.maxPoolSize = maxPoolSize;
+		executor = null;
+
+		if (previous != null)
+			previous.shutdown();
+	}
+
+	/**
+	 * @param limit max number of tasks of this group running at the same time ; 0 = no limit
+	 */
+	public void setGroupLimit(final String group, final int limit) {
+		TaskGroup taskGroup;
+
+		synchronized(groups) {
+			taskGroup = groups.get(group);
+
+			if (taskGroup == null) {
+				groups.put(group, new TaskGroup(group, limit));
+				return;
+			}
+		}
+
+		taskGroup.setLimit(limit);
+	}
+
+	/**
+	 * @param limits "group=limit,group=limit,..." (ex: "boards=2,fcp.writers=16")
+	 */
+	public void setGroupLimits(final String limits) {
+		if (limits == null)
+			return;
+
+		final String[] split = limits.split(",");
+
+		for (int i = 0 ; i < split.length ; i++) {
+			final String[] pair = split[i].split("=");
+
+			if (pair.length != 2) {
+				Logger.warning(this, "Invalid group limit : '"+split[i]+"'");
+				continue;
+			}
+
+			try {
+				setGroupLimit(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+			} catch(final NumberFormatException e) {
+				Logger.warning(this, "Invalid group limit : '"+split[i]+"'");
+			}
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor != null)
+			return executor;
+
+		if (EXECUTOR_VIRTUAL.equals(executorType)) {
+			try {
+				executor = (ExecutorService)java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				Logger.info(this, "Tasks run by virtual threads");
+				return executor;
+			} catch(final Exception e) {
+				Logger.notice(this, "No virtual threads on this JVM ; using a pool of threads");
+			}
+		}
+
+		final ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger lastId = new AtomicInteger(0);
+
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(threadGroup, r, "Thaw pool "+lastId.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		ThreadPoolExecutor pool;
+
+		if (maxPoolSize > 0) {
+			pool = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, IDLE_TIMEOUT, TimeUnit.SECONDS,
+						      new LinkedBlockingQueue<Runnable>(), factory);
+			pool.allowCoreThreadTimeOut(true);
+		} else {
+			pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_TIMEOUT, TimeUnit.SECONDS,
+						      new SynchronousQueue<Runnable>(), factory);
+		}
+
+		executor = pool;
+		return executor;
+	}
+
+
+	/**
+	 * Called by ThawThread.start()
+	 */
+	protected void execute(final ThawThread task) {
+		if (stopping) {
+			Logger.notice(this, "Stopping : task '"+task.getName()+"' not started");
+			task.taskFinished();
+			return;
+		}
+
+		String group = task.getGroup();
+
+		if (group == null)
+			group = GROUP_DEFAULT;
+
+		TaskGroup taskGroup;
+
+		synchronized(groups) {
+			taskGroup = groups.get(group);
+
+			if (taskGroup == null) {
+				taskGroup = new TaskGroup(group, 0);
+				groups.put(group, taskGroup);
+			}
+		}
+
+		taskGroup.execute(task);
+	}
+
+
 	public void add(ThawThread thread) {
 		synchronized (threads) {
 			threads.add(thread);
 		}
+
+		threadsByParent.get(getParentName(thread)).inc();
 	}
 
 	public void remove(ThawThread thread) {
+		boolean removed;
+
 		synchronized (threads) {
-			threads.remove(thread);
+			removed = threads.remove(thread);
+			threads.notifyAll();
 		}
+
+		if (removed)
+			threadsByParent.get(getParentName(thread)).add(-1);
+	}
+
+	private static String getParentName(ThawThread thread) {
+		if (thread.getParent() == null)
+			return "unknown";
+		return thread.getParent().getClass().getName();
 	}
 
 	public int count() {
@@ -61,10 +380,70 @@ public class ThawThreadManager {
 	}
 
 	public void stopAll() {
+		stopAll(DEFAULT_STOP_TIMEOUT);
+	}
+
+	/**
+	 * Drop the tasks waiting for their turn, call stop() on the running ones, and wait until
+	 * they are finished. The dedicated threads (not run by the executor) are not waited.
+	 * @param timeout in ms
+	 * @return false if some tasks were still running after the timeout
+	 */
+	public boolean stopAll(final long timeout) {
+		stopping = true;
+
+		Vector<TaskGroup> allGroups;
+
+		synchronized(groups) {
+			allGroups = new Vector<TaskGroup>(groups.values());
+		}
+
+		for (final TaskGroup group : allGroups) {
+			for (final ThawThread task : group.drop())
+				task.taskFinished();
+		}
+
+		Vector<ThawThread> running;
+
+		synchronized(threads) {
+			running = new Vector<ThawThread>(threads);
+		}
+
+		for (final ThawThread th : running) {
+			try {
+				th.stop();
+			} catch(final RuntimeException e) {
+				Logger.warning(this, "Exception while stopping '"+th.getName()+"' : "+e.toString());
+			}
+		}
+
+		final long end = System.currentTimeMillis() + timeout;
+
 		synchronized(threads) {
-			for (ThawRunnable th : threads) {
-				if(th != null){
-					th.stop();
+			while (true) {
+				int remaining = 0;
+
+				for (final ThawThread th : threads) {
+					/* the task calling stopAll() can't wait for itself */
+					if (th.getGroup() != null && !th.isRunByCurrentThread())
+						remaining++;
+				}
+
+				final long wait = end - System.currentTimeMillis();
+
+				if (remaining == 0)
+					return true;
+
+				if (wait <= 0) {
+					Logger.warning(this, Integer.toString(remaining)+" task(s) still running after "
+						       +Long.toString(timeout)+" ms");
+					return false;
+				}
+
+				try {
+					threads.wait(wait);
+				} catch(final InterruptedException e) {
+					return false;
 				}
 			}
 		}
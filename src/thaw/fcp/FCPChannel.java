@@ -0,0 +1,570 @@
+package thaw.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+
+import thaw.core.Logger;
+
+/**
+ * Non-blocking socket to the node, read and written by the FCPSelector thread.
+ * The rest of Thaw uses it through blocking streams (getInputStream() /
+ * getOutputStream()) :
+ * <ul>
+ * <li>the selector fills an input buffer ; when it's full, the selector stops reading
+ *     until someone reads it.</li>
+ * <li>written data are queued until the selector sends them ; when more than
+ *     MAX_WRITE_QUEUE bytes are waiting, the writers are blocked. Small writes
+ *     (FCP messages) are appended in the same buffers, and all the buffers queued
+ *     are sent with one gathering write.</li>
+ * </ul>
+ * Files can also be sent directly from their FileChannel (see transferFrom()),
+ * and received data can be written directly in a channel (see transferTo()).
+ */
+public class FCPChannel {
+	public final static int INPUT_BUFFER_SIZE = 65536;
+	public final static int MAX_WRITE_QUEUE = 262144;
+	public final static int WRITE_BUFFER_SIZE = 16384;
+	private final static int MAX_GATHERED_BUFFERS = 64;
+	private final static int MAX_FREE_BUFFERS = MAX_WRITE_QUEUE / WRITE_BUFFER_SIZE;
+
+	private final SocketChannel channel;
+	private final FCPSelector selector;
+	private final FCPConnection connection;
+	private SelectionKey key = null;
+
+	/* filled by the selector thread (always in "write mode") */
+	private ByteBuffer input = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+	/* swapped with 'input' by transferTo() */
+	private ByteBuffer spare = null;
+	private boolean endOfStream = false;
+	private boolean closed = false;
+
+	/* ByteBuffer */
+	private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+	private int queuedBytes = 0;
+	/* ByteBuffer : sent buffers, reused by the writers */
+	private final LinkedList<ByteBuffer> freeBuffers = new LinkedList<ByteBuffer>();
+	private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+	/* see transferFrom() */
+	private boolean transferring = false;
+	private boolean waitingForWrite = false;
+
+	private final InputStream inputStream = new ChannelInputStream();
+	private final OutputStream outputStream = new ChannelOutputStream();
+
+
+	private FCPChannel(final FCPConnection connection, final SocketChannel channel,
+			   final FCPSelector selector) {
+		this.connection = connection;
+		this.channel = channel;
+		this.selector = selector;
+	}
+
+	/**
+	 * Connect (blocking) and then register the socket on the selector.
+	 * @param connection will be warned when data are available (FCPConnection.inputAvailable())
+	 */
+	public static FCPChannel open(final FCPConnection connection,
+				      final String nodeAddress, final int port) throws IOException {
+		final FCPSelector selector = FCPSelector.getSelector();
+
+		final SocketChannel channel = SocketChannel.open(new InetSocketAddress(nodeAddress, port));
+
+		try {
+			channel.configureBlocking(false);
+		} catch(final IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		final FCPChannel fcpChannel = new FCPChannel(connection, channel, selector);
+
+		try {
+			selector.register(fcpChannel);
+		} catch(final IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return fcpChannel;
+	}
+
+
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * @return true if read() won't block (data available or end of stream)
+	 */
+	public synchronized boolean isReadable() {
+		return (input.position() > 0 || endOfStream || closed);
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public void close() {
+		synchronized(this) {
+			if (closed)
+				return;
+
+			closed = true;
+			writeQueue.clear();
+			queuedBytes = 0;
+			notifyAll();
+		}
+
+		try {
+			channel.close(); /* cancel the key too */
+		} catch(final IOException e) {
+			Logger.warning(this, "Unable to close the channel cleanly : "+e.toString());
+		}
+
+		selector.update(this);
+		selector.unregister(this);
+	}
+
+
+	/**
+	 * Called by the selector thread only.
+	 */
+	protected synchronized void updateInterest(final Selector s) {
+		if (closed) {
+			if (key != null)
+				key.cancel();
+			return;
+		}
+
+		int ops = 0;
+
+		if (!endOfStream && input.hasRemaining())
+			ops |= SelectionKey.OP_READ;
+		if ((!transferring && !writeQueue.isEmpty()) || waitingForWrite)
+			ops |= SelectionKey.OP_WRITE;
+
+		try {
+			if (key == null)
+				key = channel.register(s, ops, this);
+			else
+				key.interestOps(ops);
+		} catch(final ClosedChannelException e) {
+			Logger.notice(this, "Channel closed while registering it");
+			endOfStream = true;
+			notifyAll();
+		} catch(final CancelledKeyException e) {
+			Logger.notice(this, "Channel closed while updating it");
+			endOfStream = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Called by the selector thread only.
+	 */
+	protected void readFromChannel() {
+		int rd;
+
+		synchronized(this) {
+			try {
+				rd = channel.read(input);
+			} catch(final IOException e) {
+				Logger.notice(this, "Error while reading on the socket : "+e.toString());
+				rd = -1;
+			}
+
+			if (rd < 0)
+				endOfStream = true;
+
+			if (key.isValid() && (endOfStream || !input.hasRemaining()))
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+			notifyAll();
+		}
+
+		if (rd > 0)
+			connection.bytesReceived(rd);
+
+		if (rd != 0)
+			connection.inputAvailable();
+	}
+
+	/**
+	 * Called by the selector thread only.
+	 */
+	protected void writeToChannel() {
+		boolean error = false;
+
+		synchronized(this) {
+			if (waitingForWrite) { /* transferFrom() can continue */
+				waitingForWrite = false;
+				notifyAll();
+			}
+
+			try {
+				while (!transferring && !writeQueue.isEmpty()) {
+					int nmb = 0;
+
+					for (final ByteBuffer buffer : writeQueue) {
+						if (nmb >= MAX_GATHERED_BUFFERS)
+							break;
+						gathered[nmb++] = buffer;
+					}
+
+					final long written = channel.write(gathered, 0, nmb);
+
+					if (written > 0)
+						connection.bytesSent(written);
+
+					while (!writeQueue.isEmpty() && !writeQueue.getFirst().hasRemaining()) {
+						final ByteBuffer buffer = writeQueue.removeFirst();
+						queuedBytes -= buffer.limit();
+
+						if (freeBuffers.size() < MAX_FREE_BUFFERS) {
+							buffer.clear();
+							freeBuffers.add(buffer);
+						}
+					}
+
+					if (gathered[nmb - 1].hasRemaining())
+						break; /* socket buffer is full */
+				}
+			} catch(final IOException e) {
+				Logger.notice(this, "Error while writing on the socket : "+e.toString());
+				error = true;
+				endOfStream = true;
+				closed = true;
+				writeQueue.clear();
+				queuedBytes = 0;
+				key.cancel();
+			}
+
+			if (key.isValid() && (transferring || writeQueue.isEmpty()))
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+			notifyAll();
+		}
+
+		if (error) /* so the connection will notice the disconnection */
+			connection.inputAvailable();
+	}
+
+
+	/**
+	 * Send directly a part of a file on the socket (the kernel may do it without copying it).
+	 * Blocking. The data already queued are sent before, and the data queued
+	 * meanwhile are sent after.
+	 * @return number of bytes sent (== count, else an exception is thrown)
+	 */
+	public long transferFrom(final FileChannel file, final long position, final long count) throws IOException {
+		synchronized(this) {
+			while (!writeQueue.isEmpty() && !closed) {
+				try {
+					wait();
+				} catch(final InterruptedException e) {
+					/* \_o< */
+				}
+			}
+
+			if (closed)
+				throw new IOException("Connection closed");
+
+			transferring = true;
+		}
+
+		long sent = 0;
+
+		try {
+			while (sent < count) {
+				final long nmb = file.transferTo(position + sent, count - sent, channel);
+
+				if (nmb > 0) {
+					sent += nmb;
+					connection.bytesSent(nmb);
+					continue;
+				}
+
+				if (position + sent >= file.size())
+					throw new IOException("End of file reached before the end of the transfer");
+
+				/* socket buffer is full : wait for the selector to tell us we can write */
+				synchronized(this) {
+					if (closed)
+						throw new IOException("Connection closed");
+
+					waitingForWrite = true;
+					selector.update(this);
+
+					while (waitingForWrite && !closed) {
+						try {
+							wait();
+						} catch(final InterruptedException e) {
+							/* \_o< */
+						}
+					}
+				}
+			}
+		} finally {
+			synchronized(this) {
+				transferring = false;
+				waitingForWrite = false;
+
+				if (!writeQueue.isEmpty())
+					selector.update(this);
+			}
+		}
+
+		return sent;
+	}
+
+
+	/* must be called with the lock on the FCPChannel */
+	private void waitForInput() {
+		while (input.position() == 0 && !endOfStream && !closed) {
+			try {
+				wait();
+			} catch(final InterruptedException e) {
+				/* \_o< */
+			}
+		}
+	}
+
+	/**
+	 * Write the received data directly in the given channel (usually a file).
+	 * Blocking. When the whole input buffer is needed, it's swapped with
+	 * an empty one, so the selector can continue to read while we write.
+	 * @param out if null, the data are dropped
+	 * @return number of bytes read from the socket : < count only if the connection is closed.
+	 * @throws IOException if unable to write in 'out'. In this case, the data
+	 *                     are still read (and dropped) up to 'count' bytes.
+	 */
+	public long transferTo(WritableByteChannel out, final long count) throws IOException {
+		IOException writeError = null;
+		long done = 0;
+
+		while (done < count) {
+			ByteBuffer data = null;
+
+			synchronized(this) {
+				waitForInput();
+
+				if (input.position() == 0)
+					break; /* end of stream */
+
+				final boolean wasFull = !input.hasRemaining();
+
+				if (input.position() <= count - done) {
+					/* we take the whole buffer */
+					data = input;
+					input = (spare != null) ? spare : ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+					spare = null;
+					input.clear();
+
+					if (wasFull)
+						selector.update(this);
+				} else {
+					/* last bytes : we only take a part of the buffer */
+					input.flip();
+					final int oldLimit = input.limit();
+					final int end = input.position() + (int)(count - done);
+					input.limit(end);
+
+					try {
+						if (out != null)
+							while (input.hasRemaining())
+								out.write(input);
+					} catch(final IOException e) {
+						writeError = e;
+						out = null;
+					}
+
+					done = count;
+					input.limit(oldLimit);
+					input.position(end);
+					input.compact();
+
+					if (wasFull)
+						selector.update(this);
+					continue;
+				}
+			}
+
+			data.flip();
+			done += data.remaining();
+
+			try {
+				if (out != null)
+					while (data.hasRemaining())
+						out.write(data);
+			} catch(final IOException e) {
+				writeError = e;
+				out = null;
+			}
+
+			data.clear();
+
+			synchronized(this) {
+				spare = data;
+			}
+		}
+
+		if (writeError != null)
+			throw writeError;
+
+		return done;
+	}
+
+
+	private class ChannelInputStream extends InputStream {
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+
+			if (read(b, 0, 1) < 0)
+				return -1;
+
+			return (b[0] & 0xFF);
+		}
+
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len <= 0)
+				return 0;
+
+			synchronized(FCPChannel.this) {
+				waitForInput();
+
+				if (input.position() == 0)
+					return -1;
+
+				final boolean wasFull = !input.hasRemaining();
+
+				input.flip();
+				final int nmb = Math.min(len, input.remaining());
+				input.get(b, off, nmb);
+				input.compact();
+
+				if (wasFull)
+					selector.update(FCPChannel.this);
+
+				return nmb;
+			}
+		}
+
+		public long skip(final long n) throws IOException {
+			if (n <= 0)
+				return 0;
+
+			synchronized(FCPChannel.this) {
+				waitForInput();
+
+				final boolean wasFull = !input.hasRemaining();
+
+				input.flip();
+				final int nmb = (int)Math.min(n, input.remaining());
+				input.position(nmb);
+				input.compact();
+
+				if (wasFull)
+					selector.update(FCPChannel.this);
+
+				return nmb;
+			}
+		}
+
+		public int available() {
+			synchronized(FCPChannel.this) {
+				return input.position();
+			}
+		}
+
+		public void close() {
+			FCPChannel.this.close();
+		}
+	}
+
+
+	private class ChannelOutputStream extends OutputStream {
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				synchronized(FCPChannel.this) {
+					while (queuedBytes >= MAX_WRITE_QUEUE && !closed) {
+						try {
+							FCPChannel.this.wait();
+						} catch(final InterruptedException e) {
+							/* \_o< */
+						}
+					}
+
+					if (closed)
+						throw new IOException("Connection closed");
+
+					final boolean wasEmpty = writeQueue.isEmpty();
+					ByteBuffer buffer = (wasEmpty ? null : writeQueue.getLast());
+
+					if (buffer == null || buffer.limit() == buffer.capacity()) {
+						buffer = (freeBuffers.isEmpty() ? ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+							  : freeBuffers.removeFirst());
+						buffer.limit(0);
+						writeQueue.add(buffer);
+					}
+
+					/* appended after the data not sent yet */
+					final int nmb = Math.min(Math.min(len, MAX_WRITE_QUEUE - queuedBytes),
+								 buffer.capacity() - buffer.limit());
+					final int position = buffer.position();
+
+					buffer.position(buffer.limit());
+					buffer.limit(buffer.limit() + nmb);
+					buffer.put(b, off, nmb);
+					buffer.position(position);
+
+					queuedBytes += nmb;
+
+					if (wasEmpty)
+						selector.update(FCPChannel.this);
+
+					off += nmb;
+					len -= nmb;
+				}
+			}
+		}
+
+		/**
+		 * Data are sent by the selector thread as soon as the socket is writable,
+		 * so we only check that the connection is still open.
+		 */
+		public void flush() throws IOException {
+			if (isClosed())
+				throw new IOException("Connection closed");
+		}
+
+		public void close() {
+			FCPChannel.this.close();
+		}
+	}
+}
@@ -2,25 +2,25 @@ package thaw.fcp;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Observable;
 import java.util.Observer;
 
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 
 public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 	private int maxRetries = -1;
-	private final static int PACKET_SIZE = 65536;
+	private final static int PACKET_SIZE = 1048576; /* progress is updated between each packet */
 
 	private final FCPQueueManager queueManager;
 	private FCPQueryManager duplicatedQueryManager;           /* TODO: Necessary? */
 
-	private final FCPQueryManager queryManager;
 	private final int persistence;
 	private final boolean globalQueue;
 	private final long maxSize;
@@ -179,7 +179,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 	private FCPClientGet(final Builder builder) {
         super(builder.identifier, false);
 		this.queueManager = builder.queueManager;
-		this.queryManager = queueManager.getQueryManager();
+		setQueryManager(queueManager.getQueryManager());
 		fromTheNodeProgress = -1;
 
 		this.maxRetries = builder.maxRetries;
@@ -236,7 +236,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 			Logger.info(this, "Resuming id : "+getIdentifier());
 		}
 
-		queryManager.addObserver(this);
+		getQueryManager().addObserver(this);
 	}
 
 
@@ -255,8 +255,8 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 		/* TODO : seems to be true sometimes => find why */ 
 		if (queueManager == null /* TODO: Needed anymore?*/
-				|| queryManager == null
-				|| queryManager.getConnection() == null)
+				|| getQueryManager() == null
+				|| getQueryManager().getConnection() == null)
 			return false;
 
 		return sendClientGet();
@@ -302,7 +302,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		else
 			queryMessage.setValue("Global", "false");
 
-		if (!queryManager.getConnection().isLocalSocket() || noDDA)
+		if (!getQueryManager().getConnection().isLocalSocket() || noDDA)
 			queryMessage.setValue("ReturnType", "direct");
 		else {
 			queryMessage.setValue("ReturnType", "disk");
@@ -313,8 +313,8 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 			}
 		}
 
-		queryManager.addObserver(this);
-		return queryManager.writeMessage(queryMessage);
+		getQueryManager().addObserver(this);
+		return getQueryManager().writeMessage(queryMessage);
 	}
 
 
@@ -336,7 +336,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		if (o instanceof FCPQueryManager)
 			queryManager = (FCPQueryManager)o;
 		else
-			queryManager = this.queryManager; /* default one */
+			queryManager = getQueryManager(); /* default one */
 
 		switch (message.getMessageType()) {
 			case DataFound:
@@ -414,7 +414,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 					if(destinationDir != null) {
 						if (!fileExists()
 								&& !(ddaAllowed())
-								&& queryManager.getConnection().getAutoDownload()) {
+								&& getQueryManager().getConnection().getAutoDownload()) {
 							status = "Requesting file from the node";
 
 							writingSuccessful = false;
@@ -463,7 +463,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 			if (destinationDir == null)
 				destinationDir = new File(finalPath).getAbsoluteFile().getParent();
 
-			testDDA = new FCPTestDDA(destinationDir, false, true, queryManager);
+			testDDA = new FCPTestDDA(destinationDir, false, true, getQueryManager());
 			testDDA.addObserver(this);
 			testDDA.start();
 		}
@@ -500,7 +500,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 			notifyChange();
 
-			queryManager.deleteObserver(this);
+			getQueryManager().deleteObserver(this);
 		}
 	}
 
@@ -515,7 +515,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		}
 
 		Logger.info(this, "PersistentRequestRemoved >> Removing from the queue");
-		queryManager.deleteObserver(this);
+		getQueryManager().deleteObserver(this);
 		queueManager.remove(this);
 
 		notifyChange();
@@ -535,7 +535,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 				status = "Redirected ...";
 				if (queueManager.isOur(message.getValue("Identifier"))) {
 					restartIfFailed = true;
-					stop(queryManager, false);
+					stop(getQueryManager(), false);
 				} else {
 					Logger.info(this, "Not our transfer ; we don't touch");
 				}
@@ -655,8 +655,8 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 		queryManager.deleteObserver(this);
 
-		if (queryManager != this.queryManager) {
-			this.queryManager.deleteObserver(this);
+		if (queryManager != getQueryManager()) {
+			getQueryManager().deleteObserver(this);
 			queryManager.getConnection().disconnect();
 			duplicatedQueryManager = null;
 		}
@@ -673,7 +673,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 
 	protected boolean ddaAllowed() {
-		return queryManager.getConnection().isLocalSocket() && !noDDA;
+		return getQueryManager().getConnection().isLocalSocket() && !noDDA;
 	}
 
 	protected int getPriority() {
@@ -695,7 +695,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 			this.c = c;
 		}
 
-		private Thread th;
+		private ThawThread th;
 		private boolean waiting = false;
 
 		public void run() {
@@ -726,7 +726,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		}
 
 
-		public void setThread(Thread th) {
+		public void setThread(ThawThread th) {
 			synchronized(this) {
 				this.th = th;
 			}
@@ -771,10 +771,10 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		Logger.info(this, "Duplicating socket ...");
 
 		if (globalQueue) {
-			duplicatedQueryManager = queryManager.duplicate(getIdentifier());
+			duplicatedQueryManager = getQueryManager().duplicate(getIdentifier());
 			duplicatedQueryManager.addObserver(this);
 		} else { /* won't duplicate ; else it will use another id */
-			duplicatedQueryManager = queryManager;
+			duplicatedQueryManager = getQueryManager();
 		}
 
 		Logger.info(this, "Waiting for socket  ...");
@@ -787,9 +787,9 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		
 		UnlockWaiter uw = new UnlockWaiter(this, duplicatedQueryManager.getConnection(), dir);
 
-		final Thread fork = new Thread(new ThawThread(uw,
+		final ThawThread fork = new ThawThread(uw,
 				"Unlock waiter",
-				this));
+				this, ThawThreadManager.GROUP_FCP_WRITERS);
 		uw.setThread(fork);
 
 		fork.start();
@@ -894,36 +894,18 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 
 	/**
-	 * Reads the remaining data bytes from the socket as defined by size.
+	 * Drops the remaining data bytes from the socket as defined by size.
 	 * @param connection Connection to read the data from.
-	 * @param size The number of bytes to read from the connection.
+	 * @param size The number of bytes to drop.
 	 */
 	protected void dummyDataGet(FCPConnection connection, long size) {
-		final int packet = FCPClientGet.PACKET_SIZE;
-		byte[] read;
-		int amount;
-
-		read = new byte[packet];
-
-		while(size > 0){
-			if ( size < packet )
-				read = new byte[(int)size]; /* otherwise we would read too much */
-			amount = connection.read(read);
-
-			if(amount >= 0){
-				size -= amount;
-			}
-			else{
-				/* Either EOF, or socket error */
-				return;
-			}
-		}
+		connection.skip(size);
 	}
 
 
 	private boolean fetchDirectly(final FCPConnection connection, final long expectedFileSize, final boolean reallyWrite) {
 		File newFile;
-		OutputStream outputStream;
+		FileOutputStream outputStream;
 
 		newFile = getDirectFile();
 		if (reallyWrite || !newFile.exists() || (newFile.length() > 0)) {
@@ -946,59 +928,45 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 			return false;
 		}
 
+		/* data are written from the socket buffers to the file without going through a byte array */
+		final FileChannel file = outputStream.getChannel();
+
 		/* bytesRemaining == bytes remaining on socket */
 		long bytesRemaining = expectedFileSize;
 		long startTime = System.currentTimeMillis();
 
 		writingSuccessful = true;
 
-		final int packet = FCPClientGet.PACKET_SIZE;
-		byte[] read = new byte[packet];
-
 		while(bytesRemaining > 0) {
 
-			int amount;
+			final long toRead = Math.min(FCPClientGet.PACKET_SIZE, bytesRemaining);
+			long amount;
 
-			if ( bytesRemaining < packet )
-				read = new byte[(int) bytesRemaining]; /* otherwise we would read too much */
-
-			amount = connection.read(read);
-
-			if (amount >= 0) {
-				bytesRemaining -= amount;
+			try {
+				amount = connection.read(file, toRead);
+			} catch(final java.io.IOException e) {
+				/* Unable to continue writing to the file. The bytes of this packet
+				 * have been read anyway : drop the remaining data so that the socket
+				 * doesn't get messed up.
+				 */
+				Logger.error(this, "Unable to write file on disk ... out of space ? : "+e.toString());
+				status = "Unable to fetch / disk probably full !";
+				writingSuccessful = false;
+				setStatus(TransferStatus.FAILED);
 				try {
-					outputStream.write(read, 0, amount);
-					if( System.currentTimeMillis() >= (startTime+3000)) {
-						status = "Writing to disk";
-						fromTheNodeProgress = (int) (((expectedFileSize - bytesRemaining) * 100) / expectedFileSize);
-
-						if (fromTheNodeProgress <= 0) /* display issue */
-							fromTheNodeProgress = 1;
+					outputStream.close();
+				} catch(java.io.IOException ex) {
+					Logger.error(this, "Unable to close the file cleanly : "+ex.toString());
+					Logger.error(this, "Things seem to go wrong !");
+				}
+				newFile.delete();
+				dummyDataGet(connection, bytesRemaining - toRead);
+				return false;
+			}
 
-						notifyChange();
+			bytesRemaining -= amount;
 
-						startTime = System.currentTimeMillis();
-					}
-				} catch(final java.io.IOException e) {
-					/* Unable to continue writing to the file.  Disable writing, but
-					 * keep reading data from the socket so that the socket doesn't
-					 * get messed up.
-					 */
-					Logger.error(this, "Unable to write file on disk ... out of space ? : "+e.toString());
-					status = "Unable to fetch / disk probably full !";
-					writingSuccessful = false;
-					setStatus(TransferStatus.FAILED);
-					try {
-						outputStream.close();
-					} catch(java.io.IOException ex) {
-						Logger.error(this, "Unable to close the file cleanly : "+ex.toString());
-						Logger.error(this, "Things seem to go wrong !");
-					}
-					newFile.delete();
-					dummyDataGet(connection, bytesRemaining);
-					return false;
-				}
-			} else {
+			if (amount < toRead) {
 				Logger.error(this, "Socket closed, damn !");
 				status = "Unable to read data from the node";
 				writingSuccessful = false;
@@ -1012,6 +980,18 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 				newFile.delete();
 				return false;
 			}
+
+			if( System.currentTimeMillis() >= (startTime+3000)) {
+				status = "Writing to disk";
+				fromTheNodeProgress = (int) (((expectedFileSize - bytesRemaining) * 100) / expectedFileSize);
+
+				if (fromTheNodeProgress <= 0) /* display issue */
+					fromTheNodeProgress = 1;
+
+				notifyChange();
+
+				startTime = System.currentTimeMillis();
+			}
 		}
 
 		fromTheNodeProgress = 100;
@@ -1058,7 +1038,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 
 		stopMessage.setValue("Identifier", getIdentifier());
 
-		queryManager.writeMessage(stopMessage);
+		getQueryManager().writeMessage(stopMessage);
 
 		if ( isSuccessful() )
 			setStatus(TransferStatus.SUCCESSFUL);
@@ -1087,7 +1067,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 	}
 	
 	public boolean stop() {
-		return stop(queryManager, true);
+		return stop(getQueryManager(), true);
 	}
 
 	public boolean stop(final FCPQueryManager queryManager, boolean notify) {
@@ -1131,7 +1111,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		if(clientToken && (destinationDir != null))
 			msg.setValue("ClientToken", destinationDir);
 
-		queryManager.writeMessage(msg);
+		getQueryManager().writeMessage(msg);
 
 	}
 
@@ -1148,6 +1128,7 @@ public class FCPClientGet extends FCPTransferQuery implements Observer {
 		Logger.info(this, "Setting priority to "+Integer.toString(prio));
 
 		setPriority(prio);
+		priorityChanged();
 
 		notifyChange();
 	}
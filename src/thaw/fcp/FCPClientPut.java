@@ -2,10 +2,12 @@ package thaw.fcp;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 
@@ -43,7 +45,8 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 	private final HashMap<String,String> metadatas = new LinkedHashMap<String,String>();
 
-	private final static int PACKET_SIZE = 1024;
+	/* the file is sent by chunks, so we can display the progression */
+	private final static long CHUNK_SIZE = 1048576;
 
 	private SHA256Computer sha;
 
@@ -204,6 +207,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		super(builder.identifier, true);
 
 		this.queueManager = builder.queueManager;
+		setQueryManager(queueManager.getQueryManager());
 		this.compressFile = builder.compress;
 		this.priority = builder.priority;
 		this.global = builder.global;
@@ -301,19 +305,19 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			return false;
 		}
 
-		queueManager.getQueryManager().addObserver(this);
+		getQueryManager().addObserver(this);
 
 		setBlockNumbers(-1, -1, -1, false);
 		setStatus(TransferStatus.RUNNING);
 
 		sha = null;
 
-		if (queueManager.getQueryManager().getConnection().isLocalSocket() && localFile != null) {
+		if (getQueryManager().getConnection().isLocalSocket() && localFile != null) {
 			status = "Computing hash to get approval from the node ...";
 
 			setIdentifier(queueManager.getAnID() + "-"+ localFile.getName());
 
-			String salt = queueManager.getQueryManager().getConnection().getClientHello().getConnectionId()
+			String salt = getQueryManager().getConnection().getClientHello().getConnectionId()
 				+"-"+ getIdentifier()
 				+"-";
 			Logger.info(this, "Salt used for this transfer: ~" + salt+ "~");
@@ -321,8 +325,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			sha = new SHA256Computer(salt, localFile.getPath());
 			sha.addObserver(this);
 
-			Thread th = new Thread(new ThawThread(sha, "Hash computer", this));
-			th.start();
+			new ThawThread(sha, "Hash computer", this, ThawThreadManager.GROUP_HASHES).start();
 		} else {
 			return startProcess();
 		}
@@ -368,7 +371,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			this.c = c;
 		}
 
-		private Thread th;
+		private ThawThread th;
 		private boolean waiting = false;
 
 		public void run() {
@@ -393,7 +396,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			return;
 		}
 
-		public void setThread(Thread th) {
+		public void setThread(ThawThread th) {
 			synchronized(this) {
 				this.th = th;
 			}
@@ -411,7 +414,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 
 	public boolean startInsert() {
-		final FCPConnection connection = queueManager.getQueryManager().getConnection();
+		final FCPConnection connection = getQueryManager().getConnection();
 
 		toTheNodeProgress= 0;
 
@@ -421,9 +424,9 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 		UnlockWaiter uw = new UnlockWaiter(this, connection);
 
-		final Thread fork = new Thread(new ThawThread(uw,
+		final ThawThread fork = new ThawThread(uw,
 				"Unlock waiter",
-				this));
+				this, ThawThreadManager.GROUP_FCP_WRITERS);
 		uw.setThread(fork);
 		fork.start();
 
@@ -435,7 +438,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 		sending = true;
 
-		final FCPConnection connection = queueManager.getQueryManager().getConnection();
+		final FCPConnection connection = getQueryManager().getConnection();
 
 		status = "Sending to the node";
 
@@ -513,7 +516,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 		Logger.info(this, "Sending "+Long.toString(fileSize)+" bytes on socket ...");
 
-		queueManager.getQueryManager().writeMessage(msg, false);
+		getQueryManager().writeMessage(msg, false);
 
 		boolean ret = true;
 
@@ -521,6 +524,9 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			Logger.info(this, "Sending file to the node");
 			ret = sendFile();
 			Logger.info(this, "File sent (or not :p)");
+
+			if (ret)
+				getQueryManager().dataSent(getIdentifier());
 		}
 
 		connection.removeFromWriterQueue();
@@ -554,10 +560,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 	}
 
 	private boolean sendFile() {
-		final FCPConnection connection = queueManager.getQueryManager().getConnection();
-
-		long remaining = fileSize;
-		byte[] data = null;
+		final FCPConnection connection = getQueryManager().getConnection();
 
 		FileInputStream in = null;
 
@@ -573,56 +576,46 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			return false;
 		}
 
-		long startTime = System.currentTimeMillis();
-		final long origSize = remaining;
+		final FileChannel file = in.getChannel();
 
-		while(remaining > 0) {
-			int to_read = FCPClientPut.PACKET_SIZE;
+		long startTime = System.currentTimeMillis();
+		long sent = 0;
 
-			if(remaining < to_read)
-				to_read = (int)remaining;
+		try {
+			if (file.size() < fileSize) {
+				Logger.error(this, "File smaller than expected ?!");
+				return false;
+			}
 
-			data = new byte[to_read];
+			while(sent < fileSize) {
+				final long toSend = Math.min(FCPClientPut.CHUNK_SIZE, fileSize - sent);
 
-			try {
-				if(in.read(data) < 0) {
-					Logger.error(this, "Error while reading file ?!");
+				if(!connection.rawWrite(file, sent, toSend)) {
+					Logger.error(this, "Error while writing file on socket ! Disconnected ?");
 					return false;
 				}
-			} catch(final java.io.IOException e) {
-				Logger.error(this, "IOException while reading file! proobleeem");
-				return false;
-			}
-
-			if(!connection.rawWrite(data)) {
-				Logger.error(this, "Error while writing file on socket ! Disconnected ?");
-				return false;
-			}
 
-			remaining = remaining - to_read;
+				sent += toSend;
 
-			if( System.currentTimeMillis() >= (startTime+3000) ) {
-				toTheNodeProgress = (int) (((origSize - remaining) * 100) / origSize);
-				notifyChange();
-				startTime = System.currentTimeMillis();
+				if( System.currentTimeMillis() >= (startTime+3000) ) {
+					toTheNodeProgress = (int) ((sent * 100) / fileSize);
+					notifyChange();
+					startTime = System.currentTimeMillis();
+				}
+			}
+		} catch(final java.io.IOException e) {
+			Logger.error(this, "IOException while reading file! proobleeem : "+e.toString());
+			return false;
+		} finally {
+			try {
+				in.close();
+			} catch(final java.io.IOException e) {
+				Logger.notice(this, "Unable to close the file : "+e.toString());
 			}
-
-			//Logger.verbose(this, "Remaining: "+(new Long(remaining)).toString());
 		}
 
-
 		toTheNodeProgress = 100;
 
-		try {
-			if(in.available() > 0) {
-				Logger.error(this, "File not send completly ?!");
-				return false;
-			}
-		} catch(final java.io.IOException e) {
-			/* we will suppose its ok ... */
-			Logger.notice(this, "available() IOException (hu ?)");
-		}
-
 		return true;
 	}
 
@@ -630,7 +623,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		boolean wasFinished = isFinished();
 
 		if(removeRequest()) {
-			queueManager.getQueryManager().deleteObserver(this);
+			getQueryManager().deleteObserver(this);
 
 			status = "Stopped";
 
@@ -668,6 +661,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		if(o == sskGenerator) {
 			privateKey = sskGenerator.getPrivateKey();
 			publicKey = sskGenerator.getPublicKey() + "/" + name;
+			keyChanged();
 
 			notifyChange();
 
@@ -689,6 +683,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 				publicKey = msg.getValue("URI");
 
 				publicKey = publicKey.replaceAll("freenet:", "");
+				keyChanged();
 
 				Logger.info(this, msg.getMessageName()+": "+publicKey);
 
@@ -701,7 +696,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 					sending = false;
 
 					notifyChange();
-					queueManager.getQueryManager().deleteObserver(this);
+					getQueryManager().deleteObserver(this);
 					return;
 				}
 
@@ -713,7 +708,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 			if("PutSuccessful".equals(msg.getMessageName())) {
 				setStatus(TransferStatus.SUCCESSFUL);
-				queueManager.getQueryManager().deleteObserver(this);
+				getQueryManager().deleteObserver(this);
 
 				setStartupTime(Long.valueOf(msg.getValue("StartupTime")).longValue());
 				setCompletionTime(Long.valueOf(msg.getValue("CompletionTime")).longValue());
@@ -722,6 +717,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 				if (publicKey == null) {
 					status = "[Warning]";
 					Logger.warning(this, "PutSuccessful message without URI field ?!");
+					keyChanged();
 					notifyChange();
 					return;
 				}
@@ -737,6 +733,8 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 				//if(keyType == KEY_TYPE_SSK)
 				//	publicKey = publicKey + "/" + name + "-" + Integer.toString(rev);
 
+				keyChanged();
+
 
 				status = "Finished";
 
@@ -761,7 +759,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 				}
 
 				Logger.info(this, "PersistentRequestRemoved >> Removing from the queue");
-				queueManager.getQueryManager().deleteObserver(this);
+				getQueryManager().deleteObserver(this);
 				queueManager.remove(this);
 
 				notifyChange();
@@ -799,7 +797,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 
 				if(lockOwner) {
 					lockOwner = false;
-					queueManager.getQueryManager().getConnection().removeFromWriterQueue();
+					getQueryManager().getConnection().removeFromWriterQueue();
 				}
 
 				Logger.warning(this, "Protocol error ! : "+msg.getValue("CodeDescription"));
@@ -939,11 +937,11 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 			else
 				msg.setValue("Global", "false");
 
-			queueManager.getQueryManager().writeMessage(msg);
+			getQueryManager().writeMessage(msg);
 
 			setStatus(TransferStatus.NOT_RUNNING);
 
-			queueManager.getQueryManager().deleteObserver(this);
+			getQueryManager().deleteObserver(this);
 		} else {
 			Logger.notice(this, "Nothing to remove");
 		}
@@ -966,7 +964,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		if(clientToken && (getPath() != null))
 			msg.setValue("ClientToken", getPath());
 
-		queueManager.getQueryManager().writeMessage(msg);
+		getQueryManager().writeMessage(msg);
 	}
 
 	public int getThawPriority() {
@@ -981,6 +979,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		Logger.info(this, "Setting priority to "+Integer.toString(prio));
 
 		priority = prio;
+		priorityChanged();
 
 		notifyChange();
 	}
@@ -1133,6 +1132,7 @@ public class FCPClientPut extends FCPTransferQuery implements Observer {
 		compressionCodec = Integer.parseInt("compressionCodec");
 
 		setIdentifier((String)parameters.get("identifier"));
+		keyChanged();
 
 		boolean running = Boolean.valueOf((String)parameters.get("running")).booleanValue();
 		boolean successful = Boolean.valueOf((String)parameters.get("successful")).booleanValue();
@@ -1,16 +1,23 @@
 package thaw.fcp;
 
-import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Observable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import thaw.core.Logger;
+import thaw.core.Metrics;
+import thaw.core.ThawRunnable;
 
 
 /**
  * This object manages directly the socket attached to the node.
+ * The socket itself is read and written by the FCPSelector thread (see FCPChannel),
+ * and the messages received are processed by the listener (see setMessageListener()).
  * After being instanciated, you should commit it to the FCPQueryManager, and then
  * commit the FCPQueryManager to the FCPQueueManager.
  * Call observer when connected / disconnected.<br/>
@@ -18,27 +25,36 @@ import thaw.core.Logger;
  *          if the lock on writting is not set !<br/>
  */
 public class FCPConnection extends Observable {
-	/**
-	 * If == true, then will print on stdout
-	 * all fcp input / output.
-	 */
-	private final static boolean DEBUG_MODE = true;
-	private final static int MAX_RECV = 1024;
-
-	/* global to avoid each time free() / malloc() */
-	private final byte[] recvBytes = new byte[FCPConnection.MAX_RECV];
-
-	private FCPBufferedStream bufferedOut = null;
-	private int maxUploadSpeed = 0;
+	/* buffers used to send files when the upload is limited */
+	private final static int TRANSFER_BUFFER_SIZE = 65536;
+	private final static int MAX_POOLED_BUFFERS = 4;
+	private final static Vector<ByteBuffer> transferBuffers = new Vector<ByteBuffer>();
+
+	/* metrics, for all the connections */
+	private final static Metrics.CounterFamily messagesRead = new Metrics.CounterFamily("fcp.messages.read");
+	private final static Metrics.CounterFamily messagesWritten = new Metrics.CounterFamily("fcp.messages.written");
+	private final static Metrics.Counter totalBytesIn = Metrics.counter("fcp.bytes.in");
+	private final static Metrics.Counter totalBytesOut = Metrics.counter("fcp.bytes.out");
+	private final static AtomicInteger lastMetricsId = new AtomicInteger(0);
+
+	/* metrics of this connection, registered as "fcp.connection.<id>.*" while connected */
+	private final String metricsName = "fcp.connection."+Integer.toString(lastMetricsId.incrementAndGet());
+	private final Metrics.Counter bytesIn = new Metrics.Counter();
+	private final Metrics.Counter bytesOut = new Metrics.Counter();
+
+	/* shared with the duplicated connections */
+	private FCPUploadLimiter uploadLimiter = null;
 
 	private String nodeAddress = null;
 	private int port = 0;
 
+	private FCPChannel channel = null;
 	private Socket socket = null;
 	private InputStream in = null;
 	private OutputStream out = null;
 
-	private BufferedInputStream reader = null;
+	private FCPMessageDecoder reader = null;
+	private final FCPMessageEncoder encoder = new FCPMessageEncoder();
 
 	private long rawBytesWaiting = 0;
 
@@ -48,13 +64,21 @@ public class FCPConnection extends Observable {
 	private boolean duplicationAllowed = true;
 	private boolean localSocket = false;
 	private boolean autoDownload = true;
+	private boolean duplicated = false;
 
 	private FCPClientHello clientHello;
 
+	/* run each time messages are available */
+	private ThawRunnable listener = null;
+	private boolean listenerScheduled = false;
+	private final Object listenerLock = new Object();
+	/* runs the listener of a main connection (see FCPSelector.createLane()) */
+	private FCPSelector.Lane lane = null;
+
 
 	/**
 	 * Don't connect. Call connect() for that.
-	 * @param maxUploadSpeed in KB: -1 means no limit
+	 * @param maxUploadSpeed in KB/s: -1 means no limit
 	 * @param duplicationAllowed FCPClientGet and FCPClientPut will be allowed to
 	 *                           open a separate socket to transfer the files
 	 * @param autoDownload If !localSocket and if autoDownload, then files are automatically downloaded
@@ -70,13 +94,9 @@ public class FCPConnection extends Observable {
 		if (localSocket)
 			duplicationAllowed = false;
 
-		if(FCPConnection.DEBUG_MODE) {
-			Logger.notice(this, "DEBUG_MODE ACTIVATED");
-		}
-
 		monitor = new Object();
 
-		maxUploadSpeed = -1;
+		uploadLimiter = new FCPUploadLimiter(-1, 0);
 
 		setNodeAddress(nodeAddress);
 		setNodePort(port);
@@ -97,8 +117,29 @@ public class FCPConnection extends Observable {
 		this.port = port;
 	}
 
+	public String getNodeAddress() {
+		return nodeAddress;
+	}
+
+	public int getNodePort() {
+		return port;
+	}
+
+	/**
+	 * Applies to this connection and all its duplicates.
+	 * @param max in KB/s: -1 means no limit
+	 */
 	public void setMaxUploadSpeed(final int max) {
-		maxUploadSpeed = max;
+		uploadLimiter.setLimits(((long)max) * 1024, uploadLimiter.getBurst());
+	}
+
+	/**
+	 * Applies to this connection and all its duplicates.
+	 * @param burst in KB: how much can be sent at once when nothing was sent for a while.
+	 *              -1 means default (a tenth of the max upload speed)
+	 */
+	public void setMaxUploadBurst(final int burst) {
+		uploadLimiter.setLimits(uploadLimiter.getBytesPerSecond(), ((long)burst) * 1024);
 	}
 
 	public void setDuplicationAllowed(final boolean allowed) {
@@ -122,27 +163,25 @@ public class FCPConnection extends Observable {
 	}
 
 	public void disconnect() {
-		try {
-		    if(isConnected())
-			    socket.close();
-		    else {
-			    Logger.info(this, "Disconnect(): Already disconnected.");
-		    }
-		    synchronized(monitor) {
-			    monitor.notifyAll();
-		    }
-		} catch(final java.io.IOException e) {
-			Logger.warning(this, "Unable to close cleanly the connection : "
-				       +e.toString() +" ; "+e.getMessage());
+		if(isConnected()) {
+			channel.close();
+
+			/* last connection closed : no need to keep the selector thread */
+			FCPSelector.getSelector().stopIfUnused();
+		} else {
+			Logger.info(this, "Disconnect(): Already disconnected.");
+		}
+		synchronized(monitor) {
+			monitor.notifyAll();
 		}
 
+		channel = null;
 		socket = null;
 		in = null;
 		out = null;
-		if(bufferedOut != null) {
-			bufferedOut.stopSender();
-			bufferedOut = null;
-		}
+
+		Metrics.remove(metricsName+".bytes.in");
+		Metrics.remove(metricsName+".bytes.out");
 
 		setChanged();
 		this.notifyObservers();
@@ -161,35 +200,26 @@ public class FCPConnection extends Observable {
 
 		Logger.info(this, "Connection to "+nodeAddress+":"+ Integer.toString(port) +"...");
 
-		if((socket != null) && !socket.isClosed())
+		if((channel != null) && !channel.isClosed())
 			disconnect();
 
-		socket = openSocket(nodeAddress, port);
-		if(socket == null){
+		channel = openChannel(nodeAddress, port);
+		if(channel == null){
 			return false;
 		}
 
-		if(!socket.isConnected()) {
-			Logger.warning(this, "Unable to connect, but no exception ?!");
-			Logger.warning(this, "Will try to continue ...");
-		}
+		socket = channel.getSocket();
+		in = channel.getInputStream();
+		out = channel.getOutputStream();
 
-		try {
-			in = socket.getInputStream();
-			out = socket.getOutputStream();
-		} catch(final java.io.IOException e) {
-			Logger.error(this, "Socket and connection established, but unable to get "+
-				     "in/output streams ?! : "+e.toString()+ " ; "+e.getMessage() );
-			return false;
-		}
-
-		reader = new BufferedInputStream(in);
-		bufferedOut = new FCPBufferedStream(this, maxUploadSpeed);
-		bufferedOut.startSender();
+		reader = new FCPMessageDecoder(in);
 
 		rawBytesWaiting = 0;
 		writersWaiting = 0;
 
+		Metrics.register(metricsName+".bytes.in", bytesIn);
+		Metrics.register(metricsName+".bytes.out", bytesOut);
+
 		Logger.info(this, "Connected");
 
 		setChanged();
@@ -199,26 +229,18 @@ public class FCPConnection extends Observable {
 	}
 
 	
-	protected Socket openSocket(String nodeAddress, int port) {
-		Socket socket;
+	protected FCPChannel openChannel(String nodeAddress, int port) {
 		try {
-			socket = new Socket(nodeAddress, port);
-
+			return FCPChannel.open(this, nodeAddress, port);
 		} catch(final java.net.UnknownHostException e) {
 			Logger.error(this, "Error while trying to connect to "+nodeAddress+":"+port+" : "+
 				     e.toString());
-			socket = null;
 		} catch(final java.io.IOException e) {
 			Logger.error(this, "Error while trying to connect to "+nodeAddress+":"+port+" : "+
 				     e.toString() + " ; "+e.getMessage());
-			socket = null;
 		}
 
-		return socket;
-	}
-
-	public boolean isOutputBufferEmpty() {
-		return bufferedOut.isOutputBufferEmpty();
+		return null;
 	}
 
 	public boolean isConnected() {
@@ -229,27 +251,194 @@ public class FCPConnection extends Observable {
 	}
 
 
+	/**
+	 * The listener will be run (by a worker of the FCPSelector) each time
+	 * messages are received. It must read them with readMessage() until
+	 * hasBufferedInput() returns false.
+	 * @param listener null to stop listening
+	 */
+	public void setMessageListener(final ThawRunnable listener) {
+		synchronized(listenerLock) {
+			this.listener = listener;
+		}
+
+		/* in case the node already said something */
+		inputAvailable();
+	}
+
+	/**
+	 * @return true if readMessage() won't block (at least not until the end of the message)
+	 */
+	public boolean hasBufferedInput() {
+		final FCPMessageDecoder r = reader;
+		final FCPChannel c = channel;
+
+		if (r == null || c == null)
+			return false;
+
+		return (r.hasBufferedData() || c.isReadable());
+	}
+
+	/**
+	 * Called by the FCPChannel when something was received.
+	 */
+	protected void inputAvailable() {
+		synchronized(listenerLock) {
+			if (listener == null || listenerScheduled || !hasBufferedInput())
+				return;
+			listenerScheduled = true;
+		}
+
+		final FCPSelector selector = FCPSelector.getSelector();
+
+		FCPSelector.Lane l = null;
+
+		if (!duplicated) {
+			synchronized(listenerLock) {
+				if (lane == null)
+					lane = selector.createLane("FCP message processing ("+nodeAddress+":"+Integer.toString(port)+")");
+				l = lane;
+			}
+		}
+
+		selector.execute(new ListenerRunner(), l);
+	}
+
+	private class ListenerRunner implements ThawRunnable {
+		public void run() {
+			while (true) {
+				final ThawRunnable l;
+
+				synchronized(listenerLock) {
+					l = listener;
+
+					if (l == null || !hasBufferedInput()) {
+						listenerScheduled = false;
+						return;
+					}
+				}
+
+				l.run();
+			}
+		}
+
+		public void stop() {
+			final ThawRunnable l = listener;
+
+			if (l != null)
+				l.stop();
+		}
+	}
+
+
 
 	/**
 	 * Doesn't check the lock state ! You have to manage it yourself.
 	 */
-	public synchronized boolean rawWrite(final byte[] data) {
-		if(bufferedOut != null)
-			return bufferedOut.write(data);
-		else {
-			Logger.notice(this, "rawWrite(), bufferedOut == null ? Socket closed ?");
-			disconnect();
+	public boolean rawWrite(final byte[] data) {
+		return rawWrite(data, 0, data.length);
+	}
+
+	/**
+	 * Doesn't check the lock state ! You have to manage it yourself.
+	 * Blocks if the upload limit is reached.
+	 */
+	public synchronized boolean rawWrite(final byte[] data, int offset, int length) {
+		while (length > 0) {
+			final int allowed = uploadLimiter.acquire(length);
+
+			if (!realRawWrite(data, offset, allowed))
+				return false;
+
+			offset += allowed;
+			length -= allowed;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Send a part of a file. Doesn't check the lock state ! You have to manage it yourself.
+	 * If there is no upload limit, the file is sent directly from the FileChannel
+	 * to the socket (without copying it in memory), else it's sent through
+	 * rawWrite().
+	 */
+	public synchronized boolean rawWrite(final FileChannel file, final long position, final long count) {
+		final FCPChannel c = channel;
+
+		if (c == null || !isConnected()) {
+			Logger.notice(this, "Cannot write if disconnected !");
 			return false;
 		}
+
+		if (!uploadLimiter.isLimited()) {
+			try {
+				c.transferFrom(file, position, count);
+				return true;
+			} catch(final java.io.IOException e) {
+				Logger.warning(this, "Unable to send the file on the socket ?! : "
+					       + e.toString()+ " ; "+e.getMessage());
+				disconnect();
+				return false;
+			}
+		}
+
+		final ByteBuffer buffer = getTransferBuffer();
+
+		try {
+			long sent = 0;
+
+			while (sent < count) {
+				buffer.clear();
+
+				if (count - sent < buffer.capacity())
+					buffer.limit((int)(count - sent));
+
+				final int rd = file.read(buffer, position + sent);
+
+				if (rd < 0) {
+					Logger.error(this, "End of file reached before the end of the transfer ?!");
+					return false;
+				}
+
+				if (!rawWrite(buffer.array(), 0, rd))
+					return false;
+
+				sent += rd;
+			}
+		} catch(final java.io.IOException e) {
+			Logger.error(this, "IOException while reading file : "+e.toString());
+			return false;
+		} finally {
+			releaseTransferBuffer(buffer);
+		}
+
+		return true;
+	}
+
+	private static ByteBuffer getTransferBuffer() {
+		synchronized(transferBuffers) {
+			if (!transferBuffers.isEmpty())
+				return transferBuffers.remove(transferBuffers.size() - 1);
+		}
+
+		return ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+	}
+
+	private static void releaseTransferBuffer(final ByteBuffer buffer) {
+		synchronized(transferBuffers) {
+			if (transferBuffers.size() < MAX_POOLED_BUFFERS)
+				transferBuffers.add(buffer);
+		}
 	}
 
 	/**
-	 * Should be call by FCPBufferedStream.
+	 * Ignores the upload limit.
 	 */
-	protected synchronized boolean realRawWrite(final byte[] data) {
+	protected synchronized boolean realRawWrite(final byte[] data, final int offset, final int length) {
 		if((out != null) && (socket != null) && socket.isConnected()) {
 			try {
-				out.write(data);
+				out.write(data, offset, length);
 				out.flush();
 			} catch(final java.io.IOException e) {
 				Logger.warning(this, "Unable to write() on the socket ?! : "
@@ -310,13 +499,54 @@ public class FCPConnection extends Observable {
 		return this.write(toWrite, true);
 	}
 
+	public boolean write(final FCPMessage message) {
+		return this.write(message, true);
+	}
+
+	/**
+	 * The message is serialized in a reusable buffer (see FCPMessageEncoder), and
+	 * then queued on the channel : the selector thread sends it with the other
+	 * pending messages (see FCPChannel.writeToChannel()).
+	 */
+	public boolean write(final FCPMessage message, final boolean checkLock) {
+		if (checkLock) {
+			addToWriterQueue();
+		}
+
+		/* all the fcp output is logged with the debug level */
+		if (Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, this)) {
+			Logger.debug(this, "Thaw >>> Node :");
+			Logger.debug(this, message.toString());
+		}
+
+		boolean written;
+
+		if (isConnected()) {
+			synchronized(this) {
+				final ByteBuffer buffer = encoder.encode(message);
+				written = rawWrite(buffer.array(), 0, buffer.limit());
+			}
+		} else {
+			Logger.notice(this, "Cannot write if disconnected !");
+			written = false;
+		}
+
+		if (written)
+			messagesWritten.get(message.getMessageName()).inc();
+
+		if (checkLock)
+			removeFromWriterQueue();
+
+		return written;
+	}
+
 	public boolean write(final String toWrite, final boolean checkLock) {
 
 		if (checkLock) {
 			addToWriterQueue();
 		}
 
-		if (DEBUG_MODE) {
+		if (Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, this)) {
 			Logger.debug(this, "Thaw >>> Node :");
 			Logger.debug(this, toWrite);
 		}
@@ -324,10 +554,10 @@ public class FCPConnection extends Observable {
 
 		if((out != null) && (socket != null) && socket.isConnected()) {
 			try {
-				bufferedOut.write(toWrite.getBytes("UTF-8"));
+				rawWrite(toWrite.getBytes("UTF-8"));
 			} catch(final java.io.UnsupportedEncodingException e) {
 				Logger.error(this, "UNSUPPORTED ENCODING EXCEPTION : UTF-8");
-				bufferedOut.write(toWrite.getBytes());
+				rawWrite(toWrite.getBytes());
 			}
 		} else {
 			Logger.notice(this, "Cannot write if disconnected !");
@@ -355,6 +585,22 @@ public class FCPConnection extends Observable {
 		rawBytesWaiting = waiting;
 	}
 
+	/**
+	 * Called by the channel (selector thread) each time bytes are read on the socket.
+	 */
+	protected void bytesReceived(final long nmb) {
+		bytesIn.add(nmb);
+		totalBytesIn.add(nmb);
+	}
+
+	/**
+	 * Called by the channel each time bytes are written on the socket.
+	 */
+	protected void bytesSent(final long nmb) {
+		bytesOut.add(nmb);
+		totalBytesOut.add(nmb);
+	}
+
 	/**
 	 * @return -1 Disconnection.
 	 */
@@ -362,7 +608,7 @@ public class FCPConnection extends Observable {
 		int rdBytes = 0;
 
 		try {
-			rdBytes = reader.read(buf);
+			rdBytes = reader.read(buf, 0, buf.length);
 
 			if(rdBytes < 0) {
 				Logger.error(this, "Error while reading on the socket => disconnection");
@@ -391,72 +637,131 @@ public class FCPConnection extends Observable {
 	}
 
 	/**
-	 * Read a line.
-	 * @return null if disconnected or error
+	 * Read raw data and write them directly in the file (at its current position) :
+	 * they are never copied in a byte array.
+	 * @return number of bytes read ; < count means disconnection
+	 * @throws java.io.IOException if unable to write in the file. The bytes are read
+	 *                             (and dropped) anyway.
 	 */
-	public String readLine() {
+	public long read(final FileChannel file, final long count) throws java.io.IOException {
+		final FCPMessageDecoder r = reader;
+		final FCPChannel c = channel;
 
-		/* SECURITY */
-		if(rawBytesWaiting > 0) {
-			Logger.warning(this, "RAW BYTES STILL WAITING ON SOCKET. THIS IS ABNORMAL. -> Will drop them.");
+		if (r == null || c == null)
+			return 0;
 
-			while(rawBytesWaiting > 0) {
-				int to_read = 1024;
+		java.io.IOException writeError = null;
 
-				if(to_read > rawBytesWaiting)
-					to_read = (int)rawBytesWaiting;
+		/* first, what the decoder has already read */
+		final ByteBuffer buffered = r.takeBufferedData(count);
+		long done = buffered.remaining();
 
-				final byte[] read = new byte[to_read];
-				this.read(read); /* TODO(Jflesch): Use BufferInputStream.skip() */
+		try {
+			while (buffered.hasRemaining())
+				file.write(buffered);
+		} catch(final java.io.IOException e) {
+			writeError = e;
+		}
 
-				rawBytesWaiting = rawBytesWaiting - to_read;
+		/* then, directly from the input buffer of the channel */
+		if (done < count) {
+			try {
+				done += c.transferTo((writeError == null) ? file : null, count - done);
+			} catch(final java.io.IOException e) {
+				writeError = e;
+				done = count;
 			}
 		}
 
-		String result;
+		rawBytesWaiting = rawBytesWaiting - done;
 
-		if((in != null) && (reader != null) && (socket != null) && socket.isConnected()) {
-			try {
-				for(int i = 0; i < recvBytes.length ; i++)
-					recvBytes[i] = 0;
+		if (done < count) {
+			Logger.error(this, "Error while reading on the socket => disconnection");
+			disconnect();
+		}
 
-				result = "";
+		if (writeError != null)
+			throw writeError;
 
-				int c = 0;
-				int i = 0; /* position in recvBytes */
+		return done;
+	}
 
-				while((c != '\n') && (i < recvBytes.length)) {
-					c = reader.read();
+	/**
+	 * Drop raw data without reading them in a byte array.
+	 * @return number of bytes dropped ; < count means disconnection
+	 */
+	public long skip(final long count) {
+		final FCPMessageDecoder r = reader;
 
-					if(c == -1) {
-						if(isConnected())
-							Logger.warning(this, "Unable to read but still connected");
-						else
-							Logger.notice(this, "Disconnected");
+		if (r == null)
+			return 0;
 
-						disconnect(); /* will warn everybody */
+		long skipped = 0;
 
-						return null;
-					}
+		try {
+			skipped = r.skip(count);
+		} catch(final java.io.IOException e) {
+			Logger.error(this, "IOException while dropping raw bytes : "+e.toString());
+		}
 
-					if(c == '\n')
-						break;
+		rawBytesWaiting = rawBytesWaiting - skipped;
 
-					//result = result + new String(new byte[] { (byte)c });
+		if (skipped < count) {
+			Logger.error(this, "Error while reading on the socket => disconnection");
+			disconnect();
+		}
 
-					recvBytes[i] = (byte)c;
-					i++;
-				}
+		return skipped;
+	}
 
-				result = new String(recvBytes, 0, i, "UTF-8");
+	/**
+	 * Blocking until a message is received.
+	 * More exactly, read until "Data\n" or "EndMessage\n" is read.
+	 * @return null if disconnected or error
+	 */
+	public FCPMessage readMessage() {
 
-				if(FCPConnection.DEBUG_MODE) {
-					if(result.matches("[\\-\\ \\?.a-zA-Z0-9\\,~%@/_=\\[\\]\\(\\)]*"))
-						Logger.debug(this, "Thaw <<< Node : "+result);
+		/* SECURITY */
+		if(rawBytesWaiting > 0) {
+			Logger.warning(this, "RAW BYTES STILL WAITING ON SOCKET. THIS IS ABNORMAL. -> Will drop them.");
+
+			try {
+				reader.skip(rawBytesWaiting);
+			} catch(final java.io.IOException e) {
+				Logger.notice(this, "IOException while dropping raw bytes : "+e.toString());
+			}
+
+			rawBytesWaiting = 0;
+		}
+
+		if((in != null) && (reader != null) && (socket != null) && socket.isConnected()) {
+			try {
+				if (!reader.readMessage()) {
+					if(isConnected())
+						Logger.warning(this, "Unable to read but still connected");
 					else
-						Logger.debug(this, "Thaw <<< Node : Unknow chars in message. Not displayed");
+						Logger.notice(this, "Disconnected");
+
+					disconnect(); /* will warn everybody */
+
+					return null;
+				}
+
+				final FCPMessage result = new FCPMessage();
+
+				reader.decode(result);
+
+				messagesRead.get(result.getMessageName()).inc();
+
+				if(Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, this)) {
+					Logger.debug(this, "Thaw <<< Node : "+result.getMessageName()
+						     +" ("+Integer.toString(reader.getFieldCount())+" fields)");
 				}
 
+				if(reader.hasData() && result.getValue("DataLength") != null) {
+					rawBytesWaiting = result.getAmountOfDataWaiting();
+					Logger.info(this, "Achtung data: "+Long.toString(rawBytesWaiting));
+				}
 
 				return result;
 
@@ -494,12 +799,14 @@ public class FCPConnection extends Observable {
 
 		FCPConnection newConnection;
 
-		/* upload limit is useless here, since we can't do a global limit
-		 * on all the connections */
 		newConnection = new FCPConnection(nodeAddress, port, -1,
 						  duplicationAllowed, localSocket,
 						  autoDownload);
 
+		/* the upload limit is global to all the connections */
+		newConnection.uploadLimiter = uploadLimiter;
+		newConnection.duplicated = true;
+
 		if (!newConnection.connect()) {
 			Logger.warning(this, "Unable to duplicate socket !");
 			return this;
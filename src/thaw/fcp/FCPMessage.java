@@ -151,8 +151,7 @@ public class FCPMessage {
 	 */
 	public boolean loadFromRawMessage(final String rawMessage) {
 		/* Loading a new raw message - remove the existing fields */
-		fields = new Hashtable<String,String>();
-		setAmountOfDataWaiting(0);
+		reset();
 
 		if(rawMessage != null) {
 			int messageIdentifierLine;
@@ -162,10 +161,7 @@ public class FCPMessage {
 			if((0 <= messageIdentifierLine) && (messageIdentifierLine < lines.size())) {
 				setMessageName(lines.get(messageIdentifierLine));
 				setMessageFields(lines, messageIdentifierLine+1);
-
-				if("ProtocolError".equals( getMessageName() )
-					&& !"25".equals(getValue("Code")) ) /* code 25 == need to test DDA */
-					Logger.warning(this, "PROTOCOL ERROR:\n"+toString());
+				checkProtocolError();
 			} else {
 				setMessageName("");
 			}
@@ -176,6 +172,24 @@ public class FCPMessage {
 		return true;
 	}
 
+	/**
+	 * Remove the name, the fields and the amount of data waiting.
+	 */
+	protected void reset() {
+		messageName = null;
+		fields = new Hashtable<String,String>();
+		setAmountOfDataWaiting(0);
+	}
+
+	/**
+	 * Warn if the message is a protocol error (except the code 25 : need to test DDA).
+	 */
+	protected void checkProtocolError() {
+		if("ProtocolError".equals( getMessageName() )
+			&& !"25".equals(getValue("Code")) ) /* code 25 == need to test DDA */
+			Logger.warning(this, "PROTOCOL ERROR:\n"+toString());
+	}
+
 	/**
 	 * Returns the first line number that contains a valid message identifier.  If a field
 	 * is found (denoted by the "=" character) before a valid identifier is found, returns -1.
@@ -260,6 +274,13 @@ public class FCPMessage {
 		return new Hashtable<String,String>(fields);
 	}
 
+	/**
+	 * No copy : used by FCPMessageEncoder.
+	 */
+	protected Hashtable<String,String> getFields() {
+		return fields;
+	}
+
 	public void setValue(final String field, final String value) {
 		if("DataLength".equals( field )) {
 			setAmountOfDataWaiting((new Long(value)).longValue());
@@ -294,24 +315,24 @@ public class FCPMessage {
 	 * and resulting string finish by "Data", else resulting string simply finish by "EndMessage".
 	 */
 	public String toString() {
-		String result = "";
+		final StringBuilder result = new StringBuilder(256);
 
-		result = result + getMessageName() + "\n";
+		result.append(getMessageName()).append('\n');
 
-		for(final Enumeration fieldNames = fields.keys() ; fieldNames.hasMoreElements();) {
-			final String fieldName = ((String)fieldNames.nextElement());
+		for(final Enumeration<String> fieldNames = fields.keys() ; fieldNames.hasMoreElements();) {
+			final String fieldName = fieldNames.nextElement();
 
-			result = result + fieldName + "=" + getValue(fieldName) + "\n";
+			result.append(fieldName).append('=').append(getValue(fieldName)).append('\n');
 		}
 
 		if(getAmountOfDataWaiting() == 0)
-			result = result + "EndMessage\n";
+			result.append("EndMessage\n");
 		else {
-			result = result + "DataLength="+ (new Long(getAmountOfDataWaiting())).toString() + "\n";
-			result = result + "Data\n";
+			result.append("DataLength=").append(getAmountOfDataWaiting()).append('\n');
+			result.append("Data\n");
 		}
 
-		return result;
+		return result.toString();
 	}
 
 	/**
@@ -0,0 +1,443 @@
+package thaw.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads FCP messages directly from the socket input stream.
+ * The bytes are read in a reusable buffer which is scanned only once :
+ * for each line, only the positions of the field name and of its value are
+ * remembered. Strings are only built when asked (getFieldName() / getFieldValue()),
+ * and the well-known field names are never allocated (see KNOWN_NAMES).<br/>
+ * Since the buffer may contain more than the message header, the raw data
+ * following a message ("Data") must be read through this object too
+ * (read() / skip()).
+ */
+public class FCPMessageDecoder {
+	public final static int DEFAULT_BUFFER_SIZE = 16384;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static byte[] DATA = { 'D', 'a', 't', 'a' };
+	private final static byte[] END_MESSAGE = { 'E', 'n', 'd', 'M', 'e', 's', 's', 'a', 'g', 'e' };
+
+	/**
+	 * Field names used by the node. Others are still accepted, but
+	 * a new string is allocated for them.
+	 */
+	private final static String[] KNOWN_NAMES = {
+		"Identifier", "URI", "Global", "PriorityClass", "Persistence", "PersistenceType",
+		"ClientToken", "DataLength", "Total", "Required", "Failed", "FatallyFailed",
+		"Succeeded", "FinalizedTotal", "Code", "CodeDescription", "ShortCodeDescription",
+		"ExtraDescription", "Fatal", "Started", "Verbosity", "MaxRetries", "ReturnType",
+		"Filename", "TargetFilename", "TargetURI", "Metadata.ContentType", "StartupTime",
+		"CompletionTime", "RedirectURI", "UploadFrom", "GetCHKOnly", "DontCompress",
+		"Codecs", "Private", "Public", "ReadDirectory", "WriteDirectory", "ReadContent",
+		"ReadFilename", "WriteFilename", "ContentToWrite", "Directory", "ConnectionIdentifier",
+		"FCPVersion", "Version", "Node", "Build", "Revision", "ExtBuild", "ExtRevision",
+		"Testnet", "CompressionCodecs", "NodeLanguage", "Edition", "Compatibility.Min",
+		"Compatibility.Max", "Definitive", "Hashes.SHA256", "Codec",
+		"EncryptedSize", "Size", "Message", "MaxSize", "IgnoreDS", "DSOnly", "Type",
+		"identity", "myName", "lastGoodVersion", "opennet", "physical.udp", "ark.pubURI",
+		"ark.number", "location", "status", "version",
+	};
+
+	private final static int TABLE_SIZE = 512; /* power of 2 */
+	private final static String[] knownNames = new String[TABLE_SIZE];
+	private final static byte[][] knownNameBytes = new byte[TABLE_SIZE][];
+
+	static {
+		for (final String name : KNOWN_NAMES)
+			addKnownName(name);
+		for (final FCPMessage.MessageType type : FCPMessage.MessageType.values())
+			addKnownName(type.name());
+	}
+
+	private final InputStream in;
+	private ByteBuffer buffer;
+
+	private String messageName = null;
+	private boolean withData = false;
+
+	/* positions of each field in the buffer, relative to the buffer position */
+	private int nbFields = 0;
+	private int[] nameStarts = new int[32];
+	private int[] nameEnds = new int[32];
+	private int[] valueStarts = new int[32];
+	private int[] valueEnds = new int[32];
+
+	/* length of the last message header (consumed when the next one is read) */
+	private int headerLength = 0;
+
+
+	public FCPMessageDecoder(final InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public FCPMessageDecoder(final InputStream in, final int bufferSize) {
+		this.in = in;
+		buffer = ByteBuffer.allocate(bufferSize);
+		buffer.flip(); /* nothing to read yet */
+	}
+
+
+	/**
+	 * Blocking until a message is received.
+	 * More exactly, read until "Data\n" or "EndMessage\n" is read.
+	 * @return false if the stream is closed
+	 */
+	public boolean readMessage() throws IOException {
+		consumeHeader();
+
+		messageName = null;
+		withData = false;
+		nbFields = 0;
+
+		boolean nameFound = false;
+		int lineStart = 0;
+
+		while (true) {
+			final int lineEnd = findEndOfLine(lineStart);
+
+			if (lineEnd < 0)
+				return false;
+
+			final int start = buffer.position();
+			final byte[] array = buffer.array();
+
+			if (equals(array, start + lineStart, lineEnd - lineStart, DATA)) {
+				withData = true;
+				headerLength = lineEnd + 1;
+				break;
+			}
+
+			if (equals(array, start + lineStart, lineEnd - lineStart, END_MESSAGE)) {
+				headerLength = lineEnd + 1;
+				break;
+			}
+
+			if (!nameFound)
+				nameFound = parseName(array, start, lineStart, lineEnd);
+			else if (messageName != null)
+				parseField(array, start, lineStart, lineEnd);
+
+			lineStart = lineEnd + 1;
+		}
+
+		if (messageName == null)
+			messageName = "";
+
+		return true;
+	}
+
+	/**
+	 * @return true if the line was not empty
+	 */
+	private boolean parseName(final byte[] array, final int start, int lineStart, int lineEnd) {
+		while (lineStart < lineEnd && isSpace(array[start + lineStart]))
+			lineStart++;
+		while (lineEnd > lineStart && isSpace(array[start + lineEnd - 1]))
+			lineEnd--;
+
+		if (lineStart == lineEnd)
+			return false;
+
+		for (int i = lineStart ; i < lineEnd ; i++) {
+			if (array[start + i] == '=') /* Missing message identifier */
+				return true;
+		}
+
+		messageName = toString(array, start + lineStart, lineEnd - lineStart, true);
+		return true;
+	}
+
+	/**
+	 * Lines not containing '=' are ignored, and lines with a leading '=' too.
+	 */
+	private void parseField(final byte[] array, final int start, final int lineStart, final int lineEnd) {
+		int equal = -1;
+
+		for (int i = lineStart ; i < lineEnd ; i++) {
+			if (array[start + i] == '=') {
+				equal = i;
+				break;
+			}
+		}
+
+		if (equal < 0)
+			return;
+
+		int nameStart = lineStart;
+		int nameEnd = equal;
+
+		while (nameStart < nameEnd && isSpace(array[start + nameStart]))
+			nameStart++;
+		while (nameEnd > nameStart && isSpace(array[start + nameEnd - 1]))
+			nameEnd--;
+
+		if (nameStart == nameEnd)
+			return;
+
+		if (nbFields >= nameStarts.length) {
+			nameStarts = grow(nameStarts);
+			nameEnds = grow(nameEnds);
+			valueStarts = grow(valueStarts);
+			valueEnds = grow(valueEnds);
+		}
+
+		nameStarts[nbFields] = nameStart;
+		nameEnds[nbFields] = nameEnd;
+		valueStarts[nbFields] = equal + 1;
+		valueEnds[nbFields] = lineEnd;
+		nbFields++;
+	}
+
+
+	/**
+	 * @return "" if the message has no name
+	 */
+	public String getMessageName() {
+		return messageName;
+	}
+
+	/**
+	 * @return true if the last message was ended by "Data" (and not by "EndMessage")
+	 */
+	public boolean hasData() {
+		return withData;
+	}
+
+	/**
+	 * @return true if some bytes following the last message are already in the buffer
+	 */
+	public boolean hasBufferedData() {
+		return (buffer.remaining() > headerLength);
+	}
+
+	public int getFieldCount() {
+		return nbFields;
+	}
+
+	/**
+	 * Only valid until the next call to readMessage() / read() / skip().
+	 */
+	public String getFieldName(final int i) {
+		return toString(buffer.array(), buffer.position() + nameStarts[i],
+				nameEnds[i] - nameStarts[i], true);
+	}
+
+	/**
+	 * Only valid until the next call to readMessage() / read() / skip().
+	 */
+	public String getFieldValue(final int i) {
+		return toString(buffer.array(), buffer.position() + valueStarts[i],
+				valueEnds[i] - valueStarts[i], false);
+	}
+
+	/**
+	 * Replace the content of the given message by the last message read.
+	 */
+	public void decode(final FCPMessage message) {
+		message.reset();
+		message.setMessageName(messageName);
+
+		for (int i = 0 ; i < nbFields ; i++)
+			message.setValue(getFieldName(i), getFieldValue(i));
+
+		message.checkProtocolError();
+	}
+
+
+	/**
+	 * Read raw data (after a message finished by "Data").
+	 * @return -1 if the stream is closed
+	 */
+	public int read(final byte[] buf, final int off, final int len) throws IOException {
+		consumeHeader();
+
+		if (len <= 0)
+			return 0;
+
+		if (buffer.hasRemaining()) {
+			final int nmb = Math.min(len, buffer.remaining());
+			buffer.get(buf, off, nmb);
+			return nmb;
+		}
+
+		/* no need to go through our buffer */
+		return in.read(buf, off, len);
+	}
+
+	/**
+	 * Drop raw data.
+	 * @return number of bytes really skipped (can be < n only if the stream is closed)
+	 */
+	public long skip(final long n) throws IOException {
+		consumeHeader();
+
+		long skipped = Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + (int)skipped);
+
+		while (skipped < n) {
+			long s = in.skip(n - skipped);
+
+			if (s <= 0) {
+				/* skip() may return 0 without reaching the end of the stream */
+				if (in.read() < 0)
+					break;
+				s = 1;
+			}
+
+			skipped += s;
+		}
+
+		return skipped;
+	}
+
+
+	/**
+	 * Raw data already in our buffer, so they can be written somewhere
+	 * without copy. They are considered as read.
+	 * @return a view on our buffer : only valid until the next call to readMessage() / read() / skip()
+	 */
+	public ByteBuffer takeBufferedData(final long max) {
+		consumeHeader();
+
+		final int nmb = (int)Math.min(max, buffer.remaining());
+		final ByteBuffer data = buffer.duplicate();
+
+		data.limit(data.position() + nmb);
+		buffer.position(buffer.position() + nmb);
+
+		return data;
+	}
+
+
+	private void consumeHeader() {
+		if (headerLength > 0) {
+			buffer.position(buffer.position() + headerLength);
+			headerLength = 0;
+			nbFields = 0;
+		}
+	}
+
+	/**
+	 * @param from position (relative to buffer.position()) from where we must look for '\n'
+	 * @return position of the '\n' relative to buffer.position() ; -1 if the stream is closed
+	 */
+	private int findEndOfLine(int from) throws IOException {
+		while (true) {
+			final byte[] array = buffer.array();
+			final int start = buffer.position();
+			final int limit = buffer.limit();
+
+			for (int i = start + from ; i < limit ; i++) {
+				if (array[i] == '\n')
+					return i - start;
+			}
+
+			from = limit - start;
+
+			if (!fill())
+				return -1;
+		}
+	}
+
+	/**
+	 * Read more bytes from the stream, keeping the bytes not consumed yet.
+	 * Relative positions stay valid.
+	 */
+	private boolean fill() throws IOException {
+		if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+			/* a message bigger than our buffer */
+			final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+			bigger.put(buffer);
+			bigger.flip();
+			buffer = bigger;
+		}
+
+		buffer.compact();
+
+		final int rd = in.read(buffer.array(), buffer.position(), buffer.remaining());
+
+		if (rd > 0)
+			buffer.position(buffer.position() + rd);
+
+		buffer.flip();
+
+		return (rd >= 0);
+	}
+
+
+	private static boolean isSpace(final byte b) {
+		return (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f' || b == 0x0B);
+	}
+
+	private static boolean equals(final byte[] array, final int off, final int len, final byte[] word) {
+		if (len != word.length)
+			return false;
+
+		for (int i = 0 ; i < len ; i++) {
+			if (array[off + i] != word[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private static int[] grow(final int[] array) {
+		final int[] newArray = new int[array.length * 2];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	private static int hash(final byte[] array, final int off, final int len) {
+		int h = 0;
+
+		for (int i = off ; i < off + len ; i++)
+			h = 31 * h + array[i];
+
+		return h ^ (h >>> 16);
+	}
+
+	private static void addKnownName(final String name) {
+		final byte[] bytes = name.getBytes(UTF8);
+		int i = hash(bytes, 0, bytes.length) & (TABLE_SIZE - 1);
+
+		while (knownNames[i] != null) {
+			if (knownNames[i].equals(name))
+				return;
+			i = (i + 1) & (TABLE_SIZE - 1);
+		}
+
+		knownNames[i] = name.intern();
+		knownNameBytes[i] = bytes;
+	}
+
+	/**
+	 * @return the known name, or null if not known
+	 */
+	protected static String getKnownName(final byte[] array, final int off, final int len) {
+		int i = hash(array, off, len) & (TABLE_SIZE - 1);
+
+		while (knownNames[i] != null) {
+			if (equals(array, off, len, knownNameBytes[i]))
+				return knownNames[i];
+			i = (i + 1) & (TABLE_SIZE - 1);
+		}
+
+		return null;
+	}
+
+	private static String toString(final byte[] array, final int off, final int len, final boolean isName) {
+		if (isName) {
+			final String name = getKnownName(array, off, len);
+			if (name != null)
+				return name;
+		}
+
+		return new String(array, off, len, UTF8);
+	}
+}
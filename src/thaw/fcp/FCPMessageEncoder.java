@@ -0,0 +1,118 @@
+package thaw.fcp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Serializes FCP messages directly in a reusable buffer : produces exactly
+ * the same bytes than FCPMessage.toString().getBytes("UTF-8"), without
+ * building the intermediate strings.<br/>
+ * Not thread-safe : the buffer returned by encode() is only valid until the
+ * next call.
+ */
+public class FCPMessageEncoder {
+	public final static int DEFAULT_BUFFER_SIZE = 4096;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private ByteBuffer buffer;
+
+
+	public FCPMessageEncoder() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	public FCPMessageEncoder(final int bufferSize) {
+		buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+
+	/**
+	 * @return a buffer ready to be read (position == 0, limit == message length).
+	 *         Use array() to get the bytes.
+	 */
+	public ByteBuffer encode(final FCPMessage message) {
+		buffer.clear();
+
+		put(message.getMessageName());
+		put('\n');
+
+		final Hashtable<String,String> fields = message.getFields();
+
+		synchronized(fields) {
+			for (final Enumeration<String> fieldNames = fields.keys() ; fieldNames.hasMoreElements() ; ) {
+				final String fieldName = fieldNames.nextElement();
+
+				put(fieldName);
+				put('=');
+				put(fields.get(fieldName));
+				put('\n');
+			}
+		}
+
+		if (message.getAmountOfDataWaiting() == 0)
+			put("EndMessage\n");
+		else {
+			put("DataLength=");
+			put(Long.toString(message.getAmountOfDataWaiting()));
+			put("\nData\n");
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+
+	private void ensureCapacity(final int needed) {
+		if (buffer.remaining() >= needed)
+			return;
+
+		int size = buffer.capacity() * 2;
+
+		while (size - buffer.position() < needed)
+			size *= 2;
+
+		final ByteBuffer bigger = ByteBuffer.allocate(size);
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	private void put(final char c) {
+		ensureCapacity(1);
+		buffer.put((byte)c);
+	}
+
+	/**
+	 * Field names and values are nearly always ASCII : they are copied
+	 * char by char, else we fall back on String.getBytes().
+	 */
+	private void put(final String str) {
+		final String s = String.valueOf(str); /* "null" like the string concatenation */
+		final int length = s.length();
+
+		ensureCapacity(length);
+
+		final byte[] array = buffer.array();
+		int pos = buffer.position(); /* only moved at the end */
+
+		for (int i = 0 ; i < length ; i++) {
+			final char c = s.charAt(i);
+
+			if (c >= 0x80) {
+				final byte[] bytes = s.getBytes(UTF8);
+
+				ensureCapacity(bytes.length);
+				buffer.put(bytes);
+				return;
+			}
+
+			array[pos++] = (byte)c;
+		}
+
+		buffer.position(pos);
+	}
+}
@@ -0,0 +1,429 @@
+package thaw.fcp;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Vector;
+
+import thaw.core.Logger;
+import thaw.core.ThawThread;
+import thaw.core.ThawRunnable;
+
+/**
+ * Nodes used by a FCPQueueManager to run its transfers.<br/>
+ * The first node (the primary one) is the one given to the queue manager : it's connected
+ * and reconnected by thaw.core.Core. The other ones are added with addNode() and are
+ * (re)connected by the pool itself (see start()). On each (re)connection, the persistent
+ * requests of the node are reloaded from it (see FCPQueueLoader), so each query of the
+ * queues knows the node owning it (see FCPTransferQuery.getQueryManager()).<br/>
+ * Each node has its own download / insertion slots (the limits of the queue manager),
+ * and the new transfers are started on the connected node having the most free slots,
+ * and then the lowest latency (see FCPQueryManager.getLatency()).<br/>
+ * When the primary node is lost, Core creates a new queue manager : its pool takes over
+ * the additional nodes of the previous one, still connected (see adopt()).
+ */
+public class FCPNodePool implements ThawRunnable, Observer {
+	public final static int RECONNECTION_DELAY = 20000; /* ms */
+
+	public static class Node {
+		private final FCPQueryManager queryManager;
+		private FCPQueueLoader queueLoader = null;
+
+		/* held while connecting the node (see adopt()) */
+		private final Object connectionLock = new Object();
+
+		/* not finished queries of the running queue owned by this node */
+		private int runningDownloads = 0;
+		private int runningInsertions = 0;
+
+		private Node(final FCPQueryManager queryManager) {
+			this.queryManager = queryManager;
+		}
+
+		public FCPQueryManager getQueryManager() {
+			return queryManager;
+		}
+
+		public boolean isConnected() {
+			return queryManager.getConnection().isConnected();
+		}
+
+		public int getRunningDownloads() {
+			return runningDownloads;
+		}
+
+		public int getRunningInsertions() {
+			return runningInsertions;
+		}
+
+		private int getRunning(final int queryType) {
+			return (queryType == 2 /* Insertion */ ? runningInsertions : runningDownloads);
+		}
+	}
+
+	private final FCPQueueManager queueManager;
+	private final String thawId;
+
+	/* first one == primary node */
+	private final Vector<Node> nodes = new Vector<Node>();
+
+	private Thread thread = null;
+	private volatile boolean stop = false;
+
+
+	protected FCPNodePool(final FCPQueueManager queueManager, final String thawId,
+			      final FCPQueryManager primary) {
+		this.queueManager = queueManager;
+		this.thawId = thawId;
+
+		nodes.add(new Node(primary));
+	}
+
+	/**
+	 * Add a node. It will be connected by the thread of the pool (see start()).
+	 */
+	public void addNode(final FCPConnection connection) {
+		final FCPQueryManager queryManager = new FCPQueryManager(connection);
+
+		connection.addObserver(this);
+
+		synchronized(this) {
+			nodes.add(new Node(queryManager));
+		}
+
+		Logger.info(this, "Node added : "+connection.getNodeAddress()+":"+Integer.toString(connection.getNodePort()));
+
+		wakeUp();
+	}
+
+	/**
+	 * @return a copy of the node list ; the first one is the primary node
+	 */
+	public synchronized Vector<Node> getNodes() {
+		return new Vector<Node>(nodes);
+	}
+
+	public FCPQueryManager getPrimary() {
+		return nodes.get(0).getQueryManager();
+	}
+
+	/**
+	 * @return true if at least one node is connected
+	 */
+	public synchronized boolean isConnected() {
+		for (final Node node : nodes) {
+			if (node.isConnected())
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the node owning the query ; the primary one if the owner is unknown
+	 */
+	private Node getNode(final FCPTransferQuery query) {
+		return getNode(query.getQueryManager());
+	}
+
+	private Node getNode(final FCPQueryManager queryManager) {
+		for (final Node node : nodes) {
+			if (node.getQueryManager() == queryManager)
+				return node;
+		}
+
+		return nodes.get(0);
+	}
+
+	/**
+	 * @return true if the query is owned by this node
+	 */
+	protected synchronized boolean isOwnedBy(final FCPTransferQuery query, final FCPQueryManager queryManager) {
+		return getNode(query) == getNode(queryManager);
+	}
+
+	private static int getLimit(final int queryType, final int maxDownloads, final int maxInsertions) {
+		return (queryType == 2 /* Insertion */ ? maxInsertions : maxDownloads);
+	}
+
+	/**
+	 * @param limit < 0 if no limit
+	 */
+	private static int getFreeSlots(final Node node, final int queryType, final int limit) {
+		if (limit < 0)
+			return Integer.MAX_VALUE - node.getRunning(queryType);
+		return limit - node.getRunning(queryType);
+	}
+
+	/**
+	 * @param queryType 1 == download ; 2 == insertion
+	 * @param limit maximum number of running queries of this type per node ; < 0 if no limit
+	 * @return true if a connected node has a free slot for this type of query
+	 */
+	protected synchronized boolean hasFreeSlot(final int queryType, final int limit) {
+		for (final Node node : nodes) {
+			if (node.isConnected() && getFreeSlots(node, queryType, limit) > 0)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Give the query to the connected node having the most free slots for it, and
+	 * then the lowest latency. Must be called before starting the query.
+	 * If no node is connected, the query keeps its current node.
+	 */
+	protected void place(final FCPTransferQuery query, final int maxDownloads, final int maxInsertions) {
+		final int limit = getLimit(query.getQueryType(), maxDownloads, maxInsertions);
+
+		Node best = null;
+		int bestFreeSlots = 0;
+		long bestLatency = 0;
+
+		synchronized(this) {
+			if (nodes.size() <= 1)
+				return;
+
+			for (final Node node : nodes) {
+				if (!node.isConnected())
+					continue;
+
+				final int freeSlots = getFreeSlots(node, query.getQueryType(), limit);
+				/* unknown latency (node never used) : we try it */
+				final long latency = Math.max(node.getQueryManager().getLatency(), 0);
+
+				if (best == null
+				    || freeSlots > bestFreeSlots
+				    || (freeSlots == bestFreeSlots && latency < bestLatency)) {
+					best = node;
+					bestFreeSlots = freeSlots;
+					bestLatency = latency;
+				}
+			}
+		}
+
+		if (best == null)
+			return;
+
+		Logger.debug(this, "Starting '"+query.getFilename()+"' on "
+			     +best.getQueryManager().getConnection().getNodeAddress());
+
+		query.setQueryManager(best.getQueryManager());
+	}
+
+	/**
+	 * Called by FCPQueueManager when a query of its running queue starts (diff == 1)
+	 * or ends (diff == -1).
+	 */
+	protected synchronized void count(final FCPTransferQuery query, final int diff) {
+		final Node node = getNode(query);
+
+		if (query.getQueryType() == 1 /* Download */)
+			node.runningDownloads += diff;
+		else if (query.getQueryType() == 2 /* Insertion */)
+			node.runningInsertions += diff;
+	}
+
+	/**
+	 * Called by FCPQueueManager when its running queue is cleared.
+	 */
+	protected synchronized void clearCounts(final FCPQueryManager queryManager) {
+		for (final Node node : nodes) {
+			if (queryManager == null || node == getNode(queryManager)) {
+				node.runningDownloads = 0;
+				node.runningInsertions = 0;
+			}
+		}
+	}
+
+
+	/**
+	 * Start the thread connecting and reconnecting the additional nodes.
+	 */
+	public void start() {
+		if (thread != null)
+			return;
+
+		stop = false;
+		thread = new Thread(new ThawThread(this, "FCP node pool", this));
+		thread.start();
+	}
+
+	private synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	public void run() {
+		while (!stop) {
+			for (final Node node : getNodes()) {
+				if (stop)
+					return;
+
+				if (node != nodes.get(0) && !node.isConnected())
+					connect(node);
+			}
+
+			synchronized(this) {
+				if (stop)
+					return;
+
+				try {
+					wait(RECONNECTION_DELAY);
+				} catch(final InterruptedException e) {
+					/* \_o< */
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connect an additional node, say hello, and reload its persistent requests.
+	 * The node is locked meanwhile (see adopt()).
+	 */
+	private void connect(final Node node) {
+		final FCPQueryManager queryManager = node.getQueryManager();
+		final FCPConnection connection = queryManager.getConnection();
+
+		synchronized(node.connectionLock) {
+			if (!connection.connect()) {
+				Logger.notice(this, "Unable to connect to "+connection.getNodeAddress()
+					      +":"+Integer.toString(connection.getNodePort()));
+				return;
+			}
+
+			queryManager.startListening();
+
+			if (!new FCPClientHello(queryManager, thawId).start()) {
+				Logger.warning(this, "No answer to the ClientHello from "+connection.getNodeAddress());
+				connection.disconnect();
+				return;
+			}
+
+			new FCPWatchGlobal(true, queryManager).start();
+
+			Logger.notice(this, "Connected to the node "+connection.getNodeAddress()
+				      +":"+Integer.toString(connection.getNodePort()));
+
+			/* else the node was given to another pool meanwhile : it will load the queue */
+			if (!stop)
+				loadQueue(node);
+		}
+	}
+
+	private void loadQueue(final Node node) {
+		if (node.queueLoader != null)
+			node.queueLoader.stop();
+
+		node.queueLoader = new FCPQueueLoader(thawId, queueManager, node.getQueryManager());
+		node.queueLoader.start();
+	}
+
+	public void stop() {
+		stop = true;
+		wakeUp();
+	}
+
+	/**
+	 * Stop the thread of the pool and disconnect the additional nodes.
+	 * The primary node is left untouched.
+	 */
+	public void disconnect() {
+		stop();
+		thread = null;
+
+		for (final Node node : getNodes()) {
+			if (node == nodes.get(0))
+				continue;
+
+			node.getQueryManager().getConnection().deleteObserver(this);
+
+			if (node.queueLoader != null)
+				node.queueLoader.stop();
+
+			node.getQueryManager().getConnection().disconnect();
+		}
+	}
+
+
+	/**
+	 * Stop the thread of the pool and remove the additional nodes from it, without
+	 * disconnecting them.
+	 * @return the additional nodes
+	 */
+	private Vector<Node> release() {
+		stop();
+		thread = null;
+
+		final Vector<Node> released = new Vector<Node>();
+
+		synchronized(this) {
+			while (nodes.size() > 1)
+				released.add(nodes.remove(1));
+		}
+
+		for (final Node node : released) {
+			node.getQueryManager().getConnection().deleteObserver(this);
+
+			if (node.queueLoader != null)
+				node.queueLoader.stop();
+		}
+
+		return released;
+	}
+
+	/**
+	 * Take over the additional nodes of the pool of a previous queue manager, without
+	 * disconnecting them : the queries of the previous queue manager are detached from
+	 * them, and the persistent requests of the connected ones are reloaded in this
+	 * queue manager. The thread of this pool is started to reconnect the other ones.
+	 */
+	public void adopt(final FCPNodePool previous) {
+		for (final Node node : previous.release()) {
+			final FCPQueryManager queryManager = node.getQueryManager();
+
+			/* waits for the end of a connection started by the previous pool */
+			synchronized(node.connectionLock) {
+				queryManager.deleteObservers();
+				queryManager.getConnection().addObserver(this);
+
+				synchronized(this) {
+					node.runningDownloads = 0;
+					node.runningInsertions = 0;
+					node.queueLoader = null;
+					nodes.add(node);
+				}
+
+				if (node.isConnected())
+					loadQueue(node);
+			}
+		}
+
+		start();
+	}
+
+
+	/**
+	 * Called by the connections of the additional nodes : on disconnection, the queries
+	 * of the node are removed from the running queue (they will be reloaded on reconnection).
+	 */
+	public void update(final Observable o, final Object arg) {
+		if (!(o instanceof FCPConnection) || ((FCPConnection)o).isConnected())
+			return;
+
+		Node node = null;
+
+		synchronized(this) {
+			for (final Node n : nodes) {
+				if (n.getQueryManager().getConnection() == o)
+					node = n;
+			}
+		}
+
+		if (node == null || node == nodes.get(0))
+			return;
+
+		Logger.notice(this, "Disconnected from "+((FCPConnection)o).getNodeAddress());
+
+		queueManager.clearRunningQueue(node.getQueryManager());
+	}
+}
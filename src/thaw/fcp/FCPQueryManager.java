@@ -1,9 +1,16 @@
 package thaw.fcp;
 
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.Observable;
+import java.util.Observer;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import thaw.core.Logger;
+import thaw.core.Metrics;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 
@@ -11,15 +18,36 @@ import thaw.core.ThawRunnable;
  * Manage all fcp messages (see corresponding object of each kind of query).
  * Call observers each type a new message is received. The given object is
  * the message.
+ * Transfer queries (FCPClientGet / FCPClientPut) are not notified of every
+ * message : they are routed by the "Identifier" field of the message. Other
+ * observers (and messages without identifier, like NodeHello or
+ * EndListPersistentRequests) go through the usual broadcast.
  */
 public class FCPQueryManager extends Observable implements ThawRunnable {
-	private Thread me;
-
 	private FCPConnection connection;
 	private boolean running;
 
+	/* String (identifier) -> Vector<Observer> */
+	private final Hashtable<String, Vector<Observer>> routes;
+	/* Observer -> String (identifier under which it's currently routed, or "" if none) */
+	private final IdentityHashMap<Observer, String> routedObservers;
+
+	/* dispatch() may run in several threads (see MULTITHREADED, Notifier) */
+	private final AtomicLong unroutedMessages = new AtomicLong(0);
+
+	/* identifier -> System.nanoTime() when its ClientGet / ClientPut was sent, until the node answers */
+	private final Hashtable<String, Long> sentRequests = new Hashtable<String, Long>();
+	private final static int MAX_SENT_REQUESTS = 1000;
+	/* exponential moving average of the time taken by the node to answer them, in ns ; < 0 if unknown */
+	private double latency = -1;
+	private final static double LATENCY_WEIGHT = 0.2;
+
+	/* time taken by dispatch() (so by the observers), for each kind of message */
+	private final static Metrics.HistogramFamily dispatchLatency = new Metrics.HistogramFamily("fcp.dispatch");
+
 	public FCPQueryManager(final FCPConnection connection) {
-		me = null;
+		routes = new Hashtable<String, Vector<Observer>>();
+		routedObservers = new IdentityHashMap<Observer, String>();
 		setConnection(connection);
 		running = true;
 	}
@@ -39,57 +67,241 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 		return connection;
 	}
 
-	public boolean writeMessage(final FCPMessage message) {
-		return connection.write(message.toString());
+	/**
+	 * Transfer queries are put in the dispatch table (indexed by their identifier),
+	 * other observers are notified of all the messages.
+	 */
+	public void addObserver(final Observer o) {
+		if (!(o instanceof FCPTransferQuery)) {
+			super.addObserver(o);
+			return;
+		}
+
+		final FCPTransferQuery query = (FCPTransferQuery)o;
+
+		synchronized(routes) {
+			if (routedObservers.containsKey(o))
+				return;
+			routedObservers.put(o, "");
+			addRoute(query.getIdentifier(), o);
+		}
+
+		query.addRouter(this);
 	}
 
-	public boolean writeMessage(final FCPMessage message, final boolean checkLock) {
-		return connection.write(message.toString(), checkLock);
+	public void deleteObserver(final Observer o) {
+		if (!(o instanceof FCPTransferQuery)) {
+			super.deleteObserver(o);
+			return;
+		}
+
+		synchronized(routes) {
+			final String id = routedObservers.remove(o);
+
+			if (id == null)
+				return;
+
+			removeRoute(id, o);
+		}
 
+		((FCPTransferQuery)o).removeRouter(this);
+	}
+
+	public void deleteObservers() {
+		final FCPTransferQuery[] queries;
+
+		synchronized(routes) {
+			queries = routedObservers.keySet().toArray(new FCPTransferQuery[0]);
+			routedObservers.clear();
+			routes.clear();
+		}
+
+		for (int i = 0 ; i < queries.length ; i++)
+			queries[i].removeRouter(this);
+
+		super.deleteObservers();
+	}
+
+	public int countObservers() {
+		synchronized(routes) {
+			return super.countObservers() + routedObservers.size();
+		}
 	}
 
 	/**
-	 * Blocking until a message is received.
-	 * More exactly, read until "Data\n" or "EndMessage\n" is read.
+	 * Called by FCPTransferQuery when its identifier changes.
 	 */
-	public FCPMessage readMessage() {
-		String whatsUp = new String("");
-		final FCPMessage result = new FCPMessage();
-		boolean withData;
+	protected void reroute(final FCPTransferQuery query) {
+		final Observer o = (Observer)query;
 
-		withData = false;
+		synchronized(routes) {
+			final String oldId = routedObservers.get(o);
 
-		while(true) {
+			if (oldId == null)
+				return;
 
-			String read = new String("");
+			removeRoute(oldId, o);
+			addRoute(query.getIdentifier(), o);
+		}
+	}
 
-			read = connection.readLine();
+	/* must be called with the lock on 'routes' */
+	private void addRoute(final String id, final Observer o) {
+		if (id == null)
+			return;
 
-			if(read == null) {
-				Logger.notice(this, "readLine() returned null => disconnected ?");
-				return null;
-			}
+		Vector<Observer> observers = routes.get(id);
 
-			if("Data".equals( read )) {
-				withData = true;
-				break;
-			}
+		if (observers == null) {
+			observers = new Vector<Observer>(1);
+			routes.put(id, observers);
+		}
 
-			if("EndMessage".equals( read )) {
-				break;
-			}
+		observers.add(o);
+		routedObservers.put(o, id);
+	}
+
+	/* must be called with the lock on 'routes' */
+	private void removeRoute(final String id, final Observer o) {
+		if (id == null || "".equals(id))
+			return;
+
+		final Vector<Observer> observers = routes.get(id);
+
+		if (observers == null)
+			return;
+
+		observers.remove(o);
 
-			whatsUp = whatsUp + read + "\n";
+		if (observers.isEmpty())
+			routes.remove(id);
+
+		if (routedObservers.containsKey(o))
+			routedObservers.put(o, "");
+	}
+
+	/**
+	 * @return number of messages that were not delivered through the
+	 *         dispatch table (no identifier, or unknown identifier)
+	 */
+	public long getUnroutedMessageCount() {
+		return unroutedMessages.get();
+	}
+
+	/**
+	 * Time taken by the node to answer the last ClientGet / ClientPut (average).
+	 * Used to choose the node of the new transfers (see FCPNodePool).
+	 * @return in ms ; -1 if unknown
+	 */
+	public long getLatency() {
+		synchronized(sentRequests) {
+			return (latency < 0 ? -1 : (long)(latency / 1000000));
+		}
+	}
+
+	private void requestSent(final FCPMessage message) {
+		final String name = message.getMessageName();
+		final String id = message.getValue("Identifier");
+
+		if (id == null || name == null
+		    || !("ClientGet".equals(name) || name.startsWith("ClientPut")))
+			return;
+
+		/* the node answers once it has read the data : the time to upload them
+		 * isn't its latency (see dataSent()) */
+		if (message.getAmountOfDataWaiting() > 0)
+			return;
+
+		requestSent(id);
+	}
+
+	/**
+	 * To call once the data following a ClientPut ("UploadFrom=direct") have been written :
+	 * the latency of the node is measured from there.
+	 */
+	public void dataSent(final String id) {
+		if (id != null)
+			requestSent(id);
+	}
+
+	private void requestSent(final String id) {
+		synchronized(sentRequests) {
+			/* the node never answered some of them (disconnection, ...) */
+			if (sentRequests.size() >= MAX_SENT_REQUESTS)
+				sentRequests.clear();
+
+			sentRequests.put(id, Long.valueOf(System.nanoTime()));
+		}
+	}
+
+	private void answerReceived(final String id, final long time) {
+		synchronized(sentRequests) {
+			final Long sent = sentRequests.remove(id);
+
+			if (sent == null)
+				return;
+
+			final long delay = time - sent.longValue();
+
+			if (latency < 0)
+				latency = delay;
+			else
+				latency += LATENCY_WEIGHT * (delay - latency);
 		}
+	}
+
+	/**
+	 * Give the message to the transfer queries having its identifier,
+	 * and to all the other observers.
+	 */
+	protected void dispatch(final FCPMessage msg) {
+		final long startTime = System.nanoTime();
+		final String id = msg.getValue("Identifier");
+		Observer[] routed = null;
+
+		if (id != null) {
+			answerReceived(id, startTime);
+
+			synchronized(routes) {
+				final Vector<Observer> observers = routes.get(id);
 
-		Logger.verbose(this, "Parsing message ...");
+				if (observers != null)
+					routed = observers.toArray(new Observer[observers.size()]);
+			}
+		}
+
+		if (routed != null) {
+			for (int i = 0 ; i < routed.length ; i++)
+				routed[i].update(this, msg);
+		} else
+			unroutedMessages.incrementAndGet();
+
+		setChanged();
+		notifyObservers(msg);
+
+		dispatchLatency.get(msg.getMessageName()).recordSince(startTime);
+	}
 
-		result.loadFromRawMessage(whatsUp);
+	public boolean writeMessage(final FCPMessage message) {
+		requestSent(message);
+		return connection.write(message);
+	}
+
+	public boolean writeMessage(final FCPMessage message, final boolean checkLock) {
+		requestSent(message);
+		return connection.write(message, checkLock);
+	}
+
+	/**
+	 * Blocking until a message is received.
+	 * More exactly, read until "Data\n" or "EndMessage\n" is read.
+	 */
+	public FCPMessage readMessage() {
+		final FCPMessage result = connection.readMessage();
 
-		if(withData && result.getValue("DataLength") != null) {
-			final long dataWaiting = (new Long(result.getValue("DataLength"))).longValue();
-			connection.setRawDataWaiting(dataWaiting);
-			Logger.info(this, "Achtung data: "+(new Long(dataWaiting)).toString());
+		if(result == null) {
+			Logger.notice(this, "readMessage() returned null => disconnected ?");
+			return null;
 		}
 
 		return result;
@@ -105,8 +317,7 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 
 		public void run() {
 			try {
-				setChanged();
-				notifyObservers(msg);
+				dispatch(msg);
 			} catch(final Exception e) {
 				/* it's really bad ... because if data are waiting on the socket ... */
 				Logger.error(this, "EXCEPTION FROM ONE OF LISTENER : "+e.toString());
@@ -131,13 +342,13 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 			this.runnable = runnable;
 		}
 
-		private boolean isRunning(Thread th) {
+		private boolean isRunning(ThawThread th) {
 			return (th.isAlive());
 		}
 
 		public void run() {
-			Thread th = new Thread(new ThawThread(runnable, "FCP message processing", this));
-			th.start();
+			final ThawThread th = new ThawThread(runnable, "FCP message processing", this,
+							     ThawThreadManager.GROUP_DEFAULT).start();
 
 			for (int i = 0 ; i < TIMEOUT && isRunning(th) ; i += 300) {
 				try {
@@ -166,10 +377,11 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 	public final static boolean MULTITHREADED = false;
 
 	/**
-	 * Will listen in loop for new incoming messages.
+	 * Process the incoming messages already received.
+	 * Called by the FCPConnection each time messages are available.
 	 */
 	public void run() {
-		while(running) {
+		while(running && connection.hasBufferedInput()) {
 			FCPMessage latestMessage;
 
 			/* note : if multithreaded, stop reading when a thread is writing,
@@ -190,14 +402,12 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 				 * can't multithread if data are waiting
 				 */
 				if (MULTITHREADED && latestMessage.getAmountOfDataWaiting() == 0) {
-					Thread notifierTh = new Thread(new ThawThread(new WatchDog(new Notifier(latestMessage)),
-							"FCP message processing watchdog",
-							this));
-					notifierTh.start();
+					new ThawThread(new WatchDog(new Notifier(latestMessage)),
+						       "FCP message processing watchdog",
+						       this, ThawThreadManager.GROUP_DEFAULT).start();
 				} else {
 					try {
-						setChanged();
-						notifyObservers(latestMessage);
+						dispatch(latestMessage);
 					} catch(final Exception e) {
 						/* it's really bad ... because if data are waiting on the socket ... */
 						Logger.error(this, "EXCEPTION FROM ONE OF LISTENER : "+e.toString());
@@ -218,16 +428,17 @@ public class FCPQueryManager extends Observable implements ThawRunnable {
 	public void stop() {
 		Logger.info(this, "stop() : Stopping listening");
 		running = false;
+		connection.setMessageListener(null);
 	}
 
 
 	/**
-	 * Create the thread listening for incoming message.
+	 * Start processing the incoming messages (no dedicated thread : see FCPSelector).
 	 */
 	public void startListening() {
 		if(connection.isConnected()) {
-			me = new Thread(new ThawThread(this, "FCP socket listener", this));
-			me.start();
+			running = true;
+			connection.setMessageListener(this);
 		} else {
 			Logger.warning(this, "Not connected, so not listening on the socket");
 		}
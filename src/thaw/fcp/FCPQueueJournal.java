@@ -0,0 +1,652 @@
+package thaw.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import thaw.core.Logger;
+
+/**
+ * Append-only journal of the persistent queries waiting in the pending queue of a
+ * FCPQueueManager : a record is appended each time one of them is added to the pending
+ * queue, leaves it (started or removed), or when its priority changes. So the pending
+ * queue survives a crash of Thaw, and reloading it only costs reading the live
+ * queries.<br/>
+ * File format : MAGIC, VERSION, then the records : [length][CRC32 of the payload][payload],
+ * payload being [operation][query id][...]. When replaying, the records after the first
+ * truncated / corrupted one (crash while writing) are ignored.<br/>
+ * The journal is compacted (rewritten with only the live queries) when it's opened, when
+ * it's closed, and when most of its records are obsolete. The queue manager starts it
+ * with start() under the lock of its pending queue, and then calls compactIfNeeded()
+ * without this lock (and later from its scheduler thread) : the live queries are
+ * serialized in memory, then the new journal is written and synced without holding any
+ * lock, so the queue is never blocked by the disk. The records appended meanwhile are
+ * copied at the end of the new journal before it replaces the old one.<br/>
+ * Records are flushed to the system when written (one write per record), but only synced
+ * to the disk on compaction.
+ */
+public class FCPQueueJournal {
+	public final static int MAGIC = 0x54484a51; /* "THJQ" */
+	public final static int VERSION = 1;
+
+	/* no compaction while there are less records in the file */
+	public final static int MIN_RECORDS_BEFORE_COMPACTION = 1000;
+
+	private final static int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private final static byte OP_ADD = 1;      /* id, query type, parameters */
+	private final static byte OP_REMOVE = 2;   /* id */
+	private final static byte OP_UPDATE = 3;   /* id, parameters (priority changed) */
+	private final static byte OP_CLEAR = 4;    /* 0 */
+
+	private final File file;
+	private final File tmpFile;
+
+	private OutputStream out = null;
+	private boolean opened = false;
+
+	/* live queries, in the order they were added */
+	private final LinkedHashMap<Long,FCPTransferQuery> queries = new LinkedHashMap<Long,FCPTransferQuery>();
+	private final IdentityHashMap<FCPTransferQuery,Long> ids = new IdentityHashMap<FCPTransferQuery,Long>();
+	private long lastId = 0;
+
+	private int records = 0; /* records currently in the file */
+
+	/* compaction in progress : the records appended meanwhile (see compact()) */
+	private boolean compacting = false;
+	/* started, but nothing written yet (see start()) */
+	private boolean compactionDue = false;
+	private final Vector<byte[]> backlog = new Vector<byte[]>();
+
+	private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(1024);
+	private final DataOutputStream payload = new DataOutputStream(payloadBuffer);
+	private final CRC32 crc = new CRC32();
+
+
+	/**
+	 * A query read back from the journal.
+	 */
+	public static class Entry {
+		private final int queryType;
+		private final HashMap<String,String> parameters;
+
+		private Entry(final int queryType, final HashMap<String,String> parameters) {
+			this.queryType = queryType;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * @see FCPTransferQuery#getQueryType()
+		 */
+		public int getQueryType() {
+			return queryType;
+		}
+
+		/**
+		 * @see FCPTransferQuery#getParameters()
+		 */
+		public HashMap<String,String> getParameters() {
+			return parameters;
+		}
+	}
+
+
+	public FCPQueueJournal(final File file) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath()+".tmp");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+
+	/**
+	 * Read the journal. Must be called before open().
+	 * @return the queries that were still in the pending queue, in their order ;
+	 *         empty if there is no journal
+	 */
+	public synchronized Vector<Entry> replay() {
+		final Vector<Entry> result = new Vector<Entry>();
+
+		File source = file;
+
+		if (!source.exists() && tmpFile.exists()) {
+			/* crash between the deletion of the journal and the renaming of the compacted one */
+			source = tmpFile;
+		}
+
+		if (!source.exists())
+			return result;
+
+		final LinkedHashMap<Long,Entry> entries = new LinkedHashMap<Long,Entry>();
+		int nmbRecords = 0;
+
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(source), 65536));
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Logger.warning(this, "'"+source.getPath()+"' is not a queue journal : ignored");
+				return result;
+			}
+
+			byte[] buffer = new byte[1024];
+
+			while (true) {
+				final int length;
+
+				try {
+					length = in.readInt();
+				} catch(final EOFException e) {
+					break; /* clean end */
+				}
+
+				final int checksum = in.readInt();
+
+				if (length <= 0 || length > MAX_RECORD_SIZE)
+					throw new IOException("Invalid record length : "+Integer.toString(length));
+
+				if (buffer.length < length)
+					buffer = new byte[length];
+
+				in.readFully(buffer, 0, length);
+
+				crc.reset();
+				crc.update(buffer, 0, length);
+
+				if ((int)crc.getValue() != checksum)
+					throw new IOException("Invalid record checksum");
+
+				replayRecord(new DataInputStream(new java.io.ByteArrayInputStream(buffer, 0, length)), entries);
+				nmbRecords++;
+			}
+
+		} catch(final IOException e) {
+			Logger.warning(this, "Queue journal '"+source.getPath()+"' truncated after "+
+				       Integer.toString(nmbRecords)+" records ("+e.toString()+") : the end is ignored");
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch(final IOException e) {
+					/* \_o< */
+				}
+			}
+		}
+
+		result.addAll(entries.values());
+
+		Logger.info(this, Integer.toString(nmbRecords)+" records replayed from the queue journal : "+
+			    Integer.toString(result.size())+" pending queries");
+
+		return result;
+	}
+
+	private void replayRecord(final DataInputStream record, final LinkedHashMap<Long,Entry> entries) throws IOException {
+		final byte op = record.readByte();
+		final Long id = Long.valueOf(record.readLong());
+
+		switch(op) {
+		case OP_ADD:
+			final int queryType = record.readInt();
+			entries.put(id, new Entry(queryType, readParameters(record)));
+			break;
+
+		case OP_REMOVE:
+			entries.remove(id);
+			break;
+
+		case OP_UPDATE:
+			final Entry entry = entries.get(id);
+
+			if (entry != null) /* put() keeps the position of the entry */
+				entries.put(id, new Entry(entry.getQueryType(), readParameters(record)));
+			break;
+
+		case OP_CLEAR:
+			entries.clear();
+			break;
+
+		default:
+			throw new IOException("Unknown record type : "+Byte.toString(op));
+		}
+	}
+
+
+	/**
+	 * Start journaling : the journal is rewritten with these queries only.
+	 * @param pendingQueries queries currently in the pending queue (the non-persistent
+	 *                       ones are ignored), in their order
+	 */
+	public void open(final Iterable<FCPTransferQuery> pendingQueries) {
+		start(pendingQueries);
+		compact();
+	}
+
+	/**
+	 * Start journaling, but only in memory : nothing is written until the next
+	 * compaction, which is due at once (see compactIfNeeded()). So the queue manager
+	 * can call it while holding the lock of the pending queue, and compact after
+	 * releasing it.
+	 * @see #open(Iterable)
+	 */
+	public synchronized void start(final Iterable<FCPTransferQuery> pendingQueries) {
+		waitForCompaction(); /* only if this journal was already used */
+
+		closeOutput(); /* the old records don't match the new ids */
+
+		queries.clear();
+		ids.clear();
+
+		opened = true;
+		compactionDue = true;
+
+		for (final FCPTransferQuery query : pendingQueries) {
+			if (query.isPersistent())
+				register(query);
+		}
+	}
+
+	/**
+	 * Compact the journal and stop journaling. If no query is pending anymore, the
+	 * journal is deleted.
+	 */
+	public synchronized void close() {
+		waitForCompaction();
+
+		if (!opened)
+			return;
+
+		if (queries.isEmpty()) {
+			closeOutput();
+
+			if (file.exists() && !file.delete())
+				Logger.warning(this, "Unable to delete the queue journal '"+file.getPath()+"'");
+		} else {
+			compact();
+			closeOutput();
+		}
+
+		opened = false;
+		compactionDue = false;
+		queries.clear();
+		ids.clear();
+	}
+
+
+	/**
+	 * Called by the queue manager when a query is added to the pending queue.
+	 */
+	public synchronized void added(final FCPTransferQuery query) {
+		if (!opened || !query.isPersistent() || ids.containsKey(query))
+			return;
+
+		final Long id = register(query);
+
+		try {
+			startRecord(OP_ADD, id.longValue());
+			payload.writeInt(query.getQueryType());
+			writeParameters(query.getParameters());
+		} catch(final IOException e) {
+			Logger.warning(this, "Unable to journal the query '"+query.getFilename()+"' : "+e.toString());
+			return;
+		}
+
+		appendRecord();
+	}
+
+	/**
+	 * Called by the queue manager when a query leaves the pending queue (started or removed).
+	 */
+	public synchronized void removed(final FCPTransferQuery query) {
+		if (!opened)
+			return;
+
+		final Long id = ids.remove(query);
+
+		if (id == null)
+			return;
+
+		queries.remove(id);
+
+		try {
+			startRecord(OP_REMOVE, id.longValue());
+		} catch(final IOException e) {
+			Logger.warning(this, "Unable to journal the removal of '"+query.getFilename()+"' : "+e.toString());
+			return;
+		}
+
+		appendRecord();
+	}
+
+	/**
+	 * Called by the queue manager when the priority of a pending query changes.
+	 */
+	public synchronized void updated(final FCPTransferQuery query) {
+		if (!opened)
+			return;
+
+		final Long id = ids.get(query);
+
+		if (id == null)
+			return;
+
+		try {
+			startRecord(OP_UPDATE, id.longValue());
+			writeParameters(query.getParameters());
+		} catch(final IOException e) {
+			Logger.warning(this, "Unable to journal the update of '"+query.getFilename()+"' : "+e.toString());
+			return;
+		}
+
+		appendRecord();
+	}
+
+	/**
+	 * Called by the queue manager when the pending queue is purged.
+	 */
+	public synchronized void cleared() {
+		if (!opened || queries.isEmpty())
+			return;
+
+		queries.clear();
+		ids.clear();
+
+		try {
+			startRecord(OP_CLEAR, 0);
+		} catch(final IOException e) {
+			/* can't happen : nothing but numbers */
+			return;
+		}
+
+		appendRecord();
+	}
+
+	/**
+	 * Compact the journal if most of its records are obsolete, or if nothing has been
+	 * written since start(). Must not be called while
+	 * holding the lock of the pending queue : the new journal is synced to the disk.
+	 */
+	public void compactIfNeeded() {
+		synchronized(this) {
+			if (!opened || compacting
+			    || (!compactionDue
+				&& (records < MIN_RECORDS_BEFORE_COMPACTION
+				    || records <= 2 * queries.size())))
+				return;
+		}
+
+		compact();
+	}
+
+	/**
+	 * @return number of queries currently journaled
+	 */
+	public synchronized int size() {
+		return queries.size();
+	}
+
+
+	private Long register(final FCPTransferQuery query) {
+		lastId++;
+
+		final Long id = Long.valueOf(lastId);
+
+		queries.put(id, query);
+		ids.put(query, id);
+
+		return id;
+	}
+
+
+	private void startRecord(final byte op, final long id) throws IOException {
+		payloadBuffer.reset();
+		payload.writeByte(op);
+		payload.writeLong(id);
+	}
+
+	private void writeParameters(final HashMap<String,String> parameters) throws IOException {
+		payload.writeInt(parameters.size());
+
+		for (final Map.Entry<String,String> parameter : parameters.entrySet()) {
+			writeString(payload, parameter.getKey());
+			writeString(payload, parameter.getValue());
+		}
+	}
+
+	private static HashMap<String,String> readParameters(final DataInputStream record) throws IOException {
+		final int nmbParameters = record.readInt();
+		final HashMap<String,String> parameters = new HashMap<String,String>();
+
+		for (int i = 0 ; i < nmbParameters ; i++) {
+			final String name = readString(record);
+			parameters.put(name, readString(record));
+		}
+
+		return parameters;
+	}
+
+	private static void writeString(final DataOutputStream out, final String str) throws IOException {
+		out.writeBoolean(str != null);
+
+		if (str != null)
+			out.writeUTF(str);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+
+		return in.readUTF();
+	}
+
+
+	/**
+	 * Write the record prepared in the payload buffer at the end of the journal.
+	 */
+	private void appendRecord() {
+		final byte[] record = buildRecord();
+
+		records++;
+
+		if (compacting)
+			backlog.add(record);
+
+		if (out != null) {
+			try {
+				out.write(record);
+			} catch(final IOException e) {
+				Logger.error(this, "Unable to write in the queue journal '"+file.getPath()+"' : "+
+					     e.toString()+" ; will retry on the next compaction");
+				closeOutput();
+			}
+		}
+	}
+
+	/**
+	 * @return the record prepared in the payload buffer, with its header
+	 */
+	private byte[] buildRecord() {
+		final int length = payloadBuffer.size();
+		final byte[] record = new byte[8 + length];
+
+		System.arraycopy(payloadBuffer.toByteArray(), 0, record, 8, length);
+
+		crc.reset();
+		crc.update(record, 8, length);
+
+		putInt(record, 0, length);
+		putInt(record, 4, (int)crc.getValue());
+
+		return record;
+	}
+
+	private static void putInt(final byte[] array, final int offset, final int value) {
+		array[offset] = (byte)(value >>> 24);
+		array[offset+1] = (byte)(value >>> 16);
+		array[offset+2] = (byte)(value >>> 8);
+		array[offset+3] = (byte)value;
+	}
+
+
+	/**
+	 * Rewrite the journal with only the live queries, then reopen it to append the next
+	 * records. The new journal is written in a temporary file and then renamed, so a crash
+	 * never leaves a partial journal.<br/>
+	 * The live queries are serialized under the monitor, but the temporary file is written
+	 * and synced without it : the records appended meanwhile still go to the old journal,
+	 * and are copied at the end of the new one just before the renaming.
+	 */
+	private void compact() {
+		final Vector<byte[]> snapshot = new Vector<byte[]>();
+
+		synchronized(this) {
+			if (compacting) /* already in progress in another thread */
+				return;
+
+			for (final Iterator<Map.Entry<Long,FCPTransferQuery>> it = queries.entrySet().iterator() ;
+			     it.hasNext() ; ) {
+				final Map.Entry<Long,FCPTransferQuery> entry = it.next();
+				final FCPTransferQuery query = entry.getValue();
+
+				try {
+					startRecord(OP_ADD, entry.getKey().longValue());
+					payload.writeInt(query.getQueryType());
+					writeParameters(query.getParameters());
+				} catch(final IOException e) {
+					Logger.warning(this, "Unable to journal the query '"+query.getFilename()+"' : "+e.toString());
+					continue;
+				}
+
+				snapshot.add(buildRecord());
+			}
+
+			compacting = true;
+			compactionDue = false;
+			backlog.clear();
+		}
+
+		FileOutputStream tmpOut = null;
+		BufferedOutputStream buffered = null;
+
+		try {
+			tmpOut = new FileOutputStream(tmpFile);
+			buffered = new BufferedOutputStream(tmpOut, 65536);
+
+			final DataOutputStream header = new DataOutputStream(buffered);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+
+			for (final byte[] record : snapshot)
+				buffered.write(record);
+
+			buffered.flush();
+			tmpOut.getFD().sync();
+
+		} catch(final IOException e) {
+			Logger.error(this, "Unable to compact the queue journal '"+file.getPath()+"' : "+e.toString());
+			closeTmp(tmpOut);
+			endCompaction();
+			return;
+		}
+
+		synchronized(this) {
+			try {
+				/* not synced : like any other record */
+				for (final byte[] record : backlog)
+					buffered.write(record);
+
+				buffered.flush();
+				tmpOut.close();
+				tmpOut = null;
+
+				closeOutput();
+
+				/* renameTo() doesn't replace an existing file on all the platforms */
+				if (!tmpFile.renameTo(file)
+				    && (!file.delete() || !tmpFile.renameTo(file)))
+					throw new IOException("Unable to rename '"+tmpFile.getPath()+"' to '"+file.getPath()+"'");
+
+			} catch(final IOException e) {
+				Logger.error(this, "Unable to compact the queue journal '"+file.getPath()+"' : "+e.toString());
+				closeTmp(tmpOut);
+				reopenOutput();
+				endCompaction();
+				return;
+			}
+
+			records = snapshot.size() + backlog.size();
+
+			reopenOutput();
+			endCompaction();
+		}
+	}
+
+	private synchronized void endCompaction() {
+		compacting = false;
+		backlog.clear();
+		notifyAll();
+	}
+
+	private synchronized void waitForCompaction() {
+		while (compacting) {
+			try {
+				wait();
+			} catch(final InterruptedException e) {
+				/* \_o< */
+			}
+		}
+	}
+
+	private void reopenOutput() {
+		if (!opened || out != null)
+			return;
+
+		try {
+			out = new FileOutputStream(file, true);
+		} catch(final IOException e) {
+			Logger.error(this, "Unable to open the queue journal '"+file.getPath()+"' : "+e.toString());
+		}
+	}
+
+	private void closeTmp(final OutputStream tmpOut) {
+		if (tmpOut == null)
+			return;
+
+		try {
+			tmpOut.close();
+		} catch(final IOException e) {
+			/* \_o< */
+		}
+	}
+
+	private void closeOutput() {
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+		} catch(final IOException e) {
+			Logger.warning(this, "Error while closing the queue journal : "+e.toString());
+		}
+
+		out = null;
+	}
+}
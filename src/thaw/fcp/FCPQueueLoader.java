@@ -2,26 +2,48 @@ package thaw.fcp;
 
 import java.util.Observable;
 import java.util.Observer;
+import java.util.Vector;
 
 import thaw.core.Logger;
 
 /**
  * Reload the queue from the queue node.
  * Send himself the ListPersistentRequests.
- * It remains active to receive and add the persistentGet/Put receive during the execution
+ * It remains active to receive and add the persistentGet/Put receive during the execution<br/>
+ * The queries are added to the queue manager by batches (see
+ * FCPQueueManager.addQueriesToTheRunningQueue()) : a batch is added when it's full,
+ * or when all the messages already received have been processed. After each batch,
+ * the observers are notified (argument : number of queries loaded so far ; null
+ * once EndListPersistentRequests is received).
  */
-public class FCPQueueLoader implements FCPQuery, Observer {
+public class FCPQueueLoader extends Observable implements FCPQuery, Observer {
+	public final static int MAX_BATCH_SIZE = 500;
+
 	private final FCPQueueManager queueManager;
 	private final FCPQueryManager queryManager;
 	private String thawId;
 
+	private final Vector<FCPTransferQuery> batch = new Vector<FCPTransferQuery>(MAX_BATCH_SIZE);
+	private int loaded = 0;
+	private boolean loading = false;
+
 	public FCPQueueLoader(final String thawId, FCPQueueManager queueManager) {
+		this(thawId, queueManager, queueManager.getQueryManager());
+	}
+
+	/**
+	 * @param queryManager node to reload (see FCPNodePool) : it will own the queries loaded
+	 */
+	public FCPQueueLoader(final String thawId, FCPQueueManager queueManager, FCPQueryManager queryManager) {
 		this.thawId = thawId;
 		this.queueManager = queueManager;
-		this.queryManager = queueManager.getQueryManager();
+		this.queryManager = queryManager;
 	}
 
 	public boolean start() {
+		loading = true;
+		loaded = 0;
+
 		queryManager.addObserver(this);
 
 		final FCPListPersistentRequests listPersistent = new FCPListPersistentRequests(queryManager);
@@ -41,6 +63,64 @@ public class FCPQueueLoader implements FCPQuery, Observer {
 		return 0;
 	}
 
+	/**
+	 * @return true until EndListPersistentRequests is received
+	 */
+	public boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * @return number of queries added to the queue manager so far
+	 */
+	public int getLoadedCount() {
+		return loaded;
+	}
+
+
+	/**
+	 * The query receives its messages as soon as it's known (some may arrive
+	 * before the batch is added), but is added to the queue with its batch.
+	 */
+	private void addToBatch(final FCPTransferQuery query) {
+		query.setQueryManager(queryManager);
+		queryManager.addObserver((Observer)query); /* FCPClientGet / FCPClientPut */
+		batch.add(query);
+
+		if (batch.size() >= MAX_BATCH_SIZE
+		    || !queryManager.getConnection().hasBufferedInput())
+			flushBatch();
+	}
+
+	private void flushBatch() {
+		if (batch.isEmpty())
+			return;
+
+		final Vector<FCPTransferQuery> added = queueManager.addQueriesToTheRunningQueue(batch);
+
+		if (added.size() != batch.size()) {
+			int i = 0; /* 'added' keeps the order of 'batch' */
+
+			for (final FCPTransferQuery query : batch) {
+				if (i < added.size() && added.get(i) == query) {
+					i++;
+					continue;
+				}
+
+				Logger.info(this, "Already in the running queue");
+				queryManager.deleteObserver((Observer)query);
+			}
+		}
+
+		loaded += added.size();
+		batch.clear();
+
+		Logger.info(this, Integer.toString(loaded)+" persistent requests loaded");
+
+		setChanged();
+		notifyObservers(Integer.valueOf(loaded));
+	}
+
 
 	public void update(final Observable o, final Object param) {
 		final FCPMessage msg = (FCPMessage)param;
@@ -81,11 +161,9 @@ public class FCPQueueLoader implements FCPQuery, Observer {
 															.setMaxRetries(-1)
 															.build();
 
-			if(queueManager.addQueryToTheRunningQueue(clientGet, false))
-				queryManager.addObserver(clientGet);
-			else
-				Logger.info(this, "Already in the running queue");
+			addToBatch(clientGet);
 
+			return;
 		}
 
 
@@ -137,10 +215,7 @@ public class FCPQueueLoader implements FCPQuery, Observer {
 												.setFileSize(fileSize)
 												.build();
 
-			if(queueManager.addQueryToTheRunningQueue(clientPut, false))
-				queryManager.addObserver(clientPut);
-			else
-				Logger.info(this, "Already in the running queue");
+			addToBatch(clientPut);
 
 			return;
 		}
@@ -148,7 +223,12 @@ public class FCPQueueLoader implements FCPQuery, Observer {
 		if("EndListPersistentRequests".equals( msg.getMessageName() )) {
 			Logger.info(this, "End Of ListPersistentRequests.");
 			//queueManager.getQueryManager().getConnection().removeFromWriterQueue();
+			flushBatch();
+			loading = false;
 			queueManager.setQueueCompleted();
+
+			setChanged();
+			notifyObservers();
 			return;
 		}
 	}
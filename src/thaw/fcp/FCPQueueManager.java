@@ -3,6 +3,7 @@ package thaw.fcp;
 import java.util.*;
 
 import thaw.core.Logger;
+import thaw.core.Metrics;
 import thaw.core.ThawThread;
 import thaw.core.ThawRunnable;
 
@@ -10,22 +11,70 @@ import thaw.core.ThawRunnable;
  * Manage a running and a pending queue of FCPTransferQuery.
  * Please notice that runningQueue contains too finished queries.
  * Notify when: a query is added and when a query change to one queue to another.
+ * The argument is the query, or a Vector of queries when they are added in bulk
+ * (see addQueriesToTheRunningQueue()), or null if the change is unclear.<br/>
+ * The scheduler doesn't poll : the number of running downloads / insertions is
+ * updated each time a transfer starts / ends (see statusChanged()), and the scheduler
+ * thread is woken up as soon as a slot is free or a query is queued.<br/>
+ * If a journal is set (see setJournal()), each change of the pending queue is recorded
+ * in it.<br/>
+ * The transfers can be spread over several nodes (see getNodePool()) : the limits of running
+ * downloads / insertions then apply to each node.
  */
 public class FCPQueueManager extends java.util.Observable implements ThawRunnable, java.util.Observer {
 
 	private final static int PRIORITY_MIN = 6; /* So 0 to 6 */
+	private final static int STATS_PERIOD = 1000; /* ms */
 
 	private final FCPQueryManager queryManager;
+	private final FCPNodePool nodes;
 	private int maxDownloads, maxInsertions;
 
-	/* offset in the array == priority */
-	/* Vector contains FCPQuery */
+	/* ms between two queries started by the scheduler ; <= 0 : no limit */
+	private int startInterval = 0;
+	private long nextStart = 0;
+
+	/* offset in the vectors == priority */
+	/* one deque for the downloads and one for the insertions, so the scheduler
+	 * never has to skip the queries it can't start */
+	private final Vector<LinkedList<FCPTransferQuery>> pendingDownloads = new Vector<LinkedList<FCPTransferQuery>>(PRIORITY_MIN+1);
+	private final Vector<LinkedList<FCPTransferQuery>> pendingInsertions = new Vector<LinkedList<FCPTransferQuery>>(PRIORITY_MIN+1);
+	private final Object pendingQueries = new Object(); /* lock on the pending queues */
+	/* pending query -> order of arrival : at the same priority, the scheduler takes the
+	 * oldest head of the two deques, as with a single queue */
+	private final IdentityHashMap<FCPTransferQuery,Long> pendingOrder = new IdentityHashMap<FCPTransferQuery,Long>();
+	private long nextPendingOrder = 0;
 
-	private final Vector<Vector<FCPTransferQuery>> pendingQueries = new Vector<Vector<FCPTransferQuery>>(PRIORITY_MIN+1);
 	private final Vector<FCPTransferQuery> runningQueries = new Vector<FCPTransferQuery>();
 
-	private Hashtable<String,FCPTransferQuery> keyTable;
-	private Hashtable<String,FCPTransferQuery> filenameTable;
+	/* queries in the running queue -> true if counted in runningDownloads / runningInsertions
+	 * (ie not finished) */
+	private final IdentityHashMap<FCPTransferQuery,Boolean> runningStates = new IdentityHashMap<FCPTransferQuery,Boolean>();
+	private int runningDownloads = 0;
+	private int runningInsertions = 0;
+
+	private final Object schedulerLock = new Object();
+	private boolean wakeUp = false;
+
+	/* all the queries of the pending and running queues */
+	private final FCPTransferIndex index = new FCPTransferIndex();
+
+	/* average speed and ETA of the queries of the running queue */
+	private final FCPTransferStats stats = new FCPTransferStats();
+
+	/* records the changes of the pending queue ; written while holding the pendingQueries lock */
+	private FCPQueueJournal journal = null;
+
+	/* queries moved by the scheduler from the pending queues to the running queue */
+	private final static Metrics.Counter scheduledQueries = Metrics.counter("fcp.queue.scheduled");
+
+	/* the queue manager described by the "fcp.queue.*" gauges : the last one created
+	 * (the previous ones, replaced on reconnection, can be garbage collected) */
+	private static volatile FCPQueueManager current = null;
+
+	static {
+		registerMetrics();
+	}
 
 	private Thread scheduler;
 	private boolean stopThread = false;
@@ -43,18 +92,97 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 			       final String thawId,
 			       final int maxDownloads, final int maxInsertions) {
 		this.queryManager = queryManager;
-		pendingQueries.setSize(PRIORITY_MIN+1);
+		pendingDownloads.setSize(PRIORITY_MIN+1);
+		pendingInsertions.setSize(PRIORITY_MIN+1);
 
 		lastId = 0;
 		queueCompleted = false;
 
 		this.thawId = thawId;
+		nodes = new FCPNodePool(this, thawId, queryManager);
 		setMaxDownloads(maxDownloads);
 		setMaxInsertions(maxInsertions);
 
 		resetQueues();
 
 		queryManager.getConnection().addObserver(this);
+
+		current = this;
+	}
+
+	/**
+	 * Gauge reading the current queue manager ; 0 if there is none
+	 */
+	private abstract static class QueueGauge implements Metrics.Gauge {
+		public long getValue() {
+			final FCPQueueManager queueManager = current;
+
+			return (queueManager != null ? getValue(queueManager) : 0);
+		}
+
+		protected abstract long getValue(FCPQueueManager queueManager);
+	}
+
+	/**
+	 * Depth of the queues and usage of the slots, as "fcp.queue.*".
+	 * The slot usage is in percent (0 if there is no limit).
+	 * Registered only once : the gauges always read the current queue manager.
+	 */
+	private static void registerMetrics() {
+		Metrics.gauge("fcp.queue.running", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				synchronized(q.runningQueries) {
+					return q.runningQueries.size();
+				}
+			}
+		});
+
+		Metrics.gauge("fcp.queue.downloads.running", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return q.getRunningDownloads();
+			}
+		});
+
+		Metrics.gauge("fcp.queue.insertions.running", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return q.getRunningInsertions();
+			}
+		});
+
+		Metrics.gauge("fcp.queue.downloads.slotUsage", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return (q.maxDownloads > 0 ? (q.getRunningDownloads() * 100L) / q.maxDownloads : 0);
+			}
+		});
+
+		Metrics.gauge("fcp.queue.insertions.slotUsage", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return (q.maxInsertions > 0 ? (q.getRunningInsertions() * 100L) / q.maxInsertions : 0);
+			}
+		});
+
+		Metrics.gauge("fcp.queue.downloads.pending", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return q.countPendingQueries(q.pendingDownloads);
+			}
+		});
+
+		Metrics.gauge("fcp.queue.insertions.pending", new QueueGauge() {
+			protected long getValue(final FCPQueueManager q) {
+				return q.countPendingQueries(q.pendingInsertions);
+			}
+		});
+	}
+
+	private long countPendingQueries(final Vector<LinkedList<FCPTransferQuery>> queues) {
+		long nmb = 0;
+
+		synchronized(pendingQueries) {
+			for (final LinkedList<FCPTransferQuery> queue : queues)
+				nmb += queue.size();
+		}
+
+		return nmb;
 	}
 
 	public boolean isQueueCompletlyLoaded() {
@@ -63,48 +191,126 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 
 	public void setQueueCompleted() {
 		queueCompleted = true;
+		wakeScheduler();
 	}
 
 	/**
 	 * Use it if you want to bypass the queue.
+	 * @return the query manager of the primary node
 	 */
 	public FCPQueryManager getQueryManager() {
 		return queryManager;
 	}
 
+	/**
+	 * Nodes where the transfers are started. Contains at least the node of getQueryManager().
+	 */
+	public FCPNodePool getNodePool() {
+		return nodes;
+	}
+
 	public void setMaxDownloads(final int maxDownloads) {
 		this.maxDownloads = maxDownloads;
+		wakeScheduler();
 	}
 
 	public void setMaxInsertions(final int maxInsertions) {
 		this.maxInsertions = maxInsertions;
+		wakeScheduler();
+	}
+
+	/**
+	 * @param queriesPerSecond maximum number of pending queries started each second by
+	 *                         the scheduler ; <= 0 means no limit
+	 */
+	public void setStartRate(final int queriesPerSecond) {
+		startInterval = (queriesPerSecond <= 0) ? 0 : (1000 / queriesPerSecond);
+		wakeScheduler();
+	}
+
+	/**
+	 * Start recording the changes of the pending queue in this journal. The journal
+	 * is started with the queries currently pending (in memory only, under the lock of the
+	 * pending queue, so no change is missed), and then written without holding this lock.
+	 * @param journal null to stop recording (the previous journal is not closed)
+	 */
+	public void setJournal(final FCPQueueJournal journal) {
+		synchronized(pendingQueries) {
+			if (journal != null) {
+				final Vector<FCPTransferQuery> pending = new Vector<FCPTransferQuery>();
+
+				for (final Vector<FCPTransferQuery> queue : getPendingQueues())
+					pending.addAll(queue);
+
+				journal.start(pending);
+			}
+
+			this.journal = journal;
+		}
+
+		if (journal != null)
+			journal.compactIfNeeded();
+	}
+
+	public FCPQueueJournal getJournal() {
+		synchronized(pendingQueries) {
+			return journal;
+		}
 	}
 
 	/**
 	 * Will purge the current known queue.
 	 */
 	public void resetQueues() {
-		synchronized(runningQueries) {
-			runningQueries.clear();
-		}
+		clearRunningQueue();
 
 		synchronized(pendingQueries) {
 			for(int i = 0; i <= PRIORITY_MIN ; i++) {
-       			pendingQueries.set(i, new Vector<FCPTransferQuery>());
+				pendingDownloads.set(i, new LinkedList<FCPTransferQuery>());
+				pendingInsertions.set(i, new LinkedList<FCPTransferQuery>());
 			}
+
+			pendingOrder.clear();
+
+			if (journal != null)
+				journal.cleared();
 		}
 
-		keyTable = new Hashtable<String,FCPTransferQuery>();
-		filenameTable = new Hashtable<String,FCPTransferQuery>();
+		index.clear();
 	}
 
 	/**
-	 * Returns a copy of the currently pending queues.
+	 * Returns a copy of the currently pending queues (offset in the vector == priority).
 	 */
 	public Vector<Vector<FCPTransferQuery>> getPendingQueues() {
+		final Vector<Vector<FCPTransferQuery>> queues = new Vector<Vector<FCPTransferQuery>>(PRIORITY_MIN+1);
+
 		synchronized(pendingQueries) {
-			return new Vector<Vector<FCPTransferQuery>>(pendingQueries);
+			for(int i = 0 ; i <= PRIORITY_MIN ; i++) {
+				final Vector<FCPTransferQuery> queue = new Vector<FCPTransferQuery>(pendingDownloads.get(i));
+				queue.addAll(pendingInsertions.get(i));
+
+				/* in their order of arrival */
+				Collections.sort(queue, new Comparator<FCPTransferQuery>() {
+						public int compare(final FCPTransferQuery a, final FCPTransferQuery b) {
+							return pendingOrder.get(a).compareTo(pendingOrder.get(b));
+						}
+					});
+
+				queues.add(queue);
+			}
 		}
+
+		return queues;
+	}
+
+	/**
+	 * @return the pending queue where the query must be
+	 */
+	private LinkedList<FCPTransferQuery> getPendingQueue(final FCPTransferQuery query) {
+		if (query.getQueryType() == 2 /* Insertion */)
+			return pendingInsertions.get(query.getThawPriority());
+		return pendingDownloads.get(query.getThawPriority());
 	}
 
 	/**
@@ -137,29 +343,66 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 		if(query.getThawPriority() < 0)
 			return this.addQueryToTheRunningQueue(query);
 
-		if(isAlreadyPresent(query)) {
-			Logger.notice(this, "Key was already in one of the queues : "+query.getFilename());
+		Logger.notice(this, "Adding query to the pending queue ...");
+
+		if (!addToThePendingQueue(query))
 			return false;
+
+		setChanged();
+		this.notifyObservers(query);
+
+		wakeScheduler();
+
+		Logger.notice(this, "Adding done");
+		return true;
+	}
+
+	/**
+	 * Add queries with a priority >= 0 (reloaded from the disk for instance).
+	 * The observers are notified only once, with the Vector of the queries added
+	 * as argument.
+	 * @return the queries really added (the others were already in the queues)
+	 */
+	public Vector<FCPTransferQuery> addQueriesToThePendingQueue(final Vector<FCPTransferQuery> queries) {
+		final Vector<FCPTransferQuery> added = new Vector<FCPTransferQuery>(queries.size());
+
+		for (final FCPTransferQuery query : queries) {
+			if (query.getThawPriority() >= 0 && addToThePendingQueue(query))
+				added.add(query);
 		}
 
-		Logger.notice(this, "Adding query to the pending queue ...");
+		Logger.info(this, Integer.toString(added.size())+" queries added to the pending queue");
 
-		synchronized(pendingQueries) {
-			pendingQueries.get(query.getThawPriority()).add(query);
+		if (!added.isEmpty()) {
+			setChanged();
+			this.notifyObservers(added);
+
+			wakeScheduler();
 		}
 
-		String fileKey = query.getFileKey();
-		String filename = query.getFilename();
+		return added;
+	}
 
-		if (FreenetURIHelper.isAKey(fileKey))
-			keyTable.put(FreenetURIHelper.getComparablePart(fileKey), query);
+	/**
+	 * Doesn't notify the observers.
+	 */
+	private boolean addToThePendingQueue(final FCPTransferQuery query) {
+		/* checked and indexed at once : see isAlreadyPresent() */
+		if(!index.addIfAbsent(query)) {
+			Logger.notice(this, "Key was already in one of the queues : "+query.getFilename());
+			return false;
+		}
 
-		filenameTable.put(filename, query);
+		synchronized(pendingQueries) {
+			getPendingQueue(query).add(query);
+			pendingOrder.put(query, Long.valueOf(nextPendingOrder++));
 
-		setChanged();
-		this.notifyObservers(query);
+			if (journal != null)
+				journal.added(query);
+		}
+
+		query.addQueueManager(this);
 
-		Logger.notice(this, "Adding done");
 		return true;
 	}
 
@@ -174,7 +417,47 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 	public boolean addQueryToTheRunningQueue(final FCPTransferQuery query, boolean callStart) {
 		Logger.debug(this, "Adding query to the running queue ...");
 
-		if(isAlreadyPresent(query)) {
+		if (!addToTheRunningQueue(query, callStart))
+			return false;
+
+		setChanged();
+		this.notifyObservers(query);
+
+		Logger.debug(this, "Adding done");
+
+		return true;
+	}
+
+	/**
+	 * Add queries resumed from the node, without calling their start() function.
+	 * The observers are notified only once, with the Vector of the queries added
+	 * as argument.
+	 * @return the queries really added (the others were already in the queues)
+	 */
+	public Vector<FCPTransferQuery> addQueriesToTheRunningQueue(final Vector<FCPTransferQuery> queries) {
+		final Vector<FCPTransferQuery> added = new Vector<FCPTransferQuery>(queries.size());
+
+		for (final FCPTransferQuery query : queries) {
+			if (addToTheRunningQueue(query, false))
+				added.add(query);
+		}
+
+		Logger.info(this, Integer.toString(added.size())+" queries added to the running queue");
+
+		if (!added.isEmpty()) {
+			setChanged();
+			this.notifyObservers(added);
+		}
+
+		return added;
+	}
+
+	/**
+	 * Doesn't notify the observers.
+	 */
+	private boolean addToTheRunningQueue(final FCPTransferQuery query, boolean callStart) {
+		/* checked and indexed at once : see isAlreadyPresent() */
+		if(!index.addIfAbsent(query)) {
 			Logger.notice(this, "Key was already in one of the queues");
 			return false;
 		}
@@ -202,27 +485,25 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 			}
 		}
 
-		if(callStart)
+		if(callStart) {
+			nodes.place(query, maxDownloads, maxInsertions);
 			query.start();
 
+			/* start() may have given it an identifier : not a queue manager of the query yet */
+			index.reindex(query);
+		}
+
 		synchronized(runningQueries) {
 			runningQueries.add(query);
 		}
 
-		String fileKey = query.getFileKey();
-		String filename = query.getFilename();
+		query.addQueueManager(this);
 
-		if (FreenetURIHelper.isAKey(fileKey))
-			keyTable.put(FreenetURIHelper.getComparablePart(fileKey), query);
-
-		if (filename != null)
-			filenameTable.put(filename, query);
-
-
-		setChanged();
-		this.notifyObservers(query);
-
-		Logger.debug(this, "Adding done");
+		synchronized(runningStates) {
+			runningStates.put(query, Boolean.FALSE);
+		}
+		statusChanged(query);
+		stats.register(query);
 
 		return true;
 	}
@@ -262,71 +543,197 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 			runningQueries.remove(query);
 		}
 
-		synchronized(pendingQueries) {
-			for(int i = 0 ; i <= FCPQueueManager.PRIORITY_MIN ; i++)
-				pendingQueries.get(i).remove(query);
+		query.removeQueueManager(this);
+		stats.unregister(query);
+		synchronized(runningStates) {
+			final Boolean counted = runningStates.remove(query);
+
+			if (counted != null && counted.booleanValue())
+				count(query, -1);
 		}
 
-		String fileKey = query.getFileKey();
-		String filename = query.getFilename();
+		synchronized(pendingQueries) {
+			for(int i = 0 ; i <= FCPQueueManager.PRIORITY_MIN ; i++) {
+				pendingDownloads.get(i).remove(query);
+				pendingInsertions.get(i).remove(query);
+			}
 
-		if (FreenetURIHelper.isAKey(fileKey))
-			keyTable.remove(FreenetURIHelper.getComparablePart(fileKey));
+			pendingOrder.remove(query);
 
-		filenameTable.remove(filename);
+			if (journal != null)
+				journal.removed(query);
+		}
+
+		index.remove(query);
 
 		setChanged();
 		this.notifyObservers(query);
 
+		wakeScheduler();
 	}
 
 
-	private boolean isTheSame(final FCPTransferQuery queryA,
-				  final FCPTransferQuery queryB) {
-		if(queryA.getQueryType() != queryB.getQueryType())
-			return false;
+	/**
+	 * Called by the queries of the queues when their identifier or their key change.
+	 */
+	protected void reindex(final FCPTransferQuery query) {
+		index.reindex(query);
+	}
+
+	/**
+	 * Called by the queries of the queues when their priority changes : if the query
+	 * is pending, it's moved to the pending queue matching its new priority.
+	 */
+	protected void priorityChanged(final FCPTransferQuery query) {
+		if (query.getThawPriority() < 0)
+			return;
+
+		synchronized(pendingQueries) {
+			final LinkedList<FCPTransferQuery> queue = getPendingQueue(query);
+
+			for(int i = 0 ; i <= FCPQueueManager.PRIORITY_MIN ; i++) {
+				final LinkedList<FCPTransferQuery> oldQueue = getPendingQueue(i, query.getQueryType());
 
-		if((queryA.getIdentifier() != null) && (queryB.getIdentifier() != null)) {
-			if(queryA.getIdentifier().equals(queryB.getIdentifier())) {
-				Logger.debug(this, "isTheSame(): Identifier");
-				return true;
+				if (!oldQueue.contains(query))
+					continue;
+
+				if (oldQueue != queue) {
+					oldQueue.remove(query);
+					queue.add(query);
+					pendingOrder.put(query, Long.valueOf(nextPendingOrder++));
+				}
+
+				if (journal != null)
+					journal.updated(query);
+
+				break;
 			}
-			return false;
 		}
+	}
 
-		if((queryA.getFileKey() != null) && (queryB.getFileKey() != null)) {
-			if(queryA.getFileKey().equals(queryB.getFileKey())) {
-				Logger.debug(this, "isTheSame(): FileKey");
-				return true;
-			}
-			return false;
+	/**
+	 * Called by the queries of the queues when they start / end.
+	 */
+	protected void statusChanged(final FCPTransferQuery query) {
+		boolean slotFreed = false;
+
+		synchronized(runningStates) {
+			final Boolean counted = runningStates.get(query);
+
+			if (counted == null) /* not in the running queue */
+				return;
+
+			final boolean running = !query.isFinished();
+
+			if (counted.booleanValue() == running)
+				return;
+
+			runningStates.put(query, Boolean.valueOf(running));
+			count(query, running ? 1 : -1);
+			slotFreed = !running;
+		}
+
+		if (slotFreed)
+			wakeScheduler();
+	}
+
+	/* must be called with the lock on runningStates */
+	private void count(final FCPTransferQuery query, final int diff) {
+		if (query.getQueryType() == 1 /* Download */)
+			runningDownloads += diff;
+		else if (query.getQueryType() == 2 /* Insertion */)
+			runningInsertions += diff;
+
+		nodes.count(query, diff);
+	}
+
+	/**
+	 * @return number of downloads in the running queue and not finished
+	 */
+	public int getRunningDownloads() {
+		synchronized(runningStates) {
+			return runningDownloads;
 		}
+	}
 
-		if(queryA.getFilename() != null
-		   && queryA.getFilename().equals(queryB.getFilename())) {
-			Logger.debug(this, "isTheSame(): Filename");
-			return true;
+	/**
+	 * @return number of insertions in the running queue and not finished
+	 */
+	public int getRunningInsertions() {
+		synchronized(runningStates) {
+			return runningInsertions;
 		}
-		return false;
+	}
+
+	private void clearRunningQueue() {
+		FCPTransferQuery[] queries;
+
+		synchronized(runningQueries) {
+			queries = runningQueries.toArray(new FCPTransferQuery[runningQueries.size()]);
+			runningQueries.clear();
+		}
+
+		for (int i = 0 ; i < queries.length ; i++) {
+			queries[i].removeQueueManager(this);
+			index.remove(queries[i]);
+		}
+
+		synchronized(runningStates) {
+			runningStates.clear();
+			runningDownloads = 0;
+			runningInsertions = 0;
+			nodes.clearCounts(null);
+		}
+
+		stats.clear();
 	}
 
 	/**
-	 * Compare only the refs.
+	 * Remove from the running queue the queries of a node (because it's disconnected :
+	 * its persistent queries will be reloaded on reconnection).
+	 * Notifies the observers (argument : null).
 	 */
-	public boolean isInTheQueues(final FCPTransferQuery query) {
+	protected void clearRunningQueue(final FCPQueryManager node) {
+		final Vector<FCPTransferQuery> removed = new Vector<FCPTransferQuery>();
+
 		synchronized(runningQueries) {
-			if(runningQueries.contains(query))
-				return true;
+			for (final Iterator<FCPTransferQuery> it = runningQueries.iterator() ; it.hasNext() ;) {
+				final FCPTransferQuery query = it.next();
+
+				if (nodes.isOwnedBy(query, node)) {
+					removed.add(query);
+					it.remove();
+				}
+			}
 		}
 
-		synchronized(pendingQueries) {
-			for(int i = 0 ; i <= FCPQueueManager.PRIORITY_MIN ; i++) {
-				if(pendingQueries.get(i).contains(query))
-					return true;
+		for (final FCPTransferQuery query : removed) {
+			query.removeQueueManager(this);
+			index.remove(query);
+			stats.unregister(query);
+		}
+
+		synchronized(runningStates) {
+			for (final FCPTransferQuery query : removed) {
+				final Boolean counted = runningStates.remove(query);
+
+				if (counted != null && counted.booleanValue())
+					count(query, -1);
 			}
 		}
 
-		return false;
+		setChanged();
+		notifyObservers();
+
+		wakeScheduler();
+	}
+
+
+	/**
+	 * Compare only the refs.
+	 */
+	public boolean isInTheQueues(final FCPTransferQuery query) {
+		return index.contains(query);
 	}
 
 
@@ -337,122 +744,163 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 		FCPTransferQuery q;
 
 		if (FreenetURIHelper.isAKey(key)) {
-			q = (FCPTransferQuery)keyTable.get(FreenetURIHelper.getComparablePart(key));
+			q = index.getByKey(key);
 
 			if (q != null)
 				return q;
 
-			return (FCPTransferQuery)filenameTable.get(FreenetURIHelper.getFilenameFromKey(key));
+			return index.getByFilename(FreenetURIHelper.getFilenameFromKey(key));
 		}
 
-		return (FCPTransferQuery)filenameTable.get(key);
+		return index.getByFilename(key);
 	}
 
 
 	/**
-	 * Compare using the key.
+	 * Compare using the identifier if both queries have one, else the key if both have one,
+	 * else the filename. Constant time (see FCPTransferIndex).<br/>
+	 * Only informative : the queries are added with FCPTransferIndex.addIfAbsent(), so a
+	 * query added meanwhile by another thread can't be added twice.
 	 */
 	public boolean isAlreadyPresent(final FCPTransferQuery query) {
+		return (index.findDuplicate(query) != null);
+	}
 
-		Iterator it;
 
-		synchronized(runningQueries) {
-			for(it = runningQueries.iterator();
-			    it.hasNext(); )
-				{
-					final FCPTransferQuery plop = (FCPTransferQuery)it.next();
-					if(isTheSame(plop, query))
-						return true;
-				}
-		}
+	private LinkedList<FCPTransferQuery> getPendingQueue(final int priority, final int queryType) {
+		if (queryType == 2 /* Insertion */)
+			return pendingInsertions.get(priority);
+		return pendingDownloads.get(priority);
+	}
+
+	/**
+	 * @param remove if true, the query returned is removed from the pending queue
+	 * @return the pending query with the highest priority for which a slot is free ; null if none
+	 */
+	private FCPTransferQuery getNextPendingQuery(final boolean remove) {
+		/* per node (with a single node, it's the same as comparing runningDownloads / Insertions) */
+		final boolean downloadSlot = nodes.hasFreeSlot(1 /* Download */, maxDownloads);
+		final boolean insertionSlot = nodes.hasFreeSlot(2 /* Insertion */, maxInsertions);
+
+		if (!downloadSlot && !insertionSlot)
+			return null;
 
 		synchronized(pendingQueries) {
-			for(int i = 0 ; i <= FCPQueueManager.PRIORITY_MIN ; i++) {
-				for(it = pendingQueries.get(i).iterator();
-				    it.hasNext(); )
-					{
-						final FCPTransferQuery plop = (FCPTransferQuery)it.next();
-						if(isTheSame(plop, query))
-							return true;
-					}
-			}
-		}
+			for(int priority = 0 ; priority <= FCPQueueManager.PRIORITY_MIN ; priority++) {
+				final LinkedList<FCPTransferQuery> downloads = pendingDownloads.get(priority);
+				final LinkedList<FCPTransferQuery> insertions = pendingInsertions.get(priority);
 
-		return false;
-	}
+				final boolean download = downloadSlot && !downloads.isEmpty();
+				final boolean insertion = insertionSlot && !insertions.isEmpty();
 
+				LinkedList<FCPTransferQuery> queue;
 
-	private void schedule() {
-			/* We count the running query to see if there is an empty slot */
+				if (download && insertion) /* the oldest one first */
+					queue = (pendingOrder.get(downloads.getFirst()).longValue()
+						 < pendingOrder.get(insertions.getFirst()).longValue()) ? downloads : insertions;
+				else if (download)
+					queue = downloads;
+				else if (insertion)
+					queue = insertions;
+				else
+					continue;
 
-			int runningInsertions = 0;
-			int runningDownloads = 0;
+				if (!remove)
+					return queue.getFirst();
 
-			synchronized(runningQueries) {
-				for(final Iterator it = runningQueries.iterator(); it.hasNext(); ) {
-					final FCPTransferQuery query = (FCPTransferQuery)it.next();
+				final FCPTransferQuery query = queue.removeFirst();
+				pendingOrder.remove(query);
 
-					if((query.getQueryType() == 1 /* Download */)
-					   && !query.isFinished())
-						runningDownloads++;
+				if (journal != null)
+					journal.removed(query);
 
-					if((query.getQueryType() == 2 /* Insertion */)
-					   && !query.isFinished())
-						runningInsertions++;
-				}
+				return query;
 			}
+		}
 
+		return null;
+	}
 
-			/* We move queries from the pendingQueue to the runningQueue until we got our quota */
-			for(int priority = 0;
-			    (priority <= FCPQueueManager.PRIORITY_MIN)
-				    && ( ((maxInsertions <= -1) || (runningInsertions < maxInsertions))
-					|| ((maxDownloads <= -1) || (runningDownloads < maxDownloads)) ) ;
-			    priority++)	{
+	/**
+	 * Move queries from the pendingQueue to the runningQueue until we got our quota,
+	 * or until the start rate limit is reached.
+	 */
+	private void schedule() {
+		while(!stopThread) {
+			if (startInterval > 0 && System.currentTimeMillis() < nextStart)
+				return;
 
-				synchronized(pendingQueries) {
-					for(Iterator it = pendingQueries.get(priority).iterator();
-					    it.hasNext()
-						    && ( ((maxInsertions <= -1) || (runningInsertions < maxInsertions))
-							 || ((maxDownloads <= -1) || (runningDownloads < maxDownloads)) ); ) {
+			final FCPTransferQuery query = getNextPendingQuery(true);
 
-						final FCPTransferQuery query = (FCPTransferQuery)it.next();
+			if (query == null)
+				return;
 
-						if( ((query.getQueryType() == 1)
-						     && ((maxDownloads <= -1) || (runningDownloads < maxDownloads)) )
-						    || ((query.getQueryType() == 2)
-							&& ((maxInsertions <= -1) || (runningInsertions < maxInsertions))) ) {
+			Logger.debug(this, "Scheduler : Moving a query from pendingQueue to the runningQueue");
+			scheduledQueries.inc();
 
-							Logger.debug(this, "Scheduler : Moving a query from pendingQueue to the runningQueue");
-							pendingQueries.get(priority).remove(query);
+			if (!this.addQueryToTheRunningQueue(query))
+				remove(query); /* duplicate : it's not in the queues anymore */
 
-							it = pendingQueries.get(priority).iterator(); /* We reset iterator */
+			if (startInterval > 0)
+				nextStart = System.currentTimeMillis() + startInterval;
+		}
+	}
+	
+	
+	private void updateStats()
+	{
+		stats.tick();
+	}
 
-							this.addQueryToTheRunningQueue(query);
+	/**
+	 * Observers of the returned object are notified once per second with the Vector
+	 * of the queries whose average speed / ETA changed.
+	 */
+	public FCPTransferStats getTransferStats() {
+		return stats;
+	}
 
-							if(query.getQueryType() == 1)
-								runningDownloads++;
 
-							if(query.getQueryType() == 2)
-								runningInsertions++;
+	/**
+	 * Wake up the scheduler thread : a slot may be free, or a query may be waiting.
+	 */
+	private void wakeScheduler() {
+		synchronized(schedulerLock) {
+			wakeUp = true;
+			schedulerLock.notifyAll();
+		}
+	}
 
-							try {
-								Thread.sleep(300);
-							} catch(final java.lang.InterruptedException e) { }
-						}
-					}
-				}
+	/**
+	 * Wait until the next stats update, the next allowed start, or until someone wakes us up.
+	 */
+	private void waitForEvent(final long nextStats) {
+		final boolean canSchedule = queueCompleted
+			&& nodes.isConnected()
+			&& getNextPendingQuery(false) != null;
+
+		synchronized(schedulerLock) {
+			if (wakeUp || stopThread) {
+				wakeUp = false;
+				return;
 			}
 
-	}
-	
-	
-	private void updateStats()
-	{	
-		synchronized(runningQueries) {
-			for(FCPTransferQuery query : runningQueries) {
-				query.updateStats();
+			final long now = System.currentTimeMillis();
+			long timeout = nextStats - now;
+
+			if (canSchedule)
+				timeout = Math.min(timeout, nextStart - now);
+
+			if (timeout <= 0)
+				return;
+
+			try {
+				schedulerLock.wait(timeout);
+			} catch(final java.lang.InterruptedException e) {
+				/* We don't care */
 			}
+
+			wakeUp = false;
 		}
 	}
 
@@ -464,23 +912,30 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 			/* \_o< */
 		}
 
+		long nextStats = System.currentTimeMillis() + STATS_PERIOD;
+
 		while(!stopThread) {
-			try {
-				Thread.sleep(1000);
-			} catch(final java.lang.InterruptedException e) {
-				/* We don't care */
-			}
+			waitForEvent(nextStats);
 
 			if(!stopThread) {
 
 				try {
 
-					if(queryManager.getConnection().isConnected()
+					if(nodes.isConnected()
 					   && queueCompleted)
 						schedule();
 					
-					if(queryManager.getConnection().isConnected())
+					/* outside of the lock of the pending queue : may sync the disk */
+					final FCPQueueJournal currentJournal = getJournal();
+
+					if (currentJournal != null)
+						currentJournal.compactIfNeeded();
+
+					if(nodes.isConnected()
+					   && System.currentTimeMillis() >= nextStats) {
 						updateStats();
+						nextStats = System.currentTimeMillis() + STATS_PERIOD;
+					}
 
 
 				} catch(final Exception e) {
@@ -495,6 +950,7 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 
 	public void stop() {
 		stopThread = true;
+		wakeScheduler();
 	}
 
 	public void startScheduler() {
@@ -505,6 +961,7 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 
 	public void stopScheduler() {
 		stopThread = true;
+		wakeScheduler();
 	}
 
 
@@ -529,16 +986,14 @@ public class FCPQueueManager extends java.util.Observable implements ThawRunnabl
 		if((o == queryManager.getConnection())
 		   && !queryManager.getConnection().isConnected()) {
 
-			/* Only the running queue ...
+			/* Only the running queue (and only the queries of this node) ...
 			 * pending queries are specifics to Thaw
 			 */
-			synchronized(runningQueries) {
-				runningQueries.clear();
-			}
-
-			setChanged();
-			notifyObservers();
+			clearRunningQueue(queryManager);
 		}
+
+		if (o == queryManager.getConnection())
+			wakeScheduler();
 	}
 }
 
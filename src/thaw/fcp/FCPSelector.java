@@ -0,0 +1,358 @@
+package thaw.fcp;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+
+import thaw.core.Logger;
+import thaw.core.ThawThread;
+import thaw.core.ThawRunnable;
+
+/**
+ * Only one thread reads / writes on all the sockets to the node (main
+ * connection and duplicated connections) : the FCPChannels are all
+ * registered on this selector.<br/>
+ * The messages received are then processed by a few workers
+ * (see execute()) : one for each main connection (see createLane() : one
+ * slow node doesn't stall the others), and at most MAX_WORKERS for all
+ * the duplicated ones. So the number of threads doesn't depend on the
+ * number of duplicated connections.<br/>
+ * The selector thread is started when a channel is registered, and stopped
+ * when the last one is closed (see stopIfUnused()) or when Thaw exits. The
+ * selector thread and the workers are daemon threads : they never keep the
+ * JVM alive.
+ */
+public class FCPSelector implements ThawRunnable {
+	public final static int MAX_WORKERS = 8;
+	public final static int WORKER_IDLE_TIMEOUT = 30000; /* ms */
+
+	private static FCPSelector fcpSelector = null;
+
+	private Selector selector = null;
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	/* channels registered and not closed yet */
+	private int nmbChannels = 0;
+
+	/* see stopAndWait() */
+	public final static int STOP_TIMEOUT = 5000; /* ms */
+
+	/* FCPChannel : channels to register or to update */
+	private final Vector<FCPChannel> pendingChannels = new Vector<FCPChannel>();
+
+	private final Lane duplicatedLane = new Lane("FCP message processing", MAX_WORKERS);
+
+
+	private FCPSelector() {
+
+	}
+
+	/**
+	 * @return the selector ; its thread is only started when a channel is registered
+	 *   (see register())
+	 */
+	public static synchronized FCPSelector getSelector() {
+		if (fcpSelector == null)
+			fcpSelector = new FCPSelector();
+
+		return fcpSelector;
+	}
+
+	private synchronized boolean startSelector() {
+		if (running)
+			return true;
+
+		try {
+			selector = Selector.open();
+		} catch(final IOException e) {
+			Logger.error(this, "Unable to open the selector : "+e.toString());
+			return false;
+		}
+
+		running = true;
+
+		thread = new Thread(new ThawThread(this, "FCP selector", this));
+		thread.setDaemon(true);
+		thread.start();
+
+		return true;
+	}
+
+
+	/**
+	 * Register a new channel, and start the selector thread if needed.
+	 * FCPChannel.close() must call unregister().
+	 */
+	protected void register(final FCPChannel channel) throws IOException {
+		synchronized(this) {
+			if (!startSelector())
+				throw new IOException("Unable to open the selector");
+
+			nmbChannels++;
+		}
+
+		update(channel);
+	}
+
+	/**
+	 * Called once by each channel when it's closed.
+	 */
+	protected synchronized void unregister(final FCPChannel channel) {
+		nmbChannels--;
+	}
+
+
+	/**
+	 * Register the channel, or update what we are waiting on it
+	 * (reading and/or writing). Can be called from any thread.
+	 */
+	protected void update(final FCPChannel channel) {
+		synchronized(pendingChannels) {
+			if (!pendingChannels.contains(channel))
+				pendingChannels.add(channel);
+		}
+
+		final Selector s = selector;
+
+		if (s != null)
+			s.wakeup();
+	}
+
+
+	/**
+	 * @return a lane with only one worker : the tasks given to it are run one after
+	 *   the other, in order (see execute()). The worker is only started when needed.
+	 */
+	public Lane createLane(final String name) {
+		return new Lane(name, 1);
+	}
+
+
+	/**
+	 * Run the task in one of the workers.
+	 * @param lane see createLane() ; if null, the task is run by one of the workers shared
+	 *   by the duplicated connections
+	 */
+	public void execute(final ThawRunnable task, final Lane lane) {
+		if (lane != null)
+			lane.execute(task);
+		else
+			duplicatedLane.execute(task);
+	}
+
+
+	public void run() {
+		final Selector selector = this.selector;
+
+		while (true) {
+			try {
+				selector.select();
+			} catch(final IOException e) {
+				Logger.error(this, "Error while selecting : "+e.toString());
+				break;
+			}
+
+			FCPChannel[] channels;
+
+			/* stopped (and maybe already restarted with another selector) : the new
+			 * channels are for the next selector thread */
+			synchronized(this) {
+				if (!running || this.selector != selector)
+					break;
+
+				synchronized(pendingChannels) {
+					channels = pendingChannels.toArray(new FCPChannel[pendingChannels.size()]);
+					pendingChannels.clear();
+				}
+			}
+
+			for (int i = 0 ; i < channels.length ; i++)
+				channels[i].updateInterest(selector);
+
+			for (final Iterator<SelectionKey> it = selector.selectedKeys().iterator() ;
+			     it.hasNext() ; ) {
+				final SelectionKey key = it.next();
+				it.remove();
+
+				final FCPChannel channel = (FCPChannel)key.attachment();
+
+				if (!key.isValid()) {
+					channel.close();
+					continue;
+				}
+
+				if (key.isWritable())
+					channel.writeToChannel();
+
+				if (key.isValid() && key.isReadable())
+					channel.readFromChannel();
+			}
+		}
+
+		try {
+			selector.close();
+		} catch(final IOException e) {
+			Logger.warning(this, "Unable to close the selector : "+e.toString());
+		}
+
+		Logger.info(this, "Selector stopped");
+	}
+
+
+	/**
+	 * Stop the selector thread. Other threads will still be able to use the
+	 * selector later : it will be restarted.
+	 */
+	public synchronized void stop() {
+		running = false;
+
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * @return number of channels registered and not closed yet
+	 */
+	public synchronized int getChannelCount() {
+		return nmbChannels;
+	}
+
+	/**
+	 * @return true if the selector thread is alive
+	 */
+	public synchronized boolean isRunning() {
+		return (thread != null && thread.isAlive());
+	}
+
+	/**
+	 * Stop the selector thread if no channel is registered anymore.
+	 * Called by FCPConnection.disconnect().
+	 */
+	public void stopIfUnused() {
+		synchronized(this) {
+			if (nmbChannels > 0 || !running)
+				return;
+		}
+
+		stopAndWait();
+	}
+
+	/**
+	 * Stop the selector thread and wait (at most STOP_TIMEOUT) until it's finished.
+	 */
+	public void stopAndWait() {
+		final Thread th;
+
+		synchronized(this) {
+			th = thread;
+			stop();
+		}
+
+		if (th == null || th == Thread.currentThread())
+			return;
+
+		try {
+			th.join(STOP_TIMEOUT);
+		} catch(final InterruptedException e) {
+			/* \_o< */
+		}
+
+		if (th.isAlive())
+			Logger.warning(this, "Selector thread still running after "+Integer.toString(STOP_TIMEOUT)+" ms");
+	}
+
+
+	/**
+	 * A bunch of workers sharing a queue of tasks.
+	 */
+	public class Lane {
+		private final String name;
+		private final int maxWorkers;
+
+		private final Vector<ThawRunnable> tasks = new Vector<ThawRunnable>();
+		private int nmbWorkers = 0;
+		private int idleWorkers = 0;
+
+		private Lane(final String name, final int maxWorkers) {
+			this.name = name;
+			this.maxWorkers = maxWorkers;
+		}
+
+		public void execute(final ThawRunnable task) {
+			synchronized(tasks) {
+				tasks.add(task);
+
+				if (idleWorkers > 0) {
+					tasks.notify();
+					return;
+				}
+
+				if (nmbWorkers >= maxWorkers)
+					return;
+
+				nmbWorkers++;
+			}
+
+			final Thread th = new Thread(new ThawThread(new Worker(this), name, FCPSelector.this));
+			th.setDaemon(true);
+			th.start();
+		}
+
+		/**
+		 * @return null if the worker must stop
+		 */
+		protected ThawRunnable nextTask() {
+			synchronized(tasks) {
+				if (tasks.isEmpty()) {
+					idleWorkers++;
+
+					try {
+						tasks.wait(WORKER_IDLE_TIMEOUT);
+					} catch(final InterruptedException e) {
+						/* \_o< */
+					}
+
+					idleWorkers--;
+				}
+
+				if (tasks.isEmpty()) {
+					nmbWorkers--;
+					return null;
+				}
+
+				return tasks.remove(0);
+			}
+		}
+	}
+
+
+	private class Worker implements ThawRunnable {
+		private final Lane lane;
+		private ThawRunnable current = null;
+
+		public Worker(final Lane lane) {
+			this.lane = lane;
+		}
+
+		public void run() {
+			while ((current = lane.nextTask()) != null) {
+				try {
+					current.run();
+				} catch(final Exception e) {
+					Logger.error(this, "Exception while processing FCP messages : "+e.toString());
+					e.printStackTrace();
+				}
+			}
+		}
+
+		public void stop() {
+			final ThawRunnable task = current;
+
+			if (task != null)
+				task.stop();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package thaw.fcp;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+/**
+ * Indexes the transfer queries of a FCPQueueManager by identifier, key and filename,
+ * so duplicates are found in constant time.<br/>
+ * findDuplicate() gives the same result than comparing the query with all the
+ * indexed ones (of the same query type) :
+ * <ul>
+ * <li>if both queries have an identifier, only the identifiers are compared</li>
+ * <li>else if both have a key, only the keys are compared</li>
+ * <li>else the filenames are compared</li>
+ * </ul>
+ * So the queries are indexed in different tables depending on whether they have an
+ * identifier and / or a key. The values are the ones read when the query was
+ * (re)indexed : reindex() must be called when they change.
+ */
+public class FCPTransferIndex {
+	private final static int WITH_ID = 1;
+	private final static int WITH_KEY = 2;
+
+	/* "queryType:flags:identifier" -> queries with an identifier */
+	private final HashMap<String,LinkedList<FCPTransferQuery>> identifiers = new HashMap<String,LinkedList<FCPTransferQuery>>();
+	/* "queryType:flags:key" -> queries with a key */
+	private final HashMap<String,LinkedList<FCPTransferQuery>> keys = new HashMap<String,LinkedList<FCPTransferQuery>>();
+	/* "queryType:flags:filename" -> queries */
+	private final HashMap<String,LinkedList<FCPTransferQuery>> filenames = new HashMap<String,LinkedList<FCPTransferQuery>>();
+	/* comparable part of the key -> queries ; used by getByKey() */
+	private final HashMap<String,LinkedList<FCPTransferQuery>> comparableKeys = new HashMap<String,LinkedList<FCPTransferQuery>>();
+
+	private final IdentityHashMap<FCPTransferQuery,Entry> entries = new IdentityHashMap<FCPTransferQuery,Entry>();
+
+
+	/**
+	 * Values of a query when it was indexed.
+	 */
+	private static class Entry {
+		private final int type;
+		private final String id;
+		private final String key;
+		private final String filename;
+		private final String comparableKey;
+
+		public Entry(final FCPTransferQuery query) {
+			type = query.getQueryType();
+			id = query.getIdentifier();
+			key = query.getFileKey();
+			filename = query.getFilename();
+			comparableKey = (FreenetURIHelper.isAKey(key) ? FreenetURIHelper.getComparablePart(key) : null);
+		}
+
+		public int getFlags() {
+			return ((id != null) ? WITH_ID : 0) | ((key != null) ? WITH_KEY : 0);
+		}
+
+		public boolean isUpToDate(final FCPTransferQuery query) {
+			return equals(id, query.getIdentifier())
+				&& equals(key, query.getFileKey())
+				&& equals(filename, query.getFilename());
+		}
+
+		private static boolean equals(final String a, final String b) {
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+
+
+	public FCPTransferIndex() {
+
+	}
+
+	public synchronized void add(final FCPTransferQuery query) {
+		if (entries.containsKey(query))
+			return;
+
+		final Entry entry = new Entry(query);
+		entries.put(query, entry);
+
+		final int flags = entry.getFlags();
+
+		if (entry.id != null)
+			put(identifiers, name(entry.type, WITH_ID, entry.id), query);
+		if (entry.key != null)
+			put(keys, name(entry.type, flags & WITH_ID, entry.key), query);
+		if (entry.filename != null)
+			put(filenames, name(entry.type, flags, entry.filename), query);
+		if (entry.comparableKey != null)
+			put(comparableKeys, entry.comparableKey, query);
+	}
+
+	/**
+	 * Check and add atomically : two threads can't both add duplicates.
+	 * The query itself may already be indexed (moved from the pending queue to the running one).
+	 * @return false if another query matches it (see findDuplicate())
+	 */
+	public synchronized boolean addIfAbsent(final FCPTransferQuery query) {
+		if (findDuplicate(query) != null)
+			return false;
+
+		add(query);
+		return true;
+	}
+
+	public synchronized void remove(final FCPTransferQuery query) {
+		final Entry entry = entries.remove(query);
+
+		if (entry == null)
+			return;
+
+		final int flags = entry.getFlags();
+
+		if (entry.id != null)
+			remove(identifiers, name(entry.type, WITH_ID, entry.id), query);
+		if (entry.key != null)
+			remove(keys, name(entry.type, flags & WITH_ID, entry.key), query);
+		if (entry.filename != null)
+			remove(filenames, name(entry.type, flags, entry.filename), query);
+		if (entry.comparableKey != null)
+			remove(comparableKeys, entry.comparableKey, query);
+	}
+
+	/**
+	 * To call when the identifier, the key or the filename of an indexed query change.
+	 * Does nothing if the query is not indexed.
+	 */
+	public synchronized void reindex(final FCPTransferQuery query) {
+		final Entry entry = entries.get(query);
+
+		if (entry == null || entry.isUpToDate(query))
+			return;
+
+		remove(query);
+		add(query);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		identifiers.clear();
+		keys.clear();
+		filenames.clear();
+		comparableKeys.clear();
+	}
+
+	public synchronized boolean contains(final FCPTransferQuery query) {
+		return entries.containsKey(query);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+
+	/**
+	 * @return an indexed query (other than this one) considered as the same ; null if none
+	 */
+	public synchronized FCPTransferQuery findDuplicate(final FCPTransferQuery query) {
+		final int type = query.getQueryType();
+		final String id = query.getIdentifier();
+		final String key = query.getFileKey();
+		final String filename = query.getFilename();
+
+		FCPTransferQuery duplicate;
+
+		/* both have an identifier */
+		if (id != null
+		    && (duplicate = get(identifiers, name(type, WITH_ID, id), query)) != null)
+			return duplicate;
+
+		/* both have a key, and at most one of them has an identifier */
+		if (key != null) {
+			if ((duplicate = get(keys, name(type, 0, key), query)) != null)
+				return duplicate;
+
+			if (id == null
+			    && (duplicate = get(keys, name(type, WITH_ID, key), query)) != null)
+				return duplicate;
+		}
+
+		/* at most one has an identifier, and at most one has a key */
+		if (filename != null) {
+			for (int flags = 0 ; flags <= (WITH_ID | WITH_KEY) ; flags++) {
+				if ((id != null && (flags & WITH_ID) != 0)
+				    || (key != null && (flags & WITH_KEY) != 0))
+					continue;
+
+				if ((duplicate = get(filenames, name(type, flags, filename), query)) != null)
+					return duplicate;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the last query indexed with this key ; null if none
+	 */
+	public synchronized FCPTransferQuery getByKey(final String key) {
+		final LinkedList<FCPTransferQuery> queries = comparableKeys.get(FreenetURIHelper.getComparablePart(key));
+
+		return (queries == null) ? null : queries.getLast();
+	}
+
+	/**
+	 * @return a query indexed with this filename (whatever its type) ; null if none
+	 */
+	public synchronized FCPTransferQuery getByFilename(final String filename) {
+		if (filename == null)
+			return null;
+
+		/* transfer queries are either downloads (1) or insertions (2) */
+		for (int type = 1 ; type <= 2 ; type++) {
+			for (int flags = 0 ; flags <= (WITH_ID | WITH_KEY) ; flags++) {
+				final LinkedList<FCPTransferQuery> queries = filenames.get(name(type, flags, filename));
+
+				if (queries != null)
+					return queries.getLast();
+			}
+		}
+
+		return null;
+	}
+
+
+	private static String name(final int type, final int flags, final String value) {
+		return Integer.toString(type) + ":" + Integer.toString(flags) + ":" + value;
+	}
+
+	private static void put(final HashMap<String,LinkedList<FCPTransferQuery>> map, final String name, final FCPTransferQuery query) {
+		LinkedList<FCPTransferQuery> queries = map.get(name);
+
+		if (queries == null) {
+			queries = new LinkedList<FCPTransferQuery>();
+			map.put(name, queries);
+		}
+
+		queries.add(query);
+	}
+
+	private static void remove(final HashMap<String,LinkedList<FCPTransferQuery>> map, final String name, final FCPTransferQuery query) {
+		final LinkedList<FCPTransferQuery> queries = map.get(name);
+
+		if (queries == null)
+			return;
+
+		for (final java.util.Iterator<FCPTransferQuery> it = queries.iterator() ; it.hasNext() ; ) {
+			if (it.next() == query) {
+				it.remove();
+				break;
+			}
+		}
+
+		if (queries.isEmpty())
+			map.remove(name);
+	}
+
+	/**
+	 * @return a query of the list, other than 'query' ; null if none
+	 */
+	private static FCPTransferQuery get(final HashMap<String,LinkedList<FCPTransferQuery>> map, final String name, final FCPTransferQuery query) {
+		final LinkedList<FCPTransferQuery> queries = map.get(name);
+
+		if (queries == null)
+			return null;
+
+		for (final FCPTransferQuery q : queries) {
+			if (q != query)
+				return q;
+		}
+
+		return null;
+	}
+}
@@ -2,6 +2,7 @@ package thaw.fcp;
 
 import java.util.HashMap;
 import java.util.Observable;
+import java.util.Vector;
 
 import thaw.core.Logger;
 
@@ -31,12 +32,7 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 	private long transferedBlocks = -1;
 	private boolean reliable = false;
 
-	/* reminder to do the maths */
-	public final static int NMB_REMINDERS = 300; /* one per second, so 5 minutes here */
-	private long[] transferedBlocksPast = new long[NMB_REMINDERS];
-	private int currentReadCursor = 0; /* read Cursor in the *past arrays */
-	private int currentWriteCursor = 0; /* write Cursor in the *past arrays */
-
+	/* computed by the FCPTransferStats of the queue manager */
 	private long averageSpeed = 0;
 	private long ETA = 0;
 	
@@ -46,6 +42,16 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 	private String id;   /**< A string to uniquely identify to the client the file you are receiving.*/
 	private TransferStatus transferStatus = TransferStatus.NOT_RUNNING;
 
+	/* query managers routing the messages to this query according to its identifier */
+	private final Vector<FCPQueryManager> routers = new Vector<FCPQueryManager>();
+
+	/* queue managers having this query in their queues : warned when it starts / ends,
+	 * when it progresses, and when its identifier, its key or its priority change */
+	private final Vector<FCPQueueManager> queueManagers = new Vector<FCPQueueManager>();
+
+	/* node owning the query (where it is / will be started) ; see FCPNodePool */
+	private FCPQueryManager queryManager = null;
+
 	/**
 	 * @param id can be null if currently unknown
 	 * @param insertion
@@ -55,19 +61,107 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 		this.insertion = insertion;
 
 		reliable = insertion;
-		
-		for (int i = 0 ; i < NMB_REMINDERS ; i++) {
-			transferedBlocksPast[i] = -1;
-		}
 	}
 	
 	protected void setIdentifier(String id) {
+		final String oldId = this.id;
+
 		if (id == null || "".equals(id.trim()))
 			this.id = null;
 		else
 			this.id = id.trim();
+
+		if (oldId == null ? this.id == null : oldId.equals(this.id))
+			return;
+
+		final FCPQueryManager[] managers = routers.toArray(new FCPQueryManager[0]);
+
+		for (int i = 0 ; i < managers.length ; i++)
+			managers[i].reroute(this);
+
+		keyChanged();
+	}
+
+	/**
+	 * Must be called when the value returned by getFileKey() or getFilename() changes.
+	 */
+	protected void keyChanged() {
+		final FCPQueueManager[] managers = queueManagers.toArray(new FCPQueueManager[0]);
+
+		for (int i = 0 ; i < managers.length ; i++)
+			managers[i].reindex(this);
+	}
+
+	/**
+	 * Called when the values used to compute the stats change.
+	 */
+	private void statsChanged() {
+		final FCPQueueManager[] managers = queueManagers.toArray(new FCPQueueManager[0]);
+
+		for (int i = 0 ; i < managers.length ; i++)
+			managers[i].getTransferStats().changed(this);
+	}
+
+	/**
+	 * Must be called when the value returned by getThawPriority() changes.
+	 */
+	protected void priorityChanged() {
+		final FCPQueueManager[] managers = queueManagers.toArray(new FCPQueueManager[0]);
+
+		for (int i = 0 ; i < managers.length ; i++)
+			managers[i].priorityChanged(this);
+	}
+
+	/**
+	 * Called by FCPQueryManager when it starts routing the messages to this query.
+	 */
+	protected void addRouter(FCPQueryManager queryManager) {
+		if (!routers.contains(queryManager))
+			routers.add(queryManager);
+	}
+
+	protected void removeRouter(FCPQueryManager queryManager) {
+		routers.remove(queryManager);
 	}
 	
+	/**
+	 * Called by FCPQueueManager when the query is added to one of its queues.
+	 */
+	protected void addQueueManager(FCPQueueManager queueManager) {
+		if (!queueManagers.contains(queueManager))
+			queueManagers.add(queueManager);
+	}
+
+	protected void removeQueueManager(FCPQueueManager queueManager) {
+		queueManagers.remove(queueManager);
+	}
+
+	/**
+	 * @return the query manager of the node owning this query
+	 */
+	public FCPQueryManager getQueryManager() {
+		return queryManager;
+	}
+
+	/**
+	 * Give the query to another node. If the previous node was routing the messages
+	 * to this query, the new one will do it instead.
+	 * Must not be called while the query is running.
+	 */
+	public void setQueryManager(FCPQueryManager queryManager) {
+		final FCPQueryManager oldQueryManager = this.queryManager;
+
+		if (oldQueryManager == queryManager)
+			return;
+
+		this.queryManager = queryManager;
+
+		if (oldQueryManager != null && routers.contains(oldQueryManager)) {
+			oldQueryManager.deleteObserver((java.util.Observer)this);
+			queryManager.addObserver((java.util.Observer)this);
+		}
+	}
+
 	public String getIdentifier() {
 		return id;
 	}
@@ -79,6 +173,8 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 			transferedBlocks = transfered;
 			this.reliable = reliable || this.insertion;
 		}
+
+		statsChanged();
 	}
 
 	/**
@@ -94,113 +190,79 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 		totalBlocks = (totalBlocks >= 0 ? totalBlocks : 1);
 		transferedBlocks = (transferedBlocks >= 0 ? transferedBlocks : 1);
 		reliable = true;
+
+		statsChanged();
 	}
 
 	protected void setStatus(TransferStatus status) {
+		final boolean wasFinished = transferStatus.isFinished();
+
 		transferStatus = status;
+
+		if (wasFinished == status.isFinished())
+			return;
+
+		statsChanged();
+
+		final FCPQueueManager[] managers = queueManagers.toArray(new FCPQueueManager[0]);
+
+		for (int i = 0 ; i < managers.length ; i++)
+			managers[i].statusChanged(this);
 	}
 
+	/* The following methods are only called by FCPTransferStats, with the lock on it :
+	 * they must not take the lock on the query (deadlock with saveFileTo() & co) */
+
 	/**
-	 * Called about each second by the queueManager. Used to make the average speed and the ETA
-	 * as precise as possible
+	 * Once the transfer is finished, the average speed is computed from the startup
+	 * and completion times, and the ETA becomes the total time.
+	 * @return true if they changed
 	 */
-	protected void updateStats()
-	{
-		synchronized(this) {
-			/* computing average speed & ETA */
-			
-			if (completionTime >= 0 && startupTime >= 0 && isFinished())
-			{ /* wooch, final values ! :) */
-				long blocks = (insertion) ? totalBlocks : requiredBlocks;
-				long diffTime = (completionTime - startupTime) / 1000;
-				
-				if (blocks <= 0 || diffTime <= 0)
-					return;
-				
-				long prevAverageSpeed = averageSpeed;
-				long prevETA = ETA;
-			
-				averageSpeed = (blocks * BLOCK_SIZE) / diffTime;			
-				ETA = diffTime; /* ok, it's a little bit icky, but it does the trick :) */
-				
-				if (prevAverageSpeed != averageSpeed || prevETA != ETA)
-					notifyChange(new Long(ETA));
-				
-				return;
-			}
-			
-			
-			if (!isRunning() || isFinished())
-				return;
-			
-			if (transferedBlocks < 0)
-				return;
-
-			if (reliable && (currentReadCursor != currentWriteCursor)) {
-				if (transferedBlocksPast[currentReadCursor] < 0)
-					Logger.warning(this, "TransferedBlocksNumber < 0, shouldn't happen !");
-				
-				/* reminder : we have one second between each slot of the *Past arrays */
-				long diffTimeSec = ((currentWriteCursor < currentReadCursor) ? currentWriteCursor+NMB_REMINDERS : currentWriteCursor) - currentReadCursor;
-				long diffBlocks = transferedBlocks - transferedBlocksPast[currentReadCursor];
-				long remainingBlocks = (insertion ? (totalBlocks - transferedBlocks) : (requiredBlocks - transferedBlocks));
-				
-				//Logger.notice(this, "T: "+Long.toString(diffTimeSec)+ " ; B: "+ Long.toString(diffBlocks)+" ; R: "+Long.toString(remainingBlocks));
-				
-				
-				if (diffTimeSec <= 0 || diffBlocks <= 0 || remainingBlocks == 0) {
-					if (diffBlocks < 0)
-						Logger.warning(this, "DiffBlocks < 0, shouldn't happen !");
-					if (diffTimeSec < 0)
-						Logger.warning(this, "DiffTimeSec < 0, shouldn't happen !");
-					
-					averageSpeed = 0;
-					ETA = 0;
-				} else {
-					//averageSpeed = (diffBlocks*BLOCK_SIZE) / diffTimeSec;
-
-					double averageSpeedInBlocksPerSecond = ((double)diffBlocks) / diffTimeSec;
-					averageSpeed = (long)(((double)averageSpeedInBlocksPerSecond) * ((double)BLOCK_SIZE));
-					
-					if (averageSpeed >= 0.00000001) {
-						ETA = (long)((double)remainingBlocks / averageSpeedInBlocksPerSecond);
-						/* Logger.notice(this, "R: "+Long.toString(remainingBlocks)
-						 *		+ " ; AS: "+Double.toString(averageSpeedInBlocksPerSecond)
-						 *		+ " ; ETA: "+Long.toString(ETA));
-						 */
-						 
-					} else {
-						/*Logger.notice(this, "R: "+Long.toString(remainingBlocks)
-						 *		 					+ " ; AS: "+Double.toString(averageSpeedInBlocksPerSecond)
-						 *		 					+ " ; ETA == 0");
-						 */
-						ETA = 0;
-					}
-				}
-				
-				if (currentWriteCursor == currentReadCursor-1
-						|| (currentWriteCursor == NMB_REMINDERS-1 && currentReadCursor == 0)) {
-					/* the currentWriteCursor will push the currentReadCursor */
-					currentReadCursor++;
-					if (currentReadCursor >= NMB_REMINDERS)
-						currentReadCursor = 0;
-				}
-				
-				notifyChange();
-			}
-
-			/* updating known values */
-			
-			transferedBlocksPast[currentWriteCursor] = transferedBlocks;
+	protected boolean updateFinalStats() {
+		if (completionTime < 0 || startupTime < 0 || !isFinished())
+			return false;
 
-			currentWriteCursor++;
-			
-			if (currentWriteCursor >= NMB_REMINDERS)
-				currentWriteCursor = 0;
-		}
+		long blocks = (insertion) ? totalBlocks : requiredBlocks;
+		long diffTime = (completionTime - startupTime) / 1000;
+
+		if (blocks <= 0 || diffTime <= 0)
+			return false;
+
+		/* ok, it's a little bit icky, but it does the trick :) */
+		return setStats((blocks * BLOCK_SIZE) / diffTime, diffTime);
 	}
-	
-	
+
+	/**
+	 * @return true if the values changed
+	 */
+	protected boolean setStats(long averageSpeed, long ETA) {
+		if (this.averageSpeed == averageSpeed && this.ETA == ETA)
+			return false;
+
+		this.averageSpeed = averageSpeed;
+		this.ETA = ETA;
+
+		return true;
+	}
+
+	/**
+	 * @return -1 if unknown
+	 */
+	protected long getTransferedBlocks() {
+		return transferedBlocks;
+	}
+
+	/**
+	 * @return blocks still to transfer before the end
+	 */
+	protected long getRemainingBlocks() {
+		return (insertion ? (totalBlocks - transferedBlocks) : (requiredBlocks - transferedBlocks));
+	}
+
+	protected boolean areBlockNumbersReliable() {
+		return reliable;
+	}
+
 	/**
 	 * @return in bytes / s (0 = unknown)
 	 */
@@ -228,6 +290,7 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 	protected void setStartupTime(long startupTime)
 	{
 		this.startupTime = startupTime;
+		statsChanged();
 	}
 
 	/**
@@ -242,6 +305,7 @@ public abstract class FCPTransferQuery extends Observable implements FCPQuery {
 	protected void setCompletionTime(long time)
 	{
 		this.completionTime = time;
+		statsChanged();
 	}
 
 	/**
@@ -0,0 +1,243 @@
+package thaw.fcp;
+
+import java.util.IdentityHashMap;
+import java.util.Observable;
+import java.util.Vector;
+
+/**
+ * Computes the average speed and the ETA of the transfers of a FCPQueueManager.<br/>
+ * The speed is an exponentially weighted moving average (time constant : TIME_CONSTANT) :
+ * for each transfer, only the last number of blocks, the date of this sample and the
+ * average are kept, in arrays shared by all the transfers (one slot per transfer).<br/>
+ * tick() (called each second by the queue manager) only updates the transfers marked
+ * with changed() since the previous tick (FCPTransferQuery calls it when it receives a
+ * progress), and the idle ones every IDLE_PERIOD, so their speed decreases.
+ * The observers are then notified once, with the Vector of the transfers whose speed or ETA
+ * changed as argument : the queries themselves don't notify anything.
+ */
+public class FCPTransferStats extends Observable {
+	public final static int TIME_CONSTANT = 30000; /* ms */
+	public final static int IDLE_PERIOD = 10000; /* ms */
+
+	private final static int MIN_SAMPLE_PERIOD = 500; /* ms */
+	private final static int INITIAL_CAPACITY = 64;
+
+	/* offset == slot */
+	private FCPTransferQuery[] queries = new FCPTransferQuery[INITIAL_CAPACITY];
+	private long[] lastBlocks = new long[INITIAL_CAPACITY];
+	private long[] lastTimes = new long[INITIAL_CAPACITY]; /* -1 if no sample yet */
+	private double[] speeds = new double[INITIAL_CAPACITY]; /* blocks / s ; -1 if unknown */
+	private boolean[] dirty = new boolean[INITIAL_CAPACITY];
+
+	private int[] dirtySlots = new int[INITIAL_CAPACITY];
+	private int nmbDirtySlots = 0;
+
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int nmbFreeSlots = 0;
+	private int nmbSlots = 0; /* slots used at least once */
+
+	private final IdentityHashMap<FCPTransferQuery,Integer> slots = new IdentityHashMap<FCPTransferQuery,Integer>();
+
+	private long nextIdleCheck = 0;
+
+
+	public FCPTransferStats() {
+
+	}
+
+
+	/**
+	 * Start computing the stats of this transfer.
+	 */
+	public synchronized void register(final FCPTransferQuery query) {
+		if (slots.containsKey(query))
+			return;
+
+		int slot;
+
+		if (nmbFreeSlots > 0)
+			slot = freeSlots[--nmbFreeSlots];
+		else {
+			if (nmbSlots == queries.length)
+				grow();
+			slot = nmbSlots++;
+		}
+
+		queries[slot] = query;
+		lastBlocks[slot] = -1;
+		lastTimes[slot] = -1;
+		speeds[slot] = -1;
+
+		slots.put(query, Integer.valueOf(slot));
+
+		markDirty(slot);
+	}
+
+	public synchronized void unregister(final FCPTransferQuery query) {
+		final Integer slot = slots.remove(query);
+
+		if (slot == null)
+			return;
+
+		queries[slot.intValue()] = null;
+		freeSlots[nmbFreeSlots++] = slot.intValue();
+	}
+
+	public synchronized void clear() {
+		slots.clear();
+
+		for (int i = 0 ; i < nmbSlots ; i++) {
+			queries[i] = null;
+			dirty[i] = false;
+		}
+
+		nmbSlots = 0;
+		nmbFreeSlots = 0;
+		nmbDirtySlots = 0;
+	}
+
+	/**
+	 * The progress, the status, or the startup / completion time of the transfer changed.
+	 */
+	public synchronized void changed(final FCPTransferQuery query) {
+		final Integer slot = slots.get(query);
+
+		if (slot != null)
+			markDirty(slot.intValue());
+	}
+
+
+	/**
+	 * Update the stats of the transfers which changed since the previous call.
+	 */
+	public void tick() {
+		final Vector<FCPTransferQuery> updated = new Vector<FCPTransferQuery>();
+
+		synchronized(this) {
+			final long now = System.currentTimeMillis();
+
+			for (int i = 0 ; i < nmbDirtySlots ; i++) {
+				final int slot = dirtySlots[i];
+
+				dirty[slot] = false;
+
+				if (queries[slot] != null && update(slot, now))
+					updated.add(queries[slot]);
+			}
+
+			nmbDirtySlots = 0;
+
+			if (now >= nextIdleCheck) {
+				for (int slot = 0 ; slot < nmbSlots ; slot++) {
+					if (queries[slot] != null
+					    && speeds[slot] > 0
+					    && now - lastTimes[slot] >= IDLE_PERIOD
+					    && update(slot, now))
+						updated.add(queries[slot]);
+				}
+
+				nextIdleCheck = now + IDLE_PERIOD;
+			}
+		}
+
+		if (updated.isEmpty())
+			return;
+
+		setChanged();
+		notifyObservers(updated);
+	}
+
+
+	/**
+	 * @return true if the speed or the ETA of the transfer changed
+	 */
+	private boolean update(final int slot, final long now) {
+		final FCPTransferQuery query = queries[slot];
+
+		if (query.isFinished())
+			return query.updateFinalStats();
+
+		if (!query.isRunning())
+			return false;
+
+		final long blocks = query.getTransferedBlocks();
+
+		if (blocks < 0)
+			return false;
+
+		if (lastTimes[slot] < 0 || !query.areBlockNumbersReliable() || blocks < lastBlocks[slot]) {
+			/* first sample */
+			lastBlocks[slot] = blocks;
+			lastTimes[slot] = now;
+			return false;
+		}
+
+		final long diffTime = now - lastTimes[slot];
+
+		if (diffTime < MIN_SAMPLE_PERIOD)
+			return false; /* the next progress will give a longer sample */
+
+		final double sample = ((double)(blocks - lastBlocks[slot]) * 1000) / diffTime;
+
+		if (speeds[slot] < 0)
+			speeds[slot] = sample;
+		else
+			speeds[slot] += (1 - Math.exp(-((double)diffTime) / TIME_CONSTANT)) * (sample - speeds[slot]);
+
+		lastBlocks[slot] = blocks;
+		lastTimes[slot] = now;
+
+		final long remainingBlocks = query.getRemainingBlocks();
+		final double speed = speeds[slot];
+
+		long eta = 0;
+
+		if (speed >= 0.00000001 && remainingBlocks > 0)
+			eta = (long)(remainingBlocks / speed);
+
+		return query.setStats((long)(speed * FCPTransferQuery.BLOCK_SIZE), eta);
+	}
+
+
+	private void markDirty(final int slot) {
+		if (dirty[slot])
+			return;
+
+		dirty[slot] = true;
+		dirtySlots[nmbDirtySlots++] = slot;
+	}
+
+	private void grow() {
+		final int capacity = queries.length * 2;
+
+		final FCPTransferQuery[] newQueries = new FCPTransferQuery[capacity];
+		System.arraycopy(queries, 0, newQueries, 0, nmbSlots);
+		queries = newQueries;
+
+		lastBlocks = copyOf(lastBlocks, capacity);
+		lastTimes = copyOf(lastTimes, capacity);
+
+		final double[] newSpeeds = new double[capacity];
+		System.arraycopy(speeds, 0, newSpeeds, 0, nmbSlots);
+		speeds = newSpeeds;
+
+		final boolean[] newDirty = new boolean[capacity];
+		System.arraycopy(dirty, 0, newDirty, 0, nmbSlots);
+		dirty = newDirty;
+
+		dirtySlots = copyOf(dirtySlots, capacity);
+		freeSlots = copyOf(freeSlots, capacity);
+	}
+
+	private static long[] copyOf(final long[] array, final int capacity) {
+		final long[] result = new long[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int[] copyOf(final int[] array, final int capacity) {
+		final int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+}
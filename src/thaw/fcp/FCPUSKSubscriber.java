@@ -0,0 +1,177 @@
+package thaw.fcp;
+
+import java.util.Hashtable;
+import java.util.Observable;
+import java.util.Observer;
+
+import thaw.core.Logger;
+
+/**
+ * Subscriptions to USKs : the node watches them and tells us each time it finds
+ * a new edition (SubscribeUSK / SubscribedUSKUpdate).<br/>
+ * Only one observer of the query manager for all the subscriptions. The observers of
+ * this object are notified with the identifier of the subscription (see subscribe())
+ * when the node finds a new edition, and when the subscription fails.
+ */
+public class FCPUSKSubscriber extends Observable implements Observer {
+	public final static int STATE_PENDING = 0;    /* not acknowledged yet */
+	public final static int STATE_SUBSCRIBED = 1;
+	public final static int STATE_FAILED = 2;
+
+	private static class Subscription {
+		private final String key;
+		private int state = STATE_PENDING;
+		private int edition;
+
+		private Subscription(final String key) {
+			this.key = key;
+			this.edition = FreenetURIHelper.getUSKRevision(key);
+		}
+	}
+
+	private final FCPQueueManager queueManager;
+	private final FCPQueryManager queryManager;
+
+	/* identifier -> subscription */
+	private final Hashtable<String, Subscription> subscriptions = new Hashtable<String, Subscription>();
+
+
+	public FCPUSKSubscriber(final FCPQueueManager queueManager) {
+		this.queueManager = queueManager;
+		this.queryManager = queueManager.getQueryManager();
+
+		queryManager.addObserver(this);
+	}
+
+	/**
+	 * @param key USK@.../name/edition ; the node will report the editions after this one
+	 * @return the identifier of the subscription ; null if it can't be sent
+	 */
+	public String subscribe(final String key) {
+		if (key == null || !key.startsWith("USK@")) {
+			Logger.notice(this, "Can only subscribe to USKs : "+key);
+			return null;
+		}
+
+		final String identifier = queueManager.getAnID() + "-USK";
+
+		final FCPMessage msg = new FCPMessage();
+		msg.setMessageName("SubscribeUSK");
+		msg.setValue("URI", key);
+		msg.setValue("Identifier", identifier);
+		msg.setValue("DontPoll", "false");
+
+		subscriptions.put(identifier, new Subscription(key));
+
+		if (!queryManager.writeMessage(msg)) {
+			subscriptions.remove(identifier);
+			return null;
+		}
+
+		return identifier;
+	}
+
+	public void unsubscribe(final String identifier) {
+		if (subscriptions.remove(identifier) == null)
+			return;
+
+		final FCPMessage msg = new FCPMessage();
+		msg.setMessageName("UnsubscribeUSK");
+		msg.setValue("Identifier", identifier);
+
+		queryManager.writeMessage(msg);
+	}
+
+	/**
+	 * Unsubscribe from everything and stop listening.
+	 */
+	public void stop() {
+		queryManager.deleteObserver(this);
+
+		final String[] identifiers = subscriptions.keySet().toArray(new String[0]);
+
+		if (queryManager.getConnection().isConnected()) {
+			for (int i = 0 ; i < identifiers.length ; i++)
+				unsubscribe(identifiers[i]);
+		}
+
+		subscriptions.clear();
+	}
+
+	/**
+	 * @return STATE_* ; STATE_FAILED if unknown
+	 */
+	public int getState(final String identifier) {
+		final Subscription subscription = subscriptions.get(identifier);
+		return (subscription != null ? subscription.state : STATE_FAILED);
+	}
+
+	/**
+	 * @return the latest edition reported by the node (or the one subscribed to)
+	 */
+	public int getEdition(final String identifier) {
+		final Subscription subscription = subscriptions.get(identifier);
+		return (subscription != null ? subscription.edition : -1);
+	}
+
+	public String getKey(final String identifier) {
+		final Subscription subscription = subscriptions.get(identifier);
+		return (subscription != null ? subscription.key : null);
+	}
+
+	public int countSubscriptions() {
+		return subscriptions.size();
+	}
+
+
+	public void update(final Observable o, final Object param) {
+		final FCPMessage msg = (FCPMessage)param;
+		final String identifier = msg.getValue("Identifier");
+
+		if (identifier == null)
+			return;
+
+		final Subscription subscription = subscriptions.get(identifier);
+
+		if (subscription == null)
+			return;
+
+		if ("SubscribedUSK".equals(msg.getMessageName())) {
+			subscription.state = STATE_SUBSCRIBED;
+			return;
+		}
+
+		if ("SubscribedUSKUpdate".equals(msg.getMessageName())) {
+			try {
+				final int edition = Integer.parseInt(msg.getValue("Edition"));
+
+				if (edition <= subscription.edition)
+					return;
+
+				subscription.edition = edition;
+			} catch(final NumberFormatException e) {
+				Logger.warning(this, "Invalid edition in SubscribedUSKUpdate : "+msg.getValue("Edition"));
+				return;
+			}
+
+			subscription.state = STATE_SUBSCRIBED;
+
+			Logger.info(this, "New edition of "+subscription.key+" : "+Integer.toString(subscription.edition));
+
+			setChanged();
+			notifyObservers(identifier);
+			return;
+		}
+
+		if ("ProtocolError".equals(msg.getMessageName())
+		    || "IdentifierCollision".equals(msg.getMessageName())) {
+			Logger.notice(this, "Subscription to "+subscription.key+" refused : "
+				      +msg.getMessageName()+" "+msg.getValue("CodeDescription"));
+
+			subscription.state = STATE_FAILED;
+
+			setChanged();
+			notifyObservers(identifier);
+		}
+	}
+}
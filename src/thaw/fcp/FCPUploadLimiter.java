@@ -0,0 +1,139 @@
+package thaw.fcp;
+
+/**
+ * Token bucket limiting the upload speed. The same limiter is shared by
+ * a connection and all its duplicates, so the limit is global.
+ * Each byte sent costs one token ; tokens are given back at the configured
+ * rate, up to 'burst' tokens.
+ */
+public class FCPUploadLimiter {
+	/* when the bucket is empty, we wait until we can send at least this */
+	public final static int MIN_CHUNK = 1024;
+
+	/* default burst = this fraction of a second */
+	public final static int DEFAULT_BURST_DIVIDER = 10;
+
+	private long bytesPerSecond = -1;
+	private long burst = 0;
+	private long configuredBurst = 0; /* <= 0 : default */
+
+	private double tokens = 0;
+	private long lastRefill = 0;
+
+	private final Clock clock;
+
+
+	/**
+	 * Source of time of the limiter (replaced by the unit tests).
+	 */
+	interface Clock {
+		public long nanoTime();
+
+		/**
+		 * Wait on the monitor of the limiter (held by the caller) for at most this time.
+		 */
+		public void await(Object limiter, long nanos) throws InterruptedException;
+	}
+
+	private final static Clock SYSTEM_CLOCK = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public void await(final Object limiter, final long nanos) throws InterruptedException {
+			limiter.wait(nanos / 1000000, (int)(nanos % 1000000));
+		}
+	};
+
+
+	/**
+	 * @param bytesPerSecond <= 0 means no limit
+	 * @param burst in bytes ; <= 0 means default (a tenth of the rate)
+	 */
+	public FCPUploadLimiter(final long bytesPerSecond, final long burst) {
+		this(bytesPerSecond, burst, SYSTEM_CLOCK);
+	}
+
+	FCPUploadLimiter(final long bytesPerSecond, final long burst, final Clock clock) {
+		this.clock = clock;
+		setLimits(bytesPerSecond, burst);
+	}
+
+	/**
+	 * @param bytesPerSecond <= 0 means no limit
+	 * @param burst in bytes ; <= 0 means default (a tenth of the rate)
+	 */
+	public synchronized void setLimits(final long bytesPerSecond, final long burst) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.configuredBurst = burst;
+
+		if (burst <= 0)
+			this.burst = Math.max(bytesPerSecond / DEFAULT_BURST_DIVIDER, MIN_CHUNK);
+		else
+			this.burst = burst;
+
+		tokens = Math.min(tokens, this.burst);
+		lastRefill = clock.nanoTime();
+
+		notifyAll();
+	}
+
+	public synchronized boolean isLimited() {
+		return (bytesPerSecond > 0);
+	}
+
+	/**
+	 * @return in bytes per second ; <= 0 if no limit
+	 */
+	public synchronized long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return the burst as configured (<= 0 means default)
+	 */
+	public synchronized long getBurst() {
+		return configuredBurst;
+	}
+
+
+	private void refill() {
+		final long now = clock.nanoTime();
+
+		tokens = Math.min(burst, tokens + ((double)(now - lastRefill) * bytesPerSecond) / 1000000000.0);
+		lastRefill = now;
+	}
+
+	/**
+	 * Blocks only if no token is available.
+	 * @param wanted number of bytes we would like to send
+	 * @return number of bytes we are allowed to send right now (between 1 and wanted)
+	 */
+	public synchronized int acquire(final int wanted) {
+		if (wanted <= 0)
+			return 0;
+
+		while (bytesPerSecond > 0) {
+			refill();
+
+			if (tokens >= 1) {
+				final int granted = (int)Math.min(wanted, (long)tokens);
+				tokens -= granted;
+				return granted;
+			}
+
+			/* bucket empty : wait until we can send a reasonable amount */
+			final long needed = Math.min(Math.min(wanted, MIN_CHUNK), burst);
+			/* rounded up : enough tokens when we wake up (and wait(0, 0) would never return) */
+			final long nanos = (long)Math.ceil(((needed - tokens) * 1000000000.0) / bytesPerSecond);
+
+			try {
+				clock.await(this, nanos);
+			} catch(final InterruptedException e) {
+				/* \_o< */
+			}
+		}
+
+		return wanted;
+	}
+}
@@ -2,9 +2,13 @@ package thaw.fcp;
 
 import java.util.Observable;
 
-import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.security.MessageDigest;
 
@@ -17,7 +21,10 @@ import thaw.core.ThawRunnable;
 
 /**
  * Automatically used by FCPClientPut.
- * You shouldn't have to bother about it
+ * You shouldn't have to bother about it.
+ * Run in the group ThawThreadManager.GROUP_HASHES : the number of files hashed at the
+ * same time is bounded (change it with "threadPool.groupLimits", ex: "hashes=1" if all
+ * the files are on the same hard drive).
  */
 public class SHA256Computer extends Observable implements ThawRunnable {
 	private MessageDigest md;
@@ -26,12 +33,18 @@ public class SHA256Computer extends Observable implements ThawRunnable {
 	private final Object hashLock = new Object();
 	private final String file;
 	private final String headers;
-	private short progress = 0;
-	private boolean isFinished = false;
+	private volatile short progress = 0;
+	private volatile boolean isFinished = false;
 
 	public final static int BLOCK_SIZE = 32768; /* 32 Ko */
 
-	public boolean running = true;
+	/* the file is mapped by windows of this size */
+	public final static int MAP_SIZE = 16 * 1024 * 1024; /* 16 Mo */
+
+	/* used if the file can't be mapped */
+	public final static int READ_SIZE = 1024 * 1024; /* 1 Mo */
+
+	public volatile boolean running = true;
 
 	public SHA256Computer(String header, String fileToHash) {
 		this.file = fileToHash;
@@ -42,29 +55,22 @@ public class SHA256Computer extends Observable implements ThawRunnable {
 
 	public void run() {
 		File realFile = new File(file);
-		long realFileSize = realFile.length();
 
 		try {
 			FileInputStream in = new FileInputStream(realFile);
-			BufferedInputStream bis = new BufferedInputStream(in);
-			md = SHA256.getMessageDigest();
-			md.reset();
-			md.update(headers.getBytes("UTF-8"));
-
-			byte[] buf = new byte[4096];
-			int readBytes = bis.read(buf);
-			while(readBytes > -1 && running) {
-				md.update(buf, 0, readBytes);
-				readBytes = bis.read(buf);
-				progress = (short) Math.round(readBytes * 100 / realFileSize);
-				setChanged();
-				notifyObservers();
-			}
 
-			bis.close();
-			in.close();
+			try {
+				md = SHA256.getMessageDigest();
+				md.reset();
+				md.update(headers.getBytes("UTF-8"));
+
+				digest(in.getChannel());
+			} finally {
+				in.close();
+			}
 
 			if (!running) {
+				SHA256.returnMessageDigest(md);
 				setChanged();
 				notifyObservers();
 				return;
@@ -86,6 +92,56 @@ public class SHA256Computer extends Observable implements ThawRunnable {
 		notifyObservers();
 	}
 
+	/**
+	 * Map the file window by window ; if the file can't be mapped (special file, no more
+	 * address space, ...), read it through a direct buffer.
+	 * The observers are only notified when the progression changes (at most 100 times).
+	 */
+	private void digest(final FileChannel channel) throws IOException {
+		final long size = channel.size();
+		long position = 0;
+
+		try {
+			while (position < size && running) {
+				final long length = Math.min(MAP_SIZE, size - position);
+				final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+				md.update(window);
+				position += length;
+
+				updateProgression(position, size);
+			}
+
+			return;
+		} catch(final IOException e) {
+			Logger.notice(this, "Can't map '"+file+"', reading it instead : "+e.toString());
+		}
+
+		channel.position(position);
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+
+		while (running && channel.read(buffer) > -1) {
+			buffer.flip();
+			position += buffer.remaining();
+			md.update(buffer);
+			buffer.clear();
+
+			updateProgression(position, size);
+		}
+	}
+
+	private void updateProgression(final long readBytes, final long size) {
+		final short newProgress = (short)(size > 0 ? (readBytes * 100 / size) : 100);
+
+		if (newProgress == progress)
+			return;
+
+		progress = newProgress;
+		setChanged();
+		notifyObservers();
+	}
+
 	public void stop() {
 		running = false;
 	}
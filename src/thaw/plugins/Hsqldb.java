@@ -9,18 +9,23 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import thaw.core.Core;
+import thaw.core.HeadlessPlugin;
 import thaw.core.I18n;
 import thaw.core.LibraryPlugin;
 import thaw.core.Logger;
+import thaw.core.Metrics;
+import thaw.plugins.hsqldb.StatementTimer;
 
-public class Hsqldb extends LibraryPlugin {
+public class Hsqldb extends LibraryPlugin implements HeadlessPlugin {
 	private Core core;
 
 	public final Object dbLock;
 	private Connection connection;
+	private String url = null;
 
 	public Hsqldb() {
 		dbLock = new Object();
+		Metrics.watchLock("db.lock", dbLock);
 	}
 
 	public boolean run(final Core core) {
@@ -59,11 +64,20 @@ public class Hsqldb extends LibraryPlugin {
 		if(core.getConfig().getValue("hsqldb.url") == null)
 			core.getConfig().setValue("hsqldb.url", "jdbc:hsqldb:file:thaw.db");
 
+		connect(core.getConfig().getValue("hsqldb.url"));
+	}
+
+	/**
+	 * Can be used without Core (the driver must already be loaded).
+	 */
+	public void connect(final String url) throws java.sql.SQLException {
 		if(connection != null)
 			disconnect();
+
+		this.url = url;
 		
-		connection = DriverManager.getConnection(core.getConfig().getValue("hsqldb.url"),
-							 "sa", "");
+		/* the statements are timed (see StatementTimer) */
+		connection = StatementTimer.wrap(DriverManager.getConnection(url, "sa", ""));
 
 		try {
 		executeQuery("SET LOGSIZE 50;");
@@ -80,6 +94,26 @@ public class Hsqldb extends LibraryPlugin {
 		}
 		
 		executeQuery("SET PROPERTY \"hsqldb.nio_data_file\" FALSE");
+
+		try {
+			/* the transactions of the other connections (see openConnection())
+			 * must not block the readers of the main one */
+			executeQuery("SET DATABASE TRANSACTION CONTROL MVCC");
+		} catch (final java.sql.SQLException e) {
+			/* Older versions of HSQLDB don't lock the tables during the transactions */
+		}
+	}
+
+	/**
+	 * Open another connection to the same database, for the work needing a transaction
+	 * of its own (see thaw.plugins.index.IndexIngester). dbLock is not needed to use it ;
+	 * the caller must close it.
+	 */
+	public Connection openConnection() throws java.sql.SQLException {
+		if (url == null)
+			throw new SQLException("Not connected");
+
+		return StatementTimer.wrap(DriverManager.getConnection(url, "sa", ""));
 	}
 
 	public void disconnect() throws java.sql.SQLException {
@@ -7,7 +7,7 @@ import thaw.core.Core;
 import thaw.core.I18n;
 import thaw.gui.IconBox;
 import thaw.core.Logger;
-import thaw.core.Plugin;
+import thaw.core.HeadlessPlugin;
 import thaw.plugins.index.AutoRefresh;
 import thaw.plugins.index.DatabaseManager;
 import thaw.plugins.index.IndexBrowserPanel;
@@ -15,7 +15,7 @@ import thaw.plugins.index.IndexConfigTab;
 import thaw.plugins.index.IndexManagementHelper;
 
 
-public class IndexBrowser extends ToolbarModifier implements Plugin, ChangeListener {
+public class IndexBrowser extends ToolbarModifier implements HeadlessPlugin, ChangeListener {
 
 	/**
 	 * Thaw index is always specified first
@@ -91,6 +91,16 @@ public class IndexBrowser extends ToolbarModifier implements Plugin, ChangeListe
 
 		newDb = DatabaseManager.init(hsqldb, core.getConfig(), core.getSplashScreen());
 
+		if (core.isHeadless()) {
+			/* no tree and no tables : only the auto-refresh and the file transfers */
+			if (newDb)
+				Logger.notice(this, "New index database : the default indexes are only added when started with the GUI");
+
+			startAutoRefresh();
+
+			return true;
+		}
+
 		browserPanel = new IndexBrowserPanel(hsqldb, core);
 		setMainWindow(core.getMainWindow());
 		core.getMainWindow().getTabbedPane().addChangeListener(this);
@@ -117,6 +127,16 @@ public class IndexBrowser extends ToolbarModifier implements Plugin, ChangeListe
 						 browserPanel);
 		configPanel.addTab();
 
+		startAutoRefresh();
+
+		return true;
+	}
+
+
+	/**
+	 * browserPanel is null if headless
+	 */
+	private void startAutoRefresh() {
 		autoRefresh = null;
 
 		if (core.getConfig().getValue("indexAutoRefreshActivated") != null) {
@@ -133,8 +153,6 @@ public class IndexBrowser extends ToolbarModifier implements Plugin, ChangeListe
 
 		if (autoRefresh != null)
 			autoRefresh.start();
-
-		return true;
 	}
 
 	public IndexBrowserPanel getIndexBrowserPanel() {
@@ -152,7 +170,8 @@ public class IndexBrowser extends ToolbarModifier implements Plugin, ChangeListe
 			browserPanel.stopAllThreads();
 		}
 
-		core.getMainWindow().getTabbedPane().removeChangeListener(this);
+		if (core.getMainWindow() != null)
+			core.getMainWindow().getTabbedPane().removeChangeListener(this);
 
 		if (browserPanel != null) {
 			core.getMainWindow().removeTab(browserPanel.getPanel());
@@ -11,6 +11,7 @@ import thaw.core.Core;
 import thaw.gui.FileChooser;
 import thaw.core.I18n;
 import thaw.gui.IconBox;
+import thaw.gui.WarningWindow;
 import thaw.core.Logger;
 import thaw.core.Plugin;
 import thaw.core.ThawThread;
@@ -142,10 +143,12 @@ public class IndexExporter implements Plugin, ActionListener {
 							       indexBrowser.getIndexBrowserPanel(),
 							       core.getQueueManager());
 			} else  {
-				DatabaseManager.exportDatabase(file,
-							       indexBrowser.getIndexBrowserPanel().getDb(),
-							       indexBrowser.getIndexBrowserPanel().getIndexTree(),
-							       content);
+				if (!DatabaseManager.exportDatabase(file,
+								    indexBrowser.getIndexBrowserPanel().getDb(),
+								    indexBrowser.getIndexBrowserPanel().getIndexTree(),
+								    content))
+					new WarningWindow(core,
+							  I18n.getMessage("thaw.plugin.index.export.failed"));
 			}
 		}
 
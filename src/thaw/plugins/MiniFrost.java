@@ -16,7 +16,7 @@ import thaw.plugins.miniFrost.MiniFrostConfigTab;
 import thaw.plugins.miniFrost.RegexpBlacklist;
 
 
-public class MiniFrost implements thaw.core.Plugin, ChangeListener {
+public class MiniFrost implements thaw.core.HeadlessPlugin, ChangeListener {
 	public final static int DEFAULT_ARCHIVE_AFTER = 7; /* days */
 	public final static int DEFAULT_DELETE_AFTER  = 60; /* days */
 	public final static boolean DISPLAY_AS_TREE = true;
@@ -50,6 +50,18 @@ public class MiniFrost implements thaw.core.Plugin, ChangeListener {
 		core.getConfig().addListener("miniFrostView",                 this);
 		core.getConfig().addListener("checkbox_miniFrost_seeTree",    this);
 
+		if (core.isHeadless()) {
+			/* no panel : only the board refreshes */
+			if (!loadDeps()
+			    || !initFactories()
+			    || !cleanUp(core.getConfig()))
+				return false;
+
+			regexpBlacklist = new RegexpBlacklist(hsqldb);
+
+			return loadAutoRefresh();
+		}
+
 		if (!loadDeps()
 		    || !initFactories()
 		    || !cleanUp(core.getConfig())
@@ -164,17 +176,25 @@ public class MiniFrost implements thaw.core.Plugin, ChangeListener {
 
 
 	public boolean loadAutoRefresh() {
-		autoRefresh = new AutoRefresh(core.getConfig(),
-					      miniFrostPanel.getBoardTree());
+		autoRefresh = new AutoRefresh(core.getConfig(), factories,
+					      miniFrostPanel != null ? miniFrostPanel.getBoardTree() : null);
 		return true;
 	}
 
 	public void stop() {
-		core.getMainWindow().getTabbedPane().removeChangeListener(this);
-		
 		if (autoRefresh != null)
 			autoRefresh.stop();
 
+		if (core.isHeadless()) {
+			if (hsqldb != null)
+				hsqldb.unregisterChild(this);
+			if (wot != null)
+				wot.unregisterChild(this);
+			return;
+		}
+
+		core.getMainWindow().getTabbedPane().removeChangeListener(this);
+
 		if (miniFrostPanel != null)
 			core.getMainWindow().removeTab(miniFrostPanel.getPanel());
 		else
@@ -196,6 +216,9 @@ public class MiniFrost implements thaw.core.Plugin, ChangeListener {
 		return factories;
 	}
 
+	/**
+	 * @return null if headless
+	 */
 	public MiniFrostPanel getPanel() {
 		return miniFrostPanel;
 	}
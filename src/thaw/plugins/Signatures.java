@@ -5,6 +5,7 @@ import java.util.Vector;
 
 import thaw.core.I18n;
 import thaw.core.Core;
+import thaw.core.HeadlessPlugin;
 import thaw.core.Logger;
 import thaw.core.LibraryPlugin;
 
@@ -13,7 +14,7 @@ import thaw.gui.IconBox;
 import thaw.plugins.signatures.*;
 
 
-public class Signatures extends LibraryPlugin {
+public class Signatures extends LibraryPlugin implements HeadlessPlugin {
 	private Core core;
 	private Hsqldb db;
 	private SigConfigTab configTab;
@@ -100,6 +101,9 @@ public class Signatures extends LibraryPlugin {
 		if (core.getConfig().getValue("minTrustLevel") == null)
 			core.getConfig().setValue("minTrustLevel", Integer.toString(DEFAULT_MIN_TRUST_LEVEL));
 
+		if (core.isHeadless())
+			return true;
+
 		configTab = new SigConfigTab(core.getConfig(), core.getConfigWindow(), db);
 
 		core.getConfigWindow().addTab(I18n.getMessage("thaw.plugin.signature.signatures"),
@@ -116,8 +120,11 @@ public class Signatures extends LibraryPlugin {
 
 
 	public void stop() {
-		configTab.destroy();
-		core.getConfigWindow().removeTab(configTab.getPanel());
+		if (configTab != null) {
+			configTab.destroy();
+			core.getConfigWindow().removeTab(configTab.getPanel());
+			configTab = null;
+		}
 
 		used--;
 
@@ -20,6 +20,7 @@ import java.util.Vector;
 import thaw.core.I18n;
 import thaw.core.Core;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 
@@ -125,8 +126,7 @@ public class ThemeSelector implements thaw.core.Plugin, Observer, ListSelectionL
 		if (theme == null)
 			theme = UIManager.getSystemLookAndFeelClassName();
 
-		Thread th = new Thread(new ThawThread(new ThemeSetter(theme), "Theme setter", this));
-		th.start();
+		new ThawThread(new ThemeSetter(theme), "Theme setter", this, ThawThreadManager.GROUP_DEFAULT).start();
 	}
 
 
@@ -162,8 +162,7 @@ public class ThemeSelector implements thaw.core.Plugin, Observer, ListSelectionL
 		if (e.getFirstIndex() >= 0
 		    && themes.get(e.getFirstIndex()) != null) {
 			String[] str = ((String)themeList.getSelectedValue()).split(" ");
-			Thread th = new Thread(new ThawThread(new ThemeSetter(str[0]), "Theme setter", this));
-			th.start();
+			new ThawThread(new ThemeSetter(str[0]), "Theme setter", this, ThawThreadManager.GROUP_DEFAULT).start();
 		}
 	}
 }
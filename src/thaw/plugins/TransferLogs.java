@@ -30,6 +30,7 @@ import thaw.gui.FileChooser;
 import thaw.core.I18n;
 import thaw.core.Plugin;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 import thaw.fcp.FCPQueueManager;
@@ -158,6 +159,8 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 
 
 	protected void createTables() {
+		final boolean exists = db.tableExists("transferLogs");
+
 		sendCreateTableQuery(db,
 				"CREATE CACHED TABLE transferLogs ("
 			  + "id INTEGER IDENTITY NOT NULL,"
@@ -165,10 +168,39 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 			  + "dateEnd TIMESTAMP,"
 			  + "transferType TINYINT NOT NULL,"
 			  + "key VARCHAR(500),"
+			  + "lowerKey VARCHAR(500),"
 			  + "filename VARCHAR(128), "
 			  + "size BIGINT, " /* long */
 			  + "isDup BOOLEAN NOT NULL, "
 			  + "isSuccess BOOLEAN NOT NULL)");
+
+		if (!exists)
+			createIndexes(db);
+		else if (core.getConfig().getValue("transferLogsDatabaseVersion") == null) {
+			if (!convertDatabase_0_to_1(db))
+				return;
+		}
+
+		core.getConfig().setValue("transferLogsDatabaseVersion", "1");
+	}
+
+	/**
+	 * lowerKey : HSQLDB can't index LOWER(key), so the lower case key is stored
+	 * with the key (see isDup()).
+	 */
+	public static boolean createIndexes(Hsqldb db) {
+		return sendQuery(db, "CREATE INDEX transferLogsLowerKey ON transferLogs (lowerKey)");
+	}
+
+	protected boolean convertDatabase_0_to_1(Hsqldb db) {
+		if (!sendQuery(db, "ALTER TABLE transferLogs ADD COLUMN lowerKey VARCHAR(500) DEFAULT NULL")
+		    || !sendQuery(db, "UPDATE transferLogs SET lowerKey = LOWER(key)")
+		    || !createIndexes(db)) {
+			Logger.error(this, "Error while converting the transfer logs (0 to 1)");
+			return false;
+		}
+
+		return true;
 	}
 
 	protected boolean isDup(String key) {
@@ -182,7 +214,7 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 				PreparedStatement st;
 
 				st = db.getConnection().prepareStatement("SELECT id FROM transferLogs "+
-									 "WHERE LOWER(key) LIKE ? AND isSuccess = TRUE");
+									 "WHERE lowerKey LIKE ? AND isSuccess = TRUE");
 				st.setString(1, FreenetURIHelper.getComparablePart(key)+"%");
 				ResultSet set = st.executeQuery();
 				
@@ -248,6 +280,21 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 			if (param == null)
 				return;
 
+			if (param instanceof Vector) {
+				/* queries added in bulk */
+				for (Object added : (Vector<?>)param) {
+					if (!(added instanceof FCPTransferQuery))
+						continue;
+
+					FCPTransferQuery query = (FCPTransferQuery)added;
+
+					if (query.isRunning() && query.isPersistent())
+						new Transfer(db, query, table);
+				}
+				table.refresh();
+				return;
+			}
+
 			FCPTransferQuery query = (FCPTransferQuery)param;
 
 			if(core.getQueueManager().isInTheQueues(query)
@@ -302,9 +349,9 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 					try {
 						st = db.getConnection().prepareStatement("INSERT INTO transferLogs "+
 								"(dateStart, dateEnd, transferType,"+
-								" key, filename, size, isDup, isSuccess) "+
+								" key, lowerKey, filename, size, isDup, isSuccess) "+
 								" VALUES "+
-						"(?, ?, 0, ?, ?, NULL, ?, TRUE)");
+						"(?, ?, 0, ?, ?, ?, NULL, ?, TRUE)");
 					} catch(SQLException e) {
 						Logger.error(this, "Error while preparing to import keys : "+e.toString());
 					}
@@ -321,8 +368,9 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 								st.setTimestamp(1, date);
 								st.setTimestamp(2, date);
 								st.setString(3, key);
-								st.setString(4, FreenetURIHelper.getFilenameFromKey(key));
-								st.setBoolean(5, isDup);
+								st.setString(4, key.toLowerCase());
+								st.setString(5, FreenetURIHelper.getFilenameFromKey(key));
+								st.setBoolean(6, isDup);
 
 								st.execute();
 						} catch(SQLException e) {
@@ -417,14 +465,12 @@ public class TransferLogs implements Plugin, ActionListener, Observer {
 
 
 		if (e.getSource() == importKeys) {
-			Thread th = new Thread(new ThawThread(new KeyImporter(), "Key importer", this));
-			th.start();
+			new ThawThread(new KeyImporter(), "Key importer", this, ThawThreadManager.GROUP_DEFAULT).start();
 			return;
 		}
 
 		if (e.getSource() == exportKeys) {
-			Thread th = new Thread(new ThawThread(new KeyExporter(), "Key exporter", this));
-			th.start();
+			new ThawThread(new KeyExporter(), "Key exporter", this, ThawThreadManager.GROUP_DEFAULT).start();
 			return;
 		}
 	}
@@ -14,7 +14,7 @@ import thaw.plugins.Signatures;
 import thaw.plugins.signatures.Identity;
 import thaw.plugins.webOfTrust.*;
 
-public class WebOfTrust extends thaw.core.LibraryPlugin {
+public class WebOfTrust extends thaw.core.LibraryPlugin implements thaw.core.HeadlessPlugin {
 	private Core core;
 	private Hsqldb db;
 	private Signatures sigs;
@@ -165,14 +165,16 @@ public class WebOfTrust extends thaw.core.LibraryPlugin {
 		
 		DatabaseManager.init(db, core.getConfig(), core.getSplashScreen());
 		
-		configTab = new WebOfTrustConfigTab(core.getConfigWindow(),
-											core.getConfig(), db);
+		if (!core.isHeadless()) {
+			configTab = new WebOfTrustConfigTab(core.getConfigWindow(),
+												core.getConfig(), db);
 
-		core.getConfigWindow().addTab(I18n.getMessage("thaw.plugin.wot"),
-			      thaw.gui.IconBox.minTrust,
-			      configTab.getPanel());
+			core.getConfigWindow().addTab(I18n.getMessage("thaw.plugin.wot"),
+				      thaw.gui.IconBox.minTrust,
+				      configTab.getPanel());
 		
-		configTab.addAsObserver();
+			configTab.addAsObserver();
+		}
 		
 		if (core.getConfig().getValue("wotActivated") == null
 				|| Boolean.valueOf(core.getConfig().getValue("wotActivated")).booleanValue()) {
@@ -225,21 +227,23 @@ public class WebOfTrust extends thaw.core.LibraryPlugin {
 						return;
 					}
 					
-					PreparedStatement up = db.getConnection().prepareStatement("UPDATE wotKeys SET publicKey = ?, keyDate = ?, lastUpdate = ? WHERE id = ?");
+					PreparedStatement up = db.getConnection().prepareStatement("UPDATE wotKeys SET publicKey = ?, lowerPublicKey = ?, keyDate = ?, lastUpdate = ? WHERE id = ?");
 					up.setString(1, publicKey);
-					up.setTimestamp(2, new java.sql.Timestamp(dateOfTheKey.getTime()));
-					up.setNull(3, Types.TIMESTAMP);
-					up.setInt(4, id);
+					up.setString(2, publicKey.toLowerCase());
+					up.setTimestamp(3, new java.sql.Timestamp(dateOfTheKey.getTime()));
+					up.setNull(4, Types.TIMESTAMP);
+					up.setInt(5, id);
 					up.execute();
 					
 					up.close();
 				}
 				else
 				{
-					PreparedStatement in = db.getConnection().prepareStatement("INSERT INTO wotKeys (publicKey, keyDate, score, sigId) VALUES (?, ?, 0, ?)");
+					PreparedStatement in = db.getConnection().prepareStatement("INSERT INTO wotKeys (publicKey, lowerPublicKey, keyDate, score, sigId) VALUES (?, ?, ?, 0, ?)");
 					in.setString(1, publicKey);
-					in.setTimestamp(2, new java.sql.Timestamp(dateOfTheKey.getTime()));
-					in.setInt(3, identity.getId());
+					in.setString(2, publicKey.toLowerCase());
+					in.setTimestamp(3, new java.sql.Timestamp(dateOfTheKey.getTime()));
+					in.setInt(4, identity.getId());
 					in.execute();
 					
 					in.close();
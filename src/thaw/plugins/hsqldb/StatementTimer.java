@@ -0,0 +1,120 @@
+package thaw.plugins.hsqldb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+import thaw.core.Metrics;
+
+
+/**
+ * Wraps the JDBC connection of Hsqldb (and the statements it creates) to measure
+ * how long each SQL statement takes ("db.statement.<sql>", the literals of the
+ * query being replaced by '?', and "db.statements" for all of them).
+ * The plugins keep using the usual JDBC interfaces.
+ */
+public class StatementTimer implements InvocationHandler {
+	private final static int MAX_KEY_LENGTH = 120;
+
+	private final static Pattern STRINGS = Pattern.compile("'([^']|'')*'");
+	private final static Pattern NUMBERS = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+	private final static Pattern SPACES = Pattern.compile("\\s+");
+
+	private final static Metrics.Histogram allStatements = Metrics.histogram("db.statements");
+	private final static Metrics.HistogramFamily statements = new Metrics.HistogramFamily("db.statement");
+
+	private final Object target;
+	private Connection connection; /* proxy given to the plugins */
+	private final String key; /* null if not a prepared statement */
+
+
+	private StatementTimer(final Object target, final Connection connection, final String sql) {
+		this.target = target;
+		this.connection = connection;
+		this.key = (sql != null ? getKey(sql) : null);
+	}
+
+
+	public static Connection wrap(final Connection connection) {
+		final StatementTimer timer = new StatementTimer(connection, null, null);
+
+		timer.connection = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+								      new Class<?>[] { Connection.class },
+								      timer);
+		return timer.connection;
+	}
+
+
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		final String name = method.getName();
+
+		if (target instanceof Connection) {
+			final Object result = call(method, args);
+
+			if (result instanceof CallableStatement)
+				return wrapStatement(result, CallableStatement.class, (String)args[0]);
+			if (result instanceof PreparedStatement)
+				return wrapStatement(result, PreparedStatement.class, (String)args[0]);
+			if (result instanceof Statement)
+				return wrapStatement(result, Statement.class, null);
+
+			return result;
+		}
+
+		if ("getConnection".equals(name))
+			return connection;
+
+		if (!name.startsWith("execute"))
+			return call(method, args);
+
+		String statementKey = key;
+
+		if (args != null && args.length > 0 && args[0] instanceof String)
+			statementKey = getKey((String)args[0]);
+
+		final long startTime = System.nanoTime();
+
+		try {
+			return call(method, args);
+		} finally {
+			final long time = System.nanoTime() - startTime;
+
+			allStatements.record(time);
+			statements.get(statementKey).record(time);
+		}
+	}
+
+	private Object wrapStatement(final Object statement, final Class<?> type, final String sql) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+					      new StatementTimer(statement, connection, sql));
+	}
+
+	private Object call(final Method method, final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch(final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+
+	/**
+	 * "SELECT a FROM b WHERE c = 'd' AND e = 5" => "SELECT a FROM b WHERE c = ? AND e = ?"
+	 */
+	protected static String getKey(String sql) {
+		sql = STRINGS.matcher(sql).replaceAll("?");
+		sql = NUMBERS.matcher(sql).replaceAll("?");
+		sql = SPACES.matcher(sql).replaceAll(" ").trim();
+
+		if (sql.length() > MAX_KEY_LENGTH)
+			sql = sql.substring(0, MAX_KEY_LENGTH);
+
+		return sql;
+	}
+}
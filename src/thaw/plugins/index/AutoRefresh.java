@@ -3,22 +3,37 @@ package thaw.plugins.index;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
 
 import thaw.core.Config;
 import thaw.core.Logger;
 import thaw.core.ThawThread;
 import thaw.core.ThawRunnable;
 import thaw.fcp.FCPQueueManager;
+import thaw.fcp.FCPUSKSubscriber;
+import thaw.fcp.FreenetURIHelper;
 import thaw.plugins.Hsqldb;
 
+/**
+ * Keep the indexes up to date.<br/>
+ * If "indexSubscriptions" is true (default), the auto-refresher subscribes to the USK of each
+ * index (see FCPUSKSubscriber) and an index is only downloaded when the node reports a new
+ * edition. The indexes without working subscription (not acknowledged yet, refused by the
+ * node, ...) are polled : every sub-interval, the index checked the least recently is
+ * downloaded (see the column 'lastCheck' of the table 'indexes').
+ */
 public class AutoRefresh implements ThawRunnable, java.util.Observer {
 
 	public final static boolean DEFAULT_ACTIVATED = true;
+	public final static boolean DEFAULT_SUBSCRIPTIONS = true;
 	public final static int DEFAULT_INTERVAL = 150;
 	public final static int DEFAULT_INDEX_NUMBER = 10;
 
 	private final Hsqldb db;
-	private IndexBrowserPanel browserPanel;
+	private IndexBrowserPanel browserPanel; /* null if headless */
 	private Config config;
 
 	private boolean threadRunning;
@@ -31,6 +46,21 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 
 	private FCPQueueManager queueManager;
 
+	/* indexes updated by this auto-refresher (only used if headless) */
+	private final Vector<Index> updatingIndexes = new Vector<Index>();
+
+	/* null if the subscriptions are disabled */
+	private FCPUSKSubscriber subscriber = null;
+	/* index id -> identifier of its subscription */
+	private final Hashtable<Integer, String> subscriptions = new Hashtable<Integer, String>();
+	/* identifier of a subscription -> index id */
+	private final Hashtable<String, Integer> subscribedIndexes = new Hashtable<String, Integer>();
+	/* new editions reported by the node, not downloaded yet (index ids) */
+	private final Vector<Integer> newEditions = new Vector<Integer>();
+
+	/**
+	 * @param indexBrowser null if headless
+	 */
 	public AutoRefresh(Hsqldb db, IndexBrowserPanel indexBrowser, FCPQueueManager queueManager, Config config) {
 		this.browserPanel = indexBrowser;
 		this.queueManager = queueManager;
@@ -54,6 +84,12 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 			nmbIndexesPerInterval = 0;
 		}
 
+		if (config.getValue("indexSubscriptions") != null ?
+		    Boolean.valueOf(config.getValue("indexSubscriptions")).booleanValue() : DEFAULT_SUBSCRIPTIONS) {
+			subscriber = new FCPUSKSubscriber(queueManager);
+			subscriber.addObserver(this);
+		}
+
 		if (interval == 0)
 			interval = DEFAULT_INTERVAL;
 		if (nmbIndexesPerInterval == 0)
@@ -83,60 +119,202 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 	}
 
 
+	private int numberOfUpdatingIndexes() {
+		if (browserPanel != null)
+			return browserPanel.getIndexTree().numberOfUpdatingIndexes();
+
+		for (final Iterator<Index> it = updatingIndexes.iterator() ; it.hasNext() ;) {
+			if (!it.next().isDownloading())
+				it.remove();
+		}
+
+		return updatingIndexes.size();
+	}
+
+	/**
+	 * Subscribe to the USKs of all the indexes not subscribed yet.
+	 */
+	private void subscribeAll() {
+		final Vector<Integer> ids = new Vector<Integer>();
+		final Vector<String> keys = new Vector<String>();
+
+		try {
+			synchronized(db.dbLock) {
+				final PreparedStatement st = db.getConnection().prepareStatement("SELECT id, publicKey "+
+												 "FROM indexes "+
+												 "WHERE privateKey IS NULL OR revision > 0");
+				final ResultSet results = st.executeQuery();
+
+				while (results.next()) {
+					ids.add(Integer.valueOf(results.getInt("id")));
+					keys.add(results.getString("publicKey"));
+				}
+
+				st.close();
+			}
+		} catch(java.sql.SQLException e) {
+			Logger.error(this, "Can't list the indexes to subscribe to their USK : "+e.toString());
+			return;
+		}
+
+		for (int i = 0 ; i < ids.size() ; i++)
+			subscribe(ids.get(i).intValue(), keys.get(i));
+
+		Logger.info(this, Integer.toString(subscriber.countSubscriptions())+" index subscriptions");
+	}
+
+	private void subscribe(final int indexId, String key) {
+		final Integer id = Integer.valueOf(indexId);
+
+		if (subscriptions.containsKey(id) || key == null || !key.startsWith("USK@"))
+			return;
+
+		/* negative editions (see Index.realDownloadFromFreenet()) */
+		final int rev = FreenetURIHelper.getUSKRevision(key);
+
+		if (rev < 0)
+			key = FreenetURIHelper.changeUSKRevision(key, -rev, 0);
+
+		final String identifier = subscriber.subscribe(key);
+
+		if (identifier != null) {
+			subscriptions.put(id, identifier);
+			subscribedIndexes.put(identifier, id);
+		}
+	}
+
+	private void setLastCheck(final int indexId) {
+		try {
+			synchronized(db.dbLock) {
+				final PreparedStatement st = db.getConnection().prepareStatement("UPDATE indexes "+
+												 "SET lastCheck = ? "+
+												 "WHERE id = ?");
+				st.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+				st.setInt(2, indexId);
+				st.execute();
+				st.close();
+			}
+		} catch(java.sql.SQLException e) {
+			Logger.error(this, "Can't update the date of the last check of an index : "+e.toString());
+		}
+	}
+
+	/**
+	 * @return "AND id NOT IN (...) " with the indexes watched by the node ; "" if none
+	 */
+	private String getSubscribedExclusion() {
+		if (subscriber == null)
+			return "";
+
+		final StringBuilder ids = new StringBuilder();
+
+		synchronized(subscriptions) {
+			for (final Iterator<Integer> it = subscriptions.keySet().iterator() ; it.hasNext() ;) {
+				final Integer id = it.next();
+
+				if (subscriber.getState(subscriptions.get(id)) != FCPUSKSubscriber.STATE_SUBSCRIBED)
+					continue;
+
+				if (ids.length() > 0)
+					ids.append(", ");
+
+				ids.append(id.toString());
+			}
+		}
+
+		if (ids.length() == 0)
+			return "";
+
+		return "AND id NOT IN ("+ids.toString()+") ";
+	}
+
+	/**
+	 * Update the index with a new edition reported by the node, or else the index not
+	 * watched by the node and checked the least recently.
+	 * @return id of the index updated ; -1 if none ; -2 if the database is unusable
+	 */
 	public int updateNext(int lastIdx) {
-		if (browserPanel.getIndexTree().numberOfUpdatingIndexes() >= nmbIndexesPerInterval) {
+		if (numberOfUpdatingIndexes() >= nmbIndexesPerInterval) {
 			Logger.debug(this, "Too many indexes are updating ; won't auto-update another one");
 			return lastIdx;
 		}
 
+		Integer newEdition = null;
+
+		synchronized(newEditions) {
+			if (!newEditions.isEmpty())
+				newEdition = newEditions.remove(0);
+		}
+
+		final String exclusion = (newEdition == null ? getSubscribedExclusion() : "");
+
 		try {
 			synchronized(db.dbLock) {
 				Connection c = db.getConnection();
 				PreparedStatement st;
 				ResultSet results;
-				int ret;
 
-				st = c.prepareStatement("SELECT id, originalName, displayName, "+
-							"       publicKey, privateKey, publishPrivateKey, "+
-							"       author, positionInTree, revision, "+
-							"       insertionDate "+
-							"FROM indexes ORDER by RAND() LIMIT 1");
+				/* we don't download the indexes we are inserting */
+				if (newEdition != null) {
+					st = c.prepareStatement("SELECT id, originalName, displayName, "+
+								"       publicKey, privateKey, publishPrivateKey, "+
+								"       author, positionInTree, revision, "+
+								"       insertionDate "+
+								"FROM indexes "+
+								"WHERE id = ? AND (privateKey IS NULL OR revision > 0)");
+					st.setInt(1, newEdition.intValue());
+				} else {
+					/* the indexes watched by the node are excluded here rather than
+					 * skipped one by one : only one row is read (see the index
+					 * indexesLastCheck) */
+					st = c.prepareStatement("SELECT id, originalName, displayName, "+
+								"       publicKey, privateKey, publishPrivateKey, "+
+								"       author, positionInTree, revision, "+
+								"       insertionDate "+
+								"FROM indexes "+
+								"WHERE (privateKey IS NULL OR revision > 0) "+
+								exclusion+
+								"ORDER BY lastCheck LIMIT 1"); /* never checked (NULL) first */
+				}
 
 				results = st.executeQuery();
-	
 
-				if (results == null || !results.next()) {
+				if (!results.next()) {
 					st.close();
 					return -1;
 				}
 
-				ret = results.getInt("id");
+				final int ret = results.getInt("id");
+
+				Logger.debug(this, (newEdition != null ? "New edition" : "Polling")+" -> updating index "+
+					     Integer.toString(ret));
 
-				Index index;
+				final Index index = new Index(db,
+							      config,
+							      ret,
+							      null, results.getString("publicKey"),
+							      results.getInt("revision"),
+							      results.getString("privateKey"),
+							      results.getBoolean("publishPrivateKey"),
+							      results.getString("displayName"),
+							      results.getDate("insertionDate"),
+							      false, false);
 
-				if (results.getString("privateKey") == null
-					|| results.getInt("revision") > 0) {
+				if (subscriber != null)
+					subscribe(ret, results.getString("publicKey"));
 
-					Logger.debug(this, "Index unavailable on freenet -> not updated");
+				st.close();
 
-					index = new Index(browserPanel.getDb(),
-							  config,
-							  results.getInt("id"),
-							  null, results.getString("publicKey"),
-							  results.getInt("revision"),
-							  results.getString("privateKey"),
-							  results.getBoolean("publishPrivateKey"),
-							  results.getString("displayName"),
-							  results.getDate("insertionDate"),
-							  false, false);
+				setLastCheck(ret);
 
+				if (browserPanel != null) {
 					index.downloadFromFreenet(this, browserPanel.getIndexTree(), queueManager);
-
 					browserPanel.getIndexTree().redraw();
+				} else {
+					index.downloadFromFreenet(null, null, queueManager);
+					updatingIndexes.add(index);
 				}
 
-				st.close();
-
 				return ret;
 			}
 		} catch(java.sql.SQLException e) {
@@ -147,6 +325,20 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 
 
 	public void update(java.util.Observable o, Object param) {
+		if (o == subscriber) {
+			final Integer id = subscribedIndexes.get((String)param);
+
+			if (id != null
+			    && subscriber.getState((String)param) == FCPUSKSubscriber.STATE_SUBSCRIBED) {
+				synchronized(newEditions) {
+					if (!newEditions.contains(id))
+						newEditions.add(id);
+				}
+			}
+
+			/* else the subscription failed : the index will be polled */
+			return;
+		}
 
 		browserPanel.getIndexTree().redraw(((Index)o).getTreePath(browserPanel.getIndexTree()));
 
@@ -163,6 +355,7 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 
 	public void run() {
 		int lastIdx = -1;
+		boolean subscribed = false;
 
 		while(threadRunning) {
 			try {
@@ -174,6 +367,12 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 			if (!threadRunning)
 				break;
 
+			/* the queue is loaded once the node has answered our ClientHello */
+			if (subscriber != null && !subscribed && queueManager.isQueueCompletlyLoaded()) {
+				subscribeAll();
+				subscribed = true;
+			}
+
 			for (int i = 0 ; i < nmbIndexesPerSubInterval ; i++) {
 				lastIdx = updateNext(lastIdx);
 
@@ -188,6 +387,11 @@ public class AutoRefresh implements ThawRunnable, java.util.Observer {
 	public void stop() {
 		if (threadRunning)
 			threadRunning = false;
+
+		if (subscriber != null) {
+			subscriber.deleteObserver(this);
+			subscriber.stop();
+		}
 	}
 
 
@@ -240,7 +240,7 @@ public class BlackList implements ActionListener {
 				PreparedStatement st;
 
 				st = db.getConnection().prepareStatement("SELECT id, publicKey FROM indexBlackList WHERE "+
-									 "LOWER(publicKey) LIKE ? LIMIT 1");
+									 "lowerPublicKey LIKE ? LIMIT 1");
 				st.setString(1, FreenetURIHelper.getComparablePart(key) +"%");
 
 				ResultSet res = st.executeQuery();
@@ -282,10 +282,11 @@ public class BlackList implements ActionListener {
 
 		try {
 			synchronized(db.dbLock) {
-				PreparedStatement st = db.getConnection().prepareStatement("INSERT INTO indexBlackList (publicKey, name) VALUES (?, ?)");
+				PreparedStatement st = db.getConnection().prepareStatement("INSERT INTO indexBlackList (publicKey, name, lowerPublicKey) VALUES (?, ?, ?)");
 
 				st.setString(1, key);
 				st.setString(2, Index.getNameFromKey(key));
+				st.setString(3, key.toLowerCase());
 				st.execute();
 				st.close();
 
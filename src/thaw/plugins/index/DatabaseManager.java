@@ -1,7 +1,10 @@
 package thaw.plugins.index;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -9,20 +12,14 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-/* DOM */
+/* StAX */
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /* SAX */
@@ -91,7 +88,7 @@ public class DatabaseManager {
 
 		if (config.getValue("indexDatabaseVersion") == null) {
 			newDb = true;
-			config.setValue("indexDatabaseVersion", "10");
+			config.setValue("indexDatabaseVersion", "13");
 		} else {
 
 			/* CONVERTIONS */
@@ -162,12 +159,39 @@ public class DatabaseManager {
 					config.setValue("indexDatabaseVersion", "10");
 			}
 
+			if ("10".equals(config.getValue("indexDatabaseVersion"))) {
+				if (splashScreen != null)
+					splashScreen.setStatus("Converting database ...");
+				if (convertDatabase_10_to_11(db))
+					config.setValue("indexDatabaseVersion", "11");
+			}
+
+			if ("11".equals(config.getValue("indexDatabaseVersion"))) {
+				if (splashScreen != null)
+					splashScreen.setStatus("Indexing database ...");
+				if (convertDatabase_11_to_12(db))
+					config.setValue("indexDatabaseVersion", "12");
+			}
+
+			if ("12".equals(config.getValue("indexDatabaseVersion"))) {
+				if (splashScreen != null)
+					splashScreen.setStatus("Indexing file names ...");
+				if (convertDatabase_12_to_13(db))
+					config.setValue("indexDatabaseVersion", "13");
+			}
+
 			/* ... */
 		}
 
 
 		createTables(db);
 
+		if (newDb) {
+			createIndexes(db);
+			createLastCheckIndex(db);
+			createTermIndexes(db);
+		}
+
 		if (splashScreen != null)
 			splashScreen.setStatus("Cleaning up categories ...");
 		cleanUpCategories(db);
@@ -239,7 +263,7 @@ public class DatabaseManager {
 				PreparedStatement updateLink;
 
 				selectLinks = db.getConnection().prepareStatement("SELECT id, publicKey FROM links WHERE category IS NULL");
-				selectIndex = db.getConnection().prepareStatement("SELECT categoryId FROM indexes wHERE LOWER(publicKey) LIKE ? LIMIT 1");
+				selectIndex = db.getConnection().prepareStatement("SELECT categoryId FROM indexes WHERE lowerPublicKey LIKE ? LIMIT 1");
 				updateLink = db.getConnection().prepareStatement("UPDATE links SET category = ? WHERE id = ?");
 				
 				ResultSet linksWithoutCategory = selectLinks.executeQuery();
@@ -305,6 +329,7 @@ public class DatabaseManager {
 			  + "originalName VARCHAR(255) NOT NULL, "
 			  + "displayName VARCHAR(255) DEFAULT NULL, "
 			  + "publicKey VARCHAR(255) NOT NULL, "
+			  + "lowerPublicKey VARCHAR(255) DEFAULT NULL, " /* LOWER(publicKey), indexed */
 			  + "privateKey VARCHAR(255) DEFAULT NULL, "
 			  + "publishPrivateKey BOOLEAN DEFAULT FALSE NOT NULL, "
 			  + "author VARCHAR(255) DEFAULT NULL, "
@@ -314,6 +339,7 @@ public class DatabaseManager {
 			  + "categoryId INTEGER DEFAULT NULL, "
 			  + "newRev BOOLEAN DEFAULT FALSE NOT NULL, "
 			  + "newComment BOOLEAN DEFAULT FALSE NOT NULL, "
+			  + "lastCheck TIMESTAMP DEFAULT NULL, " /* last auto-refresh */
 			  + "parent INTEGER, " /* direct parent */
 			  + "FOREIGN KEY (parent) REFERENCES indexFolders (id), "
 			  + "FOREIGN KEY (categoryId) REFERENCES categories (id))");
@@ -384,6 +410,7 @@ public class DatabaseManager {
 			  "CREATE CACHED TABLE indexBlackList ("
 			  + "id INTEGER IDENTITY NOT NULL,"
 			  + "publicKey VARCHAR(350) NOT NULL,"
+			  + "lowerPublicKey VARCHAR(350) DEFAULT NULL," /* LOWER(publicKey), indexed */
 			  + "name VARCHAR(255) NOT NULL)");
 
 		sendCreateTableQuery(db,
@@ -415,6 +442,65 @@ public class DatabaseManager {
 			  + "rev INTEGER NOT NULL,"
 			  + "indexId INTEGER NOT NULL,"
 			  + "FOREIGN KEY (indexId) REFERENCES indexes (id))");
+
+		createTermTables(db);
+	}
+
+	/**
+	 * Inverted index of the file names and link names (see TermIndex)
+	 */
+	private static void createTermTables(final Hsqldb db) {
+		sendCreateTableQuery(db,
+			  "CREATE CACHED TABLE fileTerms ("
+			  + "term VARCHAR(64) NOT NULL,"
+			  + "fileId INTEGER NOT NULL,"
+			  + "FOREIGN KEY (fileId) REFERENCES files (id) ON DELETE CASCADE)");
+
+		sendCreateTableQuery(db,
+			  "CREATE CACHED TABLE linkTerms ("
+			  + "term VARCHAR(64) NOT NULL,"
+			  + "linkId INTEGER NOT NULL,"
+			  + "FOREIGN KEY (linkId) REFERENCES links (id) ON DELETE CASCADE)");
+	}
+
+	/**
+	 * The searches are prefix searches (term >= 'word' AND term < 'wore'), using these indexes.
+	 */
+	public static boolean createTermIndexes(final Hsqldb db) {
+		boolean b = sendQuery(db, "CREATE INDEX fileTermsTerm ON fileTerms (term)");
+		boolean c = sendQuery(db, "CREATE INDEX linkTermsTerm ON linkTerms (term)");
+
+		return b & c;
+	}
+
+
+	/**
+	 * Secondary indexes used by the browser. The columns referencing another table
+	 * (FOREIGN KEY : files.indexParent, links.indexParent, ...) are already indexed
+	 * by Hsqldb.
+	 * The lookups by key use the lower-case copies of the keys (lowerPublicKey LIKE ?)
+	 * because Hsqldb can't index LOWER(publicKey).
+	 */
+	public static boolean createIndexes(final Hsqldb db) {
+		boolean b = true;
+
+		b &= sendQuery(db, "CREATE INDEX indexParentsFolderId ON indexParents (folderId)");
+		b &= sendQuery(db, "CREATE INDEX indexParentsIndexId ON indexParents (indexId)");
+		b &= sendQuery(db, "CREATE INDEX folderParentsFolderId ON folderParents (folderId)");
+		b &= sendQuery(db, "CREATE INDEX folderParentsParentId ON folderParents (parentId)");
+		b &= sendQuery(db, "CREATE INDEX indexesLowerPublicKey ON indexes (lowerPublicKey)");
+		b &= sendQuery(db, "CREATE INDEX indexesParent ON indexes (parent, positionInTree)");
+		b &= sendQuery(db, "CREATE INDEX indexBlackListLowerPublicKey ON indexBlackList (lowerPublicKey)");
+
+		return b;
+	}
+
+
+	/**
+	 * Used by the auto-refresher to find the index checked the least recently (see AutoRefresh.updateNext()).
+	 */
+	public static boolean createLastCheckIndex(final Hsqldb db) {
+		return sendQuery(db, "CREATE INDEX indexesLastCheck ON indexes (lastCheck)");
 	}
 
 
@@ -424,6 +510,9 @@ public class DatabaseManager {
 		sendQuery(db, "DROP TABLE metadatas");
 		sendQuery(db, "DROP TABLE metadataNames");
 
+		sendQuery(db, "DROP TABLE fileTerms");
+		sendQuery(db, "DROP TABLE linkTerms");
+
 		sendQuery(db, "DROP TABLE files");
 		sendQuery(db, "DROP TABLE links");
 
@@ -543,75 +632,78 @@ public class DatabaseManager {
 	}
 
 
-	public static void exportDatabase(java.io.File dest, Hsqldb db, IndexTree indexTree, boolean withContent) {
+	/**
+	 * The indexes (and their content) are written while they are read from the database
+	 * (see IndexTreeNode.do_export()) : the memory used doesn't depend on the size of the database.
+	 * The export is written in a temporary file, renamed to dest only if it's complete.
+	 * @param dest compressed with gzip if its name ends with ".gz"
+	 * @return false if the export failed (dest is then left untouched)
+	 */
+	public static boolean exportDatabase(java.io.File dest, Hsqldb db, IndexTree indexTree, boolean withContent) {
 		//int nmbIndexes = getNmbIndexes(db);
 
 
 		Logger.info(new DatabaseManager(), "Generating export ...");
 
-		FileOutputStream outputStream;
-
-		try {
-			outputStream = new FileOutputStream(dest);
-		} catch(final java.io.FileNotFoundException e) {
-			Logger.warning(new DatabaseManager(), "Unable to create file '"+dest.toString()+"' ! not generated !");
-			return;
-		}
-
-		final StreamResult streamResult = new StreamResult(outputStream);
-		Document xmlDoc;
+		final java.io.File tmp = new java.io.File(dest.getPath()+".tmp");
 
-		final DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder xmlBuilder;
+		OutputStream outputStream;
 
 		try {
-			xmlBuilder = xmlFactory.newDocumentBuilder();
-		} catch(final javax.xml.parsers.ParserConfigurationException e) {
-			Logger.error(new DatabaseManager(), "Unable to generate the index because : "+e.toString());
-			return;
-		}
-
-		final DOMImplementation impl = xmlBuilder.getDOMImplementation();
+			outputStream = new BufferedOutputStream(new FileOutputStream(tmp));
 
-		xmlDoc = impl.createDocument(null, "indexDatabase", null);
-
-		final Element rootEl = xmlDoc.getDocumentElement();
-
-
-		rootEl.appendChild(indexTree.getRoot().do_export(xmlDoc, withContent));
+			if (dest.getName().toLowerCase().endsWith(".gz"))
+				outputStream = new GZIPOutputStream(outputStream);
+		} catch(final java.io.IOException e) {
+			Logger.warning(new DatabaseManager(), "Unable to create file '"+tmp.toString()+"' ! not generated ! : "+e.toString());
+			tmp.delete();
+			return false;
+		}
 
+		boolean ok = true;
 
-		/* Serialization */
-		final DOMSource domSource = new DOMSource(xmlDoc);
-		final TransformerFactory transformFactory = TransformerFactory.newInstance();
+		try {
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
 
-		Transformer serializer;
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("indexDatabase");
 
-		try {
-			serializer = transformFactory.newTransformer();
-		} catch(final javax.xml.transform.TransformerConfigurationException e) {
-			Logger.error(new DatabaseManager(), "Unable to save index because: "+e.toString());
-			return;
-		}
+			indexTree.getRoot().do_export(writer, withContent);
 
-		serializer.setOutputProperty(OutputKeys.ENCODING,"UTF-8");
-		serializer.setOutputProperty(OutputKeys.INDENT,"yes");
+			writer.writeEndElement();
+			writer.writeEndDocument();
 
-		/* final step */
-		try {
-			serializer.transform(domSource, streamResult);
-		} catch(final javax.xml.transform.TransformerException e) {
+			writer.flush();
+			writer.close();
+		} catch(final XMLStreamException e) {
 			Logger.error(new DatabaseManager(), "Unable to save index because: "+e.toString());
-			return;
+			ok = false;
 		}
 
 		try {
+			/* also writes the end of the gzip stream */
 			outputStream.close();
 		} catch(IOException e) {
-			Logger.warning(new DatabaseManager(), "Can't close the export file cleanly");	
+			Logger.error(new DatabaseManager(), "Can't close the export file cleanly : "+e.toString());
+			ok = false;
 		}
-		
+
+		/* renameTo() doesn't replace an existing file on all the platforms */
+		if (ok && !tmp.renameTo(dest)
+		    && (!dest.delete() || !tmp.renameTo(dest))) {
+			Logger.error(new DatabaseManager(), "Unable to rename '"+tmp.getPath()+"' to '"+dest.getPath()+"'");
+			ok = false;
+		}
+
+		if (!ok) {
+			tmp.delete();
+			Logger.warning(new DatabaseManager(), "Export failed : '"+dest.getPath()+"' not written");
+			return false;
+		}
+
 		Logger.info(new DatabaseManager(), "Export done");
+
+		return true;
 	}
 
 
@@ -682,6 +774,15 @@ public class DatabaseManager {
 		 */
 		private IndexParser.IndexHandler indexHandler = null;
 
+		/**
+		 * Must be called if the parsing fails (see IndexParser.IndexHandler.abort())
+		 */
+		public void abort() {
+			if (indexHandler != null)
+				indexHandler.abort();
+			indexHandler = null;
+		}
+
 
 		/**
 		 * Called when the parsed find an opening tag
@@ -829,10 +930,21 @@ public class DatabaseManager {
 		Logger.info(new DatabaseManager(), "Importing ...");
 
 		try {
-			input = new FileInputStream(source);
+			input = new BufferedInputStream(new FileInputStream(source));
+
+			/* exports compressed with gzip (see exportDatabase()) */
+			input.mark(2);
+			final boolean gzip = (input.read() == 0x1f && input.read() == 0x8b);
+			input.reset();
+
+			if (gzip)
+				input = new GZIPInputStream(input);
 		} catch(final java.io.FileNotFoundException e) {
 			Logger.error(new DatabaseManager(), "Unable to load XML: FileNotFoundException ('"+source.getPath()+"') ! : "+e.toString());
 			return;
+		} catch(final java.io.IOException e) {
+			Logger.error(new DatabaseManager(), "Unable to load XML: IOException ('"+source.getPath()+"') ! : "+e.toString());
+			return;
 		}
 
 
@@ -853,6 +965,8 @@ public class DatabaseManager {
 				Logger.error(new DatabaseManager(), "Error (2) while importing database : "+e.toString());
 			} catch(java.io.IOException e) {
 				Logger.error(new DatabaseManager(), "Error (3) while importing database : "+e.toString());
+			} finally {
+				handler.abort();
 			}
 		}
 
@@ -1214,4 +1328,38 @@ public class DatabaseManager {
 		return true;
 
 	}
+
+	public static boolean convertDatabase_10_to_11(Hsqldb db) {
+		if (!sendQuery(db, "ALTER TABLE indexes ADD COLUMN lastCheck TIMESTAMP DEFAULT NULL")
+		    || !createLastCheckIndex(db)) {
+			Logger.error(new DatabaseManager(), "Error while converting the database (10 to 11) !");
+			return false;
+		}
+
+		return true;
+	}
+
+	public static boolean convertDatabase_11_to_12(Hsqldb db) {
+		if (!sendQuery(db, "ALTER TABLE indexes ADD COLUMN lowerPublicKey VARCHAR(255) DEFAULT NULL")
+		    || !sendQuery(db, "UPDATE indexes SET lowerPublicKey = LOWER(publicKey)")
+		    || !sendQuery(db, "ALTER TABLE indexBlackList ADD COLUMN lowerPublicKey VARCHAR(350) DEFAULT NULL")
+		    || !sendQuery(db, "UPDATE indexBlackList SET lowerPublicKey = LOWER(publicKey)")
+		    || !createIndexes(db)) {
+			Logger.error(new DatabaseManager(), "Error while converting the database (11 to 12) !");
+			return false;
+		}
+
+		return true;
+	}
+
+	public static boolean convertDatabase_12_to_13(Hsqldb db) {
+		createTermTables(db);
+
+		if (!createTermIndexes(db) || !TermIndex.indexAll(db)) {
+			Logger.error(new DatabaseManager(), "Error while converting the database (12 to 13) !");
+			return false;
+		}
+
+		return true;
+	}
 }
@@ -16,6 +16,7 @@ import thaw.gui.FileChooser;
 import thaw.core.I18n;
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.fcp.FCPQueueManager;
 import thaw.fcp.FCPTransferQuery;
@@ -45,8 +46,7 @@ public class FileManagementHelper {
 
 		public void actionPerformed(ActionEvent e) {
 			if (e.getSource() == src) {
-				Thread th = new Thread(new ThawThread(this, "Action replier", this));
-				th.start();
+				new ThawThread(this, "Action replier", this, ThawThreadManager.GROUP_DEFAULT).start();
 			}
 		}
 
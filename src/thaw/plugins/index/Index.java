@@ -18,8 +18,8 @@ import javax.swing.tree.TreeNode;
 
 import javax.swing.tree.TreePath;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 
@@ -49,6 +49,10 @@ public class Index extends Observable implements MutableTreeNode,
 
 	private final static long MAX_SIZE = 5242880; /* 5MB */
 
+	/* visitFileList() / visitLinkList() : rows read per query ; db.dbLock is released
+	 * while the visitor processes them */
+	public final static int VISIT_CHUNK_SIZE = 500;
+
 
 	private final Hsqldb db;
 	private int id;
@@ -525,11 +529,12 @@ public class Index extends Observable implements MutableTreeNode,
 				PreparedStatement st;
 
 				st = db.getConnection().prepareStatement("UPDATE indexes "+
-									 "SET publicKey = ?, revision = ? "+
+									 "SET publicKey = ?, revision = ?, lowerPublicKey = ? "+
 									 "WHERE id = ?");
 				st.setString(1, publicKey);
 				st.setInt(2, rev);
-				st.setInt(3, id);
+				st.setString(3, publicKey.toLowerCase());
+				st.setInt(4, id);
 
 				st.execute();
 				st.close();
@@ -836,6 +841,9 @@ public class Index extends Observable implements MutableTreeNode,
 	private boolean fetchingNegRev = false;
 	private boolean mustFetchNegRev = false;
 
+	/* last download started (used to know if the index is updating when there is no IndexTree) */
+	private FCPClientGet download = null;
+
 	public int downloadFromFreenet(Observer o, IndexTree tree, FCPQueueManager queueManager, int specificRev) {
 		this.queueManager = queueManager;
 		indexTree = tree;
@@ -928,6 +936,7 @@ public class Index extends Observable implements MutableTreeNode,
 		 * of bandwidth / CPU. So we can skip the queue and start immediately
 		 * (and like this, they won't appear in the queue)
 		 */
+		download = clientGet;
 		clientGet.start();
 
 		if (indexTree != null)
@@ -939,6 +948,15 @@ public class Index extends Observable implements MutableTreeNode,
 	}
 
 
+	/**
+	 * @return true if the download started by downloadFromFreenet() is still running
+	 */
+	public boolean isDownloading() {
+		final FCPClientGet get = download;
+		return (get != null && !get.isFinished());
+	}
+
+
 	public void useTrayIconToNotifyNewRev() {
 		if (indexTree == null)
 			return;
@@ -1021,7 +1039,8 @@ public class Index extends Observable implements MutableTreeNode,
 				} else { /* if not successful */
 					Logger.warning(this, "Download of index "+this.toString()+" failed");
 					successful = false;
-					indexTree.removeUpdatingIndex(this);
+					if (indexTree != null)
+						indexTree.removeUpdatingIndex(this);
 				}
 			}
 		}
@@ -1131,6 +1150,47 @@ public class Index extends Observable implements MutableTreeNode,
 	}
 
 
+	/* not null while IndexParser is loading a revision */
+	private IndexIngester ingester = null;
+
+	/**
+	 * The files and links are written by an IndexIngester (batches, one transaction).
+	 * If it can't be used, they are written one by one like before.
+	 */
+	public void startIngestion(boolean clean) {
+		ingester = new IndexIngester(db, id);
+
+		if (!ingester.start(clean)) {
+			ingester = null;
+
+			if (clean)
+				purgeIndex();
+		}
+	}
+
+	public boolean endIngestion(boolean successful) {
+		if (ingester == null)
+			return successful;
+
+		final IndexIngester in = ingester;
+		ingester = null;
+
+		if (!successful) {
+			Logger.notice(this, "Loading of the index '"+toString()+"' failed : previous content restored");
+			in.rollback();
+			return false;
+		}
+
+		if (!in.commit())
+			return false;
+
+		Logger.info(this, "Index '"+toString()+"' revision "+Integer.toString(getRevision())
+			    +" : "+in.getChanges());
+
+		return true;
+	}
+
+
 
 	public void setInsertionDate(java.util.Date date) {
 		try {
@@ -1257,7 +1317,61 @@ public class Index extends Observable implements MutableTreeNode,
 	}
 
 
+	public boolean visitFileList(FileVisitor visitor) {
+		int lastId = -1;
+
+		while (true) {
+			final Vector<thaw.plugins.index.File> files = new Vector<thaw.plugins.index.File>();
+
+			synchronized(db.dbLock) {
+				try {
+					PreparedStatement st;
+
+					st = db.getConnection().prepareStatement("SELECT id, filename, publicKey, localPath, mime, size "+
+										 "FROM files WHERE indexParent = ? AND id > ? "+
+										 "ORDER BY id LIMIT "+Integer.toString(VISIT_CHUNK_SIZE));
+					st.setInt(1, id);
+					st.setInt(2, lastId);
+
+					ResultSet rs = st.executeQuery();
+
+					while(rs.next()) {
+						String lp = rs.getString("localPath");
+
+						lastId = rs.getInt("id");
+
+						files.add(new thaw.plugins.index.File(db, lastId,
+										      rs.getString("filename"),
+										      rs.getString("publicKey"),
+										      (lp == null ? null : new java.io.File(lp)),
+										      rs.getString("mime"),
+										      rs.getLong("size"),
+										      id, this));
+					}
+
+					st.close();
+				} catch(SQLException e) {
+					Logger.error(this, "SQLException while visiting file list: "+e.toString());
+					return false;
+				}
+			}
+
+			/* the visitor is called without db.dbLock */
+			for (final thaw.plugins.index.File file : files) {
+				if (!visitor.visitFile(file))
+					return false;
+			}
+
+			if (files.size() < VISIT_CHUNK_SIZE)
+				return true;
+		}
+	}
+
+
 	public boolean addFile(String key, long size, String mime) {
+		if (ingester != null)
+			return ingester.addFile(key, size, mime);
+
 		try {
 			synchronized(db.dbLock) {
 				PreparedStatement st;
@@ -1280,6 +1394,8 @@ public class Index extends Observable implements MutableTreeNode,
 				st.execute();
 				st.close();
 
+				TermIndex.addFile(db.getConnection(), TermIndex.getLastId(db.getConnection()), filename);
+
 				return true;
 			}
 		} catch(SQLException e) {
@@ -1361,6 +1477,9 @@ public class Index extends Observable implements MutableTreeNode,
 
 			key = key.trim();
 
+			if (ingester != null)
+				return ingester.addLink(key, category);
+
 			boolean blackListed = (BlackList.isBlackListed(db, key) >= 0);
 
 			synchronized(db.dbLock) {
@@ -1383,6 +1502,8 @@ public class Index extends Observable implements MutableTreeNode,
 				st.execute();
 				st.close();
 
+				TermIndex.addLink(db.getConnection(), TermIndex.getLastId(db.getConnection()), key);
+
 				return true;
 			}
 		} catch(SQLException e) {
@@ -1394,6 +1515,56 @@ public class Index extends Observable implements MutableTreeNode,
 
 
 
+	public boolean visitLinkList(LinkVisitor visitor) {
+		int lastId = -1;
+
+		while (true) {
+			final Vector<Link> links = new Vector<Link>();
+
+			synchronized(db.dbLock) {
+				try {
+					PreparedStatement st;
+
+					st = db.getConnection().prepareStatement("SELECT links.id AS id, " +
+										 " links.publicKey AS publicKey, "+
+										 " links.blackListed AS blacklisted," +
+										 " categories.name AS categoryName "+
+										 " FROM links LEFT OUTER JOIN categories "+
+										 " ON links.category = categories.id "+
+										 "WHERE links.indexParent = ? AND links.id > ? "+
+										 "ORDER BY links.id LIMIT "+Integer.toString(VISIT_CHUNK_SIZE));
+					st.setInt(1, id);
+					st.setInt(2, lastId);
+
+					ResultSet res = st.executeQuery();
+
+					while(res.next()) {
+						lastId = res.getInt("id");
+
+						links.add(new Link(db, lastId, res.getString("publicKey"),
+								   res.getString("categoryName"), res.getBoolean("blackListed"),
+								   this));
+					}
+
+					st.close();
+				} catch(SQLException e) {
+					Logger.error(this, "SQLException while visiting link list: "+e.toString());
+					return false;
+				}
+			}
+
+			/* the visitor is called without db.dbLock (IndexParser calls findTheLatestKey()) */
+			for (final Link link : links) {
+				if (!visitor.visitLink(link))
+					return false;
+			}
+
+			if (links.size() < VISIT_CHUNK_SIZE)
+				return true;
+		}
+	}
+
+
 	public String findTheLatestKey(String linkKey) {
 		synchronized(db.dbLock) {
 			try {
@@ -1459,7 +1630,7 @@ public class Index extends Observable implements MutableTreeNode,
 			try {
 				PreparedStatement st;
 
-				st = db.getConnection().prepareStatement("SELECT id, publicKey from indexes WHERE LOWER(publicKey) LIKE ?"
+				st = db.getConnection().prepareStatement("SELECT id, publicKey from indexes WHERE lowerPublicKey LIKE ?"
 									 + (strict ? "" : " LIMIT 1"));
 
 				st.setString(1, FreenetURIHelper.getComparablePart(key) +"%");
@@ -1597,19 +1768,19 @@ public class Index extends Observable implements MutableTreeNode,
 	}
 
 
-	public Element do_export(Document xmlDoc, boolean withContent) {
-		Element e = xmlDoc.createElement("fullIndex");
+	public void do_export(XMLStreamWriter writer, boolean withContent) throws XMLStreamException {
+		writer.writeStartElement("fullIndex");
 
-		e.setAttribute("displayName", toString(false));
-		e.setAttribute("publicKey", getPublicKey());
+		writer.writeAttribute("displayName", toString(false));
+		writer.writeAttribute("publicKey", getPublicKey());
 		if (getPrivateKey() != null)
-			e.setAttribute("privateKey", getPrivateKey());
+			writer.writeAttribute("privateKey", getPrivateKey());
 
 		if (withContent) {
-			new IndexParser(this).fillInRootElement(e, xmlDoc);
+			new IndexParser(this).writeXML(writer);
 		}
 
-		return e;
+		writer.writeEndElement();
 	}
 
 
@@ -2095,56 +2266,66 @@ public class Index extends Observable implements MutableTreeNode,
 	 * create it if it doesn't exist
 	 */
 	protected int getCategoryId(String cat) {
+		try {
+			return getCategoryId(db, cat);
+		} catch(SQLException e) {
+			Logger.error(this, "Can't create/find the category '"+cat+"'");
+		}
+
+		return -1;
+	}
+
+	/**
+	 * create it if it doesn't exist. Always done on the main connection, under db.dbLock,
+	 * so two threads can't give the same id to two categories.
+	 * @return -1 if no category
+	 */
+	public static int getCategoryId(final Hsqldb db, String cat) throws SQLException {
 		cat = cleanUpCategoryName(cat);
 		
 		if (cat == null)
 			return -1;
 		
-		try {
-			synchronized(db.dbLock) {
-				PreparedStatement st;
-				ResultSet set;
+		synchronized(db.dbLock) {
+			PreparedStatement st;
+			ResultSet set;
 
-				int catId = 1;
+			int catId = 1;
 
-				st = db.getConnection().prepareStatement("SELECT id FROM categories "+
-									 "WHERE name = ? LIMIT 1");
-				st.setString(1, cat);
+			st = db.getConnection().prepareStatement("SELECT id FROM categories "+
+								 "WHERE name = ? LIMIT 1");
+			st.setString(1, cat);
 
-				set = st.executeQuery();
+			set = st.executeQuery();
 
-				/* if it doesn't exist, we create it */
-				if (!set.next()) {
+			/* if it doesn't exist, we create it */
+			if (!set.next()) {
+				st.close();
 
-					st = db.getConnection().prepareStatement("SELECT id FROM categories "+
-										 "ORDER by id DESC LIMIT 1");
-					set = st.executeQuery();
-					if (set.next())
-						catId = set.getInt("id")+1;
-					
-					st.close();
+				st = db.getConnection().prepareStatement("SELECT id FROM categories "+
+									 "ORDER by id DESC LIMIT 1");
+				set = st.executeQuery();
+				if (set.next())
+					catId = set.getInt("id")+1;
+				
+				st.close();
 
-					/* insertion */
-					st = db.getConnection().prepareStatement("INSERT INTO categories "+
-										 "(id, name) VALUES (?, ?)");
-					st.setInt(1, catId);
-					st.setString(2, cat);
-					st.execute();
-					st.close();
-					
-					return catId;
-				} else {
-					/* else we return the existing id */
-					int i = set.getInt("id");
-					st.close();
-					return i;
-				}
-			} 
-		} catch(SQLException e) {
-			Logger.error(this, "Can't create/find the category '"+cat+"'");
+				/* insertion */
+				st = db.getConnection().prepareStatement("INSERT INTO categories "+
+									 "(id, name) VALUES (?, ?)");
+				st.setInt(1, catId);
+				st.setString(2, cat);
+				st.execute();
+				st.close();
+				
+				return catId;
+			} else {
+				/* else we return the existing id */
+				int i = set.getInt("id");
+				st.close();
+				return i;
+			}
 		}
-
-		return -1;
 	}
 	
 
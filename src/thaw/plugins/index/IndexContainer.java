@@ -19,6 +19,40 @@ public interface IndexContainer extends FileAndLinkList {
 	public Link[] getLinkList();
 
 
+	/**
+	 * Receives the files of an index one by one (see visitFileList()).
+	 */
+	public interface FileVisitor {
+		/**
+		 * @return false to stop the visit
+		 */
+		public boolean visitFile(FileContainer file);
+	}
+
+	/**
+	 * Receives the links of an index one by one (see visitLinkList()).
+	 */
+	public interface LinkVisitor {
+		/**
+		 * @return false to stop the visit
+		 */
+		public boolean visitLink(LinkContainer link);
+	}
+
+	/**
+	 * Like getFileList(), but the files are read from the database by chunks and given
+	 * one by one to the visitor : the list is never in memory (see IndexParser.writeXML()),
+	 * and the database is not locked while the visitor works.
+	 * @return false if the visit was interrupted (error or visitor)
+	 */
+	public boolean visitFileList(FileVisitor visitor);
+
+	/**
+	 * Like getLinkList(), see visitFileList().
+	 */
+	public boolean visitLinkList(LinkVisitor visitor);
+
+
 	/**
 	 * @return true if the private key must be published
 	 */
@@ -61,6 +95,20 @@ public interface IndexContainer extends FileAndLinkList {
 	 */
 	public void purgeIndex();
 
+	/**
+	 * Called by IndexParser before the first addFile() / addLink() of a document
+	 * (instead of purgeIndex()) : the files and links added until endIngestion()
+	 * can be buffered and written at once.
+	 * @param clean if true, the new files and links replace the current ones
+	 */
+	public void startIngestion(boolean clean);
+
+	/**
+	 * @param successful if false (parsing error), the current files and links should be kept
+	 * @return false if the files and links couldn't be written
+	 */
+	public boolean endIngestion(boolean successful);
+
 	public void setInsertionDate(java.util.Date date);
 
 	/**
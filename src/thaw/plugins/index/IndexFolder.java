@@ -13,8 +13,8 @@ import java.util.HashMap;
 import javax.swing.tree.MutableTreeNode;
 import javax.swing.tree.TreeNode;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import thaw.core.Logger;
 import thaw.core.Config;
 import thaw.fcp.FCPQueueManager;
@@ -1459,27 +1459,28 @@ public class IndexFolder implements IndexTreeNode, MutableTreeNode {
 
 
 	/**
-	 * Will export private keys too !<br/>
-	 * TODO: Improve perfs
+	 * Will export private keys too !
 	 */
-	public Element do_export(Document xmlDoc, boolean withContent) {
-		Element e = xmlDoc.createElement("indexCategory");
+	public void do_export(XMLStreamWriter writer, boolean withContent) throws XMLStreamException {
+		writer.writeStartElement("indexCategory");
 
 		if (id != -1)
-			e.setAttribute("name", name);
+			writer.writeAttribute("name", name);
 
 		if(children == null)
 			loadChildren();
 
-		for(final Iterator it = children.iterator();
-		    it.hasNext();) {
-			final IndexTreeNode node = (IndexTreeNode)(it.next());
-			e.appendChild(node.do_export(xmlDoc, withContent));
+		try {
+			for(final Iterator it = children.iterator();
+			    it.hasNext();) {
+				final IndexTreeNode node = (IndexTreeNode)(it.next());
+				node.do_export(writer, withContent);
+			}
+		} finally {
+			unloadChildren();
 		}
 
-		unloadChildren();
-
-		return e;
+		writer.writeEndElement();
 	}
 
 
@@ -0,0 +1,610 @@
+package thaw.plugins.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import thaw.core.Logger;
+import thaw.fcp.FreenetURIHelper;
+import thaw.plugins.Hsqldb;
+
+
+/**
+ * Writes the files and links of a revision of an index while IndexParser reads it
+ * (see Index.startIngestion()).<br/>
+ * The revision is compared with the rows already in the database (by key ; the links
+ * by key without the revision of the USK, see getLinkId(), since it changes each time
+ * the target is updated) : only the new files / links are inserted, only the ones whose
+ * attributes changed are updated, and the ones not in the revision anymore are deleted
+ * at the end (if clean).<br/>
+ * The statements are prepared once and sent by batches of BATCH_SIZE rows, on a connection
+ * of its own (see Hsqldb.openConnection()), in one transaction for the whole revision :
+ * db.dbLock is only taken briefly to create the missing categories (see getCategoryId()),
+ * so the other plugins keep using the database while a big index is loaded.<br/>
+ * If the parsing fails, the previous content of the index is restored by rollback(), but
+ * only then : HSQLDB 1.8 has no MVCC (READ UNCOMMITTED), so until the commit or the
+ * rollback, the other connections see the partial state of the index (rows already
+ * inserted, updated or deleted).
+ */
+public class IndexIngester {
+	public final static int BATCH_SIZE = 500;
+
+	/**
+	 * A file / link of the index, as it is in the database.
+	 */
+	private static class Row {
+		private final int id;
+		private final boolean dontDelete;
+
+		private final long size;
+		private final String mime;
+
+		private final int category;
+		private final boolean blackListed;
+
+		/* links only : the key with its revision */
+		private final String key;
+
+		/* found in the revision */
+		private boolean seen = false;
+
+		private Row(final int id, final boolean dontDelete, final long size, final String mime,
+			    final int category, final boolean blackListed, final String key) {
+			this.id = id;
+			this.dontDelete = dontDelete;
+			this.size = size;
+			this.mime = mime;
+			this.category = category;
+			this.blackListed = blackListed;
+			this.key = key;
+		}
+	}
+
+	private final Hsqldb db;
+	private final int indexId;
+
+	private boolean clean;
+
+	/* publicKey (see getLinkId() for the links) -> row ; the keys inserted by this
+	 * revision are added with an id of -1 */
+	private final Hashtable<String, Row> files = new Hashtable<String, Row>();
+	private final Hashtable<String, Row> links = new Hashtable<String, Row>();
+
+	/* rows with the same key as another one : deleted if clean */
+	private final Vector<Row> duplicateFiles = new Vector<Row>();
+	private final Vector<Row> duplicateLinks = new Vector<Row>();
+
+	private Connection connection = null;
+
+	private PreparedStatement fileSt = null;
+	private PreparedStatement linkSt = null;
+	private PreparedStatement fileUpdateSt = null;
+	private PreparedStatement linkUpdateSt = null;
+	private PreparedStatement blackListSt = null;
+
+	/* category name -> category id */
+	private final Hashtable<String, Integer> categories = new Hashtable<String, Integer>();
+
+	private int pendingFiles = 0;
+	private int pendingLinks = 0;
+	private int pendingFileUpdates = 0;
+	private int pendingLinkUpdates = 0;
+
+	private int insertedFiles = 0;
+	private int updatedFiles = 0;
+	private int deletedFiles = 0;
+	private int insertedLinks = 0;
+	private int updatedLinks = 0;
+	private int deletedLinks = 0;
+
+	/* the rows of the index inserted after start() have bigger ids (see indexTerms()) */
+	private int maxFileId = 0;
+	private int maxLinkId = 0;
+
+
+	public IndexIngester(final Hsqldb db, final int indexId) {
+		this.db = db;
+		this.indexId = indexId;
+	}
+
+
+	/**
+	 * @param clean if true, the files and links of the index that are not in the revision
+	 *   (except the ones flagged dontDelete, see Index.purgeIndex()) are deleted by commit()
+	 * @return false if the transaction can't be started
+	 */
+	public boolean start(final boolean clean) {
+		this.clean = clean;
+
+		try {
+			connection = db.openConnection();
+			connection.setAutoCommit(false);
+
+			loadRows();
+
+			maxFileId = getMaxId("files");
+			maxLinkId = getMaxId("links");
+
+			fileSt = connection.prepareStatement("INSERT INTO files "
+							     + "(filename, publicKey, localPath, mime, size, category, indexParent) "
+							     + "VALUES (?, ?, NULL, ?, ?, NULL, ?)");
+
+			linkSt = connection.prepareStatement("INSERT INTO links "
+							     + "(publicKey, mark, comment, "
+							     + "indexParent, indexTarget, blackListed, category) "
+							     + "VALUES (?, 0, ?, ?, NULL, ?, ?)");
+
+			fileUpdateSt = connection.prepareStatement("UPDATE files SET mime = ?, size = ? "
+								   + "WHERE id = ?");
+
+			linkUpdateSt = connection.prepareStatement("UPDATE links SET publicKey = ?, blackListed = ?, category = ? "
+								   + "WHERE id = ?");
+
+			blackListSt = connection.prepareStatement("SELECT id FROM indexBlackList "
+								  + "WHERE lowerPublicKey LIKE ? LIMIT 1");
+
+			return true;
+		} catch(SQLException e) {
+			Logger.error(this, "Unable to start loading the index : "+e.toString());
+			rollback();
+		}
+
+		return false;
+	}
+
+
+	private void loadRows() throws SQLException {
+		PreparedStatement st;
+		ResultSet set;
+
+		st = connection.prepareStatement("SELECT id, publicKey, dontDelete, mime, size "
+						 + "FROM files WHERE indexParent = ?");
+		st.setInt(1, indexId);
+		set = st.executeQuery();
+
+		while (set.next()) {
+			addRow(files, duplicateFiles, set.getString("publicKey"),
+			       new Row(set.getInt("id"), set.getBoolean("dontDelete"),
+				       set.getLong("size"), set.getString("mime"), -1, false, null));
+		}
+
+		st.close();
+
+		st = connection.prepareStatement("SELECT id, publicKey, dontDelete, blackListed, category "
+						 + "FROM links WHERE indexParent = ?");
+		st.setInt(1, indexId);
+		set = st.executeQuery();
+
+		while (set.next()) {
+			final int category = set.getInt("category");
+
+			final boolean noCategory = set.wasNull();
+			final String key = set.getString("publicKey");
+
+			addRow(links, duplicateLinks, getLinkId(key),
+			       new Row(set.getInt("id"), set.getBoolean("dontDelete"), 0, null,
+				       (noCategory ? -1 : category), set.getBoolean("blackListed"), key));
+		}
+
+		st.close();
+	}
+
+	private static void addRow(final Hashtable<String, Row> rows, final Vector<Row> duplicates,
+				   final String key, final Row row) {
+		if (key == null || rows.containsKey(key))
+			duplicates.add(row);
+		else
+			rows.put(key, row);
+	}
+
+	/**
+	 * @return the key of the link without the revision of the USK : IndexParser writes the
+	 *   latest known key of the target, so the revision changes each time the target is
+	 *   updated. FreenetURIHelper.getComparablePart() is not enough : it cuts the key before
+	 *   the name of the target, so it's the same for all the indexes of an author.
+	 */
+	protected static String getLinkId(final String key) {
+		if (key == null || !key.startsWith("USK@") || key.split("/").length < 3)
+			return key;
+
+		return FreenetURIHelper.changeUSKRevision(key, 0, 0);
+	}
+
+	private static boolean equals(final String a, final String b) {
+		return (a == null ? b == null : a.equals(b));
+	}
+
+
+	public boolean addFile(final String key, final long size, final String mime) {
+		if (key == null)
+			return false;
+
+		final Row row = files.get(key);
+
+		if (row != null) {
+			if (row.seen) /* twice in the revision */
+				return true;
+
+			row.seen = true;
+
+			if (row.size == size && equals(row.mime, mime))
+				return true;
+
+			try {
+				fileUpdateSt.setString(1, mime);
+				fileUpdateSt.setLong(2, size);
+				fileUpdateSt.setInt(3, row.id);
+				fileUpdateSt.addBatch();
+
+				updatedFiles++;
+
+				if (++pendingFileUpdates >= BATCH_SIZE) {
+					fileUpdateSt.executeBatch();
+					pendingFileUpdates = 0;
+				}
+
+				return true;
+			} catch(SQLException e) {
+				Logger.error(this, "Error while updating file of the index : "+e.toString());
+			}
+
+			return false;
+		}
+
+		String filename = FreenetURIHelper.getFilenameFromKey(key);
+		if (filename == null)
+			filename = key;
+
+		try {
+			fileSt.setString(1, filename);
+			fileSt.setString(2, key);
+			fileSt.setString(3, mime);
+			fileSt.setLong(4, size);
+			fileSt.setInt(5, indexId);
+			fileSt.addBatch();
+
+			final Row inserted = new Row(-1, false, size, mime, -1, false, null);
+			inserted.seen = true;
+			files.put(key, inserted);
+
+			insertedFiles++;
+
+			if (++pendingFiles >= BATCH_SIZE) {
+				fileSt.executeBatch();
+				pendingFiles = 0;
+			}
+
+			return true;
+		} catch(SQLException e) {
+			Logger.error(this, "Error while adding file to the index : "+e.toString());
+		}
+
+		return false;
+	}
+
+
+	public boolean addLink(final String key, final String category) {
+		if (key == null)
+			return false;
+
+		final String linkId = getLinkId(key);
+		final Row row = links.get(linkId);
+
+		if (row != null && row.seen) /* twice in the revision */
+			return true;
+
+		try {
+			final int categoryId = getCategoryId(category);
+			final boolean blackListed = isBlackListed(key);
+
+			if (row != null) {
+				row.seen = true;
+
+				if (row.category == categoryId && row.blackListed == blackListed
+				    && key.equals(row.key))
+					return true;
+
+				linkUpdateSt.setString(1, key);
+				linkUpdateSt.setBoolean(2, blackListed);
+
+				if (categoryId >= 0)
+					linkUpdateSt.setInt(3, categoryId);
+				else
+					linkUpdateSt.setNull(3, Types.INTEGER);
+
+				linkUpdateSt.setInt(4, row.id);
+				linkUpdateSt.addBatch();
+
+				/* usually only the revision changed : same name, same terms */
+				if (!equals(TermIndex.getLinkText(key), TermIndex.getLinkText(row.key)))
+					TermIndex.updateLink(connection, row.id, key);
+
+				updatedLinks++;
+
+				if (++pendingLinkUpdates >= BATCH_SIZE) {
+					linkUpdateSt.executeBatch();
+					pendingLinkUpdates = 0;
+				}
+
+				return true;
+			}
+
+			linkSt.setString(1, key);
+			linkSt.setString(2, "No comment"); /* comment not used at the moment */
+			linkSt.setInt(3, indexId);
+			linkSt.setBoolean(4, blackListed);
+
+			if (categoryId >= 0)
+				linkSt.setInt(5, categoryId);
+			else
+				linkSt.setNull(5, Types.INTEGER);
+
+			linkSt.addBatch();
+
+			final Row inserted = new Row(-1, false, 0, null, categoryId, blackListed, key);
+			inserted.seen = true;
+			links.put(linkId, inserted);
+
+			insertedLinks++;
+
+			if (++pendingLinks >= BATCH_SIZE) {
+				linkSt.executeBatch();
+				pendingLinks = 0;
+			}
+
+			return true;
+		} catch(SQLException e) {
+			Logger.error(this, "Error while adding link to the index : "+e.toString());
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * see BlackList.isBlackListed()
+	 */
+	private boolean isBlackListed(String key) throws SQLException {
+		key = FreenetURIHelper.cleanURI(key);
+
+		if (key == null)
+			return false;
+
+		blackListSt.setString(1, FreenetURIHelper.getComparablePart(key)+"%");
+
+		final ResultSet set = blackListSt.executeQuery();
+		final boolean blackListed = set.next();
+		set.close();
+
+		return blackListed;
+	}
+
+
+	/**
+	 * see Index.getCategoryId() ; the category is created if it doesn't exist, on the main
+	 * connection (and not in the transaction of the revision : two ingestions could
+	 * choose the same id)
+	 * @return -1 if no category
+	 */
+	private int getCategoryId(String category) throws SQLException {
+		category = Index.cleanUpCategoryName(category);
+
+		if (category == null)
+			return -1;
+
+		final Integer cached = categories.get(category);
+
+		if (cached != null)
+			return cached.intValue();
+
+		final int id = Index.getCategoryId(db, category);
+
+		categories.put(category, Integer.valueOf(id));
+
+		return id;
+	}
+
+
+	/**
+	 * @return -1 if the table is empty (the first IDENTITY is 0)
+	 */
+	private int getMaxId(final String table) throws SQLException {
+		final PreparedStatement st = connection.prepareStatement("SELECT MAX(id) FROM "+table);
+		final ResultSet set = st.executeQuery();
+
+		int max = (set.next() ? set.getInt(1) : -1);
+
+		if (set.wasNull())
+			max = -1;
+
+		st.close();
+
+		return max;
+	}
+
+
+	/**
+	 * Fill the inverted index (see TermIndex) with the rows inserted since start() :
+	 * their ids are only known once they are written.
+	 */
+	private void indexTerms() throws SQLException {
+		indexTerms("SELECT id, filename FROM files WHERE indexParent = ? AND id > ?",
+			   maxFileId, TermIndex.prepareFileTerms(connection), false);
+		indexTerms("SELECT id, publicKey FROM links WHERE indexParent = ? AND id > ?",
+			   maxLinkId, TermIndex.prepareLinkTerms(connection), true);
+	}
+
+	private void indexTerms(final String query, final int maxId,
+				final PreparedStatement insert, final boolean isLink) throws SQLException {
+		final PreparedStatement st = connection.prepareStatement(query);
+		st.setInt(1, indexId);
+		st.setInt(2, maxId);
+
+		final ResultSet set = st.executeQuery();
+
+		int pending = 0;
+
+		while (set.next()) {
+			final String text = set.getString(2);
+
+			pending += TermIndex.addTerms(insert, set.getInt("id"),
+						      (isLink ? TermIndex.getLinkText(text) : TermIndex.getFileText(text)));
+
+			if (pending >= BATCH_SIZE) {
+				insert.executeBatch();
+				pending = 0;
+			}
+		}
+
+		if (pending > 0)
+			insert.executeBatch();
+
+		st.close();
+		insert.close();
+	}
+
+
+	/**
+	 * Delete the rows not found in the revision (and the duplicated ones), except
+	 * the ones flagged dontDelete.
+	 * @return number of rows deleted
+	 */
+	private int deleteRows(final String table, final Hashtable<String, Row> rows,
+			       final Vector<Row> duplicates) throws SQLException {
+		final PreparedStatement st = connection.prepareStatement("DELETE FROM "+table+" WHERE id = ?");
+
+		final Vector<Row> toDelete = new Vector<Row>(duplicates);
+
+		for (final Row row : rows.values()) {
+			if (!row.seen)
+				toDelete.add(row);
+		}
+
+		int deleted = 0;
+		int pending = 0;
+
+		for (final Row row : toDelete) {
+			if (row.dontDelete)
+				continue;
+
+			st.setInt(1, row.id);
+			st.addBatch();
+
+			deleted++;
+
+			if (++pending >= BATCH_SIZE) {
+				st.executeBatch();
+				pending = 0;
+			}
+		}
+
+		if (pending > 0)
+			st.executeBatch();
+
+		st.close();
+
+		return deleted;
+	}
+
+
+	/**
+	 * Send the last batches, delete what is not in the revision anymore (if clean),
+	 * index the new rows and commit the transaction.
+	 * @return false if the transaction was rolled back
+	 */
+	public boolean commit() {
+		try {
+			if (pendingFiles > 0)
+				fileSt.executeBatch();
+			if (pendingLinks > 0)
+				linkSt.executeBatch();
+			if (pendingFileUpdates > 0)
+				fileUpdateSt.executeBatch();
+			if (pendingLinkUpdates > 0)
+				linkUpdateSt.executeBatch();
+
+			pendingFiles = 0;
+			pendingLinks = 0;
+			pendingFileUpdates = 0;
+			pendingLinkUpdates = 0;
+
+			if (clean) {
+				deletedFiles = deleteRows("files", files, duplicateFiles);
+				deletedLinks = deleteRows("links", links, duplicateLinks);
+			}
+
+			indexTerms();
+
+			connection.commit();
+
+			close();
+			return true;
+		} catch(SQLException e) {
+			Logger.error(this, "Unable to write the index : "+e.toString());
+			rollback();
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * @return the changes made by the revision, for the logs : "files +inserted ~updated -deleted, links ..."
+	 */
+	public String getChanges() {
+		return "files +"+Integer.toString(insertedFiles)
+			+" ~"+Integer.toString(updatedFiles)
+			+" -"+Integer.toString(deletedFiles)
+			+", links +"+Integer.toString(insertedLinks)
+			+" ~"+Integer.toString(updatedLinks)
+			+" -"+Integer.toString(deletedLinks);
+	}
+
+
+	/**
+	 * Forget everything done since start().
+	 */
+	public void rollback() {
+		if (connection == null)
+			return;
+
+		try {
+			connection.rollback();
+		} catch(SQLException e) {
+			Logger.error(this, "Unable to rollback the index loading : "+e.toString());
+		}
+
+		close();
+	}
+
+
+	private void close() {
+		try {
+			if (fileSt != null)
+				fileSt.close();
+			if (linkSt != null)
+				linkSt.close();
+			if (fileUpdateSt != null)
+				fileUpdateSt.close();
+			if (linkUpdateSt != null)
+				linkUpdateSt.close();
+			if (blackListSt != null)
+				blackListSt.close();
+
+			connection.close();
+		} catch(SQLException e) {
+			Logger.warning(this, "Unable to close the connection used to load the index : "+e.toString());
+		}
+
+		fileSt = null;
+		linkSt = null;
+		fileUpdateSt = null;
+		linkUpdateSt = null;
+		blackListSt = null;
+		connection = null;
+	}
+}
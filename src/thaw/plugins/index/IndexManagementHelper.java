@@ -45,6 +45,7 @@ import thaw.gui.IconBox;
 import thaw.core.Config;
 import thaw.core.PleaseWaitDialog;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.gui.FileChooser;
 import thaw.gui.MainWindow;
@@ -132,8 +133,7 @@ public class IndexManagementHelper {
 
 
 		protected void startThread() {
-			Thread th = new Thread(new ThawThread(this, "Action replier", this));
-			th.start();
+			new ThawThread(this, "Action replier", this, ThawThreadManager.GROUP_INDEXES).start();
 		}
 
 
@@ -232,8 +232,8 @@ public class IndexManagementHelper {
 										 "(id, originalName, displayName, "+
 										 " publicKey, privateKey, author, "+
 										 " positionInTree, revision, "+
-										 " newRev, newComment, parent) "+
-										 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+										 " newRev, newComment, parent, lowerPublicKey) "+
+										 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
 					/* TODO : Author */
 
@@ -259,6 +259,8 @@ public class IndexManagementHelper {
 					else
 						st.setNull(11, Types.INTEGER);
 
+					st.setString(12, publicKey.toLowerCase());
+
 					st.execute();
 					st.close();
 
@@ -475,8 +477,8 @@ public class IndexManagementHelper {
 									 "(id, originalName, displayName, "+
 									 " publicKey, privateKey, author, "+
 									 " positionInTree, revision, "+
-									 " newRev, parent) "+
-									 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+									 " newRev, parent, lowerPublicKey) "+
+									 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
 				/* TODO : Author */
 
@@ -495,6 +497,8 @@ public class IndexManagementHelper {
 				else
 					st.setNull(10, Types.INTEGER);
 
+				st.setString(11, publicKey.toLowerCase());
+
 				st.execute();
 				st.close();
 
@@ -699,8 +703,7 @@ public class IndexManagementHelper {
 		v.add(target);
 		downloader.setTargets(v);
 
-		Thread th = new Thread(new ThawThread(downloader, "Index downloader"));
-		th.start();
+		new ThawThread(downloader, "Index downloader", null, ThawThreadManager.GROUP_INDEXES).start();
 
 		return true;
 	}
@@ -907,8 +910,7 @@ public class IndexManagementHelper {
 		v.add(target);
 		uploader.setTargets(v);
 
-		Thread th = new Thread(new ThawThread(uploader, "Index inserter"));
-		th.start();
+		new ThawThread(uploader, "Index inserter", null, ThawThreadManager.GROUP_INDEXES).start();
 
 		return true;
 	}
@@ -1410,6 +1412,8 @@ public class IndexManagementHelper {
 
 					st.execute();
 
+					TermIndex.addFile(db.getConnection(), nextId, ioFile.getName());
+
 					File file = new File(db, nextId);
 					
 					filesToManage.add(file);
@@ -1629,6 +1633,8 @@ public class IndexManagementHelper {
 
 						st.execute();
 
+						TermIndex.addFile(db.getConnection(), nextId, FreenetURIHelper.getFilenameFromKey(key));
+
 						nextId++;
 					} else {
 						Logger.notice(target, "Key already in the specified index, not added");
@@ -1711,6 +1717,8 @@ public class IndexManagementHelper {
 
 				st.execute();
 				st.close();
+
+				TermIndex.addLink(db.getConnection(), nextId, linkKey);
 			} catch(SQLException e) {
 				Logger.error(new IndexManagementHelper(), "Error while adding link: "+e.toString());
 			}
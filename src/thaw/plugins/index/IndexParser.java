@@ -6,20 +6,11 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.Iterator;
 
-/* DOM */
+/* StAX */
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /* SAX */
@@ -50,9 +41,9 @@ public class IndexParser {
 	public boolean generateXML(String path) {
 		try {
 			FileOutputStream stream = new FileOutputStream(new File(path));
-			generateXML(stream);
+			boolean r = generateXML(stream);
 			stream.close();
-			return true;
+			return r;
 		} catch(java.io.FileNotFoundException e) {
 			Logger.error(this, "File not found exception ?!");
 		} catch(java.io.IOException e) {
@@ -61,94 +52,63 @@ public class IndexParser {
 		return false;
 	}
 
-	public void generateXML(final OutputStream out) {
-		StreamResult streamResult;
-
-		streamResult = new StreamResult(out);
-
-		Document xmlDoc;
-
-		final DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder xmlBuilder;
-
+	/**
+	 * The files and links are written while they are read from the database
+	 * (see IndexContainer.visitFileList()) : the memory used doesn't depend on the size of the index.
+	 */
+	public boolean generateXML(final OutputStream out) {
 		try {
-			xmlBuilder = xmlFactory.newDocumentBuilder();
-		} catch(final javax.xml.parsers.ParserConfigurationException e) {
-			Logger.error(this, "Unable to generate the index because : "+e.toString());
-			return;
-		}
-
-		final DOMImplementation impl = xmlBuilder.getDOMImplementation();
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
 
-		xmlDoc = impl.createDocument(null, "index", null);
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("index");
 
-		final Element rootEl = xmlDoc.getDocumentElement();
+			writeXML(writer);
 
-		/**** DOM Tree generation ****/
-		fillInRootElement(rootEl, xmlDoc);
+			writer.writeEndElement();
+			writer.writeEndDocument();
 
+			writer.flush();
+			writer.close();
 
-		/* Serialization */
-		final DOMSource domSource = new DOMSource(xmlDoc);
-		final TransformerFactory transformFactory = TransformerFactory.newInstance();
-
-		Transformer serializer;
-
-		try {
-			serializer = transformFactory.newTransformer();
-		} catch(final javax.xml.transform.TransformerConfigurationException e) {
-			Logger.error(this, "Unable to save index because: "+e.toString());
-			return;
+			return true;
+		} catch(final XMLStreamException e) {
+			Logger.error(this, "Unable to generate the index because: "+e.toString());
 		}
 
-		serializer.setOutputProperty(OutputKeys.ENCODING,"UTF-8");
-		serializer.setOutputProperty(OutputKeys.INDENT,"yes");
-
-		/* final step */
-		try {
-			serializer.transform(domSource, streamResult);
-		} catch(final javax.xml.transform.TransformerException e) {
-			Logger.error(this, "Unable to save index because: "+e.toString());
-			return;
-		}
+		return false;
 	}
 
 
 
-	public boolean fillInRootElement(Element rootEl, Document xmlDoc) {
-		rootEl.appendChild(getXMLHeader(xmlDoc));
-		rootEl.appendChild(getXMLLinks(xmlDoc));
-		rootEl.appendChild(getXMLFileList(xmlDoc));
+	/**
+	 * Write the content of the index in the current element.
+	 */
+	public void writeXML(final XMLStreamWriter writer) throws XMLStreamException {
+		writeXMLHeader(writer);
+		writeXMLLinks(writer);
+		writeXMLFileList(writer);
 
 		if (index.canHaveComments())
-			rootEl.appendChild(getXMLCommentInfos(xmlDoc));
-
-		return true;
+			writeXMLCommentInfos(writer);
 	}
 
 
-	private Element getXMLHeader(final Document xmlDoc) {
-		final Element header = xmlDoc.createElement("header");
-
-		final Element title = xmlDoc.createElement("title");
-		final Text titleText = xmlDoc.createTextNode(index.toString(false));
-		title.appendChild(titleText);
-
-		header.appendChild(title);
+	private static void writeElement(final XMLStreamWriter writer, final String name, final String text) throws XMLStreamException {
+		writer.writeStartElement(name);
+		writer.writeCharacters(text);
+		writer.writeEndElement();
+	}
 
 
-		final Element clientVersion = xmlDoc.createElement("client");
-		final Text versionText = xmlDoc.createTextNode(index.getClientVersion());
-		clientVersion.appendChild(versionText);
+	private void writeXMLHeader(final XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartElement("header");
 
-		header.appendChild(clientVersion);
+		writeElement(writer, "title", index.toString(false));
+		writeElement(writer, "client", index.getClientVersion());
 
 		if (index.publishPrivateKey() && index.getPrivateKey() != null) {
-			final Element privateKeyEl = xmlDoc.createElement("privateKey");
-			final Text privateKeyText = xmlDoc.createTextNode(index.getPrivateKey());
-			privateKeyEl.appendChild(privateKeyText);
-
-			header.appendChild(privateKeyEl);
+			writeElement(writer, "privateKey", index.getPrivateKey());
 		}
 
 		/* insertion date */
@@ -159,112 +119,134 @@ public class IndexParser {
 		sdf.setTimeZone(java.util.TimeZone.getTimeZone("GMT"));
 		dateStr = sdf.format(new java.util.Date());
 
-		final Element date = xmlDoc.createElement("date");
-		final Text dateText = xmlDoc.createTextNode(dateStr);
-		date.appendChild(dateText);
-
-		header.appendChild(date);
+		writeElement(writer, "date", dateStr);
 
 		/* category */
 
 		String cat = index.getCategory();
 
 		if (cat != null) {
-			Element category = xmlDoc.createElement("category");
-			Text categoryText = xmlDoc.createTextNode(cat);
-			category.appendChild(categoryText);
-			header.appendChild(category);
+			writeElement(writer, "category", cat);
 		}
 
 		/* TODO : Author */
 
-		return header;
+		writer.writeEndElement();
 	}
 
 
-	private Element getXMLLinks(final Document xmlDoc) {
-		final Element linksEl = xmlDoc.createElement("indexes");
+	/**
+	 * The XMLStreamException thrown by the writer while visiting the files / links
+	 * (the visitors can't throw it)
+	 */
+	private XMLStreamException visitError = null;
 
-		LinkContainer[] links = index.getLinkList();
+	private void checkVisitError() throws XMLStreamException {
+		if (visitError != null) {
+			final XMLStreamException e = visitError;
+			visitError = null;
+			throw e;
+		}
+	}
 
-		for(int i = 0 ; i < links.length ; i++) {
-			LinkContainer link = links[i];
 
-			String key = index.findTheLatestKey(link.getPublicKey());
-			String cat = link.getCategory();
+	private void writeXMLLinks(final XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartElement("indexes");
 
-			final Element xmlLink = xmlDoc.createElement("link");
+		final boolean complete = index.visitLinkList(new IndexContainer.LinkVisitor() {
+				public boolean visitLink(final LinkContainer link) {
+					String key = index.findTheLatestKey(link.getPublicKey());
+					String cat = link.getCategory();
 
-			xmlLink.setAttribute("key", key);
-			
-			if (cat != null)
-				xmlLink.setAttribute("category", cat);
+					try {
+						writer.writeEmptyElement("link");
 
-			linksEl.appendChild(xmlLink);
-		}
+						writer.writeAttribute("key", key);
 
-		return linksEl;
-	}
+						if (cat != null)
+							writer.writeAttribute("category", cat);
+					} catch(final XMLStreamException e) {
+						visitError = e;
+						return false;
+					}
 
+					return true;
+				}
+			});
 
-	private Element getXMLFileList(final Document xmlDoc) {
-		final Element filesEl = xmlDoc.createElement("files");
+		checkVisitError();
 
-		FileContainer[] files = index.getFileList();
+		/* don't write a truncated index */
+		if (!complete)
+			throw new XMLStreamException("Unable to read the links of the index");
 
-		for(int i = 0 ; i < files.length ; i++) {
+		writer.writeEndElement();
+	}
 
-			FileContainer file = (FileContainer)files[i];
 
-			String pubKey = file.getPublicKey();
+	private void writeXMLFileList(final XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartElement("files");
 
-			if (pubKey == null)
-				continue;
+		final boolean complete = index.visitFileList(new IndexContainer.FileVisitor() {
+				public boolean visitFile(final FileContainer file) {
+					String pubKey = file.getPublicKey();
 
-			pubKey = pubKey.trim();
+					if (pubKey == null)
+						return true;
 
-			if (!FreenetURIHelper.isAKey(pubKey)) {
-				Logger.notice(this, "One of the file key wasn't generated => not added");
-				continue;
-			}
+					pubKey = pubKey.trim();
 
-			final Element xmlFile = xmlDoc.createElement("file");
+					if (!FreenetURIHelper.isAKey(pubKey)) {
+						Logger.notice(IndexParser.this, "One of the file key wasn't generated => not added");
+						return true;
+					}
 
-			//xmlFile.setAttribute("id", set.getString("id"));
-			xmlFile.setAttribute("key", pubKey);
-			xmlFile.setAttribute("size", Long.toString(file.getSize()));
-			if (file.getMime() == null)
-				xmlFile.setAttribute("mime", DefaultMIMETypes.guessMIMEType(file.getFilename()));
-			else
-				xmlFile.setAttribute("mime", file.getMime());
+					try {
+						writer.writeEmptyElement("file");
+
+						writer.writeAttribute("key", pubKey);
+						writer.writeAttribute("size", Long.toString(file.getSize()));
+						if (file.getMime() == null)
+							writer.writeAttribute("mime", DefaultMIMETypes.guessMIMEType(file.getFilename()));
+						else
+							writer.writeAttribute("mime", file.getMime());
+					} catch(final XMLStreamException e) {
+						visitError = e;
+						return false;
+					}
 
+					return true;
+				}
+			});
 
-			filesEl.appendChild(xmlFile);
-		}
+		checkVisitError();
+
+		/* don't write a truncated index */
+		if (!complete)
+			throw new XMLStreamException("Unable to read the files of the index");
 
-		return filesEl;
+		writer.writeEndElement();
 	}
 
 
-	private Element getXMLCommentInfos(final Document xmlDoc) {
-		final Element infos = xmlDoc.createElement("comments");
+	private void writeXMLCommentInfos(final XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartElement("comments");
 
-		infos.setAttribute("publicKey", index.getCommentPublicKey());
+		writer.writeAttribute("publicKey", index.getCommentPublicKey());
 
 		if (index.getCommentPrivateKey() != null)
-			infos.setAttribute("privateKey", index.getCommentPrivateKey());
+			writer.writeAttribute("privateKey", index.getCommentPrivateKey());
 
 		for (Iterator it = index.getCommentBlacklistedRev().iterator();
 		     it.hasNext() ;) {
 
 			Integer rev = (Integer)it.next();
-			Element bl = xmlDoc.createElement("blackListed");
-			bl.setAttribute("rev", rev.toString());
-			infos.appendChild(bl);
+			writer.writeEmptyElement("blackListed");
+			writer.writeAttribute("rev", rev.toString());
 
 		}
 
-		return infos;
+		writer.writeEndElement();
 	}
 
 
@@ -309,10 +291,13 @@ public class IndexParser {
 		 * @see org.xml.sax.ContentHandler#startDocument()
 		 */
 		public void startDocument() throws SAXException {
-			if (clean)
-				index.purgeIndex();
+			index.startIngestion(clean);
+			ingesting = true;
 		}
 
+		/* true between startDocument() and endDocument() / abort() */
+		private boolean ingesting = false;
+
 		private boolean ownerTag = false;
 		private boolean privateKeyTag = false;
 		private boolean dateTag = false;
@@ -524,6 +509,24 @@ public class IndexParser {
 			if (!hasCommentTag) {
 				Logger.debug(this, "No comment allowed in this index");
 			}
+
+			if (ingesting) {
+				ingesting = false;
+
+				if (!index.endIngestion(true))
+					throw new SAXException("Index parsing interrupted because of a backend error");
+			}
+		}
+
+		/**
+		 * Must be called if the parsing fails : the files and links read are
+		 * forgotten and the previous content of the index is restored (see IndexIngester).
+		 */
+		public void abort() {
+			if (ingesting) {
+				ingesting = false;
+				index.endIngestion(false);
+			}
 		}
 	}
 
@@ -562,6 +565,8 @@ public class IndexParser {
 			Logger.notice(this, "Error (3) while parsing index: "+e.toString());
 		} catch(Exception e) {
 			Logger.notice(this, "Error (4) while parsing index: "+e.toString());
+		} finally {
+			handler.abort();
 		}
 	}
 
@@ -97,6 +97,8 @@ public class IndexRoot extends IndexFolder implements IndexTreeNode {
 
 		DatabaseManager.dropTables(indexBrowser.getDb());
 		DatabaseManager.createTables(indexBrowser.getDb());
+		DatabaseManager.createIndexes(indexBrowser.getDb());
+		DatabaseManager.createTermIndexes(indexBrowser.getDb());
 
 		for (int i = 0 ; i < thaw.plugins.IndexBrowser.DEFAULT_INDEXES.length ; i++) {
 			IndexManagementHelper.addIndex(queueManager, indexBrowser, null,
@@ -848,7 +848,7 @@ public class IndexTree extends java.util.Observable implements MouseListener, Ac
 
 				String query;
 
-				query = "SELECT id FROM indexes WHERE LOWER(publicKey) LIKE ?";
+				query = "SELECT id FROM indexes WHERE lowerPublicKey LIKE ?";
 
 
 				Logger.info(this, query + " : " + realKey+"%");
@@ -4,8 +4,8 @@ import java.util.Observer;
 
 import javax.swing.tree.MutableTreeNode;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import thaw.fcp.FCPQueueManager;
 
@@ -60,7 +60,7 @@ public interface IndexTreeNode {
 	/**
 	 * Will export private keys too !
 	 */
-	public Element do_export(Document xmlDoc, boolean withContent);
+	public void do_export(XMLStreamWriter writer, boolean withContent) throws XMLStreamException;
 
 
 	/**
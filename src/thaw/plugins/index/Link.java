@@ -251,6 +251,8 @@ public class Link extends java.util.Observable implements Comparable, LinkContai
 				st.setInt(2, id);
 				st.execute();
 				st.close();
+
+				TermIndex.updateLink(db.getConnection(), id, key);
 			}
 		} catch(SQLException e) {
 			Logger.error(this, "Error while changing publicKey: "+e.toString());
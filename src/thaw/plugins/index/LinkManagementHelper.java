@@ -12,6 +12,7 @@ import javax.swing.AbstractButton;
 
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.fcp.FCPQueueManager;
 
@@ -36,8 +37,7 @@ public class LinkManagementHelper {
 
 		public void actionPerformed(ActionEvent e) {
 			if (e.getSource() == src) {
-				Thread th = new Thread(new ThawThread(this, "Action replier", this));
-				th.start();
+				new ThawThread(this, "Action replier", this, ThawThreadManager.GROUP_DEFAULT).start();
 			}
 		}
 
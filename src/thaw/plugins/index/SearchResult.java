@@ -3,38 +3,71 @@ package thaw.plugins.index;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
 import thaw.core.Logger;
 import thaw.plugins.Hsqldb;
 
+/**
+ * The words searched are looked for in the inverted index (see TermIndex) : a file / link
+ * matches if each word is the beginning of one of its terms. The results are sorted by
+ * relevance (exact terms first) unless a column is specified.<br/>
+ * The prefixes are looked for with a range (term >= 'word' AND term < 'wore') : HSQLDB
+ * doesn't use the index of the terms for a LIKE with a parameter.<br/>
+ * If no word is long enough to be indexed, the names are scanned (LIKE '%word%').
+ */
 public class SearchResult implements FileAndLinkList {
+	/* ids given at once to the query fetching the results */
+	private final static int CHUNK_SIZE = 100;
 
 	private String[] search = null;
+	private Vector<String> terms;
 
 	private Hsqldb db;
 	private IndexTreeNode node;
 
 	public SearchResult(final Hsqldb hsqldb, final String search, final IndexTreeNode node) {
 		this.search = search.split(" ");
+		this.terms = TermIndex.getTerms(search);
 		this.node = node;
 		db = hsqldb;
-	}
 
+		/* the longest words are the most selective ones */
+		Collections.sort(terms, new Comparator<String>() {
+				public int compare(final String a, final String b) {
+					return b.length() - a.length();
+				}
+			});
+	}
 
-	public String getWhereClause(boolean hasFilename) {
-		String where = null;
-		String column = hasFilename ? "filename" : "publicKey";
 
+	/**
+	 * @return null if the whole tree is searched
+	 */
+	private String getNodeClause() {
 		if (node instanceof IndexFolder) {
 			if (node.getId() >= 0) {
-				where = "indexParent IN "+
+				return "indexParent IN "+
 					"(SELECT indexParents.indexId FROM indexParents WHERE indexParents.folderId = ?)";
 			}
 		}
 
 		if (node instanceof Index) {
-			where = "indexParent = ? ";
+			return "indexParent = ? ";
 		}
 
+		return null;
+	}
+
+	public String getWhereClause(boolean hasFilename) {
+		String where = getNodeClause();
+		String column = hasFilename ? "filename" : "publicKey";
+
 		for (int i = 0 ; i < search.length ; i++) {
 			if (where == null) {
 				where = " LOWER("+column+") LIKE ?";
@@ -46,24 +79,230 @@ public class SearchResult implements FileAndLinkList {
 		return where;
 	}
 
-	public void fillInStatement(PreparedStatement st) throws SQLException {
-		int i, j;
-
-		i = 1;
-
+	/**
+	 * @param i index of the parameter of the node clause (see getNodeClause())
+	 * @return next parameter index
+	 */
+	private int fillInNode(PreparedStatement st, int i) throws SQLException {
 		if ( (node instanceof Index)
 		     || node.getId() >= 0 ) {
 			st.setInt(i, node.getId());
-			i++;
+			return i+1;
 		}
 
+		return i;
+	}
+
+	public void fillInStatement(PreparedStatement st) throws SQLException {
+		int i, j;
+
+		i = fillInNode(st, 1);
+
 		for (j = 0 ; j < search.length ; j++) {
 			st.setString(i, "%" + search[j].toLowerCase() + "%");
 			i++;
 		}
 	}
 
+
+	/**
+	 * @return the smallest string greater than all the strings starting with this prefix
+	 */
+	protected static String getUpperBound(final String prefix) {
+		final char last = prefix.charAt(prefix.length()-1);
+
+		return prefix.substring(0, prefix.length()-1) + (char)(last + 1);
+	}
+
+	/**
+	 * Must be called with db.dbLock.
+	 * @param termTable fileTerms or linkTerms
+	 * @param table files or links : only the ones below the node are returned
+	 * @return id -> score (2 for each exact term, 1 for each prefix)
+	 */
+	private Hashtable<Integer, Integer> getMatches(final String termTable, final String idColumn,
+						       final String table) throws SQLException {
+		Hashtable<Integer, Integer> matches = null;
+
+		String query = "SELECT "+termTable+"."+idColumn+", "+termTable+".term FROM "+termTable+", "+table+
+			" WHERE "+termTable+".term >= ? AND "+termTable+".term < ?"+
+			" AND "+termTable+"."+idColumn+" = "+table+".id";
+
+		if (getNodeClause() != null)
+			query += " AND "+getNodeClause();
+
+		final PreparedStatement st = db.getConnection().prepareStatement(query);
+
+		fillInNode(st, 3);
+
+		for (final String term : terms) {
+			final Hashtable<Integer, Integer> found = new Hashtable<Integer, Integer>();
+
+			st.setString(1, term);
+			st.setString(2, getUpperBound(term));
+
+			final ResultSet set = st.executeQuery();
+
+			while (set.next()) {
+				final Integer id = Integer.valueOf(set.getInt(1));
+				final int score = (term.equals(set.getString(2)) ? 2 : 1);
+
+				if (matches != null && !matches.containsKey(id))
+					continue;
+
+				final Integer previous = found.get(id);
+
+				if (previous == null || previous.intValue() < score)
+					found.put(id, Integer.valueOf(score));
+			}
+
+			if (matches != null) {
+				for (final Map.Entry<Integer, Integer> entry : found.entrySet())
+					entry.setValue(Integer.valueOf(entry.getValue().intValue() + matches.get(entry.getKey()).intValue()));
+			}
+
+			matches = found;
+
+			if (matches.isEmpty())
+				break;
+		}
+
+		st.close();
+
+		return matches;
+	}
+
+
+	/**
+	 * Must be called with db.dbLock.
+	 * @param select "SELECT ... FROM ... WHERE "
+	 * @param matches see getMatches() : already restricted to the node
+	 * @return one statement per chunk of ids ; the caller executes and closes them
+	 */
+	private Vector<PreparedStatement> getStatements(final String select, final String idColumn,
+							final Hashtable<Integer, Integer> matches) throws SQLException {
+		final Vector<PreparedStatement> statements = new Vector<PreparedStatement>();
+
+		final Iterator<Integer> it = matches.keySet().iterator();
+
+		while (it.hasNext()) {
+			final Vector<Integer> ids = new Vector<Integer>();
+
+			while (it.hasNext() && ids.size() < CHUNK_SIZE)
+				ids.add(it.next());
+
+			String query = select + idColumn + " IN (?";
+			for (int i = 1 ; i < ids.size() ; i++)
+				query += ", ?";
+			query += ")";
+
+			final PreparedStatement st = db.getConnection().prepareStatement(query);
+
+			int i = 1;
+
+			for (final Integer id : ids) {
+				st.setInt(i, id.intValue());
+				i++;
+			}
+
+			statements.add(st);
+		}
+
+		return statements;
+	}
+
+
+	private static class Result {
+		private final Object item;
+		private final int score;
+		private final String sortKey;
+		private final long size;
+
+		private Result(final Object item, final int score, final String sortKey, final long size) {
+			this.item = item;
+			this.score = score;
+			this.sortKey = sortKey;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param col null == by relevance
+	 */
+	private static Object[] sort(final Vector<Result> results, final String col, final boolean asc, final Object[] array) {
+		Collections.sort(results, new Comparator<Result>() {
+				public int compare(final Result a, final Result b) {
+					int r;
+
+					if (col == null) {
+						r = b.score - a.score;
+						if (r == 0)
+							r = a.sortKey.compareTo(b.sortKey);
+						return r;
+					}
+
+					if ("size".equals(col))
+						r = (a.size < b.size ? -1 : (a.size == b.size ? 0 : 1));
+					else
+						r = a.sortKey.compareTo(b.sortKey);
+
+					return (asc ? r : -r);
+				}
+			});
+
+		for (int i = 0 ; i < array.length ; i++)
+			array[i] = results.get(i).item;
+
+		return array;
+	}
+
+
 	public File[] getFileList(String col, boolean asc) {
+		if (terms.isEmpty())
+			return getFileListByScan(col, asc);
+
+		final Vector<Result> results = new Vector<Result>();
+
+		synchronized(db.dbLock) {
+			try {
+				final Hashtable<Integer, Integer> matches = getMatches("fileTerms", "fileId", "files");
+
+				if (matches != null && !matches.isEmpty()) {
+					for (final PreparedStatement st : getStatements("SELECT id, filename, publicKey, localPath, mime, size, indexParent "+
+											"FROM files WHERE ", "id", matches)) {
+						ResultSet set = st.executeQuery();
+
+						while(set.next()) {
+							final int id = set.getInt("id");
+
+							final File file = new File(db,
+										   id,
+										   set.getString("filename"),
+										   set.getString("publicKey"),
+										   (set.getString("localPath") != null ? new java.io.File(set.getString("localPath")) : null),
+										   set.getString("mime"),
+										   set.getLong("size"),
+										   set.getInt("indexParent"));
+
+							final String sortKey = ("LOWER(publicKey)".equals(col) ?
+										set.getString("publicKey") : set.getString("filename")).toLowerCase();
+
+							results.add(new Result(file, matches.get(Integer.valueOf(id)).intValue(),
+									       sortKey, set.getLong("size")));
+						}
+
+						st.close();
+					}
+				}
+			} catch(SQLException e) {
+				Logger.error(this, "Error while searching: "+e.toString());
+			}
+		}
+
+		return (File[])sort(results, col, asc, new File[results.size()]);
+	}
+
+	private File[] getFileListByScan(String col, boolean asc) {
 
 		if (col == null)
 			col = "filename";
@@ -92,7 +331,7 @@ public class SearchResult implements FileAndLinkList {
 						       set.getLong("size"),
 						       set.getInt("indexParent")));
 				}
-				
+
 				st.close();
 
 			} catch(SQLException e) {
@@ -103,21 +342,66 @@ public class SearchResult implements FileAndLinkList {
 		return (File[])v.toArray(new File[0]);
 	}
 
+
+	private final static String LINK_SELECT = "SELECT links.id AS id, " +
+		" links.publicKey AS publicKey, "+
+		" links.blackListed AS blacklisted," +
+		" links.indexParent AS indexParent, "+
+		" categories.name AS categoryName "+
+		" FROM links LEFT OUTER JOIN categories "+
+		" ON links.category = categories.id ";
+
 	public Link[] getLinkList(String col, boolean asc) {
+		if (terms.isEmpty())
+			return getLinkListByScan(col, asc);
+
+		final Vector<Result> results = new Vector<Result>();
+
+		synchronized(db.dbLock) {
+			try {
+				final Hashtable<Integer, Integer> matches = getMatches("linkTerms", "linkId", "links");
+
+				if (matches != null && !matches.isEmpty()) {
+					for (final PreparedStatement st : getStatements(LINK_SELECT + "WHERE ", "links.id", matches)) {
+						ResultSet set = st.executeQuery();
+
+						while(set.next()) {
+							if (set.getBoolean("blackListed"))
+								continue;
+
+							final int id = set.getInt("id");
+
+							results.add(new Result(new Link(db,
+											id,
+											set.getString("publicKey"),
+											set.getString("categoryName"),
+											false,
+											set.getInt("indexParent")),
+									       matches.get(Integer.valueOf(id)).intValue(),
+									       set.getString("publicKey").toLowerCase(), 0));
+						}
+
+						st.close();
+					}
+				}
+			} catch(SQLException e) {
+				Logger.error(this, "Error while searching: "+e.toString());
+			}
+		}
+
+		/* the links were never sorted by column */
+		return (Link[])sort(results, null, asc, new Link[results.size()]);
+	}
+
+	private Link[] getLinkListByScan(String col, boolean asc) {
 		java.util.LinkedList v = new java.util.LinkedList();
 
 		synchronized(db.dbLock) {
 			try {
 				PreparedStatement st;
 
-				st = db.getConnection().prepareStatement("SELECT links.id AS id, " +
-														 " links.publicKey AS publicKey, "+
-														 " links.blackListed AS blacklisted," +
-														 " links.indexParent AS indexParent, "+
-														 " categories.name AS categoryName "+
-														 " FROM links LEFT OUTER JOIN categories "+
-														 " ON links.category = categories.id "+
-														 "WHERE "+getWhereClause(false));
+				st = db.getConnection().prepareStatement(LINK_SELECT +
+									 "WHERE "+getWhereClause(false));
 				fillInStatement(st);
 				ResultSet set = st.executeQuery();
 
@@ -131,7 +415,7 @@ public class SearchResult implements FileAndLinkList {
 							       set.getInt("indexParent") ));
 					}
 				}
-				
+
 				st.close();
 
 			} catch(SQLException e) {
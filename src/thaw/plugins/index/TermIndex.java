@@ -0,0 +1,223 @@
+package thaw.plugins.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Vector;
+
+import thaw.core.Logger;
+import thaw.plugins.Hsqldb;
+
+
+/**
+ * Inverted index used by the search (see SearchResult) : the words of the file names
+ * (table fileTerms) and of the index names of the links (table linkTerms), in lower case.<br/>
+ * The rows are written with their file / link (see Index.addFile(), IndexIngester, ...)
+ * and deleted with them (ON DELETE CASCADE).
+ */
+public class TermIndex {
+	public final static int MIN_TERM_LENGTH = 2;
+	public final static int MAX_TERM_LENGTH = 64;
+
+	/* ids read at once while indexing the existing rows */
+	private final static int CHUNK_SIZE = 10000;
+
+
+	private TermIndex() {
+
+	}
+
+
+	/**
+	 * Split a text on everything that is not a letter or a digit.
+	 * @return the distinct terms, in lower case ; the too short ones are ignored
+	 */
+	public static Vector<String> getTerms(String text) {
+		final Vector<String> terms = new Vector<String>();
+
+		if (text == null)
+			return terms;
+
+		text = text.toLowerCase();
+
+		int start = -1;
+
+		for (int i = 0 ; i <= text.length() ; i++) {
+			final boolean letter = (i < text.length() && Character.isLetterOrDigit(text.charAt(i)));
+
+			if (letter && start < 0)
+				start = i;
+			else if (!letter && start >= 0) {
+				String term = text.substring(start, i);
+
+				if (term.length() > MAX_TERM_LENGTH)
+					term = term.substring(0, MAX_TERM_LENGTH);
+
+				if (term.length() >= MIN_TERM_LENGTH && !terms.contains(term))
+					terms.add(term);
+
+				start = -1;
+			}
+		}
+
+		return terms;
+	}
+
+	/**
+	 * @return the text indexed for a file : its name, decoded (see File.getFilename())
+	 */
+	public static String getFileText(final String filename) {
+		if (filename == null)
+			return null;
+
+		try {
+			return java.net.URLDecoder.decode(filename, "UTF-8");
+		} catch(final java.io.UnsupportedEncodingException e) {
+			return filename;
+		} catch(final IllegalArgumentException e) {
+			/* not encoded */
+			return filename;
+		}
+	}
+
+	/**
+	 * @return the text indexed for a link : the name of the index it points to
+	 */
+	public static String getLinkText(final String key) {
+		return getFileText(Index.getNameFromKey(key));
+	}
+
+
+	/**
+	 * @param st "INSERT INTO fileTerms (term, fileId) VALUES (?, ?)" or the same for linkTerms
+	 * @return number of rows added to the batch of the statement
+	 */
+	public static int addTerms(final PreparedStatement st, final int id, final String text) throws SQLException {
+		final Vector<String> terms = getTerms(text);
+
+		for (final String term : terms) {
+			st.setString(1, term);
+			st.setInt(2, id);
+			st.addBatch();
+		}
+
+		return terms.size();
+	}
+
+	public static PreparedStatement prepareFileTerms(final Connection c) throws SQLException {
+		return c.prepareStatement("INSERT INTO fileTerms (term, fileId) VALUES (?, ?)");
+	}
+
+	public static PreparedStatement prepareLinkTerms(final Connection c) throws SQLException {
+		return c.prepareStatement("INSERT INTO linkTerms (term, linkId) VALUES (?, ?)");
+	}
+
+
+	/**
+	 * The caller must hold db.dbLock if c is the main connection.
+	 */
+	public static void addFile(final Connection c, final int fileId, final String filename) throws SQLException {
+		final PreparedStatement st = prepareFileTerms(c);
+
+		if (addTerms(st, fileId, getFileText(filename)) > 0)
+			st.executeBatch();
+
+		st.close();
+	}
+
+	/**
+	 * The caller must hold db.dbLock if c is the main connection.
+	 */
+	public static void addLink(final Connection c, final int linkId, final String key) throws SQLException {
+		final PreparedStatement st = prepareLinkTerms(c);
+
+		if (addTerms(st, linkId, getLinkText(key)) > 0)
+			st.executeBatch();
+
+		st.close();
+	}
+
+	/**
+	 * Replace the terms of a link (its key changed).
+	 * The caller must hold db.dbLock if c is the main connection.
+	 */
+	public static void updateLink(final Connection c, final int linkId, final String key) throws SQLException {
+		final PreparedStatement st = c.prepareStatement("DELETE FROM linkTerms WHERE linkId = ?");
+		st.setInt(1, linkId);
+		st.execute();
+		st.close();
+
+		addLink(c, linkId, key);
+	}
+
+	/**
+	 * @return the id of the last row inserted with this connection (IDENTITY column)
+	 */
+	public static int getLastId(final Connection c) throws SQLException {
+		final PreparedStatement st = c.prepareStatement("CALL IDENTITY()");
+		final ResultSet set = st.executeQuery();
+
+		final int id = (set.next() ? set.getInt(1) : -1);
+
+		st.close();
+
+		return id;
+	}
+
+
+	/**
+	 * Index the files and the links already in the database (see
+	 * DatabaseManager.convertDatabase_12_to_13()).
+	 */
+	public static boolean indexAll(final Hsqldb db) {
+		return indexAll(db, "files", "filename", "fileTerms", "fileId", false)
+			&& indexAll(db, "links", "publicKey", "linkTerms", "linkId", true);
+	}
+
+	private static boolean indexAll(final Hsqldb db, final String table, final String column,
+					final String termTable, final String idColumn, final boolean isLink) {
+		int nmb = 0;
+
+		try {
+			synchronized(db.dbLock) {
+				final Connection c = db.getConnection();
+
+				PreparedStatement st = c.prepareStatement("SELECT MAX(id) FROM "+table);
+				ResultSet set = st.executeQuery();
+				final int maxId = (set.next() ? set.getInt(1) : 0);
+				st.close();
+
+				st = c.prepareStatement("SELECT id, "+column+" FROM "+table+" WHERE id >= ? AND id < ?");
+				final PreparedStatement insert = c.prepareStatement("INSERT INTO "+termTable+" (term, "+idColumn+") VALUES (?, ?)");
+
+				for (int start = 0 ; start <= maxId ; start += CHUNK_SIZE) {
+					st.setInt(1, start);
+					st.setInt(2, start + CHUNK_SIZE);
+					set = st.executeQuery();
+
+					int pending = 0;
+
+					while (set.next()) {
+						final String text = set.getString(column);
+						pending += addTerms(insert, set.getInt("id"), (isLink ? getLinkText(text) : getFileText(text)));
+						nmb++;
+					}
+
+					if (pending > 0)
+						insert.executeBatch();
+				}
+
+				st.close();
+				insert.close();
+			}
+		} catch(SQLException e) {
+			Logger.error(new TermIndex(), "Error while indexing the "+table+" : "+e.toString());
+			return false;
+		}
+
+		Logger.notice(new TermIndex(), Integer.toString(nmb)+" "+table+" indexed");
+
+		return true;
+	}
+}
@@ -2,8 +2,10 @@ package thaw.plugins.miniFrost;
 
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Vector;
 
 import thaw.plugins.miniFrost.interfaces.Board;
+import thaw.plugins.miniFrost.interfaces.BoardFactory;
 
 import thaw.core.Logger;
 import thaw.core.Config;
@@ -20,11 +22,16 @@ public class AutoRefresh implements ThawRunnable {
 	private int maxBoardRefreshing;
 	private int interval;
 
-	private BoardTree boardTree;
+	private BoardFactory[] factories;
+	private BoardTree boardTree; /* null if headless */
 
 	private Random random;
 
-	public AutoRefresh(Config config, BoardTree boardTree) {
+	/**
+	 * @param boardTree null if headless : the boards are then directly asked to the factories
+	 */
+	public AutoRefresh(Config config, BoardFactory[] factories, BoardTree boardTree) {
+		this.factories = factories;
 		this.boardTree = boardTree;
 
 		run = true;
@@ -44,12 +51,40 @@ public class AutoRefresh implements ThawRunnable {
 	}
 
 
+	private Vector<Board> getBoards() {
+		Vector<Board> boards = new Vector<Board>();
+
+		if (boardTree != null) {
+			addBoards(boards, boardTree.getBoards());
+			return boards;
+		}
+
+		for (int i = 0 ; i < factories.length ; i++)
+			addBoards(boards, factories[i].getBoards());
+
+		return boards;
+	}
+
+	/**
+	 * The factories and the board tree give untyped vectors
+	 */
+	private static void addBoards(final Vector<Board> boards, final Vector<?> v) {
+		if (v == null)
+			return;
+
+		for (Object o : v) {
+			if (o instanceof Board)
+				boards.add((Board)o);
+		}
+	}
+
+
 	public boolean canRefreshAnotherOne() {
 		int refreshing = 0;
 
-		for (Iterator it = boardTree.getBoards().iterator();
+		for (Iterator<Board> it = getBoards().iterator();
 		     it.hasNext();) {
-			if (((Board)it.next()).isRefreshing())
+			if (it.next().isRefreshing())
 				refreshing++;
 
 			if (refreshing >= maxBoardRefreshing)
@@ -60,11 +95,12 @@ public class AutoRefresh implements ThawRunnable {
 	}
 
 	public boolean refreshAnotherOne() {
+		Vector<Board> boards = getBoards();
 		int notRefreshing = 0;
 
-		for (Iterator it = boardTree.getBoards().iterator();
+		for (Iterator<Board> it = boards.iterator();
 		     it.hasNext();) {
-			if (!(((Board)it.next()).isRefreshing()))
+			if (!(it.next().isRefreshing()))
 				notRefreshing++;
 		}
 
@@ -78,9 +114,9 @@ public class AutoRefresh implements ThawRunnable {
 
 		int i = 0;
 
-		for (Iterator it = boardTree.getBoards().iterator();
+		for (Iterator<Board> it = boards.iterator();
 		     it.hasNext() && i <= sel ;) {
-			board = (Board)it.next();
+			board = it.next();
 
 			if (!board.isRefreshing())
 				i++;
@@ -90,13 +126,14 @@ public class AutoRefresh implements ThawRunnable {
 			Logger.error(this, "Hm, error while selecting the board to refresh : "+
 				     Integer.toString(sel) + " ; "+
 				     Integer.toString(notRefreshing) + " ; "+
-				     Integer.toString(boardTree.getBoards().size()));
+				     Integer.toString(boards.size()));
 			return false;
 		}
 
 		board.refresh();
 
-		boardTree.refresh(board);
+		if (boardTree != null)
+			boardTree.refresh(board);
 
 		return true;
 	}
@@ -13,6 +13,7 @@ import javax.swing.JOptionPane;
 import thaw.core.I18n;
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.plugins.miniFrost.interfaces.Board;
 import thaw.plugins.miniFrost.interfaces.BoardFactory;
@@ -41,8 +42,7 @@ public class BoardManagementHelper {
 		}
 
 		public void actionPerformed(ActionEvent e) {
-			Thread th = new Thread(new ThawThread(this, "Action replier", this));
-			th.start();
+			new ThawThread(this, "Action replier", this, ThawThreadManager.GROUP_DEFAULT).start();
 		}
 
 		public abstract void setTarget(Board board);
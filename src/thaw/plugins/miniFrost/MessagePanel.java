@@ -36,6 +36,7 @@ import thaw.fcp.*;
 import thaw.plugins.IndexBrowser;
 import thaw.plugins.index.IndexManagementHelper;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 public class MessagePanel
@@ -412,9 +413,8 @@ public class MessagePanel
 		Runnable doScroll = new Runnable() {
 				public void run() {
 
-					Thread th = new Thread(new ThawThread(new ScrollBarSetter(),
-							"Scrollbar setter", this));
-					th.start();
+					new ThawThread(new ScrollBarSetter(),
+							"Scrollbar setter", this, ThawThreadManager.GROUP_DEFAULT).start();
 				}
 			};
 
@@ -13,6 +13,7 @@ import java.util.Calendar;
 import thaw.core.Logger;
 import thaw.core.I18n;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.plugins.Hsqldb;
 
@@ -562,7 +563,8 @@ public class KSKBoard
 
 
 	protected void notifyChange() {
-		factory.getPlugin().getPanel().notifyChange(this);
+		if (factory.getPlugin().getPanel() != null)
+			factory.getPlugin().getPanel().notifyChange(this);
 		setChanged();
 		notifyObservers();
 	}
@@ -790,8 +792,7 @@ public class KSKBoard
 
 		notifyChange();
 
-		Thread th = new Thread(new ThawThread(this, "Board refreshment", this));
-		th.start();
+		new ThawThread(this, "Board refreshment", this, ThawThreadManager.GROUP_BOARDS).start();
 	}
 
 	public void run() {
@@ -216,6 +216,11 @@ public class KSKBoardFactory
 			if (convertDatabase_2_to_3())
 				core.getConfig().setValue("frostKSKDatabaseVersion", "3");
 		}
+
+		if ("3".equals(core.getConfig().getValue("frostKSKDatabaseVersion"))) {
+			if (convertDatabase_3_to_4())
+				core.getConfig().setValue("frostKSKDatabaseVersion", "4");
+		}
 	}
 
 	protected boolean convertDatabase_0_to_1() {
@@ -271,6 +276,28 @@ public class KSKBoardFactory
 		return true;
 	}
 
+	protected boolean convertDatabase_3_to_4() {
+		if (!createIndexes(db)) {
+			Logger.error(this, "Error while converting the board database from version 3 to 4");
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Indexes used by the message lists / unread counts of the boards, and by the
+	 * duplicate checks of the parser (msgId). boardId alone is already indexed by its
+	 * foreign key, but the counts also filter on read / archived.
+	 */
+	public static boolean createIndexes(final Hsqldb db) {
+		boolean b = sendQuery(db, "CREATE INDEX frostKSKMessagesBoard ON frostKSKMessages (boardId, read, archived)");
+		boolean c = sendQuery(db, "CREATE INDEX frostKSKMessagesMsgId ON frostKSKMessages (msgId)");
+
+		return b & c;
+	}
+
 
 	protected void createTables() {
 		sendQuery("CREATE CACHED TABLE frostKSKBoards ("
@@ -331,8 +358,10 @@ public class KSKBoardFactory
 			  + "messageId INTEGER NOT NULL, "
 			  + "FOREIGN KEY (messageId) REFERENCES frostKSKMessages (id))");
 
-		if (core.getConfig().getValue("frostKSKDatabaseVersion") == null)
-			core.getConfig().setValue("frostKSKDatabaseVersion", "3");
+		if (core.getConfig().getValue("frostKSKDatabaseVersion") == null) {
+			createIndexes(db);
+			core.getConfig().setValue("frostKSKDatabaseVersion", "4");
+		}
 	}
 
 
@@ -17,6 +17,7 @@ import thaw.core.I18n;
 
 import thaw.core.ThawRunnable;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 
 public class KSKDraft
 	implements thaw.plugins.miniFrost.interfaces.Draft, Observer {
@@ -293,8 +294,7 @@ public class KSKDraft
 				board.deleteObserver(this);
 				revUsed = board.getNextNonDownloadedAndValidRev(date, -1);
 
-				Thread th = new Thread(new ThawThread(new InsertionStarter(), "Frost message insertion starter"));
-				th.start();
+				new ThawThread(new InsertionStarter(), "Frost message insertion starter", null, ThawThreadManager.GROUP_DEFAULT).start();
 			}
 		}
 
@@ -8,6 +8,7 @@ import java.util.Iterator;
 import thaw.core.I18n;
 import thaw.core.Config;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.plugins.Hsqldb;
 import thaw.core.Logger;
@@ -218,8 +219,7 @@ public class KSKFileAttachment
 			keysToDownload = new Vector();
 			keysToDownload.add(key);
 
-			Thread th = new Thread(new ThawThread(this, "File downloading : path asker", this));
-			th.start();
+			new ThawThread(this, "File downloading : path asker", this, ThawThreadManager.GROUP_DEFAULT).start();
 
 		} else if (action.equals(I18n.getMessage("thaw.plugin.miniFrost.downloadAll"))) {
 
@@ -235,8 +235,7 @@ public class KSKFileAttachment
 					keysToDownload.add(((KSKFileAttachment)o).getValue("key"));
 			}
 
-			Thread th = new Thread(new ThawThread(this, "File downloading : path asker", this));
-			th.start();
+			new ThawThread(this, "File downloading : path asker", this, ThawThreadManager.GROUP_DEFAULT).start();
 
 		}
 	}
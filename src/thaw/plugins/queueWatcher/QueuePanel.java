@@ -29,6 +29,7 @@ import javax.swing.table.TableModel;
 
 import thaw.core.Core;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 import thaw.gui.FileChooser;
 import thaw.core.I18n;
@@ -446,16 +447,14 @@ public class QueuePanel implements MouseListener, ActionListener, KeyListener {
 
 	public void removeSelectedTransfers() {
 		reloadSelections();
-		Thread th = new Thread(new ThawThread(new ActionReplier(ACTION_REMOVE_SELECTED, -1),
-				"Action replier : Remove selected", this));
-		th.start();
+		new ThawThread(new ActionReplier(ACTION_REMOVE_SELECTED, -1),
+				"Action replier : Remove selected", this, ThawThreadManager.GROUP_DEFAULT).start();
 	}
 
 	public void removeAllFinishedTransfers() {
 		reloadSelections();
-		Thread th = new Thread(new ThawThread(new ActionReplier(ACTION_REMOVE_FINISHED, -1),
-				"Action replier : Remove finished", this));
-		th.start();
+		new ThawThread(new ActionReplier(ACTION_REMOVE_FINISHED, -1),
+				"Action replier : Remove finished", this, ThawThreadManager.GROUP_DEFAULT).start();
 	}
 
 	/**
@@ -489,10 +488,9 @@ public class QueuePanel implements MouseListener, ActionListener, KeyListener {
 			}
 		}
 
-		final Thread actionTh = new Thread(new ThawThread(new ActionReplier(action, prioritySelected),
+		new ThawThread(new ActionReplier(action, prioritySelected),
 				"Action replier : " + Integer.toString(action),
-				this));
-		actionTh.start();
+				this, ThawThreadManager.GROUP_DEFAULT).start();
 	}
 
 	public void mouseClicked(final MouseEvent e) {
@@ -4,6 +4,8 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
@@ -78,6 +80,7 @@ public class QueueTableModel extends javax.swing.table.AbstractTableModel implem
 		if(queueManager != null) {
 			reloadQueue();
 			queueManager.addObserver(this);
+			queueManager.getTransferStats().addObserver(this);
 		} else {
 			Logger.warning(this, "Unable to connect to QueueManager. Is the connection established ?");
 		}
@@ -236,14 +239,60 @@ public class QueueTableModel extends javax.swing.table.AbstractTableModel implem
 		}
 	}
 
+	/**
+	 * The table is sorted and refreshed only once.
+	 */
 	public void addQueries(final Iterable<FCPTransferQuery> queries) {
-		for(FCPTransferQuery query : queries) {
-			if((query.getQueryType() == 1) && !isForInsertions)
-				addQuery(query);
+		final Vector<FCPTransferQuery> newQueries = new Vector<FCPTransferQuery>();
 
-			if((query.getQueryType() == 2) && isForInsertions)
-				addQuery(query);
+		synchronized(this.queries) {
+			/* same test as contains() (FCPTransferQuery.equals() : same ref or same identifier),
+			 * but hashed : avoid an O(n^2) on big queues */
+			final IdentityHashMap<FCPTransferQuery,Boolean> known =
+				new IdentityHashMap<FCPTransferQuery,Boolean>(this.queries.size());
+			final HashSet<String> knownIds = new HashSet<String>(this.queries.size());
+
+			for (FCPTransferQuery query : this.queries) {
+				known.put(query, Boolean.TRUE);
+
+				if (query.getIdentifier() != null)
+					knownIds.add(query.getIdentifier());
+			}
+
+			for(FCPTransferQuery query : queries) {
+				if (!query.isPersistent())
+					continue;
+
+				if (((query.getQueryType() == 1) && !isForInsertions)
+				    || ((query.getQueryType() == 2) && isForInsertions)) {
+					final String id = query.getIdentifier();
+
+					if (known.containsKey(query) || (id != null && knownIds.contains(id)))
+						continue;
+
+					known.put(query, Boolean.TRUE);
+
+					if (id != null)
+						knownIds.add(id);
+
+					newQueries.add(query);
+				}
+			}
 		}
+
+		if (newQueries.isEmpty())
+			return;
+
+		for (FCPTransferQuery query : newQueries)
+			query.addObserver(this);
+
+		synchronized(this.queries) {
+			this.queries.addAll(newQueries);
+		}
+
+		sortTable();
+
+		this.notifyObservers();
 	}
 
 	public void addQuery(final FCPTransferQuery query) {
@@ -350,6 +399,26 @@ public class QueueTableModel extends javax.swing.table.AbstractTableModel implem
 			return;
 		}
 
+		if (queueManager != null && o == queueManager.getTransferStats()) {
+			/* speeds / ETAs updated : one refresh for all of them */
+			sortTable();
+			this.notifyObservers();
+			return;
+		}
+
+		if (o == queueManager && arg instanceof Vector) {
+			/* queries added in bulk */
+			final Vector<FCPTransferQuery> added = new Vector<FCPTransferQuery>();
+
+			for (final Object query : (Vector<?>)arg) {
+				if (query instanceof FCPTransferQuery)
+					added.add((FCPTransferQuery)query);
+			}
+
+			addQueries(added);
+			return;
+		}
+
 
 		if (o == queueManager) {
 			final FCPTransferQuery query = (FCPTransferQuery)arg;
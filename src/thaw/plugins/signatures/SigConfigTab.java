@@ -27,6 +27,7 @@ import thaw.gui.ConfigWindow;
 import thaw.core.Config;
 import thaw.core.Logger;
 import thaw.core.ThawThread;
+import thaw.core.ThawThreadManager;
 import thaw.core.ThawRunnable;
 
 import thaw.gui.IconBox;
@@ -336,29 +337,25 @@ public class SigConfigTab implements ActionListener, Observer {
 
 		public void actionPerformed(ActionEvent e) {
 			if (e.getSource() == addIdentity) {
-				Thread th = new Thread(new ThawThread(new IdentityAdder(), "Identity adder", this));
-				th.start();
+				new ThawThread(new IdentityAdder(), "Identity adder", this, ThawThreadManager.GROUP_DEFAULT).start();
 			}
 
 			if (e.getSource() == removeIdentity) {
 				Identity i = (Identity)list.getSelectedValue();
 				if (i != null) {
-					Thread th = new Thread(new ThawThread(new IdentityDeleter(i), "Identity deleter", this));
-					th.start();
+					new ThawThread(new IdentityDeleter(i), "Identity deleter", this, ThawThreadManager.GROUP_DEFAULT).start();
 				}
 			}
 
 			if (e.getSource() == importIdentity) {
-				Thread th = new Thread(new ThawThread(new IdentityImporter(), "Identity importer", this));
-				th.start();
+				new ThawThread(new IdentityImporter(), "Identity importer", this, ThawThreadManager.GROUP_DEFAULT).start();
 			}
 
 			if (e.getSource() == exportIdentity) {
 				Identity i = (Identity)list.getSelectedValue();
 
 				if (i != null) {
-					Thread th = new Thread(new ThawThread(new IdentityExporter(i), "Identity exporter", this));
-					th.start();
+					new ThawThread(new IdentityExporter(i), "Identity exporter", this, ThawThreadManager.GROUP_DEFAULT).start();
 				}
 			}
 
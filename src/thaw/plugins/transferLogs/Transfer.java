@@ -204,8 +204,8 @@ public class Transfer implements Observer {
 
 					st = db.getConnection().prepareStatement("INSERT INTO transferLogs "+
 										 "(dateStart, dateEnd, transferType, "+
-										 " key, filename, size, isDup, isSuccess) "+
-										 "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+										 " key, lowerKey, filename, size, isDup, isSuccess) "+
+										 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
 					st.setTimestamp(1, now);
 
 					if (query.isFinished())
@@ -218,15 +218,18 @@ public class Transfer implements Observer {
 					else
 						st.setByte(3, TransferLogs.TRANSFER_TYPE_DOWNLOAD);
 
-					if (qKey != null)
+					if (qKey != null) {
 						st.setString(4, qKey);
-					else
+						st.setString(5, qKey.toLowerCase());
+					} else {
 						st.setNull(4, Types.VARCHAR);
+						st.setNull(5, Types.VARCHAR);
+					}
 
-					st.setString(5, filename);
-					st.setLong(6, query.getFileSize());
-					st.setBoolean(7, TransferLogs.isDup(db, query.getFileKey()));
-					st.setBoolean(8, query.isFinished() && query.isSuccessful());
+					st.setString(6, filename);
+					st.setLong(7, query.getFileSize());
+					st.setBoolean(8, TransferLogs.isDup(db, query.getFileKey()));
+					st.setBoolean(9, query.isFinished() && query.isSuccessful());
 					st.execute();
 					st.close();
 				}
@@ -253,9 +256,10 @@ public class Transfer implements Observer {
 		try {
 			synchronized(db.dbLock) {
 				PreparedStatement st = db.getConnection().prepareStatement("UPDATE transferLogs SET "+
-											   "key = ? WHERE id = ?");
+											   "key = ?, lowerKey = ? WHERE id = ?");
 				st.setString(1, qKey);
-				st.setInt(2, this.id);
+				st.setString(2, (qKey != null ? qKey.toLowerCase() : null));
+				st.setInt(3, this.id);
 				st.execute();
 				st.close();
 			}
@@ -19,15 +19,23 @@ public class DatabaseManager {
 
 		if (config.getValue("wotDatabaseVersion") == null) {
 			newDb = true;
-			config.setValue("wotDatabaseVersion", "0");
+			config.setValue("wotDatabaseVersion", "1");
 		} else {
 			/* CONVERTIONS */
-			
-			/* ... */			
+
+			if ("0".equals(config.getValue("wotDatabaseVersion"))) {
+				if (splashScreen != null)
+					splashScreen.setStatus("Converting database ...");
+				if (convertDatabase_0_to_1(db))
+					config.setValue("wotDatabaseVersion", "1");
+			}
 		}
 
 		createTables(db);
 
+		if (newDb)
+			createIndexes(db);
+
 		return newDb;
 	}
 	
@@ -35,6 +43,7 @@ public class DatabaseManager {
 		sendQuery(db, "CREATE CACHED TABLE wotKeys ("
 				+ "id INTEGER IDENTITY NOT NULL, "
 				+ "publicKey VARCHAR(400) NOT NULL, "
+				+ "lowerPublicKey VARCHAR(400) DEFAULT NULL, "
 				+ "keyDate TIMESTAMP NOT NULL, "
 				+ "score SMALLINT NOT NULL, "
 				+ "sigId INTEGER NOT NULL, "
@@ -51,6 +60,28 @@ public class DatabaseManager {
 				+ "FOREIGN KEY(destination) REFERENCES signatures(id))");
 	}
 	
+	/**
+	 * lowerPublicKey : HSQLDB can't index LOWER(publicKey), so the lower case key is
+	 * stored with the key (see WotIdentity.getIdentity()).
+	 * sigId and source are already indexed by their foreign keys.
+	 */
+	public static boolean createIndexes(Hsqldb db) {
+		boolean b = sendQuery(db, "CREATE INDEX wotKeysLowerPublicKey ON wotKeys (lowerPublicKey)");
+		boolean c = sendQuery(db, "CREATE INDEX wotTrustListsSourceDest ON wotTrustLists (source, destination)");
+
+		return b & c;
+	}
+
+	public static boolean convertDatabase_0_to_1(Hsqldb db) {
+		if (!sendQuery(db, "ALTER TABLE wotKeys ADD COLUMN lowerPublicKey VARCHAR(400) DEFAULT NULL")
+		    || !sendQuery(db, "UPDATE wotKeys SET lowerPublicKey = LOWER(publicKey)")) {
+			Logger.error(new DatabaseManager(), "Error while converting the database (0 to 1)");
+			return false;
+		}
+
+		return createIndexes(db);
+	}
+
 	/**
 	 * Returns no error / Throws no exception.
 	 * @return false if an exception happened
@@ -78,8 +78,7 @@ public class WotIdentity extends Identity implements TrustListParser.TrustListCo
 	public static WotIdentity getIdentity(Hsqldb db, String wotPublicKey) {
 		try {
 			synchronized(db.dbLock) {
-				/* TODO : Optimize ! sluggard ! */
-				PreparedStatement st = db.getConnection().prepareStatement("SELECT sigId FROM wotKeys WHERE LOWER(publicKey) LIKE ? LIMIT 1");
+				PreparedStatement st = db.getConnection().prepareStatement("SELECT sigId FROM wotKeys WHERE lowerPublicKey LIKE ? LIMIT 1");
 				st.setString(1, FreenetURIHelper.getComparablePart(wotPublicKey)+"%");
 				
 				ResultSet set = st.executeQuery();
@@ -266,11 +265,12 @@ public class WotIdentity extends Identity implements TrustListParser.TrustListCo
 			synchronized(getDb().dbLock) {
 				PreparedStatement st;
 				
-				st = getDb().getConnection().prepareStatement("UPDATE wotKeys SET publicKey = ?, keyDate = ?, lastDownload = ? WHERE sigId = ?");
+				st = getDb().getConnection().prepareStatement("UPDATE wotKeys SET publicKey = ?, lowerPublicKey = ?, keyDate = ?, lastDownload = ? WHERE sigId = ?");
 				st.setString(1, wotPublicKey);
-				st.setTimestamp(2, new Timestamp(new java.util.Date().getTime()));
-				st.setTimestamp(3, new Timestamp(lastDownload.getTime()));
-				st.setInt(4, getId());
+				st.setString(2, wotPublicKey.toLowerCase());
+				st.setTimestamp(3, new Timestamp(new java.util.Date().getTime()));
+				st.setTimestamp(4, new Timestamp(lastDownload.getTime()));
+				st.setInt(5, getId());
 				
 				st.execute();
 				st.close();
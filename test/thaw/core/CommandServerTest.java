@@ -0,0 +1,107 @@
+package thaw.core;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class CommandServerTest extends TestCase {
+	private final static String SECRET = "0123456789abcdef";
+
+	private CommandServer server;
+
+	protected void setUp() {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		server = new CommandServer(null, 0, SECRET);
+		assertTrue(server.start());
+	}
+
+	protected void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * @return the lines of the answer, the last one being "OK" or "ERROR ..."
+	 */
+	private static String readAnswer(BufferedReader in) throws Exception {
+		String answer = "";
+		String line;
+
+		while ((line = in.readLine()) != null) {
+			answer += line + "\n";
+
+			if ("OK".equals(line) || line.startsWith("ERROR"))
+				break;
+		}
+
+		return answer;
+	}
+
+	@Test
+	public void testParseArguments() {
+		String[] args = CommandServer.parseArguments("put  \"/tmp/my file.txt\"");
+		assertEquals(2, args.length);
+		assertEquals("put", args[0]);
+		assertEquals("/tmp/my file.txt", args[1]);
+
+		args = CommandServer.parseArguments("get KSK@a \"\" c:\\dir");
+		assertEquals(4, args.length);
+		assertEquals("", args[2]);
+		assertEquals("c:\\dir", args[3]);
+	}
+
+	@Test
+	public void testAuthentication() throws Exception {
+		/* silent client : must not block the others */
+		Socket silent = new Socket("127.0.0.1", server.getPort());
+		BufferedReader silentIn = new BufferedReader(new InputStreamReader(silent.getInputStream(), "UTF-8"));
+		assertTrue(readAnswer(silentIn).endsWith("OK\n"));
+
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(2000);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+		assertTrue(readAnswer(in).endsWith("OK\n"));
+
+		out.println("help");
+		assertTrue(readAnswer(in).startsWith("ERROR"));
+
+		out.println("auth " + SECRET);
+		assertEquals("OK\n", readAnswer(in));
+
+		out.println("help");
+		assertTrue(readAnswer(in).endsWith("\nOK\n"));
+
+		/* authenticated : no timeout */
+		Thread.sleep(CommandServer.AUTH_TIMEOUT + 1000);
+		out.println("help");
+		assertTrue(readAnswer(in).endsWith("\nOK\n"));
+		socket.close();
+
+		/* the silent one was disconnected */
+		silent.setSoTimeout(1000);
+		assertNull(silentIn.readLine());
+		silent.close();
+	}
+
+	@Test
+	public void testWrongSecret() throws Exception {
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(2000);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+		readAnswer(in);
+
+		out.println("auth nope");
+		assertEquals("ERROR wrong secret\n", readAnswer(in));
+		assertNull(in.readLine());
+
+		socket.close();
+	}
+}
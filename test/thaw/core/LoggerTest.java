@@ -0,0 +1,94 @@
+package thaw.core;
+
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class LoggerTest extends TestCase {
+	private final Vector<String> lines = new Vector<String>();
+
+	private final LogListener listener = new LogListener() {
+		public void newLogLine(int level, Object src, String line) {
+			if (line.startsWith("test "))
+				lines.add(line);
+		}
+
+		public void logLevelChanged(int oldLevel, int newLevel) { }
+	};
+
+	private int oldLevel;
+
+	protected void setUp() {
+		oldLevel = Logger.getLogLevel();
+		Logger.setLogLevel(Logger.LOG_LEVEL_NOTICE);
+		Logger.addLogListener(listener);
+	}
+
+	protected void tearDown() {
+		Logger.flush();
+		Logger.removeLogListener(listener);
+		Logger.setLogLevels(null);
+		Logger.setLogLevel(oldLevel);
+	}
+
+	@Test
+	public void testOrderPerThread() throws InterruptedException {
+		Thread[] threads = new Thread[4];
+
+		for (int t = 0 ; t < threads.length ; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0 ; i < 1000 ; i++)
+						Logger.notice(null, "test " + id + " " + i);
+				}
+			};
+			threads[t].start();
+		}
+
+		for (int t = 0 ; t < threads.length ; t++)
+			threads[t].join();
+
+		Logger.flush();
+
+		assertEquals(4000, lines.size());
+
+		int[] next = new int[threads.length];
+
+		for (String line : lines) {
+			String[] parts = line.split(" ");
+			int id = Integer.parseInt(parts[1]);
+			assertEquals(next[id]++, Integer.parseInt(parts[2]));
+		}
+	}
+
+	@Test
+	public void testLazyMessageAndOverrides() {
+		final int[] calls = new int[1];
+
+		Object message = new Object() {
+			public String toString() {
+				calls[0]++;
+				return "test lazy";
+			}
+		};
+
+		Logger.debug(this, message);
+		Logger.flush();
+		assertEquals(0, calls[0]);
+		assertFalse(Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, this));
+
+		Logger.setLogLevels("thaw.core=4, thaw.core.LoggerTest=0");
+		assertFalse(Logger.isEnabled(Logger.LOG_LEVEL_WARNING, this));
+		assertTrue(Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, new Config(null, "none")));
+
+		Logger.setLogLevel("thaw.core.LoggerTest", -1);
+		assertTrue(Logger.isEnabled(Logger.LOG_LEVEL_DEBUG, this));
+
+		Logger.debug(this, message);
+		Logger.flush();
+		assertEquals(1, calls[0]);
+		assertEquals("test lazy", lines.get(0));
+	}
+}
@@ -0,0 +1,78 @@
+package thaw.core;
+
+import java.util.Map;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase {
+
+	@Test
+	public void testHistogram() {
+		Metrics.Histogram h = new Metrics.Histogram();
+
+		assertEquals(0, h.getPercentile(50));
+
+		for (int i = 1 ; i <= 100 ; i++)
+			h.record(i * 1000);
+
+		assertEquals(100, h.getCount());
+		assertEquals(50500, h.getMean());
+		assertEquals(100000, h.getMax());
+
+		/* approximated by the upper bound of the bucket */
+		long p50 = h.getPercentile(50);
+		assertTrue(p50 >= 50000 && p50 < 2 * 50000);
+		assertEquals(100000, h.getPercentile(100));
+	}
+
+	@Test
+	public void testFamiliesAndValues() {
+		Metrics.CounterFamily family = new Metrics.CounterFamily("test.family");
+
+		family.get("a").inc();
+		family.get("a").add(2);
+		assertSame(family.get("a"), family.get("a"));
+
+		for (int i = 0 ; i < Metrics.MAX_FAMILY_SIZE + 10 ; i++)
+			family.get("key" + i).inc();
+
+		Map<String, Long> values = Metrics.getValues();
+
+		assertEquals(Long.valueOf(3), values.get("test.family.a"));
+		assertEquals(Long.valueOf(11), values.get("test.family.other"));
+		assertNull(values.get("test.family.key" + (Metrics.MAX_FAMILY_SIZE + 5)));
+
+		Metrics.histogram("test.histogram").record(3000);
+		assertEquals(Long.valueOf(1), Metrics.getValues().get("test.histogram.count"));
+		assertEquals(Long.valueOf(3), Metrics.getValues().get("test.histogram.max.us"));
+
+		Metrics.remove("test.histogram");
+		assertNull(Metrics.getValues().get("test.histogram.count"));
+	}
+
+	@Test
+	public void testWatchLock() throws InterruptedException {
+		final Object lock = new Object();
+
+		Metrics.watchLock("test.lock", lock);
+
+		Thread waiter = new Thread() {
+			public void run() {
+				synchronized(lock) { }
+			}
+		};
+
+		synchronized(lock) {
+			waiter.start();
+			Thread.sleep(3 * Metrics.LOCK_SAMPLE_PERIOD);
+		}
+
+		waiter.join();
+
+		assertTrue(Metrics.getValues().get("test.lock.waitTime.ms").longValue() > 0);
+
+		Metrics.unwatchLock("test.lock");
+		assertNull(Metrics.getValues().get("test.lock.waiters"));
+	}
+}
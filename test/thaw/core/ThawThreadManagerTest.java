@@ -0,0 +1,71 @@
+package thaw.core;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class ThawThreadManagerTest extends TestCase {
+
+	private static class Sleeper implements ThawRunnable {
+		private static int running = 0;
+		private static int maxRunning = 0;
+
+		private boolean stop = false;
+
+		public void run() {
+			synchronized(Sleeper.class) {
+				running++;
+				maxRunning = Math.max(maxRunning, running);
+			}
+
+			try {
+				for (int i = 0 ; i < 20 && !stop ; i++)
+					Thread.sleep(10);
+			} catch(InterruptedException e) {
+				/* \_o< */
+			}
+
+			synchronized(Sleeper.class) {
+				running--;
+			}
+		}
+
+		public void stop() {
+			stop = true;
+		}
+	}
+
+
+	@Test
+	public void testGroupLimit() throws InterruptedException {
+		ThawThread.getThawThreadManager().setGroupLimit("test.limit", 2);
+
+		ThawThread[] tasks = new ThawThread[6];
+
+		for (int i = 0 ; i < tasks.length ; i++)
+			tasks[i] = new ThawThread(new Sleeper(), "Sleeper", this, "test.limit").start();
+
+		for (int i = 0 ; i < tasks.length ; i++)
+			assertTrue(tasks[i].join(5000));
+
+		assertEquals(2, Sleeper.maxRunning);
+		assertFalse(tasks[0].isAlive());
+	}
+
+	@Test
+	public void testInterrupt() throws InterruptedException {
+		ThawThread task = new ThawThread(new ThawRunnable() {
+				public void run() {
+					try {
+						Thread.sleep(10000);
+					} catch(InterruptedException e) {
+						/* expected */
+					}
+				}
+
+				public void stop() { }
+			}, "Interrupted", this, ThawThreadManager.GROUP_DEFAULT).start();
+
+		task.interrupt();
+		assertTrue(task.join(5000));
+	}
+}
@@ -0,0 +1,290 @@
+package thaw.fcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import thaw.core.Logger;
+import thaw.core.Metrics;
+
+/**
+ * Drives the real FCP stack of Thaw (FCPConnection, FCPQueryManager, FCPQueueManager,
+ * FCPClientGet, FCPClientPut) against a FCPNodeSimulator with thousands of transfers,
+ * and reports the number of FCP messages per second, the scheduler latency (time between
+ * the moment a transfer is queued and the moment the node receives its ClientGet / ClientPut),
+ * the memory used and the number of threads.
+ * Run it with "ant benchmark-fcp" (see the properties benchmark.* in build.xml).
+ */
+public class FCPLoadBenchmark {
+	public final static String THAW_ID = "thaw_benchmark";
+
+	private int nmbDownloads = 2000;
+	private int nmbInsertions = 200;
+	private int maxDownloads = -1;
+	private int maxInsertions = 20;
+	private int minLatency = 5;
+	private int maxLatency = 50;
+	private double failureRate = 0.02;
+	private int timeout = 600; /* s */
+
+	/* values read by the listener of the simulator */
+	private final ConcurrentHashMap<String, Long> queuingTimes = new ConcurrentHashMap<String, Long>();
+	private final Metrics.Histogram schedulerLatency = new Metrics.Histogram();
+
+
+	public static class Result {
+		public long duration; /* ms */
+		public int successful;
+		public int failed;
+		public int unfinished;
+		public long messagesRead;
+		public long messagesWritten;
+		public long bytesIn;
+		public long bytesOut;
+		public long schedulerLatencyP50; /* ns */
+		public long schedulerLatencyP99; /* ns */
+		public long schedulerLatencyMax; /* ns */
+		public long usedMemoryBefore; /* bytes */
+		public long usedMemoryPeak; /* bytes */
+		public long usedMemoryAfter; /* bytes */
+		public int threadsBefore;
+		public int threadsPeak;
+
+		public String toString() {
+			final double seconds = Math.max(duration, 1) / 1000.0;
+
+			return "Transfers : " + successful + " successful, " + failed + " failed, "
+				+ unfinished + " unfinished, in " + duration + " ms ("
+				+ (long)((successful + failed) / seconds) + " transfers/s)\n"
+				+ "FCP messages : " + messagesRead + " read, " + messagesWritten + " written ("
+				+ (long)((messagesRead + messagesWritten) / seconds) + " messages/s)\n"
+				+ "FCP bytes : " + bytesIn + " in, " + bytesOut + " out\n"
+				+ "Scheduler latency : p50 " + schedulerLatencyP50 / 1000000 + " ms, p99 "
+				+ schedulerLatencyP99 / 1000000 + " ms, max " + schedulerLatencyMax / 1000000 + " ms\n"
+				+ "Heap used : " + usedMemoryBefore / 1024 + " KB before, " + usedMemoryPeak / 1024
+				+ " KB peak, " + usedMemoryAfter / 1024 + " KB after\n"
+				+ "Threads : " + threadsBefore + " before, " + threadsPeak + " peak";
+		}
+	}
+
+
+	public FCPLoadBenchmark() {
+
+	}
+
+	public void setTransfers(final int nmbDownloads, final int nmbInsertions) {
+		this.nmbDownloads = nmbDownloads;
+		this.nmbInsertions = nmbInsertions;
+	}
+
+	/**
+	 * @param maxDownloads -1 = no limit
+	 * @param maxInsertions -1 = no limit
+	 */
+	public void setMaxRunning(final int maxDownloads, final int maxInsertions) {
+		this.maxDownloads = maxDownloads;
+		this.maxInsertions = maxInsertions;
+	}
+
+	public void setLatency(final int minLatency, final int maxLatency) {
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+
+	public void setFailureRate(final double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public void setTimeout(final int timeout) {
+		this.timeout = timeout;
+	}
+
+
+	public Result run() throws IOException, InterruptedException {
+		final Result result = new Result();
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		final File dir = File.createTempFile("thaw_benchmark", "");
+		dir.delete();
+		dir.mkdir();
+
+		final FCPNodeSimulator simulator = new FCPNodeSimulator();
+		simulator.setLatency(minLatency, maxLatency);
+		simulator.setFailureRate(failureRate);
+		simulator.setListener(new FCPNodeSimulator.Listener() {
+			public void messageReceived(final String name, final Map<String, String> fields) {
+				Long time = null;
+
+				if ("ClientGet".equals(name))
+					time = queuingTimes.remove(fields.get("URI"));
+				else if ("ClientPut".equals(name))
+					time = queuingTimes.remove(fields.get("TargetFilename"));
+
+				if (time != null)
+					schedulerLatency.recordSince(time.longValue());
+			}
+		});
+
+		final int port = simulator.start();
+
+		final FCPConnection connection = new FCPConnection("127.0.0.1", port, -1, false, false, true);
+
+		if (!connection.connect())
+			throw new IOException("Unable to connect to the simulator");
+
+		final FCPQueryManager queryManager = new FCPQueryManager(connection);
+		queryManager.startListening();
+
+		if (!new FCPClientHello(queryManager, THAW_ID).start())
+			throw new IOException("No NodeHello from the simulator");
+
+		final FCPQueueManager queueManager = new FCPQueueManager(queryManager, THAW_ID,
+									 maxDownloads, maxInsertions);
+		queueManager.setQueueCompleted();
+		queueManager.startScheduler();
+
+		/* the scheduler waits 5s before its first run */
+		Thread.sleep(5500);
+
+		final Vector<FCPTransferQuery> queries = new Vector<FCPTransferQuery>();
+
+		for (int i = 0 ; i < nmbInsertions ; i++) {
+			final File file = new File(dir, "insertion-" + i + ".bin");
+			final FileOutputStream out = new FileOutputStream(file);
+			out.write(new byte[2048]);
+			out.close();
+
+			queries.add(new FCPClientPut.Builder(queueManager).setLocalFile(file)
+				    .setKeyType(FCPClientPut.KEY_TYPE_CHK).setGlobal(false)
+				    .setPersistence(FCPClientPut.PERSISTENCE_UNTIL_DISCONNECT).build());
+		}
+
+		for (int i = 0 ; i < nmbDownloads ; i++) {
+			queries.add(new FCPClientGet.Builder(queueManager)
+				    .setKey("CHK@" + Integer.toHexString(i) + ",AAIC--8/download-" + i + ".bin")
+				    .setGlobalQueue(false).setPersistence(FCPClientGet.PERSISTENCE_UNTIL_DISCONNECT)
+				    .setDestinationDir(dir.getPath()).build());
+		}
+
+		System.gc();
+		result.usedMemoryBefore = usedMemory();
+		result.threadsBefore = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		final long messagesRead = sum("fcp.messages.read.");
+		final long messagesWritten = sum("fcp.messages.written.");
+		final long bytesIn = Metrics.counter("fcp.bytes.in").getValue();
+		final long bytesOut = Metrics.counter("fcp.bytes.out").getValue();
+
+		final long startTime = System.currentTimeMillis();
+
+		for (final FCPTransferQuery query : queries) {
+			queuingTimes.put(query.getQueryType() == 1 ?
+					 ((FCPClientGet)query).getFileKey() : query.getFilename(),
+					 Long.valueOf(System.nanoTime()));
+			queueManager.addQueryToThePendingQueue(query);
+		}
+
+		result.usedMemoryPeak = usedMemory();
+
+		while (System.currentTimeMillis() - startTime < timeout * 1000L) {
+			Thread.sleep(100);
+
+			result.usedMemoryPeak = Math.max(result.usedMemoryPeak, usedMemory());
+
+			int finished = 0;
+
+			for (final FCPTransferQuery query : queries) {
+				if (query.isFinished())
+					finished++;
+			}
+
+			if (finished == queries.size())
+				break;
+		}
+
+		result.duration = System.currentTimeMillis() - startTime;
+		result.threadsPeak = threads.getPeakThreadCount();
+
+		for (final FCPTransferQuery query : queries) {
+			if (!query.isFinished())
+				result.unfinished++;
+			else if (query.isSuccessful())
+				result.successful++;
+			else
+				result.failed++;
+		}
+
+		result.messagesRead = sum("fcp.messages.read.") - messagesRead;
+		result.messagesWritten = sum("fcp.messages.written.") - messagesWritten;
+		result.bytesIn = Metrics.counter("fcp.bytes.in").getValue() - bytesIn;
+		result.bytesOut = Metrics.counter("fcp.bytes.out").getValue() - bytesOut;
+		result.schedulerLatencyP50 = schedulerLatency.getPercentile(50);
+		result.schedulerLatencyP99 = schedulerLatency.getPercentile(99);
+		result.schedulerLatencyMax = schedulerLatency.getMax();
+
+		queueManager.stopScheduler();
+		queryManager.stop();
+		connection.disconnect();
+		simulator.stop();
+
+		queries.clear();
+		System.gc();
+		result.usedMemoryAfter = usedMemory();
+
+		final File[] files = dir.listFiles();
+
+		for (int i = 0 ; files != null && i < files.length ; i++)
+			files[i].delete();
+		dir.delete();
+
+		return result;
+	}
+
+
+	private static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long sum(final String prefix) {
+		long sum = 0;
+
+		for (final Map.Entry<String, Long> entry : Metrics.getValues().entrySet()) {
+			if (entry.getKey().startsWith(prefix))
+				sum += entry.getValue().longValue();
+		}
+
+		return sum;
+	}
+
+
+	/**
+	 * Arguments (all optional) : downloads insertions maxDownloads maxInsertions
+	 *                            minLatency maxLatency failureRate
+	 */
+	public static void main(final String[] args) throws Exception {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		final FCPLoadBenchmark benchmark = new FCPLoadBenchmark();
+
+		if (args.length >= 2)
+			benchmark.setTransfers(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+		if (args.length >= 4)
+			benchmark.setMaxRunning(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+		if (args.length >= 6)
+			benchmark.setLatency(Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+		if (args.length >= 7)
+			benchmark.setFailureRate(Double.parseDouble(args[6]));
+
+		System.out.println(benchmark.run().toString());
+		Logger.flush();
+
+		System.exit(0);
+	}
+}
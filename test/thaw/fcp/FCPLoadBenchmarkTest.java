@@ -0,0 +1,28 @@
+package thaw.fcp;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPLoadBenchmarkTest extends TestCase {
+
+	@Test
+	public void testAgainstSimulator() throws Exception {
+		FCPLoadBenchmark benchmark = new FCPLoadBenchmark();
+		benchmark.setTransfers(300, 30);
+		benchmark.setMaxRunning(50, 5);
+		benchmark.setLatency(0, 5);
+		benchmark.setFailureRate(0.0);
+		benchmark.setTimeout(60);
+
+		FCPLoadBenchmark.Result result = benchmark.run();
+
+		assertEquals(0, result.unfinished);
+		assertEquals(0, result.failed);
+		assertEquals(330, result.successful);
+
+		/* at least : ClientGet / ClientPut sent, progress + result received */
+		assertTrue(result.messagesWritten >= 330);
+		assertTrue(result.messagesRead >= 330 * 2);
+		assertTrue(result.bytesIn >= 300 * 4096);
+	}
+}
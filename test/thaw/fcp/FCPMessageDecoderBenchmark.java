@@ -0,0 +1,133 @@
+package thaw.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compare the time needed to parse a big ListPersistentRequests answer
+ * with FCPMessageDecoder and with the old line by line parsing
+ * (readLine() + concatenation + FCPMessage.loadFromRawMessage()).
+ * Run it with "ant benchmark".
+ */
+public class FCPMessageDecoderBenchmark {
+	public final static int NMB_REQUESTS = 20000;
+	public final static int NMB_RUNS = 10;
+
+	private static byte[] generate() throws IOException {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0 ; i < NMB_REQUESTS ; i++) {
+			sb.append("PersistentGet\n");
+			sb.append("Identifier=thaw_12345678-").append(i).append("-file.iso\n");
+			sb.append("URI=CHK@Aeuhufh6Fh8pQXB1mEI7O4OSyY0pILjI8ENYAkUdEA,")
+				.append("9JbFz87kZs2BfkG8cXTOxWeXVYnA93ZS0YmZGyjIUqw,AAIC--8/file-").append(i).append(".iso\n");
+			sb.append("Verbosity=1\nReturnType=direct\nPersistenceType=forever\n");
+			sb.append("ClientToken=/home/user/downloads\nGlobal=true\nPriorityClass=4\n");
+			sb.append("MaxRetries=-1\nStarted=true\nEndMessage\n");
+			sb.append("SimpleProgress\n");
+			sb.append("Identifier=thaw_12345678-").append(i).append("-file.iso\n");
+			sb.append("Total=1024\nRequired=800\nFailed=0\nFatallyFailed=0\nSucceeded=").append(i % 800).append("\n");
+			sb.append("FinalizedTotal=true\nGlobal=true\nEndMessage\n");
+		}
+		sb.append("EndListPersistentRequests\nEndMessage\n");
+
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	/* the former FCPConnection.readLine() */
+	private static String readLine(InputStream reader, byte[] recvBytes) throws IOException {
+		for (int i = 0 ; i < recvBytes.length ; i++)
+			recvBytes[i] = 0;
+
+		int c = 0;
+		int i = 0;
+
+		while ((c != '\n') && (i < recvBytes.length)) {
+			c = reader.read();
+			if (c == -1)
+				return null;
+			if (c == '\n')
+				break;
+			recvBytes[i] = (byte)c;
+			i++;
+		}
+
+		return new String(recvBytes, 0, i, "UTF-8");
+	}
+
+	private static int runOld(byte[] raw) throws IOException {
+		InputStream reader = new BufferedInputStream(new ByteArrayInputStream(raw));
+		byte[] recvBytes = new byte[1024];
+		int nmb = 0;
+
+		while (true) {
+			String whatsUp = "";
+			String read;
+
+			while ((read = readLine(reader, recvBytes)) != null) {
+				if ("Data".equals(read) || "EndMessage".equals(read))
+					break;
+				whatsUp = whatsUp + read + "\n";
+			}
+
+			if (read == null)
+				return nmb;
+
+			FCPMessage message = new FCPMessage();
+			message.loadFromRawMessage(whatsUp);
+			nmb++;
+		}
+	}
+
+	private static int runDecoder(byte[] raw) throws IOException {
+		FCPMessageDecoder decoder = new FCPMessageDecoder(new ByteArrayInputStream(raw));
+		int nmb = 0;
+
+		while (decoder.readMessage()) {
+			FCPMessage message = new FCPMessage();
+			decoder.decode(message);
+			nmb++;
+		}
+
+		return nmb;
+	}
+
+	private static long time(boolean decoder, byte[] raw) throws IOException {
+		long start = System.nanoTime();
+		int nmb = (decoder ? runDecoder(raw) : runOld(raw));
+		long duration = System.nanoTime() - start;
+
+		if (nmb != (NMB_REQUESTS * 2) + 1)
+			throw new IllegalStateException("Wrong number of messages parsed: "+Integer.toString(nmb));
+
+		return duration;
+	}
+
+	public static void main(String[] args) throws IOException {
+		byte[] raw = generate();
+
+		System.out.println("Parsing "+Integer.toString((NMB_REQUESTS * 2) + 1)+" messages ("
+				   +Integer.toString(raw.length / 1024)+" KB)");
+
+		/* warm-up */
+		for (int i = 0 ; i < NMB_RUNS ; i++) {
+			time(false, raw);
+			time(true, raw);
+		}
+
+		long oldTotal = 0;
+		long decoderTotal = 0;
+
+		for (int i = 0 ; i < NMB_RUNS ; i++) {
+			oldTotal += time(false, raw);
+			decoderTotal += time(true, raw);
+		}
+
+		System.out.println("readLine() + loadFromRawMessage() : "
+				   +Long.toString(oldTotal / NMB_RUNS / 1000000)+" ms");
+		System.out.println("FCPMessageDecoder                 : "
+				   +Long.toString(decoderTotal / NMB_RUNS / 1000000)+" ms");
+	}
+}
@@ -0,0 +1,94 @@
+package thaw.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPMessageDecoderTest extends TestCase {
+	private FCPMessageDecoder getDecoder(String raw, int bufferSize) throws IOException {
+		return new FCPMessageDecoder(new ByteArrayInputStream(raw.getBytes("UTF-8")), bufferSize);
+	}
+
+	private FCPMessage decode(FCPMessageDecoder decoder) throws IOException {
+		FCPMessage message = new FCPMessage();
+		assertTrue(decoder.readMessage());
+		decoder.decode(message);
+		return message;
+	}
+
+	@Test
+	public void testSimpleMessage() throws IOException {
+		FCPMessage message = decode(getDecoder("NodeHello\nFCPVersion=2.0\nTestnet=false\nEndMessage\n", 1024));
+		assertEquals("NodeHello", message.getMessageName());
+		assertEquals("2.0", message.getValue("FCPVersion"));
+		assertEquals("false", message.getValue("Testnet"));
+		assertEquals(2, message.getValues().size());
+	}
+
+	@Test
+	public void testSameResultThanLoadFromRawMessage() throws IOException {
+		String raw = "\n  SimpleProgress  \nIdentifier=a-b\nValue=x=y\n=True\nJunk\n  Total =12\n";
+		FCPMessage expected = new FCPMessage(raw);
+		FCPMessage message = decode(getDecoder(raw + "EndMessage\n", 1024));
+		assertEquals(expected.getMessageName().trim(), message.getMessageName());
+		assertEquals(expected.getValues(), message.getValues());
+	}
+
+	@Test
+	public void testMissingMessageName() throws IOException {
+		FCPMessage message = decode(getDecoder("Identifier=foo\nEndMessage\n", 1024));
+		assertEquals("", message.getMessageName());
+		assertTrue(message.getValues().isEmpty());
+	}
+
+	@Test
+	public void testKnownFieldNamesAreShared() throws IOException {
+		FCPMessageDecoder decoder = getDecoder("SimpleProgress\nIdentifier=foo\nEndMessage\n", 1024);
+		assertTrue(decoder.readMessage());
+		assertSame("Identifier", decoder.getFieldName(0));
+		assertSame("SimpleProgress", decoder.getMessageName());
+	}
+
+	@Test
+	public void testMessageBiggerThanTheBuffer() throws IOException {
+		FCPMessage message = decode(getDecoder("PersistentGet\nIdentifier=0123456789abcdef\nURI=CHK@abcdefghijklmnopqrstuvwxyz\nEndMessage\n", 8));
+		assertEquals("PersistentGet", message.getMessageName());
+		assertEquals("0123456789abcdef", message.getValue("Identifier"));
+		assertEquals("CHK@abcdefghijklmnopqrstuvwxyz", message.getValue("URI"));
+	}
+
+	@Test
+	public void testUTF8Value() throws IOException {
+		FCPMessage message = decode(getDecoder("PersistentGet\nIdentifier=été\nEndMessage\n", 4));
+		assertEquals("été", message.getValue("Identifier"));
+	}
+
+	@Test
+	public void testDataAndNextMessage() throws IOException {
+		FCPMessageDecoder decoder = getDecoder("AllData\nIdentifier=foo\nDataLength=10\nData\n0123456789"
+				+ "AllData\nIdentifier=bar\nDataLength=4\nData\nabcd"
+				+ "EndListPersistentRequests\nEndMessage\n", 16);
+
+		FCPMessage message = decode(decoder);
+		assertTrue(decoder.hasData());
+		assertEquals(10, message.getAmountOfDataWaiting());
+
+		byte[] data = new byte[10];
+		int read = 0;
+		while (read < data.length)
+			read += decoder.read(data, read, data.length - read);
+		assertEquals("0123456789", new String(data, "UTF-8"));
+
+		message = decode(decoder);
+		assertEquals("bar", message.getValue("Identifier"));
+		assertEquals(4, decoder.skip(4));
+
+		message = decode(decoder);
+		assertFalse(decoder.hasData());
+		assertEquals("EndListPersistentRequests", message.getMessageName());
+
+		assertFalse(decoder.readMessage());
+	}
+}
@@ -0,0 +1,48 @@
+package thaw.fcp;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPMessageEncoderTest extends TestCase {
+	private String encode(FCPMessageEncoder encoder, FCPMessage message) throws UnsupportedEncodingException {
+		ByteBuffer buffer = encoder.encode(message);
+		return new String(buffer.array(), 0, buffer.limit(), "UTF-8");
+	}
+
+	@Test
+	public void testSameResultThanToString() throws UnsupportedEncodingException {
+		FCPMessage message = new FCPMessage();
+		message.setMessageName("ClientGet");
+		message.setValue("Identifier", "thaw_123");
+		message.setValue("URI", "CHK@abc/file.txt");
+		message.setValue("Global", "true");
+		assertEquals(message.toString(), encode(new FCPMessageEncoder(), message));
+	}
+
+	@Test
+	public void testData() throws UnsupportedEncodingException {
+		FCPMessage message = new FCPMessage();
+		message.setMessageName("ClientPut");
+		message.setAmountOfDataWaiting(1234);
+		String result = encode(new FCPMessageEncoder(), message);
+		assertEquals(message.toString(), result);
+		assertTrue(result.endsWith("DataLength=1234\nData\n"));
+	}
+
+	@Test
+	public void testNonAsciiAndSmallBuffer() throws UnsupportedEncodingException {
+		FCPMessageEncoder encoder = new FCPMessageEncoder(4);
+		FCPMessage message = new FCPMessage();
+		message.setMessageName("ClientPut");
+		message.setValue("TargetFilename", "été 日本.txt");
+		message.setValue("Identifier", "0123456789012345678901234567890123456789");
+		assertEquals(message.toString(), encode(encoder, message));
+
+		/* the buffer is reused */
+		message.setValue("TargetFilename", null);
+		assertEquals(message.toString(), encode(encoder, message));
+	}
+}
@@ -0,0 +1,167 @@
+package thaw.fcp;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPNodePoolTest extends TestCase {
+	public final static String THAW_ID = "thaw_pooltest";
+
+	private static class GetCounter implements FCPNodeSimulator.Listener {
+		private int gets = 0;
+
+		public synchronized void messageReceived(final String name, final Map<String, String> fields) {
+			if ("ClientGet".equals(name))
+				gets++;
+		}
+
+		public synchronized int getGets() {
+			return gets;
+		}
+	}
+
+
+	private static class MessageCounter implements FCPNodeSimulator.Listener {
+		private final Hashtable<String, Integer> counts = new Hashtable<String, Integer>();
+
+		public synchronized void messageReceived(final String name, final Map<String, String> fields) {
+			counts.put(name, Integer.valueOf(getCount(name) + 1));
+		}
+
+		public synchronized int getCount(final String name) {
+			final Integer count = counts.get(name);
+			return (count != null ? count.intValue() : 0);
+		}
+	}
+
+
+	@Test
+	public void testAdopt() throws Exception {
+		final FCPNodeSimulator primary = new FCPNodeSimulator();
+		final FCPNodeSimulator secondary = new FCPNodeSimulator();
+		final MessageCounter messages = new MessageCounter();
+
+		secondary.setListener(messages);
+
+		final FCPConnection connection = new FCPConnection("127.0.0.1", primary.start(), -1, false, false, true);
+		assertTrue(connection.connect());
+
+		final FCPQueryManager queryManager = new FCPQueryManager(connection);
+		queryManager.startListening();
+		assertTrue(new FCPClientHello(queryManager, THAW_ID).start());
+
+		final FCPQueueManager queueManager = new FCPQueueManager(queryManager, THAW_ID, 1, 1);
+		final FCPNodePool pool = queueManager.getNodePool();
+
+		pool.addNode(new FCPConnection("127.0.0.1", secondary.start(), -1, false, false, true));
+		pool.start();
+
+		for (int i = 0 ; i < 100 && messages.getCount("ListPersistentRequests") < 1 ; i++)
+			Thread.sleep(50);
+
+		assertEquals(1, messages.getCount("ListPersistentRequests"));
+
+		final FCPConnection secondaryConnection = pool.getNodes().get(1).getQueryManager().getConnection();
+		assertTrue(secondaryConnection.isConnected());
+
+		/* new queue manager (reconnection of the primary node) : the second node stays
+		 * connected, and its requests are reloaded in the new queue manager */
+		final FCPQueueManager newQueueManager = new FCPQueueManager(queryManager, THAW_ID, 1, 1);
+		final FCPNodePool newPool = newQueueManager.getNodePool();
+
+		newPool.adopt(pool);
+
+		assertEquals(1, pool.getNodes().size());
+		assertEquals(2, newPool.getNodes().size());
+		assertSame(secondaryConnection, newPool.getNodes().get(1).getQueryManager().getConnection());
+		assertTrue(secondaryConnection.isConnected());
+
+		for (int i = 0 ; i < 100 && messages.getCount("ListPersistentRequests") < 2 ; i++)
+			Thread.sleep(50);
+
+		assertEquals(2, messages.getCount("ListPersistentRequests"));
+		assertEquals(1, messages.getCount("ClientHello"));
+
+		newPool.disconnect();
+		assertFalse(secondaryConnection.isConnected());
+
+		queryManager.stop();
+		connection.disconnect();
+		primary.stop();
+		secondary.stop();
+	}
+
+
+	@Test
+	public void testPlacement() throws Exception {
+		final FCPNodeSimulator primary = new FCPNodeSimulator();
+		final FCPNodeSimulator secondary = new FCPNodeSimulator();
+		final GetCounter primaryGets = new GetCounter();
+		final GetCounter secondaryGets = new GetCounter();
+
+		/* the transfers must still be running when the second one is placed */
+		primary.setLatency(2000, 2000);
+		secondary.setLatency(2000, 2000);
+		primary.setListener(primaryGets);
+		secondary.setListener(secondaryGets);
+
+		final FCPConnection connection = new FCPConnection("127.0.0.1", primary.start(), -1, false, false, true);
+		assertTrue(connection.connect());
+
+		final FCPQueryManager queryManager = new FCPQueryManager(connection);
+		queryManager.startListening();
+		assertTrue(new FCPClientHello(queryManager, THAW_ID).start());
+
+		final FCPQueueManager queueManager = new FCPQueueManager(queryManager, THAW_ID, 1, 1);
+		final FCPNodePool pool = queueManager.getNodePool();
+
+		pool.addNode(new FCPConnection("127.0.0.1", secondary.start(), -1, false, false, true));
+		pool.start();
+
+		for (int i = 0 ; i < 100 && !pool.getNodes().get(1).isConnected() ; i++)
+			Thread.sleep(50);
+
+		assertTrue(pool.getNodes().get(1).isConnected());
+
+		final FCPClientGet first = new FCPClientGet.Builder(queueManager)
+			.setKey("CHK@AAAA,AAIC--8/first.bin").setGlobalQueue(false)
+			.setPersistence(FCPClientGet.PERSISTENCE_UNTIL_DISCONNECT)
+			.setDestinationDir(System.getProperty("java.io.tmpdir")).build();
+		final FCPClientGet second = new FCPClientGet.Builder(queueManager)
+			.setKey("CHK@BBBB,AAIC--8/second.bin").setGlobalQueue(false)
+			.setPersistence(FCPClientGet.PERSISTENCE_UNTIL_DISCONNECT)
+			.setDestinationDir(System.getProperty("java.io.tmpdir")).build();
+
+		assertTrue(queueManager.addQueryToTheRunningQueue(first));
+		assertTrue(queueManager.addQueryToTheRunningQueue(second));
+
+		/* one slot per node : one transfer on each node */
+		assertSame(queryManager, first.getQueryManager());
+		assertSame(pool.getNodes().get(1).getQueryManager(), second.getQueryManager());
+		assertEquals(1, pool.getNodes().get(0).getRunningDownloads());
+		assertEquals(1, pool.getNodes().get(1).getRunningDownloads());
+		assertEquals(2, queueManager.getRunningDownloads());
+
+		for (int i = 0 ; i < 100 && (primaryGets.getGets() < 1 || secondaryGets.getGets() < 1) ; i++)
+			Thread.sleep(50);
+
+		assertEquals(1, primaryGets.getGets());
+		assertEquals(1, secondaryGets.getGets());
+
+		/* disconnection of the second node : only its transfer leaves the running queue */
+		pool.disconnect();
+		queueManager.clearRunningQueue(pool.getNodes().get(1).getQueryManager());
+
+		assertTrue(queueManager.isInTheQueues(first));
+		assertFalse(queueManager.isInTheQueues(second));
+		assertEquals(0, pool.getNodes().get(1).getRunningDownloads());
+		assertEquals(1, queueManager.getRunningDownloads());
+
+		queryManager.stop();
+		connection.disconnect();
+		primary.stop();
+		secondary.stop();
+	}
+}
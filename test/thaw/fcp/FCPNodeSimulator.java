@@ -0,0 +1,600 @@
+package thaw.fcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process FCPv2 node : enough of the protocol to drive the Thaw FCP stack
+ * (FCPConnection, FCPQueryManager, FCPQueueManager, FCPClientGet, FCPClientPut)
+ * without a Freenet node and without network.<br/>
+ * Supported : ClientHello, WatchGlobal, ClientGet (direct), ClientPut (direct),
+ * ListPersistentRequests, GetRequestStatus, ModifyPersistentRequest,
+ * RemovePersistentRequest, GenerateSSK. The other messages get a non-fatal ProtocolError.<br/>
+ * Each transfer goes through 'progressSteps' SimpleProgress, each one after a random
+ * delay between minLatency and maxLatency, and then succeeds or fails (see setFailureRate()).
+ * The transfers are simulated by a few timer threads, not by one thread per transfer.
+ */
+public class FCPNodeSimulator {
+	public final static String NODE_NAME = "Simulator";
+	public final static int BLOCK_SIZE = 32768;
+
+	/* see setListener() */
+	public interface Listener {
+		public void messageReceived(String messageName, Map<String, String> fields);
+	}
+
+	private int minLatency = 5; /* ms */
+	private int maxLatency = 50; /* ms */
+	private double failureRate = 0.0;
+	private int progressSteps = 3;
+	private int dataSize = 4096; /* bytes returned by each download */
+
+	private Listener listener = null;
+
+	private ServerSocket serverSocket = null;
+	private Thread acceptThread = null;
+	private ScheduledExecutorService timer = null;
+	private volatile boolean running = false;
+
+	private final Vector<Client> clients = new Vector<Client>();
+
+	/* Identifier -> Request ; only the persistent ones */
+	private final Hashtable<String, Request> persistentRequests = new Hashtable<String, Request>();
+
+	private final AtomicLong messagesReceived = new AtomicLong(0);
+	private final AtomicLong messagesSent = new AtomicLong(0);
+	private final AtomicLong connectionIds = new AtomicLong(0);
+
+	private final Random random = new Random(42);
+	private byte[] data;
+
+
+	public FCPNodeSimulator() {
+
+	}
+
+
+	/**
+	 * Delay before each answer of the node.
+	 */
+	public void setLatency(final int minLatency, final int maxLatency) {
+		this.minLatency = minLatency;
+		this.maxLatency = Math.max(minLatency, maxLatency);
+	}
+
+	/**
+	 * @param failureRate between 0 and 1 : probability for a transfer to end with GetFailed / PutFailed
+	 */
+	public void setFailureRate(final double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public void setProgressSteps(final int progressSteps) {
+		this.progressSteps = progressSteps;
+	}
+
+	public void setDataSize(final int dataSize) {
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * Called (by the thread of the client connection) for each message received.
+	 */
+	public void setListener(final Listener listener) {
+		this.listener = listener;
+	}
+
+	public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+
+	public long getMessagesSent() {
+		return messagesSent.get();
+	}
+
+
+	/**
+	 * @return the port on which the simulator listens (on 127.0.0.1)
+	 */
+	public int start() throws IOException {
+		data = new byte[dataSize];
+		random.nextBytes(data);
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		timer = new ScheduledThreadPoolExecutor(2);
+		running = true;
+
+		acceptThread = new Thread("FCP node simulator") {
+			public void run() {
+				while (running) {
+					try {
+						final Client client = new Client(serverSocket.accept());
+						clients.add(client);
+						client.start();
+					} catch(final IOException e) {
+						/* closed */
+					}
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		return serverSocket.getLocalPort();
+	}
+
+	public void stop() {
+		running = false;
+
+		try {
+			serverSocket.close();
+		} catch(final IOException e) {
+			/* \_o< */
+		}
+
+		timer.shutdownNow();
+
+		synchronized(clients) {
+			for (final Client client : clients)
+				client.close();
+			clients.clear();
+		}
+	}
+
+
+	private int delay() {
+		synchronized(random) {
+			return minLatency + random.nextInt(maxLatency - minLatency + 1);
+		}
+	}
+
+	private boolean fails() {
+		synchronized(random) {
+			return random.nextDouble() < failureRate;
+		}
+	}
+
+
+	/**
+	 * A ClientGet or a ClientPut.
+	 */
+	private class Request {
+		private final Client client;
+		private final boolean get;
+		private final Map<String, String> fields;
+		private final long startupTime = System.currentTimeMillis();
+
+		private int step = 0;
+		private boolean finished = false;
+		private boolean failed = false;
+
+		public Request(final Client client, final boolean get, final Map<String, String> fields) {
+			this.client = client;
+			this.get = get;
+			this.fields = fields;
+		}
+
+		public String getIdentifier() {
+			return fields.get("Identifier");
+		}
+
+		public boolean isGlobal() {
+			return "true".equals(fields.get("Global"));
+		}
+
+		public boolean isPersistent() {
+			return fields.get("Persistence") != null && !"connection".equals(fields.get("Persistence"));
+		}
+
+		public String getFinalURI() {
+			if (get)
+				return fields.get("URI");
+			return "CHK@" + Integer.toHexString(getIdentifier().hashCode()) + "," + "AAIC--8/"
+				+ fields.get("TargetFilename");
+		}
+
+		public void schedule() {
+			try {
+				timer.schedule(new Runnable() {
+					public void run() {
+						next();
+					}
+				}, delay(), TimeUnit.MILLISECONDS);
+			} catch(final java.util.concurrent.RejectedExecutionException e) {
+				/* stopped */
+			}
+		}
+
+		private synchronized void next() {
+			if (finished || client.isClosed())
+				return;
+
+			if (!get && step == 0)
+				client.send(this, "URIGenerated", "URI", getFinalURI());
+
+			if (step < progressSteps) {
+				step++;
+				client.send(this, "SimpleProgress", progress());
+				schedule();
+				return;
+			}
+
+			finished = true;
+			failed = fails();
+
+			client.send(this, getResultName(), getResult());
+
+			if (get && !failed && !isPersistent())
+				client.sendData(this, allData());
+		}
+
+		private String[] progress() {
+			final int total = (dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE + 1;
+			return new String[] {
+				"Total", Integer.toString(total),
+				"Required", Integer.toString(total),
+				"Failed", "0",
+				"FatallyFailed", "0",
+				"Succeeded", Integer.toString((total * step) / progressSteps),
+				"FinalizedTotal", "true"
+			};
+		}
+
+		public synchronized String getResultName() {
+			if (get)
+				return (failed ? "GetFailed" : "DataFound");
+			return (failed ? "PutFailed" : "PutSuccessful");
+		}
+
+		public synchronized String[] getResult() {
+			if (get && failed)
+				return new String[] { "Code", "13", "CodeDescription", "Data not found", "Fatal", "true" };
+			if (get)
+				return new String[] { "DataLength", Integer.toString(dataSize),
+						      "Metadata.ContentType", "application/octet-stream" };
+			if (failed)
+				return new String[] { "Code", "10", "CodeDescription", "Route not found", "Fatal", "false" };
+			return new String[] { "URI", getFinalURI(),
+					      "StartupTime", Long.toString(startupTime),
+					      "CompletionTime", Long.toString(System.currentTimeMillis()) };
+		}
+
+		public String[] allData() {
+			return new String[] { "DataLength", Integer.toString(dataSize),
+					      "StartupTime", Long.toString(startupTime),
+					      "CompletionTime", Long.toString(System.currentTimeMillis()) };
+		}
+	}
+
+
+	/**
+	 * One FCP connection : read by its own thread, written by it and by the timer threads.
+	 */
+	private class Client extends Thread {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private volatile boolean closed = false;
+
+		/* Identifier -> Request : the non-persistent ones, and the ones of the local queue */
+		private final Hashtable<String, Request> requests = new Hashtable<String, Request>();
+
+		public Client(final Socket socket) throws IOException {
+			super("FCP node simulator client");
+			setDaemon(true);
+
+			this.socket = socket;
+			in = new BufferedInputStream(socket.getInputStream(), 65536);
+			out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public void close() {
+			closed = true;
+
+			try {
+				socket.close();
+			} catch(final IOException e) {
+				/* \_o< */
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Map<String, String> fields = new LinkedHashMap<String, String>();
+					final String name = readMessage(fields);
+
+					if (name == null)
+						break;
+
+					messagesReceived.incrementAndGet();
+
+					if (listener != null)
+						listener.messageReceived(name, fields);
+
+					process(name, fields);
+				}
+			} catch(final IOException e) {
+				/* disconnected */
+			}
+
+			close();
+			clients.remove(this);
+		}
+
+		/**
+		 * @return the name of the message, null if end of stream
+		 */
+		private String readMessage(final Map<String, String> fields) throws IOException {
+			String name = null;
+			String line;
+
+			while ((line = readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+
+				if (name == null) {
+					name = line;
+					continue;
+				}
+
+				if ("EndMessage".equals(line))
+					return name;
+
+				if ("Data".equals(line)) {
+					skip(Long.parseLong(fields.get("DataLength")));
+					return name;
+				}
+
+				final int sep = line.indexOf('=');
+
+				if (sep > 0)
+					fields.put(line.substring(0, sep), line.substring(sep + 1));
+			}
+
+			return null;
+		}
+
+		private String readLine() throws IOException {
+			final StringBuilder sb = new StringBuilder(64);
+			int c;
+
+			while ((c = in.read()) != '\n') {
+				if (c < 0)
+					return null;
+				sb.append((char)c);
+			}
+
+			return new String(sb.toString().getBytes("ISO-8859-1"), "UTF-8");
+		}
+
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				long skipped = in.skip(count);
+
+				if (skipped <= 0) {
+					if (in.read() < 0)
+						throw new IOException("End of stream in the data");
+					skipped = 1;
+				}
+
+				count -= skipped;
+			}
+		}
+
+
+		private void process(final String name, final Map<String, String> fields) {
+			final String id = fields.get("Identifier");
+
+			if ("ClientHello".equals(name)) {
+				send(null, "NodeHello", new String[] {
+					"ConnectionIdentifier", Long.toString(connectionIds.incrementAndGet()),
+					"FCPVersion", "2.0",
+					"Version", "Fred,0.7,1.0,1466",
+					"Node", NODE_NAME,
+					"Testnet", "false",
+					"CompressionCodecs", "3 - GZIP(0), BZIP2(1), LZMA(2)"
+				});
+
+			} else if ("WatchGlobal".equals(name)) {
+				/* nothing to answer */
+
+			} else if ("ClientGet".equals(name) || "ClientPut".equals(name)) {
+				final Request request = new Request(this, "ClientGet".equals(name), fields);
+
+				if (request.isPersistent() && request.isGlobal()) {
+					if (persistentRequests.containsKey(id)) {
+						send(null, "IdentifierCollision", new String[] { "Identifier", id, "Global", "true" });
+						return;
+					}
+					persistentRequests.put(id, request);
+				} else
+					requests.put(id, request);
+
+				if (request.isPersistent())
+					send(request, request.get ? "PersistentGet" : "PersistentPut", new String[] {
+						"URI", fields.get("URI"), "PriorityClass", fields.get("PriorityClass"),
+						"Started", "true"
+					});
+
+				request.schedule();
+
+			} else if ("ListPersistentRequests".equals(name)) {
+				final Vector<Request> list = new Vector<Request>(persistentRequests.values());
+
+				for (final Request request : list) {
+					synchronized(request) {
+						send(request, request.get ? "PersistentGet" : "PersistentPut", persistentFields(request));
+
+						if (request.finished)
+							send(request, request.getResultName(), request.getResult());
+						else if (request.step > 0)
+							send(request, "SimpleProgress", request.progress());
+					}
+				}
+
+				send(null, "EndListPersistentRequests", new String[0]);
+
+			} else if ("GetRequestStatus".equals(name)) {
+				final Request request = findRequest(id);
+
+				if (request == null) {
+					protocolError(id, "15", "No such identifier");
+					return;
+				}
+
+				synchronized(request) {
+					if (!request.finished) {
+						send(request, "SimpleProgress", request.progress());
+					} else if (request.get && !request.failed) {
+						send(request, "DataFound", request.getResult());
+						sendData(request, request.allData());
+					} else
+						send(request, request.getResultName(), request.getResult());
+				}
+
+			} else if ("ModifyPersistentRequest".equals(name)) {
+				final Request request = findRequest(id);
+
+				if (request == null) {
+					protocolError(id, "15", "No such identifier");
+					return;
+				}
+
+				request.fields.put("PriorityClass", fields.get("PriorityClass"));
+				send(request, "PersistentRequestModified",
+				     new String[] { "PriorityClass", fields.get("PriorityClass") });
+
+			} else if ("RemovePersistentRequest".equals(name)) {
+				Request request = persistentRequests.remove(id);
+
+				if (request == null)
+					request = requests.remove(id);
+
+				if (request == null) {
+					protocolError(id, "15", "No such identifier");
+					return;
+				}
+
+				synchronized(request) {
+					request.finished = true;
+				}
+
+				send(request, "PersistentRequestRemoved", new String[0]);
+
+			} else if ("GenerateSSK".equals(name)) {
+				final String key = Long.toHexString(connectionIds.incrementAndGet());
+				send(null, "SSKKeypair", new String[] {
+					"Identifier", id,
+					"InsertURI", "SSK@insert" + key + ",AQECAAE/",
+					"RequestURI", "SSK@request" + key + ",AQACAAE/"
+				});
+
+			} else
+				protocolError(id, "1", "Not supported by the simulator : " + name);
+		}
+
+		private Request findRequest(final String id) {
+			if (id == null)
+				return null;
+
+			final Request request = persistentRequests.get(id);
+			return (request != null ? request : requests.get(id));
+		}
+
+		private String[] persistentFields(final Request request) {
+			final Vector<String> result = new Vector<String>();
+
+			for (final Map.Entry<String, String> entry : request.fields.entrySet()) {
+				if (!"Identifier".equals(entry.getKey()) && !"Global".equals(entry.getKey())) {
+					result.add(entry.getKey());
+					result.add(entry.getValue());
+				}
+			}
+
+			result.add("Started");
+			result.add("true");
+
+			return result.toArray(new String[result.size()]);
+		}
+
+		private void protocolError(final String id, final String code, final String description) {
+			final Vector<String> result = new Vector<String>();
+
+			if (id != null) {
+				result.add("Identifier");
+				result.add(id);
+			}
+
+			result.add("Code");
+			result.add(code);
+			result.add("CodeDescription");
+			result.add(description);
+			result.add("Fatal");
+			result.add("false");
+
+			send(null, "ProtocolError", result.toArray(new String[result.size()]));
+		}
+
+
+		public void send(final Request request, final String name, final String... fields) {
+			write(request, name, fields, false);
+		}
+
+		/**
+		 * AllData, followed by the data
+		 */
+		public void sendData(final Request request, final String[] fields) {
+			write(request, "AllData", fields, true);
+		}
+
+		private void write(final Request request, final String name, final String[] fields, final boolean withData) {
+			final StringBuilder sb = new StringBuilder(256);
+
+			sb.append(name).append('\n');
+
+			if (request != null) {
+				sb.append("Identifier=").append(request.getIdentifier()).append('\n');
+				sb.append("Global=").append(request.isGlobal() ? "true" : "false").append('\n');
+			}
+
+			for (int i = 0 ; i + 1 < fields.length ; i += 2)
+				sb.append(fields[i]).append('=').append(fields[i + 1]).append('\n');
+
+			sb.append(withData ? "Data\n" : "EndMessage\n");
+
+			synchronized(out) {
+				try {
+					out.write(sb.toString().getBytes("UTF-8"));
+
+					if (withData)
+						out.write(data);
+
+					out.flush();
+					messagesSent.incrementAndGet();
+				} catch(final IOException e) {
+					close();
+				}
+			}
+		}
+	}
+}
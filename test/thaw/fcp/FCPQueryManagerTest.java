@@ -0,0 +1,147 @@
+package thaw.fcp;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import thaw.core.Logger;
+
+public class FCPQueryManagerTest extends TestCase {
+	private final FCPQueueManager queueManager =
+		new FCPQueueManager(new FCPQueryManager(new FCPConnection("127.0.0.1", 9481, -1, false, false, false)),
+				    "thaw_test", -1, -1);
+
+	private FCPQueryManager queryManager;
+
+	/**
+	 * Non-transfer observer : must see all the messages.
+	 */
+	private static class Recorder implements Observer {
+		private final Vector<FCPMessage> messages = new Vector<FCPMessage>();
+
+		public void update(Observable o, Object arg) {
+			messages.add((FCPMessage)arg);
+		}
+	}
+
+	protected void setUp() {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+		queryManager = new FCPQueryManager(new FCPConnection("127.0.0.1", 9481, -1, false, false, false));
+	}
+
+	private FCPClientGet newGet(String identifier) {
+		return new FCPClientGet.Builder(queueManager).setKey("KSK@"+identifier).setIdentifier(identifier)
+			.setPersistence(FCPClientGet.PERSISTENCE_FOREVER).setGlobalQueue(true)
+			.setDestinationDir("/tmp").build();
+	}
+
+	private FCPMessage newDataLength(String identifier, long length) {
+		FCPMessage message = new FCPMessage();
+		message.setMessageName("ExpectedDataLength");
+
+		if (identifier != null)
+			message.setValue("Identifier", identifier);
+
+		message.setValue("DataLength", Long.toString(length));
+		return message;
+	}
+
+	@Test
+	public void testRouting() {
+		FCPClientGet a = newGet("a");
+		FCPClientGet b = newGet("b");
+		Recorder recorder = new Recorder();
+
+		queryManager.addObserver(a);
+		queryManager.addObserver(b);
+		queryManager.addObserver(recorder);
+		assertEquals(3, queryManager.countObservers());
+
+		queryManager.dispatch(newDataLength("a", 100));
+		queryManager.dispatch(newDataLength("b", 200));
+
+		assertEquals(100, a.getFileSize());
+		assertEquals(200, b.getFileSize());
+		assertEquals(0, queryManager.getUnroutedMessageCount());
+
+		/* unknown identifier, no identifier : broadcast only */
+		queryManager.dispatch(newDataLength("c", 300));
+		queryManager.dispatch(newDataLength(null, 400));
+
+		assertEquals(100, a.getFileSize());
+		assertEquals(200, b.getFileSize());
+		assertEquals(2, queryManager.getUnroutedMessageCount());
+		assertEquals(4, recorder.messages.size());
+
+		/* identifier changed : routed under the new one only */
+		a.setIdentifier("a2");
+		queryManager.dispatch(newDataLength("a", 500));
+		assertEquals(100, a.getFileSize());
+		queryManager.dispatch(newDataLength("a2", 600));
+		assertEquals(600, a.getFileSize());
+
+		/* removed */
+		queryManager.deleteObserver(b);
+		queryManager.dispatch(newDataLength("b", 700));
+		assertEquals(200, b.getFileSize());
+
+		assertEquals(4, queryManager.getUnroutedMessageCount());
+		assertEquals(2, queryManager.countObservers());
+	}
+
+	@Test
+	public void testConcurrentUnroutedCount() throws InterruptedException {
+		final int nmbThreads = 8;
+		final int nmbMessages = 10000;
+
+		Thread[] threads = new Thread[nmbThreads];
+
+		for (int i = 0 ; i < nmbThreads ; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0 ; j < nmbMessages ; j++)
+						queryManager.dispatch(newDataLength("nobody", j));
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0 ; i < nmbThreads ; i++)
+			threads[i].join();
+
+		assertEquals(nmbThreads * nmbMessages, queryManager.getUnroutedMessageCount());
+	}
+
+	@Test
+	public void testLatency() {
+		FCPMessage get = new FCPMessage();
+		get.setMessageName("ClientGet");
+		get.setValue("Identifier", "get");
+
+		/* not connected : not written, but sent as far as the latency is concerned */
+		queryManager.writeMessage(get, false);
+		assertEquals(-1, queryManager.getLatency());
+		queryManager.dispatch(newDataLength("get", 100));
+		assertTrue(queryManager.getLatency() >= 0);
+
+		queryManager = new FCPQueryManager(new FCPConnection("127.0.0.1", 9481, -1, false, false, false));
+
+		/* direct data : measured only from the end of the upload */
+		FCPMessage put = new FCPMessage();
+		put.setMessageName("ClientPut");
+		put.setValue("Identifier", "put");
+		put.setAmountOfDataWaiting(1000);
+
+		queryManager.writeMessage(put, false);
+		queryManager.dispatch(newDataLength("put", 100));
+		assertEquals(-1, queryManager.getLatency());
+
+		queryManager.writeMessage(put, false);
+		queryManager.dataSent("put");
+		queryManager.dispatch(newDataLength("put", 100));
+		assertTrue(queryManager.getLatency() >= 0);
+	}
+}
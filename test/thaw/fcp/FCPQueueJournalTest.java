@@ -0,0 +1,175 @@
+package thaw.fcp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPQueueJournalTest extends TestCase {
+	private final FCPQueueManager queueManager =
+		new FCPQueueManager(new FCPQueryManager(new FCPConnection("127.0.0.1", 9481, -1, false, false, false)),
+				    "thaw_test", -1, -1);
+
+	private File file;
+
+	protected void setUp() throws IOException {
+		file = File.createTempFile("thaw_journal", ".bin");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+		new File(file.getPath()+".tmp").delete();
+	}
+
+	private FCPClientGet newGet(String key, int priority) {
+		return new FCPClientGet.Builder(queueManager).setKey(key).setPriority(priority)
+			.setPersistence(FCPClientGet.PERSISTENCE_FOREVER).setGlobalQueue(true)
+			.setDestinationDir("/tmp").build();
+	}
+
+	private Vector<String> replayedKeys() {
+		Vector<String> keys = new Vector<String>();
+
+		for (FCPQueueJournal.Entry entry : new FCPQueueJournal(file).replay())
+			keys.add(entry.getParameters().get("URI"));
+
+		return keys;
+	}
+
+	@Test
+	public void testReplay() {
+		FCPQueueJournal journal = new FCPQueueJournal(file);
+		queueManager.setJournal(journal);
+
+		FCPClientGet a = newGet("KSK@a", 3);
+		FCPClientGet b = newGet("KSK@b", 3);
+		FCPClientGet c = newGet("KSK@c", 3);
+
+		queueManager.addQueryToThePendingQueue(a);
+		queueManager.addQueryToThePendingQueue(b);
+		queueManager.addQueryToThePendingQueue(c);
+		queueManager.remove(b);
+		c.setFCPPriority(1);
+
+		/* not closed : as after a crash */
+		Vector<FCPQueueJournal.Entry> entries = new FCPQueueJournal(file).replay();
+
+		assertEquals(2, entries.size());
+		assertEquals("KSK@a", entries.get(0).getParameters().get("URI"));
+		assertEquals("KSK@c", entries.get(1).getParameters().get("URI"));
+		assertEquals("1", entries.get(1).getParameters().get("Priority"));
+		assertEquals(1, entries.get(1).getQueryType());
+
+		/* moved to the pending queue of its new priority */
+		assertTrue(queueManager.getPendingQueues().get(1).contains(c));
+		assertFalse(queueManager.getPendingQueues().get(3).contains(c));
+
+		queueManager.remove(a);
+		queueManager.remove(c);
+		journal.close();
+
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testTruncatedEnd() throws IOException {
+		FCPQueueJournal journal = new FCPQueueJournal(file);
+		journal.open(new Vector<FCPTransferQuery>());
+
+		journal.added(newGet("KSK@a", 2));
+		long validLength = file.length();
+		journal.added(newGet("KSK@b", 2));
+
+		/* crash while writing the last record */
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(file.length() - 3);
+		raf.close();
+
+		Vector<String> keys = replayedKeys();
+		assertEquals(1, keys.size());
+		assertEquals("KSK@a", keys.get(0));
+
+		/* corrupted record */
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(validLength - 1);
+		raf.write(0x42);
+		raf.close();
+
+		assertEquals(0, replayedKeys().size());
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		FCPQueueJournal journal = new FCPQueueJournal(file);
+		journal.open(new Vector<FCPTransferQuery>());
+
+		FCPClientGet kept = newGet("KSK@kept", 2);
+		journal.added(kept);
+
+		for (int i = 0 ; i < 3 * FCPQueueJournal.MIN_RECORDS_BEFORE_COMPACTION ; i++) {
+			FCPClientGet query = newGet("KSK@" + i, 2);
+			journal.added(query);
+			journal.removed(query);
+		}
+
+		/* never done by the methods called with the queue lock */
+		assertTrue(file.length() > 10 * 1024);
+		journal.compactIfNeeded();
+
+		long length = file.length();
+		journal.added(newGet("KSK@last", 2));
+
+		assertTrue(length < 10 * 1024);
+		assertEquals(2, journal.size());
+
+		Vector<String> keys = replayedKeys();
+		assertEquals(2, keys.size());
+		assertEquals("KSK@kept", keys.get(0));
+		assertEquals("KSK@last", keys.get(1));
+
+		/* not a journal */
+		journal.close();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("<?xml version=\"1.0\"?>".getBytes());
+		out.close();
+
+		assertEquals(0, replayedKeys().size());
+	}
+
+	@Test
+	public void testStart() {
+		/* previous run, not closed */
+		FCPQueueJournal old = new FCPQueueJournal(file);
+		old.open(new Vector<FCPTransferQuery>());
+		old.added(newGet("KSK@old", 2));
+
+		FCPClientGet a = newGet("KSK@a", 2);
+		queueManager.addQueryToThePendingQueue(a);
+
+		/* in memory only : the old journal is still there */
+		FCPQueueJournal journal = new FCPQueueJournal(file);
+		journal.start(queueManager.getPendingQueues().get(2));
+		journal.added(newGet("KSK@b", 2));
+
+		assertEquals(2, journal.size());
+		assertEquals("KSK@old", replayedKeys().get(0));
+
+		journal.compactIfNeeded();
+
+		Vector<String> keys = replayedKeys();
+		assertEquals(2, keys.size());
+		assertEquals("KSK@a", keys.get(0));
+		assertEquals("KSK@b", keys.get(1));
+
+		/* through the queue manager */
+		queueManager.setJournal(new FCPQueueJournal(file));
+		keys = replayedKeys();
+		assertEquals(1, keys.size());
+		assertEquals("KSK@a", keys.get(0));
+	}
+}
@@ -0,0 +1,68 @@
+package thaw.fcp;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPSelectorTest extends TestCase {
+	private FCPNodeSimulator node;
+	private int port;
+
+	protected void setUp() throws Exception {
+		node = new FCPNodeSimulator();
+		port = node.start();
+	}
+
+	protected void tearDown() {
+		node.stop();
+	}
+
+	private FCPConnection connect() {
+		FCPConnection connection = new FCPConnection("127.0.0.1", port, -1, false, false, true);
+		assertTrue(connection.connect());
+		return connection;
+	}
+
+	@Test
+	public void testStopWhenUnused() {
+		FCPSelector selector = FCPSelector.getSelector();
+
+		FCPConnection a = connect();
+		FCPConnection b = connect();
+		assertTrue(selector.isRunning());
+
+		int channels = selector.getChannelCount();
+
+		a.disconnect();
+		assertEquals(channels - 1, selector.getChannelCount());
+		assertTrue(selector.isRunning());
+
+		b.disconnect();
+		assertEquals(channels - 2, selector.getChannelCount());
+
+		/* other tests may have left connections opened */
+		if (selector.getChannelCount() == 0)
+			assertFalse(selector.isRunning());
+	}
+
+	@Test
+	public void testRestart() throws Exception {
+		FCPSelector selector = FCPSelector.getSelector();
+
+		FCPConnection a = connect();
+		a.disconnect();
+
+		/* as Core.exit() */
+		selector.stopAndWait();
+		assertFalse(selector.isRunning());
+
+		/* restarted by the next connection, which must work */
+		FCPConnection b = connect();
+		assertTrue(selector.isRunning());
+
+		FCPQueryManager queryManager = new FCPQueryManager(b);
+		queryManager.startListening();
+		assertTrue(new FCPClientHello(queryManager, "thaw_selectortest").start());
+
+		b.disconnect();
+	}
+}
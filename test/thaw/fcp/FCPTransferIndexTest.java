@@ -0,0 +1,81 @@
+package thaw.fcp;
+
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPTransferIndexTest extends TestCase {
+	private final FCPQueueManager queueManager =
+		new FCPQueueManager(new FCPQueryManager(new FCPConnection("127.0.0.1", 9481, -1, false, false, false)),
+				    "thaw_test", -1, -1);
+
+	private FCPClientGet newGet(String key, String identifier) {
+		return new FCPClientGet.Builder(queueManager).setKey(key).setIdentifier(identifier)
+			.setPersistence(FCPClientGet.PERSISTENCE_FOREVER).setGlobalQueue(true)
+			.setDestinationDir("/tmp").build();
+	}
+
+	/* the comparison previously done on each query of the queues */
+	private static boolean isTheSame(FCPTransferQuery a, FCPTransferQuery b) {
+		if (a.getQueryType() != b.getQueryType())
+			return false;
+		if (a.getIdentifier() != null && b.getIdentifier() != null)
+			return a.getIdentifier().equals(b.getIdentifier());
+		if (a.getFileKey() != null && b.getFileKey() != null)
+			return a.getFileKey().equals(b.getFileKey());
+		return a.getFilename() != null && a.getFilename().equals(b.getFilename());
+	}
+
+	@Test
+	public void testSameResultThanLinearScan() {
+		Random random = new Random(42);
+		FCPTransferIndex index = new FCPTransferIndex();
+		Vector<FCPTransferQuery> indexed = new Vector<FCPTransferQuery>();
+
+		for (int i = 0 ; i < 300 ; i++) {
+			String file = "file" + random.nextInt(10);
+			String key = "KSK@" + file + (random.nextBoolean() ? "" : "-" + random.nextInt(3));
+			String id = random.nextBoolean() ? null : "thaw_" + random.nextInt(20);
+			FCPTransferQuery query = newGet(key, id);
+
+			boolean expected = false;
+			for (FCPTransferQuery q : indexed)
+				expected |= isTheSame(q, query);
+
+			assertEquals(expected, index.findDuplicate(query) != null);
+
+			if (random.nextInt(3) > 0) {
+				index.add(query);
+				indexed.add(query);
+			} else if (!indexed.isEmpty()) {
+				FCPTransferQuery removed = indexed.remove(random.nextInt(indexed.size()));
+				index.remove(removed);
+			}
+		}
+
+		assertEquals(indexed.size(), index.size());
+	}
+
+	@Test
+	public void testReindex() {
+		FCPTransferIndex index = new FCPTransferIndex();
+		FCPClientGet a = newGet("KSK@a", null);
+		index.add(a);
+
+		assertNotNull(index.findDuplicate(newGet("KSK@a", "thaw_1")));
+
+		a.setIdentifier("thaw_2");
+		index.reindex(a);
+
+		assertNull(index.findDuplicate(newGet("KSK@a", "thaw_1")));
+		assertSame(a, index.findDuplicate(newGet("KSK@b", "thaw_2")));
+		assertSame(a, index.getByKey("KSK@a"));
+
+		index.remove(a);
+		assertNull(index.findDuplicate(newGet("KSK@a", null)));
+		assertNull(index.getByKey("KSK@a"));
+		assertEquals(0, index.size());
+	}
+}
@@ -0,0 +1,108 @@
+package thaw.fcp;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class FCPUploadLimiterTest extends TestCase {
+
+	/**
+	 * Time only moves when the limiter waits, or when the test says so.
+	 */
+	private static class FakeClock implements FCPUploadLimiter.Clock {
+		private long now = 0;
+		private long waited = 0;
+
+		public long nanoTime() {
+			return now;
+		}
+
+		public void await(Object limiter, long nanos) {
+			now += nanos;
+			waited += nanos;
+		}
+
+		public void advance(long millis) {
+			now += millis * 1000000;
+		}
+	}
+
+	private FakeClock clock;
+
+	protected void setUp() {
+		clock = new FakeClock();
+	}
+
+	@Test
+	public void testNoLimit() {
+		FCPUploadLimiter limiter = new FCPUploadLimiter(-1, 0, clock);
+		assertFalse(limiter.isLimited());
+		assertEquals(10000000, limiter.acquire(10000000));
+		assertEquals(0, clock.waited);
+	}
+
+	@Test
+	public void testNeverMoreThanWanted() {
+		FCPUploadLimiter limiter = new FCPUploadLimiter(1024 * 1024, 64 * 1024, clock);
+		clock.advance(1000);
+
+		for (int i = 0 ; i < 10 ; i++)
+			assertEquals(100, limiter.acquire(100));
+
+		assertEquals(0, clock.waited);
+	}
+
+	@Test
+	public void testNeverMoreThanBurst() {
+		FCPUploadLimiter limiter = new FCPUploadLimiter(1024 * 1024, 4096, clock);
+		clock.advance(10000);
+		assertEquals(4096, limiter.acquire(1000000));
+
+		/* bucket empty */
+		assertEquals(0, clock.waited);
+		assertEquals(1024, limiter.acquire(1000000));
+		assertTrue(clock.waited > 0);
+	}
+
+	@Test
+	public void testRefill() {
+		FCPUploadLimiter limiter = new FCPUploadLimiter(100 * 1000, 100 * 1000, clock);
+
+		clock.advance(20);
+		assertEquals(2000, limiter.acquire(1000000));
+
+		clock.advance(5);
+		assertEquals(500, limiter.acquire(1000000));
+		assertEquals(0, clock.waited);
+	}
+
+	@Test
+	public void testDefaultBurstFollowsTheRate() {
+		FCPUploadLimiter limiter = new FCPUploadLimiter(-1, 0, clock);
+		limiter.setLimits(100 * 1024, limiter.getBurst());
+		assertTrue(limiter.getBurst() <= 0);
+
+		/* default burst is a tenth of a second */
+		clock.advance(200);
+		assertEquals(10 * 1024, limiter.acquire(1000000));
+	}
+
+	@Test
+	public void testRate() {
+		final int rate = 200 * 1024;
+		FCPUploadLimiter limiter = new FCPUploadLimiter(rate, 8192, clock);
+
+		int sent = 0;
+		while (sent < rate / 2) {
+			int granted = limiter.acquire(rate / 2 - sent);
+			assertTrue(granted >= 1);
+			assertTrue(granted <= FCPUploadLimiter.MIN_CHUNK);
+			sent += granted;
+		}
+
+		assertEquals(rate / 2, sent);
+
+		/* half a second (tokens start empty), give or take the rounding of the waits */
+		assertTrue("too fast: "+Long.toString(clock.waited), clock.waited >= 499000000L);
+		assertTrue("too slow: "+Long.toString(clock.waited), clock.waited <= 501000000L);
+	}
+}
@@ -0,0 +1,276 @@
+package thaw.plugins.index;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import thaw.core.Logger;
+import thaw.plugins.Hsqldb;
+import thaw.plugins.miniFrost.frostKSK.KSKBoardFactory;
+
+/**
+ * Fills a temporary database with indexes, files, links and board messages, and times
+ * the queries used by the index browser and by MiniFrost before and after the creation
+ * of the secondary indexes (see DatabaseManager.createIndexes() and
+ * KSKBoardFactory.createIndexes()).
+ * Run it with "ant benchmark-db" (needs hsqldb.jar).
+ */
+public class DatabaseBenchmark {
+	private final static int NMB_FOLDERS = 50;
+	private final static int NMB_INDEXES = 1000;
+	private final static int NMB_FILES_PER_INDEX = 50;
+	private final static int NMB_LINKS_PER_INDEX = 10;
+	private final static int NMB_BOARDS = 20;
+	private final static int NMB_MESSAGES = 50000;
+
+	private final static int NMB_QUERIES = 500;
+
+	private final Hsqldb db;
+
+
+	public DatabaseBenchmark(final Hsqldb db) {
+		this.db = db;
+	}
+
+
+	private static String getIndexKey(final int i) {
+		return "USK@BenchMarkKey"+Integer.toString(i)+"AbCdEfGhIjKlMnOpQrStUvWxYz0123456789,AQACAAE/index"
+			+Integer.toString(i)+"/1/";
+	}
+
+	private void exec(final String query) throws SQLException {
+		db.executeQuery(query);
+	}
+
+	public void fill() throws SQLException {
+		DatabaseManager.createTables(db);
+
+		exec("CREATE CACHED TABLE frostKSKBoards ("
+		     + "id INTEGER IDENTITY NOT NULL, "
+		     + "name VARCHAR(128) NOT NULL, "
+		     + "lastUpdate DATE DEFAULT NULL)");
+
+		exec("CREATE CACHED TABLE frostKSKMessages ("
+		     + "id INTEGER IDENTITY NOT NULL, "
+		     + "subject VARCHAR(512), "
+		     + "msgId VARCHAR(128) NOT NULL, "
+		     + "read BOOLEAN DEFAULT FALSE NOT NULL, "
+		     + "archived BOOLEAN DEFAULT FALSE NOT NULL, "
+		     + "boardId INTEGER NOT NULL, "
+		     + "FOREIGN KEY (boardId) REFERENCES frostKSKBoards (id))");
+
+		synchronized(db.dbLock) {
+			PreparedStatement st;
+
+			st = db.getConnection().prepareStatement("INSERT INTO indexFolders (id, name, positionInTree, modifiableIndexes, parent) "
+								 + "VALUES (?, ?, ?, FALSE, NULL)");
+			for (int i = 0 ; i < NMB_FOLDERS ; i++) {
+				st.setInt(1, i);
+				st.setString(2, "folder"+Integer.toString(i));
+				st.setInt(3, i);
+				st.execute();
+			}
+			st.close();
+
+			st = db.getConnection().prepareStatement("INSERT INTO folderParents (folderId, parentId) VALUES (?, NULL)");
+			for (int i = 0 ; i < NMB_FOLDERS ; i++) {
+				st.setInt(1, i);
+				st.execute();
+			}
+			st.close();
+
+			PreparedStatement parents = db.getConnection().prepareStatement("INSERT INTO indexParents (indexId, folderId) VALUES (?, ?)");
+			st = db.getConnection().prepareStatement("INSERT INTO indexes (id, originalName, displayName, publicKey, lowerPublicKey, "
+								 + "privateKey, author, positionInTree, revision, parent) "
+								 + "VALUES (?, ?, NULL, ?, ?, NULL, NULL, ?, 1, ?)");
+			for (int i = 0 ; i < NMB_INDEXES ; i++) {
+				st.setInt(1, i);
+				st.setString(2, "index"+Integer.toString(i));
+				st.setString(3, getIndexKey(i));
+				st.setString(4, getIndexKey(i).toLowerCase());
+				st.setInt(5, i / NMB_FOLDERS);
+				st.setInt(6, i % NMB_FOLDERS);
+				st.execute();
+
+				parents.setInt(1, i);
+				parents.setInt(2, i % NMB_FOLDERS);
+				parents.execute();
+				parents.setInt(1, i);
+				parents.setNull(2, java.sql.Types.INTEGER);
+				parents.execute();
+			}
+			st.close();
+			parents.close();
+
+			st = db.getConnection().prepareStatement("INSERT INTO files (filename, publicKey, mime, size, indexParent) "
+								 + "VALUES (?, ?, 'application/octet-stream', 1024, ?)");
+			for (int i = 0 ; i < NMB_INDEXES ; i++) {
+				for (int j = 0 ; j < NMB_FILES_PER_INDEX ; j++) {
+					st.setString(1, "file"+Integer.toString(j));
+					st.setString(2, "CHK@file"+Integer.toString(i)+"_"+Integer.toString(j)+"/file"+Integer.toString(j));
+					st.setInt(3, i);
+					st.execute();
+				}
+			}
+			st.close();
+
+			st = db.getConnection().prepareStatement("INSERT INTO links (publicKey, mark, comment, indexParent, indexTarget) "
+								 + "VALUES (?, 0, 'No comment', ?, NULL)");
+			for (int i = 0 ; i < NMB_INDEXES ; i++) {
+				for (int j = 0 ; j < NMB_LINKS_PER_INDEX ; j++) {
+					st.setString(1, getIndexKey((i + j + 1) % NMB_INDEXES));
+					st.setInt(2, i);
+					st.execute();
+				}
+			}
+			st.close();
+
+			st = db.getConnection().prepareStatement("INSERT INTO frostKSKBoards (id, name) VALUES (?, ?)");
+			for (int i = 0 ; i < NMB_BOARDS ; i++) {
+				st.setInt(1, i);
+				st.setString(2, "board"+Integer.toString(i));
+				st.execute();
+			}
+			st.close();
+
+			st = db.getConnection().prepareStatement("INSERT INTO frostKSKMessages (subject, msgId, read, archived, boardId) "
+								 + "VALUES (?, ?, ?, ?, ?)");
+			for (int i = 0 ; i < NMB_MESSAGES ; i++) {
+				st.setString(1, "subject"+Integer.toString(i));
+				st.setString(2, "msgId"+Integer.toString(i));
+				st.setBoolean(3, (i % 10) != 0);
+				st.setBoolean(4, (i % 7) == 0);
+				st.setInt(5, i % NMB_BOARDS);
+				st.execute();
+			}
+			st.close();
+		}
+	}
+
+
+	private interface Query {
+		public void set(PreparedStatement st, int i) throws SQLException;
+	}
+
+	/**
+	 * @return the average time of the query, in microseconds
+	 */
+	private long time(final String sql, final Query params) throws SQLException {
+		synchronized(db.dbLock) {
+			final PreparedStatement st = db.getConnection().prepareStatement(sql);
+
+			final long start = System.nanoTime();
+
+			for (int i = 0 ; i < NMB_QUERIES ; i++) {
+				params.set(st, i);
+
+				final ResultSet set = st.executeQuery();
+				while (set.next()) { }
+				set.close();
+			}
+
+			final long duration = System.nanoTime() - start;
+
+			st.close();
+
+			return duration / NMB_QUERIES / 1000;
+		}
+	}
+
+	private final static String[] NAMES = {
+		"files by indexParent",
+		"links by indexParent",
+		"indexParents by folderId",
+		"indexes : LOWER(publicKey) LIKE ?",
+		"indexes : lowerPublicKey LIKE ?",
+		"unread messages by board",
+		"messages by msgId",
+	};
+
+	public long[] run() throws SQLException {
+		final long[] results = new long[NAMES.length];
+
+		final Query byIndex = new Query() {
+				public void set(final PreparedStatement st, final int i) throws SQLException {
+					st.setInt(1, i % NMB_INDEXES);
+				}
+			};
+		final Query byKey = new Query() {
+				public void set(final PreparedStatement st, final int i) throws SQLException {
+					st.setString(1, getIndexKey(i % NMB_INDEXES).toLowerCase().substring(0, 70)+"%");
+				}
+			};
+
+		results[0] = time("SELECT id, filename, publicKey, size FROM files WHERE indexParent = ?", byIndex);
+		results[1] = time("SELECT id, publicKey FROM links WHERE indexParent = ?", byIndex);
+		results[2] = time("SELECT indexId FROM indexParents WHERE folderId = ?", new Query() {
+				public void set(final PreparedStatement st, final int i) throws SQLException {
+					st.setInt(1, i % NMB_FOLDERS);
+				}
+			});
+		results[3] = time("SELECT id FROM indexes WHERE LOWER(publicKey) LIKE ?", byKey);
+		results[4] = time("SELECT id FROM indexes WHERE lowerPublicKey LIKE ?", byKey);
+		results[5] = time("SELECT COUNT(id) FROM frostKSKMessages "
+				  + "WHERE boardId = ? AND read = FALSE AND archived = FALSE", new Query() {
+				public void set(final PreparedStatement st, final int i) throws SQLException {
+					st.setInt(1, i % NMB_BOARDS);
+				}
+			});
+		results[6] = time("SELECT id FROM frostKSKMessages WHERE msgId = ? LIMIT 1", new Query() {
+				public void set(final PreparedStatement st, final int i) throws SQLException {
+					st.setString(1, "msgId"+Integer.toString((i * 97) % NMB_MESSAGES));
+				}
+			});
+
+		return results;
+	}
+
+
+	public static void main(final String[] args) throws Exception {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		Class.forName("org.hsqldb.jdbcDriver");
+
+		final File dir = File.createTempFile("thaw-db-benchmark", "");
+		dir.delete();
+		dir.mkdir();
+
+		final Hsqldb db = new Hsqldb();
+		db.connect("jdbc:hsqldb:file:"+new File(dir, "thaw.db").getAbsolutePath()+";shutdown=true");
+
+		final DatabaseBenchmark benchmark = new DatabaseBenchmark(db);
+
+		long start = System.currentTimeMillis();
+		benchmark.fill();
+		System.out.println("Filled in "+Long.toString(System.currentTimeMillis() - start)+" ms");
+
+		/* warm-up */
+		benchmark.run();
+		final long[] before = benchmark.run();
+
+		start = System.currentTimeMillis();
+		DatabaseManager.createIndexes(db);
+		DatabaseManager.createLastCheckIndex(db);
+		KSKBoardFactory.createIndexes(db);
+		System.out.println("Indexes created in "+Long.toString(System.currentTimeMillis() - start)+" ms");
+
+		benchmark.run();
+		final long[] after = benchmark.run();
+
+		System.out.println("(microseconds per query : without indexes -> with indexes)");
+
+		for (int i = 0 ; i < NAMES.length ; i++) {
+			System.out.println(NAMES[i]+" : "+Long.toString(before[i])+" -> "+Long.toString(after[i]));
+		}
+
+		db.disconnect();
+
+		final File[] files = dir.listFiles();
+		for (int i = 0 ; files != null && i < files.length ; i++)
+			files[i].delete();
+		dir.delete();
+
+		Logger.flush();
+	}
+}
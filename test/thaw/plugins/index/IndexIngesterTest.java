@@ -0,0 +1,174 @@
+package thaw.plugins.index;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import thaw.core.Logger;
+import thaw.plugins.Hsqldb;
+
+public class IndexIngesterTest extends TestCase {
+	private final static String FILE_A = "CHK@AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA,BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB,AAIC--8/a.txt";
+	private final static String FILE_B = "CHK@CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC,DDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDDD,AAIC--8/b.txt";
+	private final static String FILE_C = "CHK@EEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEE,FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF,AAIC--8/c.txt";
+
+	private final static String LINK_X = "USK@XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,AQACAAE/x/1/x.frdx";
+	private final static String LINK_Y = "USK@YYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYY,YYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYYY,AQACAAE/y/1/y.frdx";
+
+	private static int nmbDatabases = 0;
+
+	private Hsqldb db;
+	private int indexId;
+
+
+	public void setUp() throws Exception {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		Class.forName("org.hsqldb.jdbcDriver");
+
+		db = new Hsqldb();
+		db.connect("jdbc:hsqldb:mem:ingester"+Integer.toString(nmbDatabases++));
+
+		DatabaseManager.createTables(db);
+
+		db.executeQuery("INSERT INTO indexes (originalName, publicKey, positionInTree, revision) "
+				+ "VALUES ('test', 'USK@test,test,AQACAAE/test/1/', 0, 1)");
+
+		final PreparedStatement st = db.getConnection().prepareStatement("SELECT id FROM indexes");
+		final ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		indexId = set.getInt("id");
+		st.close();
+	}
+
+	public void tearDown() throws Exception {
+		db.disconnect();
+	}
+
+
+	private long getSize(final String key) throws Exception {
+		final PreparedStatement st = db.getConnection().prepareStatement("SELECT size FROM files WHERE publicKey = ?");
+		st.setString(1, key);
+		final ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		final long size = set.getLong("size");
+		st.close();
+		return size;
+	}
+
+	private String getCategory(final String key) throws Exception {
+		final PreparedStatement st = db.getConnection().prepareStatement("SELECT categories.name FROM links "
+										 + "LEFT OUTER JOIN categories ON links.category = categories.id "
+										 + "WHERE links.publicKey = ?");
+		st.setString(1, key);
+		final ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		final String category = set.getString(1);
+		st.close();
+		return category;
+	}
+
+
+	@Test
+	public void testRevisions() throws Exception {
+		IndexIngester ingester = new IndexIngester(db, indexId);
+
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(FILE_A, 100, "text/plain"));
+		assertTrue(ingester.addFile(FILE_B, 200, "text/plain"));
+		assertTrue(ingester.addLink(LINK_X, "music"));
+		assertTrue(ingester.addLink(LINK_Y, "books"));
+		assertTrue(ingester.commit());
+
+		assertEquals("files +2 ~0 -0, links +2 ~0 -0", ingester.getChanges());
+
+		/* A resized, B removed, C added ; X moved to another category, Y removed */
+		ingester = new IndexIngester(db, indexId);
+
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(FILE_A, 150, "text/plain"));
+		assertTrue(ingester.addFile(FILE_C, 300, "text/plain"));
+		assertTrue(ingester.addLink(LINK_X, "videos"));
+		assertTrue(ingester.commit());
+
+		assertEquals("files +1 ~1 -1, links +0 ~1 -1", ingester.getChanges());
+
+		assertEquals(150, getSize(FILE_A));
+		assertEquals(300, getSize(FILE_C));
+		assertEquals("videos", getCategory(LINK_X));
+
+		/* same revision again : nothing to do */
+		ingester = new IndexIngester(db, indexId);
+
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(FILE_A, 150, "text/plain"));
+		assertTrue(ingester.addFile(FILE_C, 300, "text/plain"));
+		assertTrue(ingester.addLink(LINK_X, "videos"));
+		assertTrue(ingester.commit());
+
+		assertEquals("files +0 ~0 -0, links +0 ~0 -0", ingester.getChanges());
+	}
+
+	private int getLinkId(final String key) throws Exception {
+		final PreparedStatement st = db.getConnection().prepareStatement("SELECT id FROM links WHERE publicKey = ?");
+		st.setString(1, key);
+		final ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		final int id = set.getInt("id");
+		st.close();
+		return id;
+	}
+
+	private int countLinkTerms(final int linkId) throws Exception {
+		final PreparedStatement st = db.getConnection().prepareStatement("SELECT COUNT(*) FROM linkTerms WHERE linkId = ?");
+		st.setInt(1, linkId);
+		final ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		final int count = set.getInt(1);
+		st.close();
+		return count;
+	}
+
+	@Test
+	public void testLinkRevisions() throws Exception {
+		final String link = LINK_X.replace("/x/1/x.frdx", "/music-index/1/music-index.frdx");
+		final String linkNext = link.replace("/1/", "/2/");
+		/* same author, another index */
+		final String other = LINK_X.replace("/x/1/x.frdx", "/other/1/other.frdx");
+
+		IndexIngester ingester = new IndexIngester(db, indexId);
+
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addLink(link, "music"));
+		assertTrue(ingester.addLink(other, "music"));
+		assertTrue(ingester.commit());
+
+		assertEquals("files +0 ~0 -0, links +2 ~0 -0", ingester.getChanges());
+
+		final int id = getLinkId(link);
+		final int terms = countLinkTerms(id);
+		assertTrue(terms > 0);
+
+		/* the target was updated : same row, new key */
+		ingester = new IndexIngester(db, indexId);
+
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addLink(linkNext, "music"));
+		assertTrue(ingester.addLink(other, "music"));
+		assertTrue(ingester.commit());
+
+		assertEquals("files +0 ~0 -0, links +0 ~1 -0", ingester.getChanges());
+		assertEquals(id, getLinkId(linkNext));
+		assertEquals(terms, countLinkTerms(id));
+		assertEquals("music", getCategory(linkNext));
+	}
+
+	@Test
+	public void testGetLinkId() {
+		assertEquals(IndexIngester.getLinkId(LINK_X), IndexIngester.getLinkId(LINK_X.replace("/x/1/", "/x/42/")));
+		assertFalse(IndexIngester.getLinkId(LINK_X).equals(IndexIngester.getLinkId(LINK_Y)));
+		assertEquals("KSK@test", IndexIngester.getLinkId("KSK@test"));
+	}
+}
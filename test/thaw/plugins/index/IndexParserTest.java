@@ -0,0 +1,123 @@
+package thaw.plugins.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import thaw.core.Logger;
+import thaw.plugins.Hsqldb;
+
+public class IndexParserTest extends TestCase {
+	private final static String LINK = "USK@XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,AQACAAE/";
+
+	private static int nmbDatabases = 0;
+
+	private Hsqldb db;
+	private Index source;
+	private Index copy;
+
+
+	public void setUp() throws Exception {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		Class.forName("org.hsqldb.jdbcDriver");
+
+		db = new Hsqldb();
+		db.connect("jdbc:hsqldb:mem:parser"+Integer.toString(nmbDatabases++));
+
+		DatabaseManager.createTables(db);
+
+		source = new Index(db, null, addIndex("source"));
+		copy = new Index(db, null, addIndex("copy"));
+
+		IndexIngester ingester = new IndexIngester(db, source.getId());
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(key('A', "debian.iso"), 650000000L, "application/octet-stream"));
+		assertTrue(ingester.addFile(key('B', "notes%20&%20todo.txt"), 42, "text/plain"));
+		assertTrue(ingester.addLink(LINK+"music-index/3/music.frdx", "music"));
+		assertTrue(ingester.addLink(LINK+"books/1/books.frdx", null));
+		assertTrue(ingester.commit());
+	}
+
+	public void tearDown() throws Exception {
+		db.disconnect();
+	}
+
+	private static String key(char hash, String filename) {
+		char[] chars = new char[43];
+		java.util.Arrays.fill(chars, hash);
+		return "CHK@"+new String(chars)+",BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB,AAIC--8/"+filename;
+	}
+
+	private int addIndex(String name) throws Exception {
+		db.executeQuery("INSERT INTO indexes (originalName, publicKey, positionInTree, revision) "
+				+ "VALUES ('"+name+"', 'USK@"+name+",test,AQACAAE/"+name+"/1/', 0, 1)");
+
+		PreparedStatement st = db.getConnection().prepareStatement("SELECT id FROM indexes WHERE originalName = ?");
+		st.setString(1, name);
+		ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		int id = set.getInt("id");
+		st.close();
+		return id;
+	}
+
+	/**
+	 * @return "key size mime" of each file, then "key category" of each link
+	 */
+	private Vector<String> content(Index index) {
+		final Vector<String> content = new Vector<String>();
+
+		assertTrue(index.visitFileList(new IndexContainer.FileVisitor() {
+				public boolean visitFile(FileContainer file) {
+					content.add(file.getPublicKey()+" "+file.getSize()+" "+file.getMime());
+					return true;
+				}
+			}));
+
+		assertTrue(index.visitLinkList(new IndexContainer.LinkVisitor() {
+				public boolean visitLink(LinkContainer link) {
+					content.add(link.getPublicKey()+" "+link.getCategory());
+					return true;
+				}
+			}));
+
+		return content;
+	}
+
+
+	@Test
+	public void testRoundTrip() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(new IndexParser(source).generateXML(out));
+
+		new IndexParser(copy).loadXML(new ByteArrayInputStream(out.toByteArray()), true);
+
+		Vector<String> expected = content(source);
+		assertEquals(4, expected.size());
+		assertEquals(expected, content(copy));
+
+		/* parsed again over its previous content */
+		new IndexParser(copy).loadXML(new ByteArrayInputStream(out.toByteArray()), true);
+		assertEquals(expected, content(copy));
+	}
+
+	@Test
+	public void testTruncated() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(new IndexParser(source).generateXML(out));
+
+		new IndexParser(copy).loadXML(new ByteArrayInputStream(out.toByteArray()), true);
+		Vector<String> expected = content(copy);
+
+		/* the previous content is restored */
+		byte[] xml = out.toByteArray();
+		new IndexParser(copy).loadXML(new ByteArrayInputStream(xml, 0, xml.length / 2), true);
+		assertEquals(expected, content(copy));
+	}
+}
@@ -0,0 +1,182 @@
+package thaw.plugins.index;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+import thaw.core.Logger;
+import thaw.plugins.Hsqldb;
+
+public class SearchResultTest extends TestCase {
+	private final static String LINK = "USK@XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX,AQACAAE/";
+
+	private static int nmbDatabases = 0;
+
+	private Hsqldb db;
+	private Index first;
+	private Index second;
+	private IndexFolder folder;
+
+
+	public void setUp() throws Exception {
+		Logger.setLogLevel(Logger.LOG_LEVEL_ERROR);
+
+		Class.forName("org.hsqldb.jdbcDriver");
+
+		db = new Hsqldb();
+		db.connect("jdbc:hsqldb:mem:search"+Integer.toString(nmbDatabases++));
+
+		DatabaseManager.createTables(db);
+		DatabaseManager.createTermIndexes(db);
+
+		first = new Index(db, null, addIndex("first"));
+		second = new Index(db, null, addIndex("second"));
+
+		/* only the first index is in the folder */
+		folder = new IndexFolder(db, null, 1, false);
+		db.executeQuery("INSERT INTO indexParents (indexId, folderId) VALUES ("+Integer.toString(first.getId())+", 1)");
+
+		IndexIngester ingester = new IndexIngester(db, first.getId());
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(key('A', "Linux.Distribution.iso"), 100, "application/octet-stream"));
+		assertTrue(ingester.addFile(key('C', "linuxmag-42.pdf"), 200, "application/pdf"));
+		assertTrue(ingester.addFile(key('D', "holidays%20photos.zip"), 300, "application/zip"));
+		assertTrue(ingester.addLink(LINK+"linux-index/1/linux.frdx", null));
+		assertTrue(ingester.commit());
+
+		ingester = new IndexIngester(db, second.getId());
+		assertTrue(ingester.start(true));
+		assertTrue(ingester.addFile(key('E', "linux-photos.tar"), 400, "application/x-tar"));
+		assertTrue(ingester.addLink(LINK+"photos/1/photos.frdx", null));
+		assertTrue(ingester.commit());
+	}
+
+	public void tearDown() throws Exception {
+		db.disconnect();
+	}
+
+	private static String key(char hash, String filename) {
+		char[] chars = new char[43];
+		java.util.Arrays.fill(chars, hash);
+		return "CHK@"+new String(chars)+",BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB,AAIC--8/"+filename;
+	}
+
+	private int addIndex(String name) throws Exception {
+		db.executeQuery("INSERT INTO indexes (originalName, publicKey, positionInTree, revision) "
+				+ "VALUES ('"+name+"', 'USK@"+name+",test,AQACAAE/"+name+"/1/', 0, 1)");
+
+		PreparedStatement st = db.getConnection().prepareStatement("SELECT id FROM indexes WHERE originalName = ?");
+		st.setString(1, name);
+		ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		int id = set.getInt("id");
+		st.close();
+		return id;
+	}
+
+	private String[] search(String words, IndexTreeNode node) {
+		File[] files = new SearchResult(db, words, node).getFileList(null, true);
+		String[] names = new String[files.length];
+
+		for (int i = 0 ; i < files.length ; i++)
+			names[i] = files[i].getFilename();
+
+		return names;
+	}
+
+	private int count(String table) throws Exception {
+		PreparedStatement st = db.getConnection().prepareStatement("SELECT COUNT(*) FROM "+table);
+		ResultSet set = st.executeQuery();
+		assertTrue(set.next());
+		int count = set.getInt(1);
+		st.close();
+		return count;
+	}
+
+
+	@Test
+	public void testUpperBound() {
+		assertEquals("liouo", SearchResult.getUpperBound("lioun"));
+		assertEquals("b", SearchResult.getUpperBound("a"));
+	}
+
+	@Test
+	public void testPrefix() {
+		IndexFolder root = new IndexFolder(db, null, -1, false);
+
+		/* "linux" is a term of all of them, "linuxmag" only starts with it */
+		assertEquals(3, search("lin", root).length);
+		assertEquals(3, search("LINUX", root).length);
+		assertEquals(0, search("inux", root).length);
+		assertEquals(1, search("linuxm", root).length);
+	}
+
+	@Test
+	public void testAllTheWords() {
+		IndexFolder root = new IndexFolder(db, null, -1, false);
+
+		String[] names = search("linux photos", root);
+		assertEquals(1, names.length);
+		assertEquals("linux-photos.tar", names[0]);
+
+		names = search("pho hol", root);
+		assertEquals(1, names.length);
+		assertEquals("holidays photos.zip", names[0]);
+
+		assertEquals(0, search("linux zzz", root).length);
+	}
+
+	@Test
+	public void testRanking() {
+		IndexFolder root = new IndexFolder(db, null, -1, false);
+
+		/* exact terms first, then by name (in lower case) */
+		String[] names = search("linux", root);
+		assertEquals(3, names.length);
+		assertEquals("linux-photos.tar", names[0]);
+		assertEquals("Linux.Distribution.iso", names[1]);
+		assertEquals("linuxmag-42.pdf", names[2]);
+	}
+
+	@Test
+	public void testNode() {
+		String[] names = search("photos", second);
+		assertEquals(1, names.length);
+		assertEquals("linux-photos.tar", names[0]);
+
+		names = search("photos", folder);
+		assertEquals(1, names.length);
+		assertEquals("holidays photos.zip", names[0]);
+
+		assertEquals(2, search("linux", first).length);
+		assertEquals(2, search("linux", folder).length);
+
+		Link[] links = new SearchResult(db, "lin", first).getLinkList(null, true);
+		assertEquals(1, links.length);
+		assertEquals(0, new SearchResult(db, "lin", second).getLinkList(null, true).length);
+		assertEquals(1, new SearchResult(db, "photos", second).getLinkList(null, true).length);
+	}
+
+	@Test
+	public void testPurge() throws Exception {
+		IndexFolder root = new IndexFolder(db, null, -1, false);
+
+		int fileTerms = count("fileTerms");
+		int linkTerms = count("linkTerms");
+
+		first.purgeFileList();
+		first.purgeLinkList();
+
+		/* the terms are deleted with their files / links */
+		assertTrue(count("fileTerms") < fileTerms);
+		assertTrue(count("linkTerms") < linkTerms);
+		assertEquals(count("fileTerms"), TermIndex.getTerms("linux-photos.tar").size());
+
+		String[] names = search("linux", root);
+		assertEquals(1, names.length);
+		assertEquals("linux-photos.tar", names[0]);
+		assertEquals(0, new SearchResult(db, "linux", root).getLinkList(null, true).length);
+	}
+}
@@ -0,0 +1,41 @@
+package thaw.plugins.index;
+
+import java.util.Vector;
+
+import org.junit.Test;
+import junit.framework.TestCase;
+
+public class TermIndexTest extends TestCase {
+
+	@Test
+	public void testGetTerms() throws Exception {
+		final Vector<String> terms = TermIndex.getTerms("Thaw-0.7.10_Linux.tar.GZ a");
+
+		assertEquals(5, terms.size());
+		assertEquals("thaw", terms.get(0));
+		assertEquals("10", terms.get(1));
+		assertEquals("linux", terms.get(2));
+		assertEquals("tar", terms.get(3));
+		assertEquals("gz", terms.get(4));
+	}
+
+	@Test
+	public void testGetTerms_Duplicates() throws Exception {
+		final Vector<String> terms = TermIndex.getTerms("Foo foo FOO");
+
+		assertEquals(1, terms.size());
+		assertEquals("foo", terms.get(0));
+	}
+
+	@Test
+	public void testGetTerms_Empty() throws Exception {
+		assertTrue(TermIndex.getTerms(null).isEmpty());
+		assertTrue(TermIndex.getTerms(" - a").isEmpty());
+	}
+
+	@Test
+	public void testGetFileText() throws Exception {
+		assertEquals("my file.txt", TermIndex.getFileText("my%20file.txt"));
+		assertEquals("100%", TermIndex.getFileText("100%"));
+	}
+}